@@ -5,6 +5,9 @@
 # against all the properties in the BioSD database. This first computes the number of experimental properties
 # in the BioSD database and then it split them in chunks to be passed to multiple processes.
 # 
+# Chunks are defined by property value id ranges (annotate.sh --id-range), which avoids that each job
+# scans the whole property table up to its offset. Set ID_RANGE=false to go back to offset/limit chunks.
+# 
 
 # The LSF group used for loading jobs
 if [ "$LSF_GROUP" == '' ]; then LSF_GROUP='biosd_annotator'; fi
@@ -16,6 +19,42 @@ if [ "$LSF_NODES" == '' ]; then LSF_NODES=5; fi
 # We will create as many jobs as necessary, depending on annotate.sh --property-count
 if [ "$PROPERTIES_PER_JOB" == '' ]; then PROPERTIES_PER_JOB=1000000; fi
 
+# Split jobs by property id ranges (true) or by offset/limit (false)? In the former case, PROPERTIES_PER_JOB is 
+# the size of the id range assigned to each job 
+if [ "$ID_RANGE" == '' ]; then ID_RANGE=true; fi
+
+# Build a filter of the annotation keys already in the DB once, and let all the jobs load it, rather than having
+# each of them to query the DB for keys that aren't there (see --build-key-filter) 
+if [ "$KEY_FILTER" == '' ]; then KEY_FILTER=true; fi
+
+# In id range mode, each job records the id ranges it completes in its own journal file (see --journal). 
+# Set RESUME=true to re-launch a run that was interrupted (with the same parameters), so that each job 
+# restarts from its last checkpoint (--resume). Consider -Duk.ac.ebi.fg.biosd.annotator.storeFlushInterval in 
+# OPTS, to have regular checkpoints.
+if [ "$RESUME" == '' ]; then RESUME=false; fi
+
+# Annotate only the property values loaded after the last successful run of this script (requires ID_RANGE=true).
+# The last annotated id is kept in id_watermark.txt, which is updated only if all the jobs succeed. 
+# Remove that file to annotate everything again.
+if [ "$INCREMENTAL" == '' ]; then INCREMENTAL=false; fi
+
+# If > 0, rather than splitting the property values in chunks of PROPERTIES_PER_JOB, launches this number of jobs 
+# that scan all of them, each annotating the values whose text falls in its own hash shard (see --shard). This way,
+# each distinct value (e.g., 'sex|female') is looked up by one job only, rather than by every job.
+if [ "$SHARDS" == '' ]; then SHARDS=0; fi
+
+# If true (requires ID_RANGE=true), the id range is put in a DB work queue, in chunks of QUEUE_CHUNK_SIZE ids, 
+# and LSF_NODES jobs take chunks from there until it's empty (see --fill-queue, --queue-worker). This balances 
+# the work dynamically, so PROPERTIES_PER_JOB isn't used. With RESUME=true, the queue left by an interrupted run 
+# is not refilled, the new workers just take the chunks that aren't done yet.
+if [ "$QUEUE" == '' ]; then QUEUE=false; fi
+if [ "$QUEUE_CHUNK_SIZE" == '' ]; then QUEUE_CHUNK_SIZE=100000; fi
+
+# If set, every job keeps the ZOOMA results in this file, which is shared by the jobs running on the same node and
+# reused by the next runs, so that values already looked up recently don't cause further ZOOMA calls
+# (see -Duk.ac.ebi.fg.biosd.annotator.localCache). Use a path on the node's local disk, e.g., /tmp/biosd_ann_zooma.
+# Not used by default.
+
 
 # --- end of invoker-passed properties. 
 
@@ -32,9 +71,12 @@ fi
 
 # This is absolutely necessary when you run the annotator through the cluster, since every thread in every JVM instance 
 # takes one DB connection and, without this control, parallel instances will soon overcome the server limit.
+# The connections are split between the threads that scan the property values and the ones that query the 
+# annotations already in the DB. ZOOMA lookups run in a separated pool, which doesn't depend on this limit.
 #
 nthreads=$(( 120 / $LSF_NODES ))
-export OPTS="$OPTS -Duk.ac.ebi.fg.biosd.annotator.maxThreads=$nthreads" 
+export OPTS="$OPTS -Duk.ac.ebi.fg.biosd.annotator.maxThreads=$(( $nthreads / 2 ))" 
+export OPTS="$OPTS -Duk.ac.ebi.fg.biosd.annotator.maxCacheQueries=$(( $nthreads / 2 ))" 
 
 
 # How many properties do we have?
@@ -50,20 +92,97 @@ then
   exit 1
 fi
 
+if [ "$ID_RANGE" == 'true' ]
+then
+	incremental_opts=''
+	if [ "$INCREMENTAL" == 'true' ]; then 
+		watermark_path="$MYDIR/id_watermark.txt"
+		incremental_opts="--incremental $watermark_path"
+	fi
+	id_range=( $(./annotate.sh --property-id-range $incremental_opts 2>/dev/null) )
+	if [ "${id_range[0]}" == '' ]; then
+		echo
+		echo 'No new property values to annotate, exiting'
+		echo
+		echo
+		exit 0
+	fi
+	min_id=${id_range[0]}
+	max_id=${id_range[1]}
+	range_opts='--id-range'
+	journal_dir="$MYDIR/journals"
+	if [ "$RESUME" != 'true' ]; then rm -Rf "$journal_dir"; fi
+	mkdir -p "$journal_dir"
+else
+	min_id=0
+	max_id=$(( $pval_size - 1 ))
+	range_opts=''
+fi
+
 # Remove locks. Be aware that this is not compatible with annotator instances running in parallel
 ./annotate.sh --unlock
 
+# Remove the lookups without results that are expired, so that the jobs refresh them 
+# (see -Duk.ac.ebi.fg.biosd.annotator.nullResultTtl)
+./annotate.sh --purge-null-results
+
+if [ "$KEY_FILTER" == 'true' ]
+then
+	key_filter_path="$MYDIR/key_filter.bin"
+	rm -f "$key_filter_path"
+	./annotate.sh --build-key-filter "$key_filter_path"
+	export OPTS="$OPTS -Duk.ac.ebi.fg.biosd.annotator.keyFilter=$key_filter_path"
+fi
+
+if [ "$LOCAL_ZOOMA_CACHE" != '' ]; then
+	export OPTS="$OPTS -Duk.ac.ebi.fg.biosd.annotator.localCache=$LOCAL_ZOOMA_CACHE"
+fi
+
 # Split the whole job into chunks
 # 
-echo "Processing $pval_size property values with $LSF_NODES nodes, $PROPERTIES_PER_JOB records per job"
+echo "Processing $pval_size property values with $LSF_NODES nodes, $PROPERTIES_PER_JOB records per job, $SHARDS shards"
+echo "Using the range $min_id-$max_id, id range mode: $ID_RANGE"
 echo "Using additional command line arguments:" ${1+"$@"}
 
-chunkct=1
-for (( offset=0; offset<$pval_size; offset+=$PROPERTIES_PER_JOB ))
+# Outputs from previous runs would confuse the final check in incremental mode
+if [ "$watermark_path" != '' ]; then rm -f ./logs/biosdann_*.out; fi
+
+# Shards, queue workers or chunks, they're all jobs
+if [ "$QUEUE" == 'true' ]; then
+	njobs=$LSF_NODES
+	if [ "$RESUME" != 'true' ]; then
+		nchunks=$(./annotate.sh --fill-queue $QUEUE_CHUNK_SIZE --offset $min_id --limit $(( $max_id - $min_id + 1 )) 2>/dev/null)
+		echo "$nchunks chunks in the work queue"
+	fi
+elif [ $SHARDS -gt 0 ]; then
+	njobs=$SHARDS
+	job_size=$(( $max_id - $min_id + 1 ))
+else
+	njobs=$(( ( $max_id - $min_id ) / $PROPERTIES_PER_JOB + 1 ))
+	job_size=$PROPERTIES_PER_JOB
+fi
+
+for (( chunkct=1; chunkct<=$njobs; chunkct++ ))
 do
+	if [ "$QUEUE" == 'true' ]; then
+		bsub -J biosdann$chunkct -g /$LSF_GROUP -oo "./logs/biosdann_$chunkct".out -M 15000 \
+			./annotate.sh --queue-worker ${1+"$@"}
+		continue
+	fi
+	if [ $SHARDS -gt 0 ]; then
+		offset=$min_id
+		shard_opts="--shard $(( $chunkct - 1 ))/$SHARDS"
+	else
+		offset=$(( $min_id + ( $chunkct - 1 ) * $PROPERTIES_PER_JOB ))
+		shard_opts=''
+	fi
+	journal_opts=''
+	if [ "$ID_RANGE" == 'true' ]; then
+		journal_opts="--journal $journal_dir/biosdann_$chunkct.jnl"
+		if [ "$RESUME" == 'true' ]; then journal_opts="$journal_opts --resume"; fi
+	fi
 	bsub -J biosdann$chunkct -g /$LSF_GROUP -oo "./logs/biosdann_$chunkct".out -M 15000 \
-		./annotate.sh --offset $offset --limit $PROPERTIES_PER_JOB ${1+"$@"}
-	(( chunkct++ ))
+		./annotate.sh $range_opts $journal_opts $shard_opts --offset $offset --limit $job_size ${1+"$@"}
 done
 
 # Now poll the LSF and wait until all the jobs terminate.
@@ -74,6 +193,16 @@ do
   sleep 5m
 done
 
+# In incremental mode, the next run starts after this one, unless some job failed
+if [ "$watermark_path" != '' ]; then
+	if [ "$(grep -L 'Successfully completed' ./logs/biosdann_*.out)" == '' ]; then
+		echo $max_id >"$watermark_path"
+		echo "Property value id watermark set to $max_id"
+	else
+		echo 'Some jobs failed, the property value id watermark is not updated'
+	fi
+fi
+
 echo
 echo 'All Finished.'
 echo
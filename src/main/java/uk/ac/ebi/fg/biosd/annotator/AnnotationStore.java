@@ -0,0 +1,399 @@
+package uk.ac.ebi.fg.biosd.annotator;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import uk.ac.ebi.fg.biosd.annotator.model.ComputedOntoTerm;
+import uk.ac.ebi.fg.biosd.annotator.model.DataItem;
+import uk.ac.ebi.fg.biosd.annotator.model.ExpPropValAnnotation;
+import uk.ac.ebi.fg.biosd.annotator.model.ResolvedOntoTermAnnotation;
+import uk.ac.ebi.fg.biosd.annotator.persistence.AnnotatorAccessor;
+import uk.ac.ebi.fg.biosd.annotator.persistence.AnnotatorPersister;
+import uk.ac.ebi.onto_discovery.api.OntologyTermDiscoverer.DiscoveredTerm;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+
+/**
+ * <p>The in-memory store where the annotator keeps the annotations it computes, before they're
+ * {@link AnnotatorPersister persisted} into the BioSD database. It's also used as a cache by the annotator and
+ * by {@link AnnotatorAccessor}.</p>
+ *
+ * <p>There is one {@link EntityMap typed map} per kind of value, so that there are no casts, nor lookups of a per-class
+ * map, and each map has its own locks. Keys are {@link Key compact, pre-hashed} versions of the strings used by the
+ * annotator.</p>
+ */
+public class AnnotationStore
+{
+	/**
+	 * <p>A store key. This keeps the UTF-8 bytes of the original string, which is about half the size of a string in
+	 * the JDK we use, and its hash code, computed once.</p>
+	 *
+	 * <p>A key can be made of a main part and a sub-part (e.g., property value and ontology term URI), which are
+	 * encoded without building the intermediate concatenated string.</p>
+	 */
+	public static final class Key
+	{
+		private final byte[] bytes;
+		private final int hash;
+
+		private Key ( byte[] bytes )
+		{
+			this.bytes = bytes;
+			this.hash = Arrays.hashCode ( bytes );
+		}
+
+		/**
+		 * A key having these UTF-8 bytes, which aren't copied, so they must not be changed after this call.
+		 */
+		public static Key of ( byte[] utf8Bytes )
+		{
+			return utf8Bytes == null ? null : new Key ( utf8Bytes );
+		}
+
+		public static Key of ( String text )
+		{
+			return text == null ? null : new Key ( text.getBytes ( StandardCharsets.UTF_8 ) );
+		}
+
+		/**
+		 * A key for text + ":" + subText.
+		 */
+		public static Key of ( String text, String subText )
+		{
+			if ( text == null ) return null;
+			if ( subText == null ) return of ( text );
+
+			byte[] b1 = text.getBytes ( StandardCharsets.UTF_8 ), b2 = subText.getBytes ( StandardCharsets.UTF_8 );
+			byte[] bytes = new byte [ b1.length + 1 + b2.length ];
+			System.arraycopy ( b1, 0, bytes, 0, b1.length );
+			bytes [ b1.length ] = ':';
+			System.arraycopy ( b2, 0, bytes, b1.length + 1, b2.length );
+			return new Key ( bytes );
+		}
+
+		/**
+		 * The UTF-8 bytes of the key. This is the internal array, don't change it.
+		 */
+		public byte[] getBytes ()
+		{
+			return bytes;
+		}
+
+		@Override
+		public int hashCode ()
+		{
+			return hash;
+		}
+
+		@Override
+		public boolean equals ( Object obj )
+		{
+			if ( this == obj ) return true;
+			if ( !( obj instanceof Key ) ) return false;
+			Key other = (Key) obj;
+			return hash == other.hash && Arrays.equals ( bytes, other.bytes );
+		}
+
+		/**
+		 * The original string.
+		 */
+		@Override
+		public String toString ()
+		{
+			return new String ( bytes, StandardCharsets.UTF_8 );
+		}
+	}
+
+
+	/**
+	 * A typed map of the store, about one kind of value. The default implementation is backed by a regular map, 
+	 * subclasses can use another storage by overriding the methods based on {@link Key}, plus {@link #snapshot()}, 
+	 * {@link #size()} and {@link #clear()}.
+	 */
+	public static class EntityMap<V>
+	{
+		/**
+		 * The number of {@link #getLock(Key) locks} shared by the keys, must be a power of 2.
+		 */
+		private static final int LOCK_STRIPES = 64;
+
+		private final Class<?> type;
+		private final Map<Key, V> map;
+		private final Lock[] locks;
+
+		protected EntityMap ( Class<?> type, Map<Key, V> map )
+		{
+			this.type = type;
+			this.map = map;
+			
+			// Subclasses not using the map don't need them either
+			this.locks = map == null ? null : new Lock [ LOCK_STRIPES ];
+			if ( locks != null ) for ( int i = 0; i < LOCK_STRIPES; i++ ) locks [ i ] = new ReentrantLock ();
+		}
+
+		public V get ( String key )
+		{
+			return get ( Key.of ( key ) );
+		}
+
+		public V get ( String key, String subKey )
+		{
+			return get ( Key.of ( key, subKey ) );
+		}
+
+		public V get ( Key key )
+		{
+			return key == null ? null : map.get ( key );
+		}
+
+		public void put ( String key, V value )
+		{
+			put ( Key.of ( key ), value );
+		}
+
+		public void put ( String key, String subKey, V value )
+		{
+			put ( Key.of ( key, subKey ), value );
+		}
+
+		public void put ( Key key, V value )
+		{
+			if ( key == null ) return;
+			
+			Lock lock = getLock ( key );
+			lock.lock ();
+			try {
+				map.put ( key, value );
+			}
+			finally {
+				lock.unlock ();
+			}
+		}
+
+		public boolean contains ( String key )
+		{
+			return contains ( Key.of ( key ) );
+		}
+
+		public boolean contains ( Key key )
+		{
+			return get ( key ) != null;
+		}
+
+		/**
+		 * Removes the key only if it's still mapped to this very same object (not just an equal one). The check and 
+		 * the removal hold the same lock as {@link #put(Key, Object)}, so that a new value put in the meanwhile isn't
+		 * lost. We can't use {@link ConcurrentMap#remove(Object, Object)} for this, since the entities override 
+		 * equals().
+		 */
+		public boolean removeIfSame ( Key key, V value )
+		{
+			if ( key == null ) return false;
+			
+			Lock lock = getLock ( key );
+			lock.lock ();
+			try 
+			{
+				if ( map.get ( key ) != value ) return false;
+				return map.remove ( key ) != null;
+			}
+			finally {
+				lock.unlock ();
+			}
+		}
+
+		/**
+		 * The keys are distributed over a fixed set of locks, used for the operations that need more than one map call.
+		 */
+		private Lock getLock ( Key key )
+		{
+			return locks [ key.hashCode () & ( LOCK_STRIPES - 1 ) ];
+		}
+
+		/**
+		 * A copy of the current contents, which doesn't change when the store is updated.
+		 */
+		public Map<Key, V> snapshot ()
+		{
+			return new HashMap<> ( map );
+		}
+
+		public int size ()
+		{
+			return map.size ();
+		}
+
+		public void clear ()
+		{
+			map.clear ();
+		}
+
+		/**
+		 * The type of the entities in this map (the element type for list-based maps).
+		 */
+		public Class<?> getType ()
+		{
+			return type;
+		}
+	}
+
+
+	private final EntityMap<List<DiscoveredTerm>> discoveredTerms;
+	private final EntityMap<List<ExpPropValAnnotation>> pvAnnLists;
+	private final EntityMap<Boolean> dataItemMisses;
+
+	private final EntityMap<DataItem> dataItems;
+	private final EntityMap<ComputedOntoTerm> computedOntoTerms = newEntityMap ( ComputedOntoTerm.class );
+	private final EntityMap<ResolvedOntoTermAnnotation> resolvedOntoTermAnns = newEntityMap ( ResolvedOntoTermAnnotation.class );
+	private final EntityMap<ExpPropValAnnotation> pvAnns;
+
+	/**
+	 * The maps that {@link AnnotatorPersister} saves, in the order it has to save them.
+	 */
+	private final List<EntityMap<?>> pendingEntityMaps;
+
+
+	/**
+	 * @param readCacheSize the max size of {@link #getDiscoveredTerms()} and {@link #getDataItemMisses()}.
+	 * @param discoveredTermsListener if not null, it's notified about the removals from {@link #getDiscoveredTerms()}.
+	 */
+	public AnnotationStore ( long readCacheSize, RemovalListener<Key, List<DiscoveredTerm>> discoveredTermsListener )
+	{
+		this ( 
+			readCacheSize, discoveredTermsListener, 
+			AnnotationStore.<DataItem>newEntityMap ( DataItem.class ),
+			AnnotationStore.<ExpPropValAnnotation>newEntityMap ( ExpPropValAnnotation.class )
+		);
+	}
+
+	/**
+	 * Allows subclasses to use their own storage for the entities that are more numerous. 
+	 */
+	protected AnnotationStore ( 
+		long readCacheSize, RemovalListener<Key, List<DiscoveredTerm>> discoveredTermsListener,
+		EntityMap<DataItem> dataItems, EntityMap<ExpPropValAnnotation> pvAnns 
+	)
+	{
+		this.dataItems = dataItems;
+		this.pvAnns = pvAnns;
+		
+		CacheBuilder<Object, Object> cacheBuilder = CacheBuilder.newBuilder ().maximumSize ( readCacheSize );
+		Map<Key, List<DiscoveredTerm>> dtermsMap = discoveredTermsListener == null
+			? cacheBuilder.<Key, List<DiscoveredTerm>>build ().asMap ()
+			: cacheBuilder.removalListener ( discoveredTermsListener ).<Key, List<DiscoveredTerm>>build ().asMap ();
+		this.discoveredTerms = new EntityMap<> ( DiscoveredTerm.class, dtermsMap );
+		this.dataItemMisses = new EntityMap<> ( 
+			DataItem.class, CacheBuilder.newBuilder ().maximumSize ( readCacheSize ).<Key, Boolean>build ().asMap () 
+		);
+
+		this.pvAnnLists = newEntityMap ( ExpPropValAnnotation.class );
+
+		this.pendingEntityMaps = Collections.unmodifiableList ( 
+			Arrays.<EntityMap<?>>asList ( dataItems, computedOntoTerms, resolvedOntoTermAnns, pvAnns )
+		);
+	}
+
+
+	/**
+	 * The terms found by the ontology discoverers, per property value key. This is a read-only cache (these lists are
+	 * saved as {@link #getExpPropValAnnotations() annotations}), bounded to a max size, with the least recently used
+	 * entries evicted first.
+	 */
+	public EntityMap<List<DiscoveredTerm>> getDiscoveredTerms ()
+	{
+		return discoveredTerms;
+	}
+
+	/**
+	 * The property value annotations to be persisted, keyed by property value key + ":" + term URI, or by property value
+	 * key only, when the annotation records that there aren't terms for the key.
+	 */
+	public EntityMap<ExpPropValAnnotation> getExpPropValAnnotations ()
+	{
+		return pvAnns;
+	}
+
+	/**
+	 * The annotations about a property value key, as they're cached by {@link AnnotatorAccessor}. This is never persisted.
+	 */
+	public EntityMap<List<ExpPropValAnnotation>> getExpPropValAnnotationLists ()
+	{
+		return pvAnnLists;
+	}
+
+	/**
+	 * The property value texts known to have no data item, ie, they're neither numbers nor dates. This is a set of
+	 * negative lookups used by {@link AnnotatorAccessor}, which is never persisted and, like 
+	 * {@link #getDiscoveredTerms()}, it's bounded to a max size. It's kept apart from {@link #getDataItems()}, so that 
+	 * it doesn't count as pending entities.
+	 */
+	public EntityMap<Boolean> getDataItemMisses ()
+	{
+		return dataItemMisses;
+	}
+
+	/**
+	 * The data items waiting to be persisted, per property value text.
+	 */
+	public EntityMap<DataItem> getDataItems ()
+	{
+		return dataItems;
+	}
+
+	/**
+	 * The computed ontology terms, per URI.
+	 */
+	public EntityMap<ComputedOntoTerm> getComputedOntoTerms ()
+	{
+		return computedOntoTerms;
+	}
+
+	/**
+	 * The ontology entry annotations, per ontology entry text (see {@link ResolvedOntoTermAnnotation}).
+	 */
+	public EntityMap<ResolvedOntoTermAnnotation> getResolvedOntoTermAnnotations ()
+	{
+		return resolvedOntoTermAnns;
+	}
+
+	/**
+	 * The maps having entities that need to be persisted, in the order they have to be saved.
+	 */
+	public List<EntityMap<?>> getPendingEntityMaps ()
+	{
+		return pendingEntityMaps;
+	}
+
+	/**
+	 * The number of entities waiting to be persisted.
+	 */
+	public long getPendingSize ()
+	{
+		long result = 0;
+		for ( EntityMap<?> emap: pendingEntityMaps ) result += emap.size ();
+		return result;
+	}
+
+	public void clear ()
+	{
+		discoveredTerms.clear ();
+		pvAnnLists.clear ();
+		dataItemMisses.clear ();
+		for ( EntityMap<?> emap: pendingEntityMaps ) emap.clear ();
+	}
+
+
+	private static <V> EntityMap<V> newEntityMap ( Class<?> type )
+	{
+		return new EntityMap<V> ( type, new ConcurrentHashMap<Key, V> () );
+	}
+}
@@ -0,0 +1,49 @@
+package uk.ac.ebi.fg.biosd.annotator;
+
+import java.util.Date;
+
+import uk.ac.ebi.fg.biosd.annotator.model.FeatureAnnotation;
+
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+
+/**
+ * <p>Canonical instances of values that are repeated across many annotations, so that millions of
+ * {@link FeatureAnnotation}s in the {@link AnnotationStore} don't carry their own copies of the same strings and
+ * dates.</p>
+ *
+ * <p>Ontology term URIs are interned with a weak interner, so that URIs no longer used by any annotation can be
+ * garbage-collected. Timestamps are a shared {@link Date}, which is renewed once per second. We don't use a single
+ * timestamp per run, since the {@link uk.ac.ebi.fg.biosd.annotator.purge.Purger} and the LSF jobs select annotations
+ * by their creation time.</p>
+ */
+public class AnnotationValuePool
+{
+	/**
+	 * How often the shared timestamp is renewed (ms).
+	 */
+	public static final long TIMESTAMP_RESOLUTION = 1000;
+
+	private final Interner<String> uris = Interners.newWeakInterner ();
+	private volatile Date timestamp = null;
+
+	/**
+	 * The shared instance of this URI. null if the URI is null.
+	 */
+	public String getUri ( String uri )
+	{
+		return uri == null ? null : uris.intern ( uri );
+	}
+
+	/**
+	 * The current shared timestamp. This must not be changed by the callers.
+	 */
+	public Date getTimestamp ()
+	{
+		long now = System.currentTimeMillis ();
+		Date result = this.timestamp;
+		if ( result == null || now - result.getTime () >= TIMESTAMP_RESOLUTION || now < result.getTime () )
+			this.timestamp = result = new Date ( now );
+		return result;
+	}
+}
@@ -1,18 +1,22 @@
 package uk.ac.ebi.fg.biosd.annotator;
 
 import java.io.IOException;
-import java.util.Map;
+import java.util.List;
 import java.util.Properties;
-import java.util.concurrent.ConcurrentHashMap;
 
+import org.apache.commons.lang3.StringUtils;
+
+import uk.ac.ebi.fg.biosd.annotator.ontodiscover.ExpPropValAnnotationIndex;
+import uk.ac.ebi.fg.biosd.annotator.persistence.AnnotationKeyFilter;
+import uk.ac.ebi.fg.biosd.annotator.persistence.OffHeapAnnotationStore;
 import uk.ac.ebi.fgpt.zooma.model.AnnotationPrediction.Confidence;
 import uk.ac.ebi.fgpt.zooma.search.AbstractZOOMASearch;
 import uk.ac.ebi.fgpt.zooma.search.StatsZOOMASearchFilter;
 import uk.ac.ebi.fgpt.zooma.search.ZOOMASearchClient;
+import uk.ac.ebi.onto_discovery.api.OntologyTermDiscoverer.DiscoveredTerm;
 
-import com.google.common.base.Supplier;
-import com.google.common.collect.Table;
-import com.google.common.collect.Tables;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
 
 /**
  * Several common resources used by the annotator. 
@@ -40,20 +44,27 @@ public class AnnotatorResources
 	 */
 	public static final String FAST_MODE_DEBUG_PROP_NAME = PROP_NAME_PREFIX + "debug.fast_mode";
 
+	/**
+	 * The max number of {@link DiscoveredTerm} lists kept in the {@link #getStore() store}. These are a read-only cache
+	 * (they're not persisted), so the least recently used ones are evicted when this size is reached. Default is 
+	 * 500000.
+	 */
+	public static final String READ_CACHE_SIZE_PROP = PROP_NAME_PREFIX + "readCacheSize";
 	
-	// This seems to be the only and absurd way to tell Google Collections that I want a damn efficiently-synchronised 
-	// Table. ConcurrentHashMap is better than synchronising on the whole table object, synchronisation on 
-	// single key values doesn't work.
-	@SuppressWarnings ( "rawtypes" )
-	private final Table<Class, String, Object> store = Tables.newCustomTable 
-	( 
-		new ConcurrentHashMap<Class, Map<String, Object>>(),
-		new Supplier<Map<String, Object>>() 
-		{
-			@Override
-			public Map<String, Object> get () {	return new ConcurrentHashMap<String, Object> ();	}
-		}
-	);
+	/**
+	 * The kind of {@link #getStore() store} to use: 'heap' (default) or 'offheap', the latter keeping the annotations 
+	 * to be saved in memory-mapped files (see {@link OffHeapAnnotationStore}).
+	 */
+	public static final String STORE_TYPE_PROP = PROP_NAME_PREFIX + "storeType";
+	
+	
+	private final ExpPropValAnnotationIndex pvAnnIndex = new ExpPropValAnnotationIndex ();
+	
+	private final AnnotationStore store = newStore ();
+	
+	private final AnnotationKeyFilter keyFilter = new AnnotationKeyFilter ();
+	
+	private final AnnotationValuePool valuePool = new AnnotationValuePool ();
 	
 	private final AbstractZOOMASearch zoomaClient;
 	
@@ -80,15 +91,38 @@ public class AnnotatorResources
 	}
 	
 	/**
-	 * Annotations computed by this tool are first saved in this in-memory double layer map. Later, they're saved on the 
+	 * Annotations computed by this tool are first saved in this in-memory store. Later, they're saved on the 
 	 * BioSD database. This ensures speed by avoiding too much DB synchronisation.
 	 */
-	@SuppressWarnings ( "rawtypes" )
-	public Table<Class, String, Object> getStore ()
+	public AnnotationStore getStore ()
 	{
 		return store;
 	}
 	
+	/**
+	 * A snapshot of the ontology annotations already in the BioSD database, used to speed up the DB-level cache. 
+	 */
+	public ExpPropValAnnotationIndex getPvAnnIndex ()
+	{
+		return pvAnnIndex;
+	}
+	
+	/**
+	 * Used to skip DB lookups about annotation keys that are definitely not in the BioSD database.
+	 */
+	public AnnotationKeyFilter getKeyFilter ()
+	{
+		return keyFilter;
+	}
+	
+	/**
+	 * Shared instances of values that are repeated across annotations.
+	 */
+	public AnnotationValuePool getValuePool ()
+	{
+		return valuePool;
+	}
+	
 	/**
 	 * We use a common {@link PropertyValAnnotationManager} to run the feature annotator.
 	 */
@@ -114,5 +148,33 @@ public class AnnotatorResources
 	public void reset ()
 	{
 		this.store.clear ();
+		this.pvAnnIndex.clear ();
+		this.keyFilter.clear ();
+	}
+
+	/**
+	 * When a {@link DiscoveredTerm} list is evicted from the store, we also drop its key from the 
+	 * {@link #getPvAnnIndex() annotation snapshot}, since that might be out of date (ie, the terms might have been 
+	 * persisted after the snapshot).
+	 */
+	private AnnotationStore newStore ()
+	{
+		long maxSize = Long.parseLong ( System.getProperty ( READ_CACHE_SIZE_PROP, "500000" ) );
+		
+		RemovalListener<AnnotationStore.Key, List<DiscoveredTerm>> dtermsListener = 
+			new RemovalListener<AnnotationStore.Key, List<DiscoveredTerm>>() 
+		{
+			@Override
+			public void onRemoval ( RemovalNotification<AnnotationStore.Key, List<DiscoveredTerm>> notification ) {
+				if ( notification.wasEvicted () ) pvAnnIndex.remove ( notification.getKey ().toString () );
+			}
+		};
+		
+		String storeType = StringUtils.trimToEmpty ( System.getProperty ( STORE_TYPE_PROP, "heap" ) ).toLowerCase ();
+		if ( "heap".equals ( storeType ) ) return new AnnotationStore ( maxSize, dtermsListener );
+		if ( "offheap".equals ( storeType ) ) return new OffHeapAnnotationStore ( maxSize, dtermsListener );
+		throw new IllegalArgumentException ( 
+			"Invalid value '" + storeType + "' for the property " + STORE_TYPE_PROP + ", must be 'heap' or 'offheap'"
+		);
 	}
 }
@@ -4,11 +4,15 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import uk.ac.ebi.fg.biosd.annotator.datadiscover.NumericalDataAnnotator;
+import uk.ac.ebi.fg.biosd.annotator.ontodiscover.AdaptiveZOOMASearchFilter;
 import uk.ac.ebi.fg.biosd.annotator.ontodiscover.BioSDCachedOntoTermDiscoverer;
 import uk.ac.ebi.fg.biosd.annotator.ontodiscover.BioSDOntoDiscoveringCache;
+import uk.ac.ebi.fg.biosd.annotator.ontodiscover.CoalescingOntoTermDiscoverer;
+import uk.ac.ebi.fg.biosd.annotator.ontodiscover.LocalFileOntoTermDiscoveryCache;
 import uk.ac.ebi.fg.biosd.annotator.ontodiscover.OntoDiscoveryAndAnnotator;
 import uk.ac.ebi.fg.biosd.annotator.ontodiscover.OntoTermDiscoveryStoreCache;
 import uk.ac.ebi.fg.biosd.annotator.ontodiscover.ZOOMAUnitSearch;
+import uk.ac.ebi.fg.biosd.annotator.threading.PropertyValAnnotationService;
 import uk.ac.ebi.fg.core_model.expgraph.properties.ExperimentalPropertyType;
 import uk.ac.ebi.fg.core_model.expgraph.properties.ExperimentalPropertyValue;
 import uk.ac.ebi.fg.core_model.toplevel.AnnotationProvenance;
@@ -58,27 +62,44 @@ public class PropertyValAnnotationManager
 	{		
 		OntologyTermDiscoverer zoomaBaseDiscoverer = null, zoomaUnitBaseDiscoverer = null;
 
-		AbstractZOOMASearch zoomaClient = resources.getZoomaClient ();
+		// Remote calls are bound, independently on how many lookup threads we have, and adapted to how ZOOMA is doing
+		AbstractZOOMASearch zoomaClient = new AdaptiveZOOMASearchFilter ( resources.getZoomaClient () );
 		zoomaBaseDiscoverer = new ZoomaOntoTermDiscoverer ( zoomaClient );
 		zoomaUnitBaseDiscoverer = new ZoomaOntoTermDiscoverer ( new ZOOMAUnitSearch (	zoomaClient	) );
 
+		// Results survive the JVM and are shared by the processes on the same host, see the class for details
+		if ( LocalFileOntoTermDiscoveryCache.isEnabled () )
+		{
+			zoomaBaseDiscoverer = new CachedOntoTermDiscoverer (
+				zoomaBaseDiscoverer, new LocalFileOntoTermDiscoveryCache ( "zooma" )
+			);
+			zoomaUnitBaseDiscoverer = new CachedOntoTermDiscoverer (
+				zoomaUnitBaseDiscoverer, new LocalFileOntoTermDiscoveryCache ( "zooma-unit" )
+			);
+		}
+
+		// Concurrent requests for the same key wait for a single lookup through the cache levels
 		ZoomaNumAnnotator = new NumericalDataAnnotator (
-			new BioSDCachedOntoTermDiscoverer ( // 1st level, Memory Cache
-				new CachedOntoTermDiscoverer( // 2nd level, BioSD cache
-					zoomaUnitBaseDiscoverer,
-					new BioSDOntoDiscoveringCache ()
-				),
-				new OntoTermDiscoveryStoreCache ("ZOOMA")
+			new CoalescingOntoTermDiscoverer (
+				new BioSDCachedOntoTermDiscoverer ( // 1st level, Memory Cache
+					new CachedOntoTermDiscoverer( // 2nd level, BioSD cache
+						zoomaUnitBaseDiscoverer,
+						new BioSDOntoDiscoveringCache ()
+					),
+					new OntoTermDiscoveryStoreCache ("ZOOMA")
+				)
 			)
 		);
 
 		zoomaOntoDiscoverer = new OntoDiscoveryAndAnnotator (
-			new BioSDCachedOntoTermDiscoverer ( // 1st level, Memory Cache
-				new CachedOntoTermDiscoverer ( // 2nd level, BioSD cache
-					zoomaBaseDiscoverer,
-					new BioSDOntoDiscoveringCache ()
-				),
-				new OntoTermDiscoveryStoreCache ("ZOOMA")
+			new CoalescingOntoTermDiscoverer (
+				new BioSDCachedOntoTermDiscoverer ( // 1st level, Memory Cache
+					new CachedOntoTermDiscoverer ( // 2nd level, BioSD cache
+						zoomaBaseDiscoverer,
+						new BioSDOntoDiscoveringCache ()
+					),
+					new OntoTermDiscoveryStoreCache ("ZOOMA")
+				)
 			)
 		);
 	}
@@ -88,8 +109,33 @@ public class PropertyValAnnotationManager
 	First try with zooma
 	 */
 	public void textAnnotation(ExperimentalPropertyValue<ExperimentalPropertyType> pv){
-		boolean isNumberOrDate = ZoomaNumAnnotator.annotate ( pv );
-		zoomaOntoDiscoverer.tryToAnnotate ( pv, isNumberOrDate );
+		textAnnotation ( PropertyValRecord.of ( pv ) );
+	}
+
+	public void textAnnotation ( PropertyValRecord pvrec )
+	{
+		annotateOntoTerms ( pvrec, annotateData ( pvrec ) );
+	}
+
+	/**
+	 * The first part of {@link #annotate(PropertyValRecord)}, which extracts numbers and dates from the value and doesn't
+	 * involve remote calls. 
+	 * 
+	 * @return true if the value is a number or date, which is needed by {@link #annotateOntoTerms(PropertyValRecord, boolean)}.
+	 */
+	public boolean annotateData ( PropertyValRecord pvrec )
+	{
+		return ZoomaNumAnnotator.annotateData ( pvrec );
+	}
+	
+	/**
+	 * The second part of {@link #annotate(PropertyValRecord)}, which looks up ontology terms for the unit and the 
+	 * type/value, possibly using remote services. 
+	 */
+	public void annotateOntoTerms ( PropertyValRecord pvrec, boolean isNumberOrDate )
+	{
+		ZoomaNumAnnotator.annotateUnit ( pvrec );
+		zoomaOntoDiscoverer.tryToAnnotate ( pvrec, isNumberOrDate );
 	}
 
 
@@ -98,6 +144,14 @@ public class PropertyValAnnotationManager
 	 */
 	public void annotate ( ExperimentalPropertyValue<ExperimentalPropertyType> pv )
 	{
-		textAnnotation(pv);
+		annotate ( PropertyValRecord.of ( pv ) );
+	}
+
+	/**
+	 * Works with the lightweight record, which is what the {@link PropertyValAnnotationService annotation service} uses.
+	 */
+	public void annotate ( PropertyValRecord pvrec )
+	{
+		textAnnotation ( pvrec );
 	}
 }
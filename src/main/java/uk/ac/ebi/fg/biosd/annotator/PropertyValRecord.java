@@ -0,0 +1,124 @@
+package uk.ac.ebi.fg.biosd.annotator;
+
+import uk.ac.ebi.fg.biosd.annotator.datadiscover.NumericalDataAnnotator;
+import uk.ac.ebi.fg.biosd.annotator.ontodiscover.OntoDiscoveryAndAnnotator;
+import uk.ac.ebi.fg.biosd.annotator.persistence.dao.PropertyValRecordDAO;
+import uk.ac.ebi.fg.core_model.expgraph.properties.ExperimentalPropertyType;
+import uk.ac.ebi.fg.core_model.expgraph.properties.ExperimentalPropertyValue;
+import uk.ac.ebi.fg.core_model.expgraph.properties.Unit;
+import uk.ac.ebi.fg.core_model.terms.OntologyEntry;
+
+/**
+ * <p>A lightweight and immutable view of an {@link ExperimentalPropertyValue}, which contains only what the annotator
+ * needs, ie, the type, value and unit labels, plus the accession of the ontology term attached to the unit, if
+ * there is exactly one.</p>
+ *
+ * <p>This is the input for {@link PropertyValAnnotationManager}, {@link NumericalDataAnnotator} and
+ * {@link OntoDiscoveryAndAnnotator}. It can be built from an entity, via {@link #of(ExperimentalPropertyValue)}, or
+ * fetched in bulk via {@link PropertyValRecordDAO}, which uses projection queries and avoids the loading of whole
+ * entity graphs.</p>
+ */
+public final class PropertyValRecord
+{
+	private final Long id;
+	private final String typeLabel, valueLabel;
+	private final boolean hasUnit;
+	private final String unitLabel, unitOeAcc;
+
+	/**
+	 * @param id the id of the original {@link ExperimentalPropertyValue}, might be null, e.g., for records that don't
+	 * come from a single property value.
+	 * @param hasUnit tells if the property value has a unit, unitLabel and unitOeAcc are ignored when this is false.
+	 * @param unitOeAcc the accession of the unit's ontology term, when the unit has exactly one. null otherwise.
+	 */
+	public PropertyValRecord (
+		Long id, String typeLabel, String valueLabel, boolean hasUnit, String unitLabel, String unitOeAcc
+	)
+	{
+		this.id = id;
+		this.typeLabel = typeLabel;
+		this.valueLabel = valueLabel;
+		this.hasUnit = hasUnit;
+		this.unitLabel = hasUnit ? unitLabel : null;
+		this.unitOeAcc = hasUnit ? unitOeAcc : null;
+	}
+
+	/**
+	 * A record without id, having a unit if unitLabel is not null.
+	 */
+	public PropertyValRecord ( String typeLabel, String valueLabel, String unitLabel )
+	{
+		this ( null, typeLabel, valueLabel, unitLabel != null, unitLabel, null );
+	}
+
+	/**
+	 * Extracts a record from the entity. This is meant to be invoked while the entity is still attached to an
+	 * entity manager, so that its lazy properties can be fetched.
+	 */
+	public static PropertyValRecord of ( ExperimentalPropertyValue<?> pv )
+	{
+		if ( pv == null ) return null;
+
+		ExperimentalPropertyType ptype = pv.getType ();
+		Unit u = pv.getUnit ();
+
+		String unitOeAcc = null;
+		if ( u != null && u.getOntologyTerms ().size () == 1 )
+		{
+			OntologyEntry uoe = u.getSingleOntologyTerm ();
+			if ( uoe != null ) unitOeAcc = uoe.getAcc ();
+		}
+
+		return new PropertyValRecord (
+			pv.getId (),
+			ptype == null ? null : ptype.getTermText (),
+			pv.getTermText (),
+			u != null,
+			u == null ? null : u.getTermText (),
+			unitOeAcc
+		);
+	}
+
+	public Long getId ()
+	{
+		return id;
+	}
+
+	/**
+	 * The original {@link ExperimentalPropertyType#getTermText()}, without any pre-processing.
+	 */
+	public String getTypeLabel ()
+	{
+		return typeLabel;
+	}
+
+	public String getValueLabel ()
+	{
+		return valueLabel;
+	}
+
+	public boolean hasUnit ()
+	{
+		return hasUnit;
+	}
+
+	public String getUnitLabel ()
+	{
+		return unitLabel;
+	}
+
+	public String getUnitOeAcc ()
+	{
+		return unitOeAcc;
+	}
+
+	@Override
+	public String toString ()
+	{
+		return String.format (
+			"PropertyValRecord { id: %d, type: '%s', value: '%s', unit: '%s', unit OE: '%s' }",
+			id, typeLabel, valueLabel, unitLabel, unitOeAcc
+		);
+	}
+
+}
@@ -6,6 +6,7 @@ import java.io.*;
 import java.util.ArrayList;
 import java.util.Scanner;
 
+import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
 
 import org.apache.commons.cli.CommandLine;
@@ -18,11 +19,24 @@ import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import uk.ac.ebi.fg.biosd.annotator.AnnotatorResources;
+import uk.ac.ebi.fg.biosd.annotator.ontodiscover.AdaptiveZOOMASearchFilter;
+import uk.ac.ebi.fg.biosd.annotator.ontodiscover.BioSDOntoDiscoveringCache;
+import uk.ac.ebi.fg.biosd.annotator.ontodiscover.ExpPropValAnnotationIndex;
+import uk.ac.ebi.fg.biosd.annotator.ontodiscover.LocalFileOntoTermDiscoveryCache;
+import uk.ac.ebi.fg.biosd.annotator.ontodiscover.OntoTermDiscoveryStoreCache;
+import uk.ac.ebi.fg.biosd.annotator.persistence.AnnotationKeyFilter;
 import uk.ac.ebi.fg.biosd.annotator.persistence.AnnotatorAccessor;
 import uk.ac.ebi.fg.biosd.annotator.persistence.AnnotatorExporter;
 import uk.ac.ebi.fg.biosd.annotator.persistence.AnnotatorPersister;
+import uk.ac.ebi.fg.biosd.annotator.persistence.IdWatermark;
+import uk.ac.ebi.fg.biosd.annotator.persistence.OffHeapAnnotationStore;
+import uk.ac.ebi.fg.biosd.annotator.persistence.RunJournal;
+import uk.ac.ebi.fg.biosd.annotator.persistence.StoreMemoryBudget;
+import uk.ac.ebi.fg.biosd.annotator.persistence.WorkChunkQueue;
 import uk.ac.ebi.fg.biosd.annotator.purge.Purger;
 import uk.ac.ebi.fg.biosd.annotator.threading.PropertyValAnnotationService;
+import uk.ac.ebi.fg.biosd.annotator.threading.StoreFlusher;
 import uk.ac.ebi.fg.biosd.model.organizational.MSI;
 import uk.ac.ebi.fg.core_model.expgraph.properties.ExperimentalPropertyType;
 import uk.ac.ebi.fg.core_model.expgraph.properties.ExperimentalPropertyValue;
@@ -50,6 +64,10 @@ public class AnnotateCmd
 
 	private static AnnotatorExporter annotatorExporter = null;
 	
+	/** Used in incremental mode, saved at the end of a successful run */
+	private static IdWatermark idWatermark = null;
+	private static Long newIdWatermark = null;
+	
 	public static void main ( String... args )
 	{
 		try
@@ -74,10 +92,13 @@ public class AnnotateCmd
 			else 
 			{
 				if ( cli.hasOption ( "submission" ) || cli.hasOption ( "sampletab" ) ) xopts++;
-				if ( cli.hasOption ( "offset" ) || cli.hasOption ( "limit" ) ) xopts++;
+				if ( cli.hasOption ( "offset" ) || cli.hasOption ( "limit" ) || cli.hasOption ( "distinct" ) 
+						 || cli.hasOption ( "incremental" ) || cli.hasOption ( "queue-worker" ) ) xopts++;
 				if ( cli.hasOption ( "purge" ) ) xopts++;
 				
-				if ( cli.hasOption ( "property-count" ) || cli.hasOption ( "unlock" ) )
+				if ( cli.hasOption ( "property-count" ) || cli.hasOption ( "property-id-range" ) || cli.hasOption ( "unlock" ) 
+						 || cli.hasOption ( "build-key-filter" ) || cli.hasOption ( "fill-queue" ) 
+						 || cli.hasOption ( "purge-null-results" ) )
 				{
 					// random-quota is incompatible with the above options, while it is with the others
 					if ( cli.hasOption ( "random-quota" ) )
@@ -122,6 +143,34 @@ public class AnnotateCmd
 		  	return;
 		  }
 		  
+		  // Remove the expired null results, so that they're saved again when they're refreshed by the annotation jobs
+		  if ( cli.hasOption ( "purge-null-results" ) )
+		  {
+				log.info ( StringUtils.center ( " Removing expired lookups without results, please wait... ", 90, '-' ));
+		  	int nitems = new Purger ().purgeExpiredNullResults ();
+		  	log.info ( "expired lookups without results purged, {} item(s) removed", nitems ); 
+		  	return;
+		  }
+
+		  // Prepare the key filter, invoked by the cluster-based command, before launching the annotation jobs
+		  if ( cli.hasOption ( "build-key-filter" ) )
+		  {
+		  	File filterFile = new File ( cli.getOptionValue ( "build-key-filter" ) );
+				log.info ( StringUtils.center ( " Building the annotation key filter, please wait... ", 90, '-' ));
+		  	EntityManager em = Resources.getInstance ().getEntityManagerFactory ().createEntityManager ();
+		  	try 
+		  	{
+		  		AnnotationKeyFilter keyFilter = new AnnotationKeyFilter ();
+		  		keyFilter.build ( em );
+		  		keyFilter.save ( filterFile );
+		  	}
+		  	finally {
+		  		if ( em.isOpen () ) em.close ();
+		  	}
+		  	log.info ( "all went fine!" );
+		  	return;
+		  }
+		  
 		  
 			
 		  	annService = new PropertyValAnnotationService ();
@@ -137,6 +186,37 @@ public class AnnotateCmd
 		  	return;
 		  }
 
+			// Min/max property ids, invoked by the cluster-based command, when it works in id-range mode
+		  if ( cli.hasOption ( "property-id-range" ) )
+		  {
+		  	long[] idRange = cli.hasOption ( "incremental" ) 
+		  		? annService.getPropValIdRange ( new IdWatermark ( new File ( cli.getOptionValue ( "incremental" ) ) ).load () )
+		  		: annService.getPropValIdRange ();
+		  	if ( idRange != null ) out.println ( idRange [ 0 ] + " " + idRange [ 1 ] );
+				log.info ( "all went fine!" );
+				annService = null; // Skip the saving job.
+		  	return;
+		  }
+
+			// Prepare the work queue, invoked by the cluster-based command, before launching the queue workers
+		  if ( cli.hasOption ( "fill-queue" ) )
+		  {
+		  	long chunkSize = Long.parseLong ( cli.getOptionValue ( "fill-queue" ) );
+		  	String offsetStr = cli.getOptionValue ( "offset" ), limitStr = cli.getOptionValue ( "limit" );
+		  	long[] idRange = annService.getPropValIdRange ();
+		  	if ( idRange != null )
+		  	{
+		  		// Like --id-range
+			  	if ( offsetStr != null ) idRange [ 0 ] = Long.parseLong ( offsetStr );
+			  	if ( limitStr != null ) idRange [ 1 ] = idRange [ 0 ] + Long.parseLong ( limitStr ) - 1;
+			  	out.println ( new WorkChunkQueue ().fill ( idRange [ 0 ], idRange [ 1 ], chunkSize ) );
+		  	}
+		  	else out.println ( 0 );
+				log.info ( "all went fine!" );
+				annService = null; // Skip the saving job.
+		  	return;
+		  }
+
 			//Purge before running annotator
 			Boolean purgeFirst = cli.hasOption("first-purge");
 
@@ -226,13 +306,75 @@ public class AnnotateCmd
 			}
 			
 			// Invocation over all properties, considering a given window. This is used by the LSF-based script.
-			if ( cli.hasOption ( "offset" ) || cli.hasOption ( "limit" ) || sampleTabs == null && msiAccs == null )
+			if ( cli.hasOption ( "offset" ) || cli.hasOption ( "limit" ) || cli.hasOption ( "distinct" ) 
+					 || sampleTabs == null && msiAccs == null )
 			{
 				if ( rndQuota != null ) annService.setRandomSelectionQuota ( rndQuota );
 				
+				String shardStr = cli.getOptionValue ( "shard" );
+				if ( shardStr != null )
+				{
+					String[] shard = shardStr.split ( "/" );
+					if ( shard.length != 2 || !StringUtils.isNumeric ( shard [ 0 ] ) || !StringUtils.isNumeric ( shard [ 1 ] ) )
+						throw new IllegalArgumentException ( "Invalid value '" + shardStr + "' for --shard, must be <i>/<N>" );
+					annService.setShard ( Integer.parseInt ( shard [ 0 ] ), Integer.parseInt ( shard [ 1 ] ) );
+				}
+				
 				String offsetStr = cli.getOptionValue ( "offset" );
 				String limitStr = cli.getOptionValue ( "limit" );
-				annService.submit ( 
+				
+				if ( cli.hasOption ( "resume" ) && !cli.hasOption ( "journal" ) )
+					throw new IllegalArgumentException ( "--resume requires --journal" );
+				if ( cli.hasOption ( "journal" ) && !( cli.hasOption ( "id-range" ) || cli.hasOption ( "incremental" ) ) )
+					throw new IllegalArgumentException ( "--journal can only be used with --id-range or --incremental" );
+				if ( cli.hasOption ( "journal" ) ) annService.setJournal ( new RunJournal ( 
+					new File ( cli.getOptionValue ( "journal" ) ), cli.hasOption ( "resume" ) 
+				));
+				
+				if ( cli.hasOption ( "distinct" ) )
+				{
+					if ( offsetStr != null || limitStr != null || cli.hasOption ( "id-range" ) || cli.hasOption ( "incremental" ) 
+							 || cli.hasOption ( "queue-worker" ) ) 
+						throw new IllegalArgumentException ( 
+							"--distinct cannot be used with --offset/--limit/--id-range/--incremental/--queue-worker" 
+						);
+					annService.submitDistinct ( purgeFirst );
+				}
+				else if ( cli.hasOption ( "queue-worker" ) )
+				{
+					if ( offsetStr != null || limitStr != null || cli.hasOption ( "incremental" ) ) throw new IllegalArgumentException ( 
+						"--queue-worker cannot be used with --offset/--limit/--incremental" 
+					);
+					annService.submitFromQueue ( new WorkChunkQueue (), purgeFirst );
+				}
+				else if ( cli.hasOption ( "incremental" ) )
+				{
+					if ( offsetStr != null || limitStr != null || cli.hasOption ( "id-range" ) ) throw new IllegalArgumentException ( 
+						"--incremental cannot be used with --offset/--limit/--id-range" 
+					);
+					idWatermark = new IdWatermark ( new File ( cli.getOptionValue ( "incremental" ) ) );
+					long[] idRange = annService.getPropValIdRange ( idWatermark.load () );
+					if ( idRange == null ) 
+						log.info ( "No new property values since the last run, nothing to annotate" );
+					else 
+					{
+						log.info ( "Incremental mode, annotating the property value ids {} - {}", idRange [ 0 ], idRange [ 1 ] );
+						annService.submitIdRange ( idRange [ 0 ], idRange [ 1 ], purgeFirst );
+						newIdWatermark = idRange [ 1 ];
+					}
+				}
+				else if ( cli.hasOption ( "id-range" ) )
+				{
+					Long fromId = offsetStr == null ? null : Long.valueOf ( offsetStr );
+					Long toId = null;
+					if ( limitStr != null ) 
+					{
+						if ( fromId == null ) throw new IllegalArgumentException ( "--id-range with --limit requires --offset" );
+						toId = fromId + Long.valueOf ( limitStr ) - 1;
+					}
+					annService.submitIdRange ( fromId, toId, purgeFirst );
+				}
+				else annService.submit ( 
 					offsetStr == null ? null : Integer.valueOf ( offsetStr ), 
 					limitStr == null ? null : Integer.valueOf ( limitStr ) ,
 						purgeFirst
@@ -273,6 +415,15 @@ public class AnnotateCmd
 		{
 			annService.waitAllFinished ();
 			
+			// Advance the watermark only if everything went fine, else, the next run will redo this one
+			if ( newIdWatermark != null )
+			{
+				if ( getExitCode () == 0 && annService.getLastExitCode () == 0 ) 
+					idWatermark.save ( newIdWatermark );
+				else
+					log.warn ( "Some problems occurred, the property value id watermark isn't updated" );
+			}
+			
 			log.info ( getExitCode () == 0 
 				? "Computations should have gone fine!"
 				: "Some problems occurred, but some data were saved"
@@ -334,6 +485,82 @@ public class AnnotateCmd
 		);
 
 
+		opts.addOption ( OptionBuilder
+			.withDescription ( "to be used with --offset/--limit, they become the first property value id and the number of"
+					+ " ids to be annotated from there, rather than row positions. Much faster on large databases" )
+			.withLongOpt ( "id-range" )
+			.create ( 'i' )
+		);
+
+		opts.addOption ( OptionBuilder
+			.withDescription ( "empties the work queue in the database and fills it with chunks of <size> property value ids"
+					+ " (the whole table, or the range given by --offset/--limit, as in --id-range), prints the number of chunks"
+					+ " (used by the LSF command, with --queue-worker)" )
+			.withLongOpt ( "fill-queue" )
+			.withArgName ( "size" )
+			.hasArg ()
+			.create ( "fq" )
+		);
+
+		opts.addOption ( OptionBuilder
+			.withDescription ( "takes id chunks from the work queue (see --fill-queue) and annotates them, until there are"
+					+ " no more chunks (used by the LSF command, incompatible with --offset, --limit, --distinct, --incremental)" )
+			.withLongOpt ( "queue-worker" )
+			.create ( "qw" )
+		);
+
+		opts.addOption ( OptionBuilder
+			.withDescription ( "annotates only the property values whose type/value text hashes to the shard <i> of <N>"
+					+ " (0 <= i < N), so that N jobs over the same property values annotate each distinct text once"
+					+ " (used by the LSF command, incompatible with --submission, --sampletab)" )
+			.withLongOpt ( "shard" )
+			.withArgName ( "i/N" )
+			.hasArg ()
+			.create ( "sh" )
+		);
+
+		opts.addOption ( OptionBuilder
+			.withDescription ( "annotates only the property values that were added after the last successful incremental"
+					+ " run, ie, having id greater than the one in <file>, which is updated at the end (incompatible with"
+					+ " --offset, --limit, --id-range, --distinct). With --property-id-range, returns the ids after the one in <file>" )
+			.withLongOpt ( "incremental" )
+			.withArgName ( "file" )
+			.hasArg ()
+			.create ( "inc" )
+		);
+
+		opts.addOption ( OptionBuilder
+			.withDescription ( "to be used with --id-range (or --incremental), records the id ranges that are done (ie, annotated and saved)"
+					+ " in <file>, a different one per job. Use -D" + StoreFlusher.INTERVAL_PROP + " too, to save"
+					+ " (and record) progress regularly" )
+			.withLongOpt ( "journal" )
+			.withArgName ( "file" )
+			.hasArg ()
+			.create ( "j" )
+		);
+
+		opts.addOption ( OptionBuilder
+			.withDescription ( "to be used with --journal, skips the id ranges that the journal reports as done, so that"
+					+ " a job that was interrupted restarts from its last checkpoint" )
+			.withLongOpt ( "resume" )
+			.create ( "rs" )
+		);
+
+		opts.addOption ( OptionBuilder
+			.withDescription ( "returns the minimum and maximum ids in the property value table"
+					+ " (used by the LSF command with --id-range, incompatible with other options)" )
+			.withLongOpt ( "property-id-range" )
+			.create ( "pi" )
+		);
+
+		opts.addOption ( OptionBuilder
+			.withDescription ( "annotates every distinct type/value/unit text in the property value table only once,"
+					+ " rather than every property record (incompatible with --offset, --limit, --id-range, --incremental,"
+					+ " --queue-worker, --submission, --sampletab)" )
+			.withLongOpt ( "distinct" )
+			.create ( 'd' )
+		);
+
 		opts.addOption ( OptionBuilder
 			.withDescription ( 
 				"picks up a random subset of property values, expressed in percentage of the total"
@@ -364,6 +591,24 @@ public class AnnotateCmd
 			.create ( 'k' )
 		);
 		
+		opts.addOption ( OptionBuilder
+			.withDescription ( "removes the annotations recording ontology lookups without results that are expired"
+				+ " (see -D" + OntoTermDiscoveryStoreCache.NULL_TTL_PROP + "), so that they're looked up and saved again"
+				+ " by the next run (used by the LSF command, incompatible with other options)" )
+			.withLongOpt ( "purge-null-results" )
+			.create ( "pn" )
+		);
+
+		opts.addOption ( OptionBuilder
+			.withDescription ( "builds the filter of the annotation keys that are in the database and saves it in <file>,"
+				+ " to be used with -D" + AnnotationKeyFilter.KEY_FILTER_PROP + "=<file> (used by the LSF command,"
+				+ " incompatible with other options)" )
+			.withLongOpt ( "build-key-filter" )
+			.withArgName ( "file" )
+			.hasArg ()
+			.create ( "bkf" )
+		);
+
 		opts.addOption ( OptionBuilder
 			.withDescription ( "prints out this message" )
 			.withLongOpt ( "help" )
@@ -426,7 +671,81 @@ public class AnnotateCmd
 		out.println ( "  OPTS=\"$OPTS -D" + PropertyValAnnotationService.MAX_THREAD_PROP + "=<num>\": max number of threads that can be used" );
 		out.println ( "  (very important in LSF mode)" );
 		out.println ();
-		out.println ( "  OPTS=\"$OPTS -D" + AnnotatorPersister.LOCK_TIMEOUT_PROP + "=<s>\": timeout for LSF saving lock record (see -k, default is 30min)." );
+		out.println ( "  OPTS=\"$OPTS -D" + BioSDOntoDiscoveringCache.MAX_QUERIES_PROP + "=<num>\": max number of DB"
+			+ " connections used to look up existing annotations (default is 20, important in LSF mode too)." );
+		out.println ();
+		out.println ( "  OPTS=\"$OPTS -D" + PropertyValAnnotationService.DATA_THREADS_PROP + "=<num>\": threads used"
+			+ " for number/date extraction (default is the number of CPUs)." );
+		out.println ();
+		out.println ( "  OPTS=\"$OPTS -D" + PropertyValAnnotationService.LOOKUP_THREADS_PROP + "=<num>\": threads used"
+			+ " for ontology lookups, ie, ZOOMA calls (default is 100)." );
+		out.println ();
+		out.println ( "  OPTS=\"$OPTS -D" + StoreMemoryBudget.MAX_SIZE_PROP + "=<num>\": the annotations in memory are"
+			+ " saved when they're more than this (default is 1M)." );
+		out.println ();
+		out.println ( "  OPTS=\"$OPTS -D" + StoreMemoryBudget.MAX_HEAP_RATIO_PROP + "=<0-1>\": the annotations in memory are"
+			+ " saved when the used heap is above this ratio (default is 0.8)." );
+		out.println ();
+		out.println ( "  OPTS=\"$OPTS -D" + StoreFlusher.INTERVAL_PROP + "=<s>\": the annotations in memory are"
+			+ " saved in background every <s> seconds (default is 0, which means only when the limits above are reached)." );
+		out.println ();
+		out.println ( "  OPTS=\"$OPTS -D" + AnnotatorResources.READ_CACHE_SIZE_PROP + "=<num>\": max number of ontology"
+			+ " lookup results cached in memory (default is 500000)." );
+		out.println ();
+		out.println ( "  OPTS=\"$OPTS -D" + AnnotatorResources.STORE_TYPE_PROP + "=<heap|offheap>\": 'offheap' keeps the"
+			+ " annotations to be saved in memory-mapped files, created in -D" + OffHeapAnnotationStore.DIR_PROP 
+			+ " (default is the temp directory)." );
+		out.println ();
+		out.println ( "  OPTS=\"$OPTS -D" + AnnotationKeyFilter.KEY_FILTER_PROP + "=<db|file>\": uses a filter of the"
+			+ " annotation keys in the database, to skip lookups about new keys. Built at startup or loaded from <file>"
+			+ " (see --build-key-filter)." );
+		out.println ();
+		out.println ( "  OPTS=\"$OPTS -D" + ExpPropValAnnotationIndex.WARM_UP_PROP + "=<chunk|full|none>\": how existing"
+			+ " annotations are loaded into memory: per page of property values (default), whole table at the beginning, never." );
+		out.println ();
+		out.println ( "  OPTS=\"$OPTS -D" + PropertyValAnnotationService.LOOKUP_MODE_PROP + "=<pool|async>\": 'async' runs"
+			+ " every ontology lookup in its own thread (virtual threads on Java >= 21), instead of the lookup threads above." );
+		out.println ();
+		out.println ( "  OPTS=\"$OPTS -D" + AdaptiveZOOMASearchFilter.MAX_REMOTE_CALLS_PROP + "=<num>\": max number of"
+			+ " concurrent calls to ZOOMA (default is 100). The actual limit adapts to ZOOMA latency and failures." );
+		out.println ();
+		out.println ( "  OPTS=\"$OPTS -D" + AdaptiveZOOMASearchFilter.LATENCY_TARGET_PROP + "=<ms>\": ZOOMA calls slower than this"
+			+ " make the concurrent calls limit decrease (default is 5000)." );
+		out.println ();
+		out.println ( "  OPTS=\"$OPTS -D" + AdaptiveZOOMASearchFilter.FAILURE_RATE_PROP + "=<0-1>\": ZOOMA calls are stopped"
+			+ " for -D" + AdaptiveZOOMASearchFilter.OPEN_TIME_PROP + "=<s> seconds (default is 30) when this ratio of the"
+			+ " last calls fail (default is 0.5)." );
+		out.println ();
+		out.println ( "  OPTS=\"$OPTS -D" + PropertyValAnnotationService.LOOKUP_RETRY_PASSES_PROP + "=<num>\": lookups failed"
+			+ " because ZOOMA was unavailable are retried at the end, up to this number of times (default is 3), every"
+			+ " -D" + PropertyValAnnotationService.LOOKUP_RETRY_DELAY_PROP + "=<s> seconds (default is 60)." );
+		out.println ();
+		out.println ( "  OPTS=\"$OPTS -D" + OntoTermDiscoveryStoreCache.NULL_TTL_PROP + "=<days>\": ontology lookups"
+			+ " without results are remembered for this time, then they're looked up again (default is 30, 0 means that"
+			+ " ZOOMA lookups without results aren't remembered at all)." );
+		out.println ();
+		out.println ( "  OPTS=\"$OPTS -D" + LocalFileOntoTermDiscoveryCache.FILE_PROP + "=<path>\": keeps ZOOMA results in"
+			+ " a local file, shared by the annotator processes on the same host and reused by the next runs (default is none)." );
+		out.println ( "  Results expire after -D" + LocalFileOntoTermDiscoveryCache.TTL_PROP + "=<days> (default is 30) or"
+			+ " -D" + LocalFileOntoTermDiscoveryCache.NULL_TTL_PROP + "=<days>, when nothing was found (default is 7)." );
+		out.println ();
+		out.println ( "  OPTS=\"$OPTS -D" + PropertyValAnnotationService.QUEUE_CAPACITY_PROP + "=<num>\": max number of property values"
+			+ " waiting to be annotated (default is 50000)." );
+		out.println ();
+		out.println ( "  OPTS=\"$OPTS -D" + AnnotatorPersister.WRITER_PROP + "=<jpa|jdbc>\": 'jdbc' saves the annotations"
+			+ " with direct batch inserts, which is faster (Oracle and H2 only)." );
+		out.println ();
+		out.println ( "  OPTS=\"$OPTS -D" + AnnotatorPersister.PARTITIONS_PROP + "=<num>\": annotations are saved"
+			+ " by this number of parallel DB connections (default is 1)." );
+		out.println ();
+		out.println ( "  OPTS=\"$OPTS -D" + AnnotatorPersister.COMMIT_SIZE_PROP + "=<num>\": annotations are committed"
+			+ " every <num> saved objects (default is 100000)." );
+		out.println ();
+		out.println ( "  OPTS=\"$OPTS -D" + WorkChunkQueue.LEASE_PROP + "=<s>\": lease time of the work chunks claimed"
+			+ " with --queue-worker, which are renewed while working (default is 600s)." );
+		out.println ();
+		out.println ( "  OPTS=\"$OPTS -D" + AnnotatorPersister.LOCK_TIMEOUT_PROP + "=<s>\": lease time of the LSF saving locks, which are"
+			+ " renewed while saving (see -k, default is 120s)." );
 		out.println ( "\n\n" );
 		
 		exitCode = 128;
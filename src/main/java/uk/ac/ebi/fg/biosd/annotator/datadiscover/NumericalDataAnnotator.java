@@ -8,8 +8,10 @@ import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.math.NumberUtils;
 import org.apache.commons.lang3.time.DateUtils;
 
+import uk.ac.ebi.fg.biosd.annotator.AnnotationStore;
 import uk.ac.ebi.fg.biosd.annotator.AnnotatorResources;
 import uk.ac.ebi.fg.biosd.annotator.PropertyValAnnotationManager;
+import uk.ac.ebi.fg.biosd.annotator.PropertyValRecord;
 import uk.ac.ebi.fg.biosd.annotator.model.DataItem;
 import uk.ac.ebi.fg.biosd.annotator.model.DateItem;
 import uk.ac.ebi.fg.biosd.annotator.model.NumberItem;
@@ -17,11 +19,8 @@ import uk.ac.ebi.fg.biosd.annotator.model.NumberRangeItem;
 import uk.ac.ebi.fg.core_model.expgraph.properties.ExperimentalPropertyType;
 import uk.ac.ebi.fg.core_model.expgraph.properties.ExperimentalPropertyValue;
 import uk.ac.ebi.fg.core_model.expgraph.properties.Unit;
-import uk.ac.ebi.fg.core_model.terms.OntologyEntry;
 import uk.ac.ebi.onto_discovery.api.OntologyTermDiscoverer;
 
-import com.google.common.collect.Table;
-
 /**
  * Extracts numbers, ranges, dates from the text value in {@link ExperimentalPropertyValue}. It also tries to find 
  * ontology terms for {@link ExperimentalPropertyValue#getUnit() units}.
@@ -53,8 +52,19 @@ public class NumericalDataAnnotator
 	 */
 	public boolean annotate ( ExperimentalPropertyValue<ExperimentalPropertyType> pval )
 	{
-		boolean result = annotateData ( pval );
-		annotateUnit ( pval );
+		return annotate ( PropertyValRecord.of ( pval ) );
+	}
+
+	/**
+	 * Does the annotation job, working on the lightweight record.
+	 * @return true if it has actually found a number or date in the pval value. 
+	 */
+	public boolean annotate ( PropertyValRecord pvrec )
+	{
+		if ( pvrec == null ) return false;
+		
+		boolean result = annotateData ( pvrec );
+		annotateUnit ( pvrec );
 		return result;
 	}
 	
@@ -62,18 +72,17 @@ public class NumericalDataAnnotator
 	 *  Find ontology terms about the unit in a property value. This uses the {@link OntoResolverAndAnnotator}, if 
 	 *  one {@link Unit#getOntologyTerms() unit ontology term} is present in the BioSD DB, otherwise, it 
 	 *  tries to {@link OntologyTermDiscoverer discover} an ontology entry from ontologies (usually the Unit Ontology).
+	 *  
+	 *  This is the part of {@link #annotate(PropertyValRecord)} that might involve remote calls.
 	 */
-	private void annotateUnit ( ExperimentalPropertyValue<?> pval )
+	public void annotateUnit ( PropertyValRecord pvrec )
 	{
-		Unit u = pval.getUnit ();
-		if ( u == null ) return;
+		if ( pvrec == null || !pvrec.hasUnit () ) return;
 		
-		OntologyEntry uoe = u.getOntologyTerms ().size () == 1 ? u.getSingleOntologyTerm () : null;
-					
-		if ( uoe == null )
+		if ( pvrec.getUnitOeAcc () == null )
 		{
 			// No explicit and valid OE associated to the Unit, so use ZOOMA
-			String unitLabel =  StringUtils.trimToNull ( u.getTermText () );
+			String unitLabel =  StringUtils.trimToNull ( pvrec.getUnitLabel () );
 						
 			// This are the ontology terms associated to the property value by ZOOMA
 			// Only UO terms will be returned here
@@ -87,20 +96,23 @@ public class NumericalDataAnnotator
 	 * Tries to extract numerical/date information from the text value of an experimental property value. Possibly
 	 * creates and save an instance in the hierarchy of {@link DataItem}.
 	 * 
+	 * This is the CPU-bound part of {@link #annotate(PropertyValRecord)}. 
+	 * 
 	 * @return true if it has actually found a number or date in the pval value. 
 	 */
-	private boolean annotateData ( ExperimentalPropertyValue<?> pval )
+	public boolean annotateData ( PropertyValRecord pvrec )
 	{
-		String pvalStr = DataItem.getPvalText ( pval );
+		if ( pvrec == null ) return false;
+		String pvalStr = DataItem.getPvalText ( pvrec.getValueLabel () );
 		if ( pvalStr == null ) return false;
 				
 		// Do we already have it?
-		Table<Class, String, Object> store = AnnotatorResources.getInstance ().getStore ();
+		AnnotationStore.EntityMap<DataItem> dataItems = AnnotatorResources.getInstance ().getStore ().getDataItems ();
 		
 		synchronized ( pvalStr.intern () )
 		{
-			DataItem dataItem = (DataItem) store.get ( DataItem.class, pvalStr );
-			if ( dataItem != null ) return true;
+			if ( dataItems.contains ( pvalStr ) ) return true;
+			DataItem dataItem = null;
 	
 			// Start checking a middle separator, to see if it is a range
 			String chunks[] = pvalStr.split ( "(\\-|\\.\\.|\\,)" );
@@ -145,7 +157,7 @@ public class NumericalDataAnnotator
 					// Just ignore all in case of problems
 				}
 			}
-			else if ( pval.getUnit () == null )
+			else if ( !pvrec.hasUnit () )
 			{
 				// Or maybe a single date?
 				
@@ -180,10 +192,11 @@ public class NumericalDataAnnotator
 			dataItem.setSourceText ( pvalStr );
 			dataItem.setType ( ANNOTATION_TYPE_MARKER );
 			dataItem.setProvenance ( PropertyValAnnotationManager.PROVENANCE_MARKER );
-			dataItem.setTimestamp ( new Date () );
+			dataItem.setTimestamp ( AnnotatorResources.getInstance ().getValuePool ().getTimestamp () );
 	
 			// Save in the memory store, for later persistence
-			store.put ( DataItem.class, pvalStr, dataItem );
+			dataItems.put ( pvalStr, dataItem );
+			AnnotatorResources.getInstance ().getKeyFilter ().addDataItemKey ( pvalStr );
 			
 			return true;
 		
@@ -18,6 +18,7 @@ import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.tuple.Pair;
 
 import uk.ac.ebi.fg.biosd.annotator.AnnotatorResources;
+import uk.ac.ebi.fg.biosd.annotator.PropertyValRecord;
 import uk.ac.ebi.fg.core_model.expgraph.properties.ExperimentalPropertyType;
 import uk.ac.ebi.fg.core_model.expgraph.properties.ExperimentalPropertyValue;
 import uk.ac.ebi.fg.core_model.resources.Const;
@@ -174,6 +175,26 @@ public class ExpPropValAnnotation extends AbstractOntoTermAnnotation
 		return getTypeAndval ( ptypeStr, pvalStr );
 	}
 
+	/**
+	 * Like {@link #getTypeAndVal(ExperimentalPropertyValue)}, but works with the lightweight record.
+	 */
+	public static Pair<String, String> getTypeAndVal ( PropertyValRecord pvrec )
+	{
+		if ( pvrec == null ) return null;
+		return getTypeAndval ( getExpPropTypeLabel ( pvrec.getTypeLabel () ), pvrec.getValueLabel () );
+	}
+
+	/**
+	 * Like {@link #getPvalText(ExperimentalPropertyValue)}, but works with the lightweight record.
+	 */
+	public static String getPvalText ( PropertyValRecord pvrec )
+	{
+		Pair<String, String> pair = getTypeAndVal ( pvrec ); 
+		if ( pair == null ) return null; 
+
+		return getPvalText ( pair.getLeft (), pair.getRight () );
+	}
+	
 	/**
 	 * Returns a canonical pair of strings, where the left is about the type (e.g., "Organism", and the right about the 
 	 * value (e.g., "Homo Sapiens"). Does some pre-processing, such as space trimming or checking for 
@@ -212,7 +233,15 @@ public class ExpPropValAnnotation extends AbstractOntoTermAnnotation
 	public static String getExpPropTypeLabel ( ExperimentalPropertyType ptype ) 
 	{
 		if ( ptype == null ) return null;
-		String typeLabel = StringUtils.trimToNull ( ptype.getTermText () );
+		return getExpPropTypeLabel ( ptype.getTermText () );
+	}
+
+	/**
+	 * Works on the type label, see {@link #getExpPropTypeLabel(ExperimentalPropertyType)}.
+	 */
+	public static String getExpPropTypeLabel ( String typeLabel ) 
+	{
+		typeLabel = StringUtils.trimToNull ( typeLabel );
 		if ( typeLabel == null ) return null;
 		
 		String[] chunks = COMMENT_RE.groups ( typeLabel );
@@ -10,10 +10,12 @@ import javax.persistence.Table;
 import javax.validation.constraints.NotNull;
 
 import uk.ac.ebi.fg.biosd.annotator.persistence.AnnotatorPersister;
+import uk.ac.ebi.fg.biosd.annotator.persistence.SaveLockManager;
 import uk.ac.ebi.fg.core_model.toplevel.Identifiable;
 
 /**
- * This is used to have a DB table where to store a saving lock @see {@link AnnotatorPersister} for details.
+ * This is used to have a DB table where to store the saving locks, one per persistence partition, see 
+ * {@link SaveLockManager} for details.
  *
  * @author brandizi
  * <dl><dt>Date:</dt><dd>3 Sep 2015</dd>
@@ -25,6 +27,8 @@ public class Lock extends Identifiable
 {
 	private int status = 0;
 	private Date timestamp = null;
+	private int partition = 0;
+	private String owner = null;
 	
 	public int getStatus ()
 	{
@@ -46,5 +50,33 @@ public class Lock extends Identifiable
 	{
 		this.timestamp = timestamp;
 	}
+
+	/**
+	 * The persistence partition this lock is about, see {@link AnnotatorPersister#PARTITIONS_PROP}.
+	 */
+	@Column ( name = "lock_partition" )
+	public int getPartition ()
+	{
+		return partition;
+	}
+
+	public void setPartition ( int partition )
+	{
+		this.partition = partition;
+	}
+
+	/**
+	 * An identifier of the process holding the lock, null when the lock is free.
+	 */
+	@Column ( name = "lock_owner", length = 200 )
+	public String getOwner ()
+	{
+		return owner;
+	}
+
+	public void setOwner ( String owner )
+	{
+		this.owner = owner;
+	}
 	
 }
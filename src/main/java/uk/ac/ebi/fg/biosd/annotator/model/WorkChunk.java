@@ -0,0 +1,133 @@
+package uk.ac.ebi.fg.biosd.annotator.model;
+
+import static uk.ac.ebi.fg.biosd.annotator.resources.AnnotatorBioSDResources.TABLE_PREFIX;
+
+import java.util.Date;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Table;
+
+import uk.ac.ebi.fg.biosd.annotator.persistence.WorkChunkQueue;
+import uk.ac.ebi.fg.core_model.toplevel.Identifiable;
+
+/**
+ * A range of property value ids to be annotated, kept in a DB table that works as a queue of chunks, which worker
+ * processes claim dynamically. See {@link WorkChunkQueue} for details.
+ */
+@Entity
+@Table ( name = TABLE_PREFIX + "work_chunk" )
+public class WorkChunk extends Identifiable
+{
+	public static final int STATUS_FREE = 0, STATUS_CLAIMED = 1, STATUS_DONE = 2;
+
+	private long fromId, toId;
+	private int status = STATUS_FREE;
+	private String owner = null;
+	private Date timestamp = null;
+	private int attempts = 0;
+
+	protected WorkChunk () {
+		super ();
+	}
+
+	public WorkChunk ( long fromId, long toId )
+	{
+		super ();
+		this.fromId = fromId;
+		this.toId = toId;
+	}
+
+	/**
+	 * The first property value id in the chunk.
+	 */
+	@Column ( name = "from_id" )
+	public long getFromId ()
+	{
+		return fromId;
+	}
+
+	protected void setFromId ( long fromId )
+	{
+		this.fromId = fromId;
+	}
+
+	/**
+	 * The last property value id in the chunk (included).
+	 */
+	@Column ( name = "to_id" )
+	public long getToId ()
+	{
+		return toId;
+	}
+
+	protected void setToId ( long toId )
+	{
+		this.toId = toId;
+	}
+
+	/**
+	 * One of the STATUS_XXX constants.
+	 */
+	@Column ( name = "chunk_status" )
+	public int getStatus ()
+	{
+		return status;
+	}
+
+	public void setStatus ( int status )
+	{
+		this.status = status;
+	}
+
+	/**
+	 * An identifier of the process that claimed the chunk.
+	 */
+	@Column ( name = "chunk_owner", length = 200 )
+	public String getOwner ()
+	{
+		return owner;
+	}
+
+	public void setOwner ( String owner )
+	{
+		this.owner = owner;
+	}
+
+	/**
+	 * When the chunk was claimed or done, renewed by the owner while it's working on the chunk.
+	 */
+	@Column ( name = "chunk_ts" )
+	public Date getTimestamp ()
+	{
+		return timestamp;
+	}
+
+	public void setTimestamp ( Date timestamp )
+	{
+		this.timestamp = timestamp;
+	}
+
+	/**
+	 * How many times the chunk was claimed.
+	 */
+	@Column ( name = "chunk_attempts" )
+	public int getAttempts ()
+	{
+		return attempts;
+	}
+
+	public void setAttempts ( int attempts )
+	{
+		this.attempts = attempts;
+	}
+
+	@Override
+	public String toString ()
+	{
+		return String.format (
+			"WorkChunk { id: %d, from: %d, to: %d, status: %d, owner: '%s', attempts: %d }",
+			getId (), fromId, toId, status, owner, attempts
+		);
+	}
+}
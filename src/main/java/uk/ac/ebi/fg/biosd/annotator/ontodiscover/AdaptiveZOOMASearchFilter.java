@@ -0,0 +1,402 @@
+package uk.ac.ebi.fg.biosd.annotator.ontodiscover;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.lang3.exception.ExceptionUtils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.ac.ebi.fg.biosd.annotator.AnnotatorResources;
+import uk.ac.ebi.fgpt.zooma.model.AnnotationPrediction;
+import uk.ac.ebi.fgpt.zooma.model.Property;
+import uk.ac.ebi.fgpt.zooma.search.AbstractZOOMASearch;
+import uk.ac.ebi.fgpt.zooma.search.ZOOMASearchFilter;
+
+/**
+ * <p>A {@link ZOOMASearchFilter} that adapts the number of ZOOMA calls in-flight to how ZOOMA is responding, so that
+ * we don't keep flooding it when it slows down or fails.</p>
+ *
+ * <p>The concurrency limit follows the AIMD scheme: it grows by about one call every time a full limit's worth of
+ * calls succeed within {@link #LATENCY_TARGET_PROP}, and it is halved when calls fail or are slower than that (at most
+ * once per latency target period). The limit stays between 1 and {@link #MAX_REMOTE_CALLS_PROP}, which is
+ * also where it starts. This allows for running lookups in a large (or unbounded) number of threads, without flooding
+ * the ZOOMA server.</p>
+ *
+ * <p>Moreover, this works as a circuit breaker: if the failed calls among the last ones reach
+ * {@link #FAILURE_RATE_PROP}, the circuit opens and all the calls fail immediately for {@link #OPEN_TIME_PROP},
+ * without reaching ZOOMA. After that, a single probe call is let through, which closes the circuit if it succeeds,
+ * or opens it again otherwise.</p>
+ *
+ * <p>Only the errors saying that ZOOMA is unreachable or in trouble count as failed calls, ie, I/O errors, timeouts
+ * and HTTP 5xx responses (see {@link #isZOOMAFailure(Throwable)}). Both failed and rejected calls throw
+ * {@link ZOOMAUnavailableException}, so that the annotation service can defer their property values to a retry pass,
+ * instead of losing them. Any other error (eg, a bad request or a bug) is thrown as-is, so that the annotation task
+ * fails, and it doesn't affect the limit nor the circuit.</p>
+ */
+public class AdaptiveZOOMASearchFilter extends ZOOMASearchFilter
+{
+	/**
+	 * The max number of concurrent calls to ZOOMA, default is 100.
+	 */
+	public static final String MAX_REMOTE_CALLS_PROP = AnnotatorResources.PROP_NAME_PREFIX + "maxRemoteCalls";
+
+	/**
+	 * ZOOMA calls slower than this (in ms) are considered a sign of overloading, and make the concurrency limit
+	 * decrease. Default is 5000.
+	 */
+	public static final String LATENCY_TARGET_PROP = AnnotatorResources.PROP_NAME_PREFIX + "remoteLatencyTarget";
+
+	/**
+	 * The circuit opens when the ratio of failed calls among the last ones is at least this. Default is 0.5.
+	 */
+	public static final String FAILURE_RATE_PROP = AnnotatorResources.PROP_NAME_PREFIX + "circuitFailureRate";
+
+	/**
+	 * How long (in s) the circuit stays open, before probing ZOOMA again. Default is 30.
+	 */
+	public static final String OPEN_TIME_PROP = AnnotatorResources.PROP_NAME_PREFIX + "circuitOpenTime";
+
+	/**
+	 * The failure rate is computed over these last calls.
+	 */
+	private static final int WINDOW_SIZE = 100;
+
+	/**
+	 * The failure rate isn't considered before this number of calls in the window.
+	 */
+	private static final int MIN_WINDOW_CALLS = 20;
+
+	/**
+	 * How {@link java.net.HttpURLConnection} reports error statuses.
+	 */
+	private static final Pattern HTTP_STATUS_RE = Pattern.compile ( "HTTP response code: (\\d{3})" );
+
+	public static enum CircuitState { CLOSED, OPEN, HALF_OPEN }
+
+	/**
+	 * Returned by {@link AdaptiveZOOMASearchFilter#acquire()}, the right to make a call.
+	 */
+	private static class Permit
+	{
+		final long startTime = System.currentTimeMillis ();
+		final boolean isProbe;
+
+		Permit ( boolean isProbe ) {
+			this.isProbe = isProbe;
+		}
+	}
+
+	private final int maxCalls;
+	private final long latencyTarget, openTime;
+	private final double failureRateThreshold;
+
+	/**
+	 * We don't use synchronized/wait(), since that would pin the virtual threads of the async lookup stage.
+	 */
+	private final Lock lock = new ReentrantLock ();
+	private final Condition isSlotFree = lock.newCondition ();
+
+	// All guarded by lock
+	private double limit;
+	private int activeCalls = 0;
+	private long lastDecreaseTime = 0;
+
+	private final boolean[] failures = new boolean [ WINDOW_SIZE ];
+	private int windowCalls = 0, windowFailures = 0, windowIdx = 0;
+
+	private CircuitState state = CircuitState.CLOSED;
+	private long openedTime = 0;
+	private boolean isProbing = false;
+	private long rejectedCalls = 0;
+
+	private Logger log = LoggerFactory.getLogger ( this.getClass () );
+
+	/**
+	 * @param latencyTarget in ms
+	 * @param openTime in ms
+	 */
+	public AdaptiveZOOMASearchFilter (
+		AbstractZOOMASearch base, int maxCalls, long latencyTarget, double failureRateThreshold, long openTime
+	)
+	{
+		super ( base );
+		this.maxCalls = maxCalls;
+		this.latencyTarget = latencyTarget;
+		this.failureRateThreshold = failureRateThreshold;
+		this.openTime = openTime;
+		this.limit = maxCalls;
+	}
+
+	/**
+	 * Uses {@link #MAX_REMOTE_CALLS_PROP}, {@link #LATENCY_TARGET_PROP},
+	 * {@link #FAILURE_RATE_PROP}, {@link #OPEN_TIME_PROP}.
+	 */
+	public AdaptiveZOOMASearchFilter ( AbstractZOOMASearch base )
+	{
+		this (
+			base,
+			Integer.parseInt ( System.getProperty ( MAX_REMOTE_CALLS_PROP, "100" ) ),
+			Long.parseLong ( System.getProperty ( LATENCY_TARGET_PROP, "5000" ) ),
+			Double.parseDouble ( System.getProperty ( FAILURE_RATE_PROP, "0.5" ) ),
+			Long.parseLong ( System.getProperty ( OPEN_TIME_PROP, "30" ) ) * 1000
+		);
+	}
+
+
+	/**
+	 * @throws ZOOMAUnavailableException if the circuit is open or the call fails because of ZOOMA. Other errors are
+	 * rethrown unchanged.
+	 */
+	@Override
+	public List<AnnotationPrediction> annotate ( Property property )
+	{
+		Permit permit = acquire ();
+		boolean isOk = false, isZOOMAFailure = false;
+		try
+		{
+			List<AnnotationPrediction> result = super.annotate ( property );
+			isOk = true;
+			return result;
+		}
+		catch ( RuntimeException ex ) 
+		{
+			if ( !isZOOMAFailure ( ex ) ) throw ex;
+			isZOOMAFailure = true;
+			throw new ZOOMAUnavailableException ( "Error while calling ZOOMA for " + property + ": " + ex.getMessage (), ex );
+		}
+		finally {
+			release ( permit, isOk, isOk || isZOOMAFailure );
+		}
+	}
+
+
+	/**
+	 * true if the error is about ZOOMA being unreachable or in trouble: an {@link IOException} or a
+	 * {@link TimeoutException} in the cause chain, excluding HTTP errors other than 5xx. For the latter, we rely on
+	 * how {@link java.net.HttpURLConnection} reports them, ie, {@link FileNotFoundException} for 404 and messages like
+	 * "Server returned HTTP response code: 400".
+	 */
+	static boolean isZOOMAFailure ( Throwable ex )
+	{
+		if ( ZOOMAUnavailableException.isCauseOf ( ex ) ) return true;
+
+		boolean result = false;
+		for ( Throwable cause: ExceptionUtils.getThrowableList ( ex ) )
+		{
+			String msg = cause.getMessage ();
+			Matcher httpStatus = msg == null ? null : HTTP_STATUS_RE.matcher ( msg );
+			if ( httpStatus != null && httpStatus.find () ) return httpStatus.group ( 1 ).startsWith ( "5" );
+			if ( cause instanceof FileNotFoundException ) return false;
+			if ( cause instanceof IOException || cause instanceof TimeoutException ) result = true;
+		}
+		return result;
+	}
+
+
+	/**
+	 * Waits until the concurrency limit allows for a new call, or fails immediately if the circuit is open.
+	 */
+	private Permit acquire ()
+	{
+		lock.lock ();
+		try
+		{
+			while ( true )
+			{
+				if ( state == CircuitState.OPEN )
+				{
+					if ( System.currentTimeMillis () - openedTime < openTime ) throw reject ();
+					state = CircuitState.HALF_OPEN;
+					log.info ( "Probing ZOOMA after {}s of open circuit", openTime / 1000 );
+				}
+
+				if ( state == CircuitState.HALF_OPEN )
+				{
+					if ( isProbing ) throw reject ();
+					isProbing = true;
+					activeCalls++;
+					return new Permit ( true );
+				}
+
+				if ( activeCalls < (int) limit )
+				{
+					activeCalls++;
+					return new Permit ( false );
+				}
+
+				isSlotFree.await ();
+			}
+		}
+		catch ( InterruptedException ex ) {
+			Thread.currentThread ().interrupt ();
+			throw new ZOOMAUnavailableException ( "Interrupted while waiting for a ZOOMA call slot", ex );
+		}
+		finally {
+			lock.unlock ();
+		}
+	}
+
+	private ZOOMAUnavailableException reject ()
+	{
+		rejectedCalls++;
+		return new ZOOMAUnavailableException ( "ZOOMA seems to be down (circuit open), call not tried" );
+	}
+
+
+	/**
+	 * Updates the limit and the circuit state with the call outcome, if isRecorded, ie, if the call either succeeded or
+	 * failed because of ZOOMA.
+	 */
+	private void release ( Permit permit, boolean isOk, boolean isRecorded )
+	{
+		lock.lock ();
+		try
+		{
+			activeCalls--;
+			long now = System.currentTimeMillis ();
+			long latency = now - permit.startTime;
+
+			if ( permit.isProbe )
+			{
+				isProbing = false;
+				// We still don't know if ZOOMA is back, the next call will probe it again
+				if ( !isRecorded ) return;
+				if ( !isOk ) {
+					open ( "the probe call failed" );
+					return;
+				}
+				state = CircuitState.CLOSED;
+				windowCalls = windowFailures = windowIdx = 0;
+				log.info ( "ZOOMA is responding again, circuit closed, {}", getStats () );
+				return;
+			}
+
+			// Outcome of a call started before the circuit opened, not meaningful anymore
+			if ( !isRecorded || state != CircuitState.CLOSED ) return;
+
+			// Sliding window of outcomes
+			if ( windowCalls == WINDOW_SIZE ) {
+				if ( failures [ windowIdx ] ) windowFailures--;
+			}
+			else
+				windowCalls++;
+			failures [ windowIdx ] = !isOk;
+			if ( !isOk ) windowFailures++;
+			windowIdx = ( windowIdx + 1 ) % WINDOW_SIZE;
+
+			if ( windowCalls >= MIN_WINDOW_CALLS && windowFailures >= failureRateThreshold * windowCalls )
+			{
+				open ( String.format ( "%d failures in the last %d calls", windowFailures, windowCalls ) );
+				return;
+			}
+
+			if ( !isOk || latency > latencyTarget )
+			{
+				// Multiplicative decrease, once per period, since in-flight calls report the same congestion
+				if ( now - lastDecreaseTime > latencyTarget )
+				{
+					limit = Math.max ( 1d, limit / 2 );
+					lastDecreaseTime = now;
+					log.debug ( "ZOOMA {}, concurrency limit decreased to {}", isOk ? "slow" : "failure", (int) limit );
+				}
+			}
+			else if ( limit < maxCalls )
+				// Additive increase, about one call more after the current limit of calls
+				limit = Math.min ( maxCalls, limit + 1d / limit );
+		}
+		finally {
+			isSlotFree.signalAll ();
+			lock.unlock ();
+		}
+	}
+
+	private void open ( String reason )
+	{
+		state = CircuitState.OPEN;
+		openedTime = System.currentTimeMillis ();
+		limit = Math.max ( 1d, limit / 2 );
+		log.warn ( "ZOOMA seems to be down ({}), circuit open for {}s, {}", reason, openTime / 1000, getStats () );
+	}
+
+
+	/**
+	 * The current concurrency limit.
+	 */
+	public int getLimit ()
+	{
+		lock.lock ();
+		try {
+			return (int) limit;
+		}
+		finally {
+			lock.unlock ();
+		}
+	}
+
+	/**
+	 * The number of ZOOMA calls currently running.
+	 */
+	public int getActiveCalls ()
+	{
+		lock.lock ();
+		try {
+			return activeCalls;
+		}
+		finally {
+			lock.unlock ();
+		}
+	}
+
+	public CircuitState getCircuitState ()
+	{
+		lock.lock ();
+		try {
+			return state;
+		}
+		finally {
+			lock.unlock ();
+		}
+	}
+
+	/**
+	 * The number of calls that weren't tried because the circuit was open.
+	 */
+	public long getRejectedCalls ()
+	{
+		lock.lock ();
+		try {
+			return rejectedCalls;
+		}
+		finally {
+			lock.unlock ();
+		}
+	}
+
+	public int getMaxCalls ()
+	{
+		return maxCalls;
+	}
+
+	public String getStats ()
+	{
+		lock.lock ();
+		try {
+			return String.format (
+				"ZOOMA calls: circuit %s, concurrency limit %d/%d, %d active, %d rejected",
+				state, (int) limit, maxCalls, activeCalls, rejectedCalls
+			);
+		}
+		finally {
+			lock.unlock ();
+		}
+	}
+}
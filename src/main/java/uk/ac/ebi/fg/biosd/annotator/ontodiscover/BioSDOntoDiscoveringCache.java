@@ -2,9 +2,11 @@ package uk.ac.ebi.fg.biosd.annotator.ontodiscover;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Semaphore;
 
 import javax.persistence.EntityManager;
 
+import uk.ac.ebi.fg.biosd.annotator.AnnotatorResources;
 import uk.ac.ebi.fg.biosd.annotator.model.ExpPropValAnnotation;
 import uk.ac.ebi.fg.biosd.annotator.persistence.dao.ExpPropValAnnotationDAO;
 import uk.ac.ebi.fg.core_model.resources.Resources;
@@ -14,7 +16,9 @@ import uk.ac.ebi.onto_discovery.api.OntologyDiscoveryException;
 
 /**
  * {@link OntoTermDiscoveryCache} that checks the existence of ontology term annotations inside the BioSD database, 
- * using {@link ExpPropValAnnotationDAO}.
+ * using {@link ExpPropValAnnotationDAO}. Keys that are in the {@link AnnotatorResources#getPvAnnIndex() in-memory 
+ * snapshot} of the annotations are served from there, without any DB query, and so are keys that the 
+ * {@link AnnotatorResources#getKeyFilter() key filter} reports as definitely not in the DB.
  *
  * @author brandizi
  * <dl><dt>Date:</dt><dd>25 Jun 2015</dd>
@@ -22,6 +26,17 @@ import uk.ac.ebi.onto_discovery.api.OntologyDiscoveryException;
  */
 public class BioSDOntoDiscoveringCache extends OntoTermDiscoveryCache
 {	
+	/**
+	 * The max number of DB queries that this cache can run at the same time, ie, the number of DB connections it can
+	 * take. This is needed since lookups run in a large thread pool, which can be much bigger than the DB connections
+	 * budget. Default is 20.
+	 */
+	public static final String MAX_QUERIES_PROP = AnnotatorResources.PROP_NAME_PREFIX + "maxCacheQueries";
+	
+	private static final Semaphore QUERY_SLOTS = new Semaphore ( 
+		Integer.parseInt ( System.getProperty ( MAX_QUERIES_PROP, "20" ) ), true 
+	);
+	
 	@Override
 	public List<DiscoveredTerm> save ( String valueLabel, String typeLabel, List<DiscoveredTerm> dterms )
 		throws OntologyDiscoveryException
@@ -37,10 +52,15 @@ public class BioSDOntoDiscoveringCache extends OntoTermDiscoveryCache
 		String pvkey = ExpPropValAnnotation.getPvalText ( typeLabel, valueLabel );
 		if ( pvkey == null ) return CachedOntoTermDiscoverer.NULL_RESULT;
 
+		ExpPropValAnnotationIndex pvAnnIndex = AnnotatorResources.getInstance ().getPvAnnIndex ();
+		if ( pvAnnIndex.contains ( pvkey ) ) return pvAnnIndex.getOntologyTerms ( pvkey );
+		if ( !AnnotatorResources.getInstance ().getKeyFilter ().mightContainPvAnnKey ( pvkey ) ) return null;
+		
 		EntityManager em = null;
 
 		try
 		{
+			QUERY_SLOTS.acquireUninterruptibly ();
 			em = Resources.getInstance ().getEntityManagerFactory ().createEntityManager ();
 			ExpPropValAnnotationDAO expPropValAnnotationDAO = new ExpPropValAnnotationDAO ( em );
 
@@ -50,17 +70,27 @@ public class BioSDOntoDiscoveringCache extends OntoTermDiscoveryCache
 			if ( pvanns.size () == 1 
 					&& ExpPropValAnnotation.NULL_TERM_URI.equals ( pvanns.iterator ().next ().getOntoTermUri () ) 
 			) 
-				// An annotation with null URI is the way to say I already know this pv was mapped to nothing
+			{
+				// An annotation with null URI is the way to say I already know this pv was mapped to nothing, unless it's 
+				// expired, in which case we want to look it up again
+				if ( OntoTermDiscoveryStoreCache.isNullResultExpired ( pvanns.iterator ().next ().getTimestamp () ) )
+					return null;
 				return CachedOntoTermDiscoverer.NULL_RESULT;
+			}
 			
 			List<DiscoveredTerm> result = new ArrayList<DiscoveredTerm> ();
 			for ( ExpPropValAnnotation ann: pvanns )
+			{
+				// An old null result, which was refreshed with some terms
+				if ( ExpPropValAnnotation.NULL_TERM_URI.equals ( ann.getOntoTermUri () ) ) continue;
 				result.add ( new DiscoveredTerm ( ann.getOntoTermUri (), ann.getScore () ) );
+			}
 			
 			return result;
 		}
 		finally {
 			if ( em != null && em.isOpen () ) em.close ();
+			QUERY_SLOTS.release ();
 		}
 	}
 	
@@ -0,0 +1,101 @@
+package uk.ac.ebi.fg.biosd.annotator.ontodiscover;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import uk.ac.ebi.fg.biosd.annotator.model.ExpPropValAnnotation;
+import uk.ac.ebi.onto_discovery.api.CachedOntoTermDiscoverer;
+import uk.ac.ebi.onto_discovery.api.OntologyDiscoveryException;
+import uk.ac.ebi.onto_discovery.api.OntologyTermDiscoverer;
+
+/**
+ * <p>A decorator that coalesces concurrent requests for the same value/type pair. The first thread asking for a key
+ * that isn't already in flight runs the base discoverer, the others wait for its result, rather than hitting the
+ * caches and ZOOMA by themselves.</p>
+ *
+ * <p>This is meant to be put on top of the cache chain (see {@link BioSDCachedOntoTermDiscoverer}). Without it,
+ * the early stage of a run, when the caches are cold and the same labels (e.g., 'Homo sapiens', 'female') show up
+ * in many threads at the same time, causes a burst of duplicated DB lookups and remote calls.</p>
+ *
+ * <p>Keys are removed as soon as their lookup is over, so this doesn't cache anything by itself.</p>
+ */
+public class CoalescingOntoTermDiscoverer extends OntologyTermDiscoverer
+{
+	private final OntologyTermDiscoverer base;
+	private final ConcurrentMap<String, FutureTask<List<DiscoveredTerm>>> inFlight = new ConcurrentHashMap<> ();
+	private final AtomicLong coalescedCalls = new AtomicLong ( 0 );
+
+	public CoalescingOntoTermDiscoverer ( OntologyTermDiscoverer base )
+	{
+		this.base = base;
+	}
+
+	@Override
+	public List<DiscoveredTerm> getOntologyTerms ( final String valueLabel, final String typeLabel )
+		throws OntologyDiscoveryException
+	{
+		String pvkey = ExpPropValAnnotation.getPvalText ( typeLabel, valueLabel );
+		if ( pvkey == null ) return CachedOntoTermDiscoverer.NULL_RESULT;
+
+		FutureTask<List<DiscoveredTerm>> newTask = new FutureTask<> ( new Callable<List<DiscoveredTerm>>()
+		{
+			@Override
+			public List<DiscoveredTerm> call () throws Exception {
+				return base.getOntologyTerms ( valueLabel, typeLabel );
+			}
+		});
+
+		FutureTask<List<DiscoveredTerm>> task = inFlight.putIfAbsent ( pvkey, newTask );
+		if ( task == null )
+		{
+			// We're the leader for this key, let's do the job in the current thread
+			task = newTask;
+			try {
+				task.run ();
+			}
+			finally {
+				inFlight.remove ( pvkey, task );
+			}
+		}
+		else
+			coalescedCalls.incrementAndGet ();
+
+		try {
+			return task.get ();
+		}
+		catch ( ExecutionException ex )
+		{
+			Throwable cause = ex.getCause ();
+			if ( cause instanceof RuntimeException ) throw (RuntimeException) cause;
+			if ( cause instanceof Error ) throw (Error) cause;
+			throw new OntologyDiscoveryException (
+				"Error while discovering ontology terms for '" + pvkey + "': " + cause.getMessage (), cause
+			);
+		}
+		catch ( InterruptedException ex )
+		{
+			Thread.currentThread ().interrupt ();
+			throw new OntologyDiscoveryException (
+				"Interrupted while waiting for ontology terms about '" + pvkey + "'", ex
+			);
+		}
+	}
+
+	/**
+	 * The number of calls that didn't run the base discoverer, since they waited for a lookup already in flight.
+	 */
+	public long getCoalescedCalls ()
+	{
+		return coalescedCalls.get ();
+	}
+
+	public OntologyTermDiscoverer getBase ()
+	{
+		return base;
+	}
+}
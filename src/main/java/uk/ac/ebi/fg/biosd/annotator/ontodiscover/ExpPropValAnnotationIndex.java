@@ -0,0 +1,297 @@
+package uk.ac.ebi.fg.biosd.annotator.ontodiscover;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.persistence.EntityManager;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.tuple.Pair;
+import org.hibernate.CacheMode;
+import org.hibernate.Query;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
+import org.hibernate.jpa.QueryHints;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.ac.ebi.fg.biosd.annotator.AnnotatorResources;
+import uk.ac.ebi.fg.biosd.annotator.PropertyValRecord;
+import uk.ac.ebi.fg.biosd.annotator.model.ExpPropValAnnotation;
+import uk.ac.ebi.onto_discovery.api.CachedOntoTermDiscoverer;
+import uk.ac.ebi.onto_discovery.api.OntologyTermDiscoverer.DiscoveredTerm;
+
+/**
+ * <p>An in-memory snapshot of the {@link ExpPropValAnnotation}s in the BioSD database, used by
+ * {@link BioSDOntoDiscoveringCache} to avoid one DB query per key.</p>
+ *
+ * <p>The snapshot can be either {@link #loadAll(EntityManager) the whole annotation table}, streamed once at the
+ * beginning of a run, or {@link #prefetch(EntityManager, Collection) the keys needed by a page of property values},
+ * fetched in bulk before the page is submitted (see {@link #WARM_UP_PROP}). Keys that were prefetched and have no
+ * annotation are remembered as such, so they don't go to the DB again. Keys that the snapshot doesn't know about
+ * (e.g., added by other processes after a full load) are still looked up in the DB by the cache.</p>
+ *
+ * <p>Each key is stored with arrays of URIs and scores, rather than {@link DiscoveredTerm} lists, and URIs are
+ * {@link AnnotatorResources#getValuePool() shared} between keys, in order to keep the memory footprint low.</p>
+ */
+public class ExpPropValAnnotationIndex
+{
+	/**
+	 * How the index is warmed up: 'chunk' (default) prefetches the keys about each page of property values,
+	 * 'full' loads the whole annotation table at the beginning of a run (faster lookups, but needs memory that is
+	 * proportional to the table), 'none' disables the index, so every key is looked up in the DB.
+	 */
+	public static final String WARM_UP_PROP = AnnotatorResources.PROP_NAME_PREFIX + "cacheWarmUp";
+
+	/**
+	 * Keys in SQL IN lists are sent in batches of this size (Oracle doesn't like longer lists).
+	 */
+	private static final int IN_BATCH_SIZE = 1000;
+
+	/**
+	 * The terms about a key, with null-mapped keys having {@link ExpPropValAnnotation#NULL_TERM_URI}.
+	 */
+	private static class Terms
+	{
+		final String[] uris;
+		final double[] scores;
+
+		Terms ( String[] uris, double[] scores )
+		{
+			this.uris = uris;
+			this.scores = scores;
+		}
+
+		Terms add ( String uri, Double score )
+		{
+			String[] newUris = Arrays.copyOf ( uris, uris.length + 1 );
+			double[] newScores = Arrays.copyOf ( scores, scores.length + 1 );
+			newUris [ uris.length ] = uri;
+			newScores [ uris.length ] = score == null ? Double.NaN : score;
+			return new Terms ( newUris, newScores );
+		}
+	}
+
+	/**
+	 * Used for keys that were searched and have no annotation in the DB.
+	 */
+	private static final Terms NO_TERMS = new Terms ( new String [ 0 ], new double [ 0 ] );
+
+	private final ConcurrentMap<String, Terms> index = new ConcurrentHashMap<> ();
+	private volatile boolean isFullyLoaded = false;
+
+	private Logger log = LoggerFactory.getLogger ( this.getClass () );
+
+
+	/**
+	 * The current value of {@link #WARM_UP_PROP}, normalised to lower case.
+	 */
+	public static String getWarmUpMode ()
+	{
+		String mode = StringUtils.trimToEmpty ( System.getProperty ( WARM_UP_PROP, "chunk" ) ).toLowerCase ();
+		if ( !( "chunk".equals ( mode ) || "full".equals ( mode ) || "none".equals ( mode ) ) )
+			throw new IllegalArgumentException (
+				"Invalid value '" + mode + "' for the property " + WARM_UP_PROP + ", must be 'chunk', 'full' or 'none'"
+			);
+		return mode;
+	}
+
+
+	/**
+	 * Streams the whole annotation table into the index. Does nothing if this was already done.
+	 *
+	 * @return the number of keys in the index.
+	 */
+	public synchronized int loadAll ( EntityManager em )
+	{
+		if ( isFullyLoaded ) return index.size ();
+
+		log.info ( "Loading existing ontology annotations into memory, please wait..." );
+
+		ScrollableResults rs = null;
+		try
+		{
+			Session session = (Session) em.getDelegate ();
+			Query q = session.createQuery (
+				"SELECT ann.sourceText, ann.ontoTermUri, ann.score, ann.timestamp FROM ExpPropValAnnotation ann"
+			)
+			.setReadOnly ( true )
+			.setFetchSize ( 10000 )
+			.setCacheMode ( CacheMode.IGNORE );
+
+			long nrows = 0;
+			for ( rs = q.scroll ( ScrollMode.FORWARD_ONLY ); rs.next (); )
+			{
+				addRow ( index, (String) rs.get ( 0 ), (String) rs.get ( 1 ), (Double) rs.get ( 2 ), (Date) rs.get ( 3 ) );
+				if ( ++nrows % 1000000 == 0 ) log.info ( "{} ontology annotations loaded", nrows );
+			}
+
+			isFullyLoaded = true;
+			log.info ( "Ontology annotations loaded, {} row(s), {} key(s)", nrows, index.size () );
+			return index.size ();
+		}
+		finally {
+			if ( rs != null ) rs.close ();
+		}
+	}
+
+
+	/**
+	 * Fetches the annotations about these keys, which are not already in the index, using IN-based queries. Keys without
+	 * annotations are remembered as such.
+	 *
+	 * @return the number of keys actually fetched.
+	 */
+	public int prefetch ( EntityManager em, Collection<String> pvkeys )
+	{
+		if ( isFullyLoaded ) return 0;
+
+		List<String> newKeys = new ArrayList<> ();
+		for ( String pvkey: pvkeys )
+			if ( pvkey != null && !index.containsKey ( pvkey ) ) newKeys.add ( pvkey );
+
+		for ( int i = 0; i < newKeys.size (); i += IN_BATCH_SIZE )
+		{
+			List<String> batch = newKeys.subList ( i, Math.min ( i + IN_BATCH_SIZE, newKeys.size () ) );
+
+			@SuppressWarnings ( "unchecked" )
+			List<Object[]> rows = em.createQuery (
+				"SELECT ann.sourceText, ann.ontoTermUri, ann.score, ann.timestamp FROM ExpPropValAnnotation ann "
+				+ "WHERE ann.sourceText IN ( :keys )"
+			)
+			.setParameter ( "keys", batch )
+			.setHint ( QueryHints.HINT_READONLY, true )
+			.getResultList ();
+
+			// Build the entries locally, so that the index never sees partial ones
+			Map<String, Terms> entries = new HashMap<> ();
+			for ( Object[] row: rows )
+				addRow ( entries, (String) row [ 0 ], (String) row [ 1 ], (Double) row [ 2 ], (Date) row [ 3 ] );
+			for ( String pvkey: batch )
+				if ( !entries.containsKey ( pvkey ) ) entries.put ( pvkey, NO_TERMS );
+
+			index.putAll ( entries );
+		}
+
+		return newKeys.size ();
+	}
+
+
+	/**
+	 * The keys that {@link OntoDiscoveryAndAnnotator} and the unit annotator might look up for this record, ie,
+	 * type/value, type only and unit. Used to {@link #prefetch(EntityManager, Collection) prefetch} a page of
+	 * property values.
+	 */
+	public static void collectLookupKeys ( PropertyValRecord pvrec, Collection<String> pvkeys )
+	{
+		if ( pvrec == null ) return;
+
+		Pair<String, String> pair = ExpPropValAnnotation.getTypeAndVal ( pvrec );
+		if ( pair != null )
+		{
+			pvkeys.add ( ExpPropValAnnotation.getPvalText ( pair.getLeft (), pair.getRight () ) );
+			String typeKey = ExpPropValAnnotation.getPvalText ( null, pair.getLeft () );
+			if ( typeKey != null ) pvkeys.add ( typeKey );
+		}
+
+		if ( pvrec.hasUnit () && pvrec.getUnitOeAcc () == null )
+		{
+			String unitKey = ExpPropValAnnotation.getPvalText ( "Unit", pvrec.getUnitLabel () );
+			if ( unitKey != null ) pvkeys.add ( unitKey );
+		}
+	}
+
+	/**
+	 * Facility to {@link #collectLookupKeys(PropertyValRecord, Collection) collect the keys} of multiple records.
+	 */
+	public static Set<String> getLookupKeys ( Collection<PropertyValRecord> pvrecs )
+	{
+		Set<String> result = new HashSet<> ();
+		for ( PropertyValRecord pvrec: pvrecs ) collectLookupKeys ( pvrec, result );
+		return result;
+	}
+
+
+	/**
+	 * true if the index has a snapshot of the DB for this key, in which case
+	 * {@link #getOntologyTerms(String)} can be used instead of a DB query.
+	 */
+	public boolean contains ( String pvkey )
+	{
+		return pvkey != null && index.containsKey ( pvkey );
+	}
+
+	/**
+	 * Works like {@link BioSDOntoDiscoveringCache#getOntologyTerms(String, String)}: returns null if there isn't any
+	 * annotation for the key (or the key isn't {@link #contains(String) known}),
+	 * {@link CachedOntoTermDiscoverer#NULL_RESULT} if the key is known to be mapped to nothing, the terms otherwise.
+	 */
+	public List<DiscoveredTerm> getOntologyTerms ( String pvkey )
+	{
+		Terms terms = pvkey == null ? null : index.get ( pvkey );
+		if ( terms == null || terms.uris.length == 0 ) return null;
+		if ( terms.uris.length == 1 && ExpPropValAnnotation.NULL_TERM_URI.equals ( terms.uris [ 0 ] ) )
+			return CachedOntoTermDiscoverer.NULL_RESULT;
+
+		List<DiscoveredTerm> result = new ArrayList<> ( terms.uris.length );
+		for ( int i = 0; i < terms.uris.length; i++ )
+		{
+			// An old null result, which was refreshed with some terms
+			if ( ExpPropValAnnotation.NULL_TERM_URI.equals ( terms.uris [ i ] ) ) continue;
+			double score = terms.scores [ i ];
+			result.add ( new DiscoveredTerm ( terms.uris [ i ], Double.isNaN ( score ) ? null : score ) );
+		}
+		return result;
+	}
+
+	/**
+	 * Forgets about a key, so that it is looked up in the DB again.
+	 */
+	public void remove ( String pvkey )
+	{
+		if ( pvkey != null ) index.remove ( pvkey );
+	}
+
+	public int size ()
+	{
+		return index.size ();
+	}
+
+	public boolean isFullyLoaded ()
+	{
+		return isFullyLoaded;
+	}
+
+	public synchronized void clear ()
+	{
+		index.clear ();
+		isFullyLoaded = false;
+	}
+
+
+	/**
+	 * Expired null results are skipped, so that the key is looked up again, see 
+	 * {@link OntoTermDiscoveryStoreCache#isNullResultExpired(Date)}.
+	 */
+	private void addRow ( Map<String, Terms> target, String pvkey, String uri, Double score, Date timestamp )
+	{
+		if ( pvkey == null || uri == null ) return;
+		if ( ExpPropValAnnotation.NULL_TERM_URI.equals ( uri ) && OntoTermDiscoveryStoreCache.isNullResultExpired ( timestamp ) )
+			return;
+
+		uri = AnnotatorResources.getInstance ().getValuePool ().getUri ( uri );
+
+		Terms terms = target.get ( pvkey );
+		target.put ( pvkey, ( terms == null ? NO_TERMS : terms ).add ( uri, score ) );
+	}
+}
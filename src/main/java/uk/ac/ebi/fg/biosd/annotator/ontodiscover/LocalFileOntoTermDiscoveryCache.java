@@ -0,0 +1,369 @@
+package uk.ac.ebi.fg.biosd.annotator.ontodiscover;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.ac.ebi.fg.biosd.annotator.AnnotatorResources;
+import uk.ac.ebi.fg.biosd.annotator.model.ExpPropValAnnotation;
+import uk.ac.ebi.onto_discovery.api.CachedOntoTermDiscoverer;
+import uk.ac.ebi.onto_discovery.api.OntoTermDiscoveryCache;
+import uk.ac.ebi.onto_discovery.api.OntologyDiscoveryException;
+
+/**
+ * <p>An {@link OntoTermDiscoveryCache} that keeps the results of ontology lookups in a local file, so that they
+ * survive the JVM and can be reused by the next runs. This is meant to sit right in front of the remote discoverer
+ * (ie, ZOOMA), to avoid calls about keys that were already looked up recently, including those that returned
+ * nothing. The latter are saved in the BioSD database too (see {@link OntoTermDiscoveryStoreCache}), but this cache
+ * spares the database round trips and has its own, usually shorter, time-to-live for them.</p>
+ *
+ * <p>The file is an embedded H2 database, opened in auto-server mode, so that all the annotator processes running
+ * on the same host share the same cache (the first one opening it serves the others). H2 storage is crash-safe,
+ * so a killed process doesn't corrupt the cache. Every entry expires after a time-to-live, which is shorter for
+ * lookups that found nothing, since ZOOMA might start to map them after a while.</p>
+ *
+ * <p>Up to {@link #POOL_SIZE} connections to the file are used, so that concurrent lookups don't wait for each other.
+ * Errors with the cache file are logged and treated as cache misses, ie, they never stop the annotation.</p>
+ */
+public class LocalFileOntoTermDiscoveryCache extends OntoTermDiscoveryCache
+{
+	/**
+	 * The path of the cache file (without the .mv.db extension that H2 adds). If this isn't set, the local cache
+	 * isn't used.
+	 */
+	public static final String FILE_PROP = AnnotatorResources.PROP_NAME_PREFIX + "localCache";
+
+	/**
+	 * How long (in days) a lookup result with ontology terms is kept in the local cache. Default is 30.
+	 */
+	public static final String TTL_PROP = AnnotatorResources.PROP_NAME_PREFIX + "localCacheTtl";
+
+	/**
+	 * How long (in days) a lookup result without ontology terms is kept in the local cache. Default is 7.
+	 */
+	public static final String NULL_TTL_PROP = AnnotatorResources.PROP_NAME_PREFIX + "localCacheNullTtl";
+
+	/**
+	 * The max number of connections that an instance opens to the cache file. 
+	 */
+	public static final int POOL_SIZE = 4;
+
+	/**
+	 * A connection to the cache file, with its prepared statements.
+	 */
+	private class CacheConnection
+	{
+		final Connection connection;
+		final PreparedStatement selectStmt, mergeStmt;
+		final int generation;
+
+		CacheConnection ( Connection connection, int generation ) throws SQLException
+		{
+			this.connection = connection;
+			this.generation = generation;
+			selectStmt = connection.prepareStatement ( "SELECT terms, expires FROM onto_term_cache WHERE cache_key = ?" );
+			mergeStmt = connection.prepareStatement (
+				"MERGE INTO onto_term_cache ( cache_key, terms, expires ) KEY ( cache_key ) VALUES ( ?, ?, ? )"
+			);
+		}
+
+		void close ()
+		{
+			try {
+				connection.close ();
+			}
+			catch ( SQLException ex ) {
+				log.warn ( "Error while closing the local ontology cache '" + file + "': " + ex.getMessage (), ex );
+			}
+		}
+	}
+
+	private final String namespace;
+	private final File file;
+	private final long ttl, nullTtl;
+
+	private final Semaphore connectionPermits = new Semaphore ( POOL_SIZE );
+	private final Queue<CacheConnection> idleConnections = new ConcurrentLinkedQueue<> ();
+	
+	// Changes at every close(), so that the connections in use at that time are closed when released
+	private volatile int generation = 0;
+	private volatile boolean isInitialized = false, isDisabled = false;
+	private final Lock openLock = new ReentrantLock ();
+
+	private Logger log = LoggerFactory.getLogger ( this.getClass () );
+
+	/**
+	 * @param namespace used to keep the entries of different discoverers separated in the same file, eg,
+	 *        'zooma' and 'zooma-unit'.
+	 * @param ttl time-to-live of the results having ontology terms, in ms.
+	 * @param nullTtl time-to-live of the results without any ontology term, in ms.
+	 */
+	public LocalFileOntoTermDiscoveryCache ( String namespace, File file, long ttl, long nullTtl )
+	{
+		this.namespace = namespace;
+		this.file = file;
+		this.ttl = ttl;
+		this.nullTtl = nullTtl;
+	}
+
+	/**
+	 * Uses {@link #FILE_PROP}, {@link #TTL_PROP}, {@link #NULL_TTL_PROP}.
+	 */
+	public LocalFileOntoTermDiscoveryCache ( String namespace )
+	{
+		this (
+			namespace,
+			new File ( System.getProperty ( FILE_PROP ) ),
+			TimeUnit.DAYS.toMillis ( Long.parseLong ( System.getProperty ( TTL_PROP, "30" ) ) ),
+			TimeUnit.DAYS.toMillis ( Long.parseLong ( System.getProperty ( NULL_TTL_PROP, "7" ) ) )
+		);
+	}
+
+	/**
+	 * true if {@link #FILE_PROP} is set, ie, the local cache should be used.
+	 */
+	public static boolean isEnabled ()
+	{
+		return StringUtils.trimToNull ( System.getProperty ( FILE_PROP ) ) != null;
+	}
+
+
+	@Override
+	public List<DiscoveredTerm> save ( String valueLabel, String typeLabel, List<DiscoveredTerm> dterms )
+		throws OntologyDiscoveryException
+	{
+		String pvkey = ExpPropValAnnotation.getPvalText ( typeLabel, valueLabel );
+		if ( pvkey == null ) return dterms;
+
+		boolean isNull = dterms == null || dterms.isEmpty ();
+		StringBuilder sb = new StringBuilder ();
+		if ( !isNull )
+			for ( DiscoveredTerm dterm: dterms )
+				sb.append ( dterm.getIri () ).append ( '\t' )
+					.append ( dterm.getScore () == null ? "" : dterm.getScore () ).append ( '\n' );
+
+		CacheConnection conn = acquire ();
+		if ( conn == null ) return dterms;
+		
+		boolean isOk = false;
+		try
+		{
+			conn.mergeStmt.setString ( 1, getCacheKey ( pvkey ) );
+			conn.mergeStmt.setString ( 2, sb.toString () );
+			conn.mergeStmt.setLong ( 3, System.currentTimeMillis () + ( isNull ? nullTtl : ttl ) );
+			conn.mergeStmt.executeUpdate ();
+			isOk = true;
+		}
+		catch ( SQLException ex ) {
+			fail ( "saving '" + pvkey + "' in", ex );
+		}
+		finally {
+			release ( conn, isOk );
+		}
+		return dterms;
+	}
+
+
+	/**
+	 * @return null if the key isn't in the cache or has expired, {@link CachedOntoTermDiscoverer#NULL_RESULT} if the
+	 * key was looked up and nothing was found.
+	 */
+	@Override
+	public List<DiscoveredTerm> getOntologyTerms ( String valueLabel, String typeLabel )
+		throws OntologyDiscoveryException
+	{
+		String pvkey = ExpPropValAnnotation.getPvalText ( typeLabel, valueLabel );
+		if ( pvkey == null ) return CachedOntoTermDiscoverer.NULL_RESULT;
+
+		CacheConnection conn = acquire ();
+		if ( conn == null ) return null;
+
+		String termsStr = null;
+		boolean isFound = false, isOk = false;
+		try
+		{
+			conn.selectStmt.setString ( 1, getCacheKey ( pvkey ) );
+			try ( ResultSet rs = conn.selectStmt.executeQuery () )
+			{
+				// Expired entries are like missing ones, they will be re-saved
+				if ( rs.next () && rs.getLong ( 2 ) >= System.currentTimeMillis () ) 
+				{
+					termsStr = rs.getString ( 1 );
+					isFound = true;
+				}
+			}
+			isOk = true;
+		}
+		catch ( SQLException ex ) {
+			fail ( "fetching '" + pvkey + "' from", ex );
+		}
+		finally {
+			release ( conn, isOk );
+		}
+
+		if ( !isFound ) return null;
+		if ( termsStr == null || termsStr.isEmpty () ) return CachedOntoTermDiscoverer.NULL_RESULT;
+
+		List<DiscoveredTerm> result = new ArrayList<DiscoveredTerm> ();
+		for ( String line: termsStr.split ( "\n" ) )
+		{
+			String[] chunks = line.split ( "\t", -1 );
+			result.add ( new DiscoveredTerm ( chunks [ 0 ], chunks [ 1 ].isEmpty () ? null : Double.valueOf ( chunks [ 1 ] ) ) );
+		}
+		return result;
+	}
+
+
+	/**
+	 * Closes the connections to the cache file. The cache is reopened if it's used again.
+	 */
+	public void close ()
+	{
+		openLock.lock ();
+		try
+		{
+			generation++;
+			isInitialized = false;
+			for ( CacheConnection conn; ( conn = idleConnections.poll () ) != null; ) conn.close ();
+		}
+		finally {
+			openLock.unlock ();
+		}
+	}
+
+
+	/**
+	 * Gets an idle connection, or opens a new one, waiting if {@link #POOL_SIZE} connections are already in use.
+	 * 
+	 * @return null if the cache is disabled or can't be used now, which means a cache miss. 
+	 */
+	private CacheConnection acquire ()
+	{
+		if ( isDisabled ) return null;
+		
+		try {
+			connectionPermits.acquire ();
+		}
+		catch ( InterruptedException ex ) {
+			Thread.currentThread ().interrupt ();
+			return null;
+		}
+		
+		CacheConnection conn;
+		while ( ( conn = idleConnections.poll () ) != null && conn.generation != generation ) conn.close ();
+		if ( conn == null ) conn = open ();
+		
+		if ( conn == null ) connectionPermits.release ();
+		return conn;
+	}
+	
+	/**
+	 * Gives back a connection got from {@link #acquire()}. isOk = false means it had errors, so it's closed, and 
+	 * the next {@link #acquire()} opens a new one. 
+	 */
+	private void release ( CacheConnection conn, boolean isOk )
+	{
+		if ( isOk && conn.generation == generation ) 
+			idleConnections.add ( conn );
+		else
+			conn.close ();
+		connectionPermits.release ();
+	}
+
+	/**
+	 * Opens a new connection to the file. The first time, creates the cache table if needed, removing the expired 
+	 * entries when this happens.
+	 *
+	 * @return null if the file could not be open, in which case the cache is disabled for this instance.
+	 */
+	private CacheConnection open ()
+	{
+		openLock.lock ();
+		try
+		{
+			if ( isDisabled ) return null;
+			
+			String url = "jdbc:h2:" + file.getAbsolutePath () + ";AUTO_SERVER=TRUE;AUTO_RECONNECT=TRUE";
+			Connection connection = DriverManager.getConnection ( url, "sa", "" );
+			try
+			{
+				if ( !isInitialized ) 
+				{
+					initTable ( connection );
+					isInitialized = true;
+				}
+				return new CacheConnection ( connection, generation );
+			}
+			catch ( SQLException ex ) {
+				connection.close ();
+				throw ex;
+			}
+		}
+		catch ( SQLException ex )
+		{
+			log.error ( "Error while opening the local ontology cache '" + file + "', disabling it: " + ex.getMessage (), ex );
+			isDisabled = true;
+			return null;
+		}
+		finally {
+			openLock.unlock ();
+		}
+	}
+
+	private void initTable ( Connection connection ) throws SQLException
+	{
+		try ( Statement stmt = connection.createStatement () )
+		{
+			stmt.executeUpdate (
+				"CREATE TABLE IF NOT EXISTS onto_term_cache ("
+				+ " cache_key VARCHAR PRIMARY KEY, terms VARCHAR, expires BIGINT NOT NULL )"
+			);
+			int nexpired = stmt.executeUpdate (
+				"DELETE FROM onto_term_cache WHERE expires < " + System.currentTimeMillis ()
+			);
+			log.info ( "Local ontology cache '{}' open, {} expired entries removed", file, nexpired );
+		}
+	}
+
+	/**
+	 * Logs the error, the connection is then closed by {@link #release(CacheConnection, boolean)}, so that a new one 
+	 * is opened at the next call.
+	 */
+	private void fail ( String operation, SQLException ex )
+	{
+		log.warn (
+			"Error while " + operation + " the local ontology cache '" + file + "', ignoring it: " + ex.getMessage (), ex
+		);
+	}
+
+	private String getCacheKey ( String pvkey )
+	{
+		return namespace + "|" + pvkey;
+	}
+
+	public String getNamespace ()
+	{
+		return namespace;
+	}
+
+	public File getFile ()
+	{
+		return file;
+	}
+}
@@ -3,6 +3,7 @@ package uk.ac.ebi.fg.biosd.annotator.ontodiscover;
 import org.apache.commons.lang3.tuple.Pair;
 
 import uk.ac.ebi.fg.biosd.annotator.AnnotatorResources;
+import uk.ac.ebi.fg.biosd.annotator.PropertyValRecord;
 import uk.ac.ebi.fg.biosd.annotator.model.ExpPropValAnnotation;
 import uk.ac.ebi.fg.core_model.expgraph.properties.ExperimentalPropertyType;
 import uk.ac.ebi.fg.core_model.expgraph.properties.ExperimentalPropertyValue;
@@ -61,9 +62,20 @@ public class OntoDiscoveryAndAnnotator
 
 	public boolean tryToAnnotate ( ExperimentalPropertyValue<ExperimentalPropertyType> pval, boolean isNumberOrDate )
 	{
-		if ( pval == null ) return false;
+		return tryToAnnotate ( PropertyValRecord.of ( pval ), isNumberOrDate );
+	}
+	
+	/**
+	 * Annotates the record with discoveries made via {@link OntologyTermDiscoverer}. If isNumberOrDate is true, only
+	 * the type is annotated.
+	 * 
+	 * @return true if some ontology term was found. 
+	 */
+	public boolean tryToAnnotate ( PropertyValRecord pvrec, boolean isNumberOrDate )
+	{
+		if ( pvrec == null ) return false;
 
-		Pair<String, String> pair = ExpPropValAnnotation.getTypeAndVal ( pval );
+		Pair<String, String> pair = ExpPropValAnnotation.getTypeAndVal ( pvrec );
 		if ( pair == null ) return false;
 		String pvalTypeLabel = pair.getLeft (), pvalLabel = pair.getRight ();
 
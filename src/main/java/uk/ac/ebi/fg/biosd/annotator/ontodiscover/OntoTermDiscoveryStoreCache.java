@@ -1,8 +1,12 @@
 package uk.ac.ebi.fg.biosd.annotator.ontodiscover;
 
+import java.util.AbstractList;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
+import uk.ac.ebi.fg.biosd.annotator.AnnotationStore;
+import uk.ac.ebi.fg.biosd.annotator.AnnotationValuePool;
 import uk.ac.ebi.fg.biosd.annotator.AnnotatorResources;
 import uk.ac.ebi.fg.biosd.annotator.PropertyValAnnotationManager;
 import uk.ac.ebi.fg.biosd.annotator.model.ExpPropValAnnotation;
@@ -10,11 +14,13 @@ import uk.ac.ebi.onto_discovery.api.CachedOntoTermDiscoverer;
 import uk.ac.ebi.onto_discovery.api.OntoTermDiscoveryCache;
 import uk.ac.ebi.onto_discovery.api.OntologyDiscoveryException;
 
-import com.google.common.collect.Table;
-
 /**
- * Caches discovered terms in memory, using {@link AnnotatorResources#getStore()}, so that they can later be saved
- * into the BioSD database.
+ * <p>Caches discovered terms in memory, using {@link AnnotatorResources#getStore()}, so that they can later be saved
+ * into the BioSD database.</p>
+ *
+ * <p>Lookups that find nothing are cached too, both in memory and in the database, as annotations having
+ * {@link ExpPropValAnnotation#NULL_TERM_URI}. These expire after {@link #NULL_TTL_PROP}, counted from the annotation
+ * timestamp, so that they're looked up again from time to time, rather than at every occurrence of the same value.</p>
  *
  * @author brandizi
  * <dl><dt>Date:</dt><dd>25 Jun 2015</dd>
@@ -22,11 +28,46 @@ import com.google.common.collect.Table;
  */
 public class OntoTermDiscoveryStoreCache extends OntoTermDiscoveryCache
 {
+	/**
+	 * How long (in days) a lookup without results is remembered, before looking it up again. Default is 30.
+	 * If it's 0, ZOOMA lookups without results aren't cached at all and the results without terms from other
+	 * discoverers never expire (which was the behaviour of older versions).
+	 */
+	public static final String NULL_TTL_PROP = AnnotatorResources.PROP_NAME_PREFIX + "nullResultTtl";
+
+	/**
+	 * The empty result kept in memory for a lookup that found nothing, which knows when it expires.
+	 */
+	private static class NullResult extends AbstractList<DiscoveredTerm>
+	{
+		private final long expiryTime;
 
-	private String calledBy;
+		NullResult ( long expiryTime ) {
+			this.expiryTime = expiryTime;
+		}
+
+		@Override
+		public DiscoveredTerm get ( int index ) {
+			throw new IndexOutOfBoundsException ( "Index: " + index + ", Size: 0" );
+		}
+
+		@Override
+		public int size () {
+			return 0;
+		}
+
+		boolean isExpired () {
+			return System.currentTimeMillis () > expiryTime;
+		}
+	}
+
+	private final String typeMarker;
+	private final boolean isZooma;
 
 	public OntoTermDiscoveryStoreCache(String calledBy) {
-		this.calledBy = calledBy;
+		// Computed once, so that all the annotations share the same string
+		this.typeMarker = "Computed Annotation, via " + calledBy; //getProperty ( PropertyValAnnotationManager.ONTO_DISCOVERER_PROP_NAME, "ZOOMA" );
+		this.isZooma = typeMarker.toLowerCase ().contains ( "zooma" );
 	}
 
 
@@ -37,42 +78,49 @@ public class OntoTermDiscoveryStoreCache extends OntoTermDiscoveryCache
 		String pvkey = ExpPropValAnnotation.getPvalText ( typeLabel, valueLabel );
 		if ( pvkey == null ) return CachedOntoTermDiscoverer.NULL_RESULT;
 		
-		Table<Class, String, Object> store = AnnotatorResources.getInstance ().getStore ();
+		AnnotationStore store = AnnotatorResources.getInstance ().getStore ();
+		AnnotationValuePool valuePool = AnnotatorResources.getInstance ().getValuePool ();
 
 
-		// This is needed by this cache and ignored during the persistence stage (ExpPropValAnnotation are considered instead)
-		if (!(getTypeMarker().toLowerCase().contains("zooma") && dterms.isEmpty())) {
+		long nullTtl = getNullResultTtl ();
 
-//			if (!getTypeMarker().toLowerCase().contains("zooma") && !dterms.isEmpty()) {
-			store.put(DiscoveredTerm.class, pvkey, dterms);
+		// This is needed by this cache and ignored during the persistence stage (ExpPropValAnnotation are considered instead)
+		if (!(isZooma && dterms.isEmpty() && nullTtl <= 0)) {
 
 			if (dterms.isEmpty()) {
-				// Store an annotation that traces the fact there's nothing for this key
+				Date timestamp = valuePool.getTimestamp ();
+				store.getDiscoveredTerms ().put ( 
+					pvkey, new NullResult ( nullTtl <= 0 ? Long.MAX_VALUE : timestamp.getTime () + nullTtl ) 
+				);
+				AnnotatorResources.getInstance ().getKeyFilter ().addPvAnnKey ( pvkey );
+
+				// Store an annotation that traces the fact there's nothing for this key, the timestamp sets its expiry
 				ExpPropValAnnotation pvann = new ExpPropValAnnotation(pvkey);
 				pvann.setOntoTermUri(ExpPropValAnnotation.NULL_TERM_URI);
-				pvann.setType(getTypeMarker());
+				pvann.setType(typeMarker);
 				pvann.setProvenance(PropertyValAnnotationManager.PROVENANCE_MARKER);
-				pvann.setTimestamp(new Date());
-				store.put(ExpPropValAnnotation.class, pvkey, pvann);
+				pvann.setTimestamp(timestamp);
+				store.getExpPropValAnnotations ().put ( pvkey, pvann );
 
 				return CachedOntoTermDiscoverer.NULL_RESULT;
 			}
 
+			store.getDiscoveredTerms ().put ( pvkey, dterms );
+			AnnotatorResources.getInstance ().getKeyFilter ().addPvAnnKey ( pvkey );
 
-			String typeMarker = getTypeMarker();
 
 			// Else, store an annotation for each found term
 			for (DiscoveredTerm dterm : dterms) {
-				String uri = dterm.getIri();
+				String uri = valuePool.getUri ( dterm.getIri() );
 
 				ExpPropValAnnotation pvann = new ExpPropValAnnotation(pvkey);
 				pvann.setType(typeMarker);
 				pvann.setProvenance(PropertyValAnnotationManager.PROVENANCE_MARKER);
 				pvann.setOntoTermUri(uri);
 				pvann.setScore(dterm.getScore());
-				pvann.setTimestamp(new Date());
+				pvann.setTimestamp(valuePool.getTimestamp ());
 
-				store.put(ExpPropValAnnotation.class, pvkey + ":" + uri, pvann);
+				store.getExpPropValAnnotations ().put ( pvkey, uri, pvann );
 			}
 		}
 
@@ -80,21 +128,41 @@ public class OntoTermDiscoveryStoreCache extends OntoTermDiscoveryCache
 		return dterms;
 	}
 
-	@SuppressWarnings ( { "rawtypes", "unchecked" } )
 	@Override
 	public List<DiscoveredTerm> getOntologyTerms ( String valueLabel, String typeLabel ) throws OntologyDiscoveryException
 	{
 		String pvkey = ExpPropValAnnotation.getPvalText ( typeLabel, valueLabel );
 		if ( pvkey == null ) return CachedOntoTermDiscoverer.NULL_RESULT;
 		
-		Table<Class, String, Object> store = AnnotatorResources.getInstance ().getStore ();
-		return (List<DiscoveredTerm>) store.get ( DiscoveredTerm.class, pvkey );
+		List<DiscoveredTerm> dterms = AnnotatorResources.getInstance ().getStore ().getDiscoveredTerms ().get ( pvkey );
+		
+		// Expired, look it up again, save() will replace it
+		if ( dterms instanceof NullResult && ( (NullResult) dterms ).isExpired () ) return null;
+		
+		return dterms;
 	}
 
-	public String getTypeMarker()
+	/**
+	 * {@link #NULL_TTL_PROP} in ms.
+	 */
+	public static long getNullResultTtl ()
 	{
+		return TimeUnit.DAYS.toMillis ( Long.parseLong ( System.getProperty ( NULL_TTL_PROP, "30" ) ) );
+	}
+
+	/**
+	 * true if an annotation with {@link ExpPropValAnnotation#NULL_TERM_URI} and this timestamp is expired, ie, its
+	 * key has to be looked up again. Annotations without timestamp never expire. 
+	 */
+	public static boolean isNullResultExpired ( Date timestamp )
+	{
+		if ( timestamp == null ) return false;
+		long nullTtl = getNullResultTtl ();
+		return nullTtl > 0 && System.currentTimeMillis () > timestamp.getTime () + nullTtl;
+	}
 
-		return 
-			"Computed Annotation, via " + this.calledBy; //getProperty ( PropertyValAnnotationManager.ONTO_DISCOVERER_PROP_NAME, "ZOOMA" );
+	public String getTypeMarker()
+	{
+		return typeMarker;
 	}
 }
@@ -0,0 +1,32 @@
+package uk.ac.ebi.fg.biosd.annotator.ontodiscover;
+
+import org.apache.commons.lang3.exception.ExceptionUtils;
+
+/**
+ * Thrown by {@link AdaptiveZOOMASearchFilter} when a ZOOMA call fails or it isn't even tried, because ZOOMA seems to
+ * be down. Lookups failing this way can be retried later, see
+ * {@link uk.ac.ebi.fg.biosd.annotator.threading.PropertyValAnnotationService#LOOKUP_RETRY_PASSES_PROP}.
+ */
+public class ZOOMAUnavailableException extends RuntimeException
+{
+	private static final long serialVersionUID = -3125640588720361387L;
+
+	public ZOOMAUnavailableException ( String message )
+	{
+		super ( message );
+	}
+
+	public ZOOMAUnavailableException ( String message, Throwable cause )
+	{
+		super ( message, cause );
+	}
+
+	/**
+	 * true if ex is or is caused by this exception, ie, the lookup can be retried later. This is needed since
+	 * the discoverers and caches between the ZOOMA client and the annotation tasks might wrap the exception.
+	 */
+	public static boolean isCauseOf ( Throwable ex )
+	{
+		return ExceptionUtils.indexOfType ( ex, ZOOMAUnavailableException.class ) != -1;
+	}
+}
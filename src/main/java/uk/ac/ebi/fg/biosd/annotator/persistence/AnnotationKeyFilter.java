@@ -0,0 +1,382 @@
+package uk.ac.ebi.fg.biosd.annotator.persistence;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import javax.persistence.EntityManager;
+
+import org.apache.commons.lang3.StringUtils;
+import org.hibernate.CacheMode;
+import org.hibernate.Query;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.ac.ebi.fg.biosd.annotator.AnnotatorResources;
+import uk.ac.ebi.fg.biosd.annotator.model.DataItem;
+import uk.ac.ebi.fg.biosd.annotator.model.ExpPropValAnnotation;
+import uk.ac.ebi.fg.biosd.annotator.ontodiscover.BioSDOntoDiscoveringCache;
+
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnel;
+import com.google.common.hash.Funnels;
+
+/**
+ * <p>A pair of Bloom filters about the {@link ExpPropValAnnotation} and {@link DataItem} source texts that are in the
+ * BioSD database. This is used to skip DB lookups about keys that are definitely not there, which is what happens most
+ * of the times with new submissions (see {@link BioSDOntoDiscoveringCache} and {@link AnnotatorAccessor}).</p>
+ *
+ * <p>The filters are {@link #build(EntityManager) built} from a streaming scan of the annotation tables, and can be
+ * {@link #save(File) saved} to a local file, so that multiple LSF jobs can {@link #load(File) load} it, rather than
+ * scanning the DB again (see {@link #KEY_FILTER_PROP}). New keys are {@link #addPvAnnKey(String) added} as the
+ * annotator finds them.</p>
+ *
+ * <p>Until the filter is built or loaded, it is considered empty and every key is reported as possibly present.</p>
+ *
+ * <p>Each filter is split into {@link #STRIPES} stripes, each guarded by its own lock, since Guava filters aren't
+ * thread-safe in the versions we use and the annotator threads add keys all the time. Moreover, a key that the filter
+ * already reports is not added again, so most additions only take a read lock.</p>
+ */
+public class AnnotationKeyFilter
+{
+	/**
+	 * Enables the filter: 'db' builds it at startup, from the BioSD database, any other value is a file path, from
+	 * which the filter is loaded, if it exists, or where it is saved after having been built. If it's not set (or it's
+	 * 'none'), the filter isn't used.
+	 */
+	public static final String KEY_FILTER_PROP = AnnotatorResources.PROP_NAME_PREFIX + "keyFilter";
+
+	/**
+	 * The expected false positive rate, ie, how often the filter says a key might be in the DB, while it isn't.
+	 */
+	public static final double FALSE_POSITIVE_RATE = 0.01;
+
+	/**
+	 * The number of stripes of each filter. Must be a power of 2.
+	 */
+	public static final int STRIPES = 16;
+
+	/**
+	 * Used for the file format. Version 1 files have one stripe per filter.
+	 */
+	private static final int FILE_MAGIC = 0xB10F1173, FILE_VERSION = 2;
+
+	private static final Funnel<CharSequence> FUNNEL = Funnels.stringFunnel ( StandardCharsets.UTF_8 );
+
+	/**
+	 * A Bloom filter split into stripes, each with its lock. Keys are assigned to stripes based on
+	 * {@link String#hashCode()}, which is independent of the hashing that the filters use internally.
+	 */
+	private static class StripedFilter
+	{
+		private final List<BloomFilter<CharSequence>> stripes;
+		private final ReadWriteLock[] locks;
+
+		StripedFilter ( List<BloomFilter<CharSequence>> stripes )
+		{
+			this.stripes = stripes;
+			this.locks = new ReadWriteLock [ stripes.size () ];
+			for ( int i = 0; i < locks.length; i++ ) locks [ i ] = new ReentrantReadWriteLock ();
+		}
+
+		StripedFilter ( int expectedKeys )
+		{
+			this ( newStripes ( expectedKeys ) );
+		}
+
+		private static List<BloomFilter<CharSequence>> newStripes ( int expectedKeys )
+		{
+			List<BloomFilter<CharSequence>> result = new ArrayList<> ( STRIPES );
+			for ( int i = 0; i < STRIPES; i++ )
+				result.add ( BloomFilter.create ( FUNNEL, Math.max ( 1, expectedKeys / STRIPES ), FALSE_POSITIVE_RATE ) );
+			return result;
+		}
+
+		private int getStripeIdx ( String key )
+		{
+			int h = key.hashCode ();
+			h ^= h >>> 16;
+			// The size is always a power of 2
+			return h & ( stripes.size () - 1 );
+		}
+
+		boolean mightContain ( String key )
+		{
+			int idx = getStripeIdx ( key );
+			Lock lock = locks [ idx ].readLock ();
+			lock.lock ();
+			try {
+				return stripes.get ( idx ).mightContain ( key );
+			}
+			finally {
+				lock.unlock ();
+			}
+		}
+
+		void put ( String key )
+		{
+			// Most keys are met many times, so let's save the write lock when possible
+			if ( mightContain ( key ) ) return;
+
+			int idx = getStripeIdx ( key );
+			Lock lock = locks [ idx ].writeLock ();
+			lock.lock ();
+			try {
+				stripes.get ( idx ).put ( key );
+			}
+			finally {
+				lock.unlock ();
+			}
+		}
+
+		void writeTo ( DataOutputStream out ) throws IOException
+		{
+			out.writeInt ( stripes.size () );
+			for ( int i = 0; i < stripes.size (); i++ )
+			{
+				Lock lock = locks [ i ].readLock ();
+				lock.lock ();
+				try {
+					stripes.get ( i ).writeTo ( out );
+				}
+				finally {
+					lock.unlock ();
+				}
+			}
+		}
+
+		static StripedFilter readFrom ( DataInputStream in, int fileVersion ) throws IOException
+		{
+			int nstripes = fileVersion == 1 ? 1 : in.readInt ();
+			if ( nstripes <= 0 || Integer.bitCount ( nstripes ) != 1 ) throw new IOException (
+				"invalid no. of stripes: " + nstripes
+			);
+			List<BloomFilter<CharSequence>> stripes = new ArrayList<> ( nstripes );
+			for ( int i = 0; i < nstripes; i++ ) stripes.add ( BloomFilter.readFrom ( in, FUNNEL ) );
+			return new StripedFilter ( stripes );
+		}
+	}
+
+	// Replaced as a whole when the filter is built, loaded or cleared
+	private volatile StripedFilter pvAnnKeys = null, dataItemKeys = null;
+
+	private Logger log = LoggerFactory.getLogger ( this.getClass () );
+
+
+	/**
+	 * Initialises the filter according to {@link #KEY_FILTER_PROP}. Does nothing if it's already loaded.
+	 */
+	public void init ( EntityManager em )
+	{
+		if ( isLoaded () ) return;
+
+		String prop = StringUtils.trimToNull ( System.getProperty ( KEY_FILTER_PROP ) );
+		if ( prop == null || "none".equalsIgnoreCase ( prop ) ) return;
+
+		if ( "db".equalsIgnoreCase ( prop ) ) {
+			build ( em );
+			return;
+		}
+
+		File file = new File ( prop );
+		if ( file.exists () ) {
+			load ( file );
+			return;
+		}
+
+		build ( em );
+		save ( file );
+	}
+
+
+	/**
+	 * Scans the annotation tables and builds the filter with all the source texts found there.
+	 */
+	public void build ( EntityManager em )
+	{
+		log.info ( "Building the filter of annotation keys, please wait..." );
+
+		StripedFilter newPvAnnKeys = buildFilter ( em, "ExpPropValAnnotation" );
+		StripedFilter newDataItemKeys = buildFilter ( em, "DataItem" );
+
+		dataItemKeys = newDataItemKeys;
+		pvAnnKeys = newPvAnnKeys;
+
+		log.info ( "Annotation key filter built" );
+	}
+
+	private StripedFilter buildFilter ( EntityManager em, String entityName )
+	{
+		Number count = (Number) em.createQuery ( "SELECT COUNT (*) FROM " + entityName ).getSingleResult ();
+
+		// Leave room for the new keys this run is going to find
+		int expectedKeys = (int) Math.min ( Integer.MAX_VALUE, Math.max ( 1000000, count.longValue () * 2 ) );
+		StripedFilter result = new StripedFilter ( expectedKeys );
+
+		ScrollableResults rs = null;
+		try
+		{
+			Session session = (Session) em.getDelegate ();
+			Query q = session.createQuery ( "SELECT DISTINCT e.sourceText FROM " + entityName + " e" )
+				.setReadOnly ( true )
+				.setFetchSize ( 10000 )
+				.setCacheMode ( CacheMode.IGNORE );
+
+			long nkeys = 0;
+			for ( rs = q.scroll ( ScrollMode.FORWARD_ONLY ); rs.next (); )
+			{
+				String key = (String) rs.get ( 0 );
+				if ( key == null ) continue;
+				result.put ( key );
+				if ( ++nkeys % 1000000 == 0 ) log.info ( "{} {} keys added to the filter", nkeys, entityName );
+			}
+			log.info ( "{} key(s) added to the filter for {}", nkeys, entityName );
+
+			return result;
+		}
+		finally {
+			if ( rs != null ) rs.close ();
+		}
+	}
+
+
+	/**
+	 * Saves the filter in a file. This is first written into a temporary file and then renamed, so that processes
+	 * reading the file never see it half-written.
+	 */
+	public void save ( File file )
+	{
+		StripedFilter pvAnnKeys = this.pvAnnKeys, dataItemKeys = this.dataItemKeys;
+		if ( pvAnnKeys == null || dataItemKeys == null ) throw new IllegalStateException ( "Can't save the annotation key filter, it's not loaded yet" );
+
+		try
+		{
+			File absFile = file.getAbsoluteFile ();
+			File tmpFile = File.createTempFile ( file.getName (), ".tmp", absFile.getParentFile () );
+			try ( DataOutputStream out = new DataOutputStream ( new BufferedOutputStream ( new FileOutputStream ( tmpFile ) ) ) )
+			{
+				out.writeInt ( FILE_MAGIC );
+				out.writeInt ( FILE_VERSION );
+				pvAnnKeys.writeTo ( out );
+				dataItemKeys.writeTo ( out );
+			}
+			Files.move ( tmpFile.toPath (), absFile.toPath (), StandardCopyOption.REPLACE_EXISTING );
+
+			log.info ( "Annotation key filter saved in '{}'", file );
+		}
+		catch ( IOException ex ) {
+			throw new RuntimeException (
+				"Error while saving the annotation key filter in '" + file + "': " + ex.getMessage (), ex
+			);
+		}
+	}
+
+	/**
+	 * Loads a file previously created by {@link #save(File)}.
+	 */
+	public void load ( File file )
+	{
+		try ( DataInputStream in = new DataInputStream ( new BufferedInputStream ( new FileInputStream ( file ) ) ) )
+		{
+			if ( in.readInt () != FILE_MAGIC ) throw new IOException ( "not an annotation key filter file" );
+			int version = in.readInt ();
+			if ( version < 1 || version > FILE_VERSION ) throw new IOException ( 
+				"unsupported annotation key filter file version " + version 
+			);
+			StripedFilter newPvAnnKeys = StripedFilter.readFrom ( in, version );
+			StripedFilter newDataItemKeys = StripedFilter.readFrom ( in, version );
+
+			dataItemKeys = newDataItemKeys;
+			pvAnnKeys = newPvAnnKeys;
+
+			log.info ( "Annotation key filter loaded from '{}'", file );
+		}
+		catch ( IOException ex ) {
+			throw new RuntimeException (
+				"Error while loading the annotation key filter from '" + file + "': " + ex.getMessage (), ex
+			);
+		}
+	}
+
+
+	/**
+	 * false means there is definitely no {@link ExpPropValAnnotation} in the DB for this key. true means that there
+	 * might be one, or that the filter isn't loaded.
+	 */
+	public boolean mightContainPvAnnKey ( String pvkey )
+	{
+		return mightContain ( true, pvkey );
+	}
+
+	/**
+	 * Like {@link #mightContainPvAnnKey(String)}, for {@link DataItem#getSourceText()}.
+	 */
+	public boolean mightContainDataItemKey ( String pvalText )
+	{
+		return mightContain ( false, pvalText );
+	}
+
+	/**
+	 * Records that this key was added. This is used for the keys that the annotator finds, so that the filter stays
+	 * consistent with the annotations that are going to be persisted. Does nothing if the filter isn't loaded.
+	 */
+	public void addPvAnnKey ( String pvkey )
+	{
+		put ( true, pvkey );
+	}
+
+	/**
+	 * @see #addPvAnnKey(String).
+	 */
+	public void addDataItemKey ( String pvalText )
+	{
+		put ( false, pvalText );
+	}
+
+	public boolean isLoaded ()
+	{
+		return pvAnnKeys != null;
+	}
+
+	/**
+	 * Unloads the filter, which means every key is considered possibly present.
+	 */
+	public void clear ()
+	{
+		pvAnnKeys = null;
+		dataItemKeys = null;
+	}
+
+
+	private boolean mightContain ( boolean isPvAnnKey, String key )
+	{
+		if ( key == null ) return true;
+
+		StripedFilter filter = isPvAnnKey ? pvAnnKeys : dataItemKeys;
+		return filter == null || filter.mightContain ( key );
+	}
+
+	private void put ( boolean isPvAnnKey, String key )
+	{
+		if ( key == null ) return;
+
+		StripedFilter filter = isPvAnnKey ? pvAnnKeys : dataItemKeys;
+		if ( filter != null ) filter.put ( key );
+	}
+}
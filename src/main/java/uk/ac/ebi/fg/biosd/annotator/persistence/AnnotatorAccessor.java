@@ -12,6 +12,7 @@ import javax.persistence.EntityManager;
 import org.apache.commons.lang3.tuple.Pair;
 import org.hibernate.Session;
 
+import uk.ac.ebi.fg.biosd.annotator.AnnotationStore;
 import uk.ac.ebi.fg.biosd.annotator.AnnotatorResources;
 import uk.ac.ebi.fg.biosd.annotator.model.AbstractOntoTermAnnotation;
 import uk.ac.ebi.fg.biosd.annotator.model.ComputedOntoTerm;
@@ -30,8 +31,6 @@ import uk.ac.ebi.fg.core_model.expgraph.properties.ExperimentalPropertyValue;
 import uk.ac.ebi.fg.core_model.expgraph.properties.Unit;
 import uk.ac.ebi.fg.core_model.terms.OntologyEntry;
 
-import com.google.common.collect.Table;
-
 /**
  * <p>An interface for accessing annotations stored in the BioSD database. You should use this if you're reading the stuff
  * produced by the annotor. See the JUnit tests in uk.ac.ebi.fg.biosd.annotator.persistence.AnnotatorAccessorTest to
@@ -55,8 +54,6 @@ public class AnnotatorAccessor
 	private ResolvedOntoTermAnnotationDAO resolvedOntoTermAnnotationDAO;
 	private DataItemDAO dataItemDAO;
 	
-	private static final DataItem NULL_DATA_ITEM = new DataItem() {};
-	
 	public AnnotatorAccessor ( EntityManager entityManager )
 	{
 		this.setEntityManager ( entityManager );
@@ -154,21 +151,21 @@ public class AnnotatorAccessor
 		String pvstr = DataItem.getPvalText ( pv );
 		if ( pvstr == null ) return null; 
 		
-		@SuppressWarnings ( "rawtypes" )
-		Table<Class, String, Object> store = AnnotatorResources.getInstance ().getStore ();
+		AnnotationStore store = AnnotatorResources.getInstance ().getStore ();
 
-		DataItem dataItem = (DataItem) store.get ( DataItem.class, pvstr );
+		DataItem dataItem = store.getDataItems ().get ( pvstr );
+		if ( dataItem != null ) return dataItem;
+		if ( store.getDataItemMisses ().contains ( pvstr ) ) return null;
 		
-		if ( dataItem == null )
-		{
-			// Not in the cache, see if it's in the DB
-			//
+		// Not in the cache, see if it's in the DB
+		//
+		if ( AnnotatorResources.getInstance ().getKeyFilter ().mightContainDataItemKey ( pvstr ) )
 			dataItem = this.dataItemDAO.findByText ( pvstr, true );
-			if ( dataItem == null ) dataItem = NULL_DATA_ITEM;
-			store.put ( DataItem.class, pvstr, dataItem );
-		}
+
+		if ( dataItem == null ) store.getDataItemMisses ().put ( pvstr, Boolean.TRUE );
+		else store.getDataItems ().put ( pvstr, dataItem );
 		
-		return dataItem == NULL_DATA_ITEM ? null : dataItem;
+		return dataItem;
 	}
 
 	
@@ -186,24 +183,24 @@ public class AnnotatorAccessor
 		String pvkey = ExpPropValAnnotation.getPvalText ( pv );
 		if ( pvkey == null ) return null; 
 		
-		@SuppressWarnings ( "rawtypes" )
-		Table<Class, String, Object> store = AnnotatorResources.getInstance ().getStore ();
+		AnnotationStore.EntityMap<List<ExpPropValAnnotation>> pvAnnLists = 
+			AnnotatorResources.getInstance ().getStore ().getExpPropValAnnotationLists ();
 		
-		@SuppressWarnings ( "unchecked" )
-		List<ExpPropValAnnotation> pvanns = (List<ExpPropValAnnotation>) store.get ( ExpPropValAnnotation.class, pvkey );
+		List<ExpPropValAnnotation> pvanns = pvAnnLists.get ( pvkey );
 		
 		if ( pvanns == null )
 		{
 			// Not in the cache, see if it's in the DB
 			//
-			pvanns = this.expPropValAnnotationDAO.findByExpPropVal ( pv, true );
+			if ( AnnotatorResources.getInstance ().getKeyFilter ().mightContainPvAnnKey ( pvkey ) )
+				pvanns = this.expPropValAnnotationDAO.findByExpPropVal ( pv, true );
 			
 			if ( pvanns == null 
 					|| pvanns.size () == 1 
 					   && NULL_TERM_URI.equals ( pvanns.iterator ().next ().getOntoTermUri () ) ) 
 				pvanns = Collections.emptyList ();
 
-			store.put ( ExpPropValAnnotation.class, pvkey, pvanns );
+			pvAnnLists.put ( pvkey, pvanns );
 		}
 		
 		return pvanns;
@@ -233,12 +230,9 @@ public class AnnotatorAccessor
 		String oekey = ResolvedOntoTermAnnotation.getOntoEntryText ( oe );
 		if ( oekey == null ) return null; 
 		
-		@SuppressWarnings ( "rawtypes" )
-		Table<Class, String, Object> store = AnnotatorResources.getInstance ().getStore ();
+		AnnotationStore store = AnnotatorResources.getInstance ().getStore ();
 		
-		ResolvedOntoTermAnnotation oeann = (ResolvedOntoTermAnnotation) store.get (
-			ResolvedOntoTermAnnotation.class, oekey 
-		);
+		ResolvedOntoTermAnnotation oeann = store.getResolvedOntoTermAnnotations ().get ( oekey );
 		
 		if ( oeann == null )
 		{
@@ -251,7 +245,7 @@ public class AnnotatorAccessor
 				// ontology entry
 				oeann = new ResolvedOntoTermAnnotation ( oekey );
 			
-			store.put ( ResolvedOntoTermAnnotation.class, oekey, oeann );
+			store.getResolvedOntoTermAnnotations ().put ( oekey, oeann );
 		}
 		
 		String oeComputedUri = oeann.getOntoTermUri ();
@@ -262,7 +256,7 @@ public class AnnotatorAccessor
 		// Now get the Ontology term, either from the cache, or from the DB again
 		//
 		
-		ComputedOntoTerm oterm = (ComputedOntoTerm) store.get ( ComputedOntoTerm.class, oeComputedUri );
+		ComputedOntoTerm oterm = store.getComputedOntoTerms ().get ( oeComputedUri );
 		
 		if ( oterm == null )
 		{
@@ -272,7 +266,7 @@ public class AnnotatorAccessor
 			if ( oterm == null ) throw new RuntimeException ( 
 				"Internal error: can't find any ComputedOntoTerm for the URI <" + oeComputedUri + ">"  
 			);
-			store.put ( ComputedOntoTerm.class, oeComputedUri, oterm );
+			store.getComputedOntoTerms ().put ( oeComputedUri, oterm );
 		}
 		
 		return Pair.of ( oterm, oeann );
@@ -1,34 +1,44 @@
 package uk.ac.ebi.fg.biosd.annotator.persistence;
 
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.persistence.EntityManager;
 import javax.persistence.EntityTransaction;
 import javax.persistence.PersistenceException;
+import javax.persistence.PersistenceUnitUtil;
 
-import org.apache.commons.lang3.RandomUtils;
 import org.apache.commons.lang3.StringUtils;
+import org.hibernate.Session;
+import org.hibernate.jdbc.ReturningWork;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import uk.ac.ebi.fg.biosd.annotator.AnnotationStore;
 import uk.ac.ebi.fg.biosd.annotator.AnnotatorResources;
 import uk.ac.ebi.fg.biosd.annotator.cli.AnnotateCmd;
 import uk.ac.ebi.fg.biosd.annotator.model.ComputedOntoTerm;
-import uk.ac.ebi.fg.biosd.annotator.model.DataItem;
 import uk.ac.ebi.fg.biosd.annotator.model.ExpPropValAnnotation;
-import uk.ac.ebi.fg.biosd.annotator.model.Lock;
-import uk.ac.ebi.fg.biosd.annotator.model.ResolvedOntoTermAnnotation;
 import uk.ac.ebi.fg.biosd.annotator.threading.PropertyValAnnotationService;
 import uk.ac.ebi.fg.core_model.resources.Resources;
 import uk.ac.ebi.utils.runcontrol.MultipleAttemptsExecutor;
 
-import com.google.common.collect.Table;
+import com.google.common.collect.Iterables;
 
 /**
  * The annotator persister. This is called by {@link PropertyValAnnotationService}, when it finishes, or when the 
- * system memory needs to be flushed. Persists annotations in memory onto the BioSD database.
+ * system memory needs to be {@link #flush() flushed}. Persists annotations in memory onto the BioSD database.
  *
  * @author brandizi
  * <dl><dt>Date:</dt><dd>19 Mar 2015</dd>
@@ -36,10 +46,44 @@ import com.google.common.collect.Table;
  */
 public class AnnotatorPersister
 {
+	/**
+	 * The lease time of the save locks, in seconds, see {@link SaveLockManager}.
+	 */
 	public static final String LOCK_TIMEOUT_PROP = AnnotatorResources.PROP_NAME_PREFIX + "lockTimeout";
+
+	/**
+	 * Entities are checked against the DB and inserted in batches of this size. This is also the size of the IN lists
+	 * used for the check (Oracle doesn't like longer lists).
+	 */
+	public static final int BATCH_SIZE = 1000;
+
+	/**
+	 * 'jpa' (default) saves the annotations via JPA, 'jdbc' writes them with the {@link JdbcBulkWriter}, which is
+	 * faster, but supports only Oracle and H2 (JPA is used for other DBs).
+	 */
+	public static final String WRITER_PROP = AnnotatorResources.PROP_NAME_PREFIX + "persisterWriter";
+
+	/**
+	 * The objects of each entity type are split into this number of partitions, which are saved in parallel, each with 
+	 * its own DB connection. Default is 1.
+	 */
+	public static final String PARTITIONS_PROP = AnnotatorResources.PROP_NAME_PREFIX + "persisterPartitions";
+
+	/**
+	 * Every partition commits after having saved this number of objects. Default is 100000.
+	 */
+	public static final String COMMIT_SIZE_PROP = AnnotatorResources.PROP_NAME_PREFIX + "persisterCommitSize";
 		
-	@SuppressWarnings ( "rawtypes" )
-	private Table<Class, String, Object> store = AnnotatorResources.getInstance ().getStore ();
+	private AnnotationStore store = AnnotatorResources.getInstance ().getStore ();
+	
+	/**
+	 * null when JPA is used, see {@link #WRITER_PROP}.
+	 */
+	private JdbcBulkWriter jdbcWriter = null;
+	
+	private int nPartitions = 1, commitSize = 100000;
+	
+	private SaveLockManager lockManager;
 	
 	private Logger log = LoggerFactory.getLogger ( this.getClass () );
 	
@@ -48,224 +92,386 @@ public class AnnotatorPersister
 	 * 
 	 */
 	public long persist ()
+	{
+		return persist ( false );
+	}
+
+	/**
+	 * Like {@link #persist()}, but also removes the persisted entities from the 
+	 * {@link AnnotatorResources#getStore() annotator store}, so that the memory they take is released. This is used
+	 * while the annotator is still running, entities that are added to the store during the flush are left there.
+	 * 
+	 * Note that this makes the store lose them as a cache too, so they might be computed again later (the second
+	 * time they will be found in the DB and not saved).   
+	 */
+	public long flush ()
+	{
+		return persist ( true );
+	}
+
+	private long persist ( boolean evict )
 	{
 		log.info ( StringUtils.center ( " Persisting annotations gathered so far, please wait... ", 90, "-" ) );
 		
+		this.jdbcWriter = getJdbcWriter ();
+		this.lockManager = new SaveLockManager ();
+		this.nPartitions = Integer.valueOf ( System.getProperty ( PARTITIONS_PROP, "1" ) );
+		this.commitSize = Integer.valueOf ( System.getProperty ( COMMIT_SIZE_PROP, "100000" ) );
+		if ( nPartitions < 1 || commitSize < 1 ) throw new IllegalArgumentException ( 
+			"The properties " + PARTITIONS_PROP + " and " + COMMIT_SIZE_PROP + " must be positive" 
+		);
 		long ct = 0;
 		
-		ct = persistEntities ( DataItem.class );
-		ct += persistEntities ( ComputedOntoTerm.class );
-		ct += persistEntities ( ResolvedOntoTermAnnotation.class );
-		ct += persistEntities ( ExpPropValAnnotation.class );
+		try
+		{
+			for ( AnnotationStore.EntityMap<?> entities: store.getPendingEntityMaps () )
+				ct += persistEntities ( entities, evict );
+		}
+		finally {
+			lockManager.close ();
+		}
 		
 		return ct;
 	}
+	
+	/**
+	 * Uses {@link #WRITER_PROP} to decide the writer.
+	 */
+	private JdbcBulkWriter getJdbcWriter ()
+	{
+		String mode = StringUtils.trimToEmpty ( System.getProperty ( WRITER_PROP, "jpa" ) ).toLowerCase ();
+		if ( "jpa".equals ( mode ) ) return null;
+		if ( !"jdbc".equals ( mode ) ) throw new IllegalArgumentException ( 
+			"Invalid value '" + mode + "' for the property " + WRITER_PROP + ", must be 'jpa' or 'jdbc'"
+		);
+		
+		JdbcBulkWriter.Dialect dialect = JdbcBulkWriter.getDialect ( Resources.getInstance ().getEntityManagerFactory () );
+		if ( dialect == null ) {
+			log.warn ( "The JDBC writer doesn't support the current database, falling back to JPA" );
+			return null;
+		}
+		return new JdbcBulkWriter ( dialect );
+	}
 
 	/**
-	 * Expects to find objects stored as instances of "type" in the {@link AnnotatorResources#getStore() annotator store}.
-	 * Sends all of them to the DB, via Hibernate. Manages it all inside multiple transactions.
+	 * Sends all the objects in one of the {@link AnnotationStore#getPendingEntityMaps() entity maps} of the 
+	 * {@link AnnotatorResources#getStore() annotator store} to the DB, via Hibernate. Manages it all inside multiple transactions. If evict is true, 
+	 * removes the saved objects from the store at the end.
+	 * 
+	 * The objects are split into {@link #PARTITIONS_PROP} partitions, based on their store key, and each partition
+	 * is saved by a {@link PartitionTask}, in parallel with the others. A partition that fails is retried on its own, 
+	 * the partitions that were saved are evicted even when others have failed.
 	 * 
 	 */
-	private <T> long persistEntities ( final Class<T> type )
+	private <T> long persistEntities ( final AnnotationStore.EntityMap<T> entities, boolean evict )
 	{
-		final Collection<Object> objects = store.row ( type ).values ();
-		int sz = objects == null ? 0 :  objects.size ();
+		final Class<?> type = entities.getType ();
+		
+		// A snapshot, since the store might be changed by running annotators, while we're here
+		final Map<AnnotationStore.Key, T> entries = entities.snapshot ();
+		int sz = entries.size ();
 		log.info ( "Saving {} instance(s) of {}", sz, type.getName () );
 		if ( sz == 0 ) return 0;
 		
-		final Integer[] result = new Integer [ 1 ];
+		List<PartitionTask<T>> tasks = new ArrayList<> ( nPartitions );
+		for ( int i = 0; i < nPartitions; i++ ) tasks.add ( new PartitionTask<T> ( type, i ) );
+		for ( Map.Entry<AnnotationStore.Key, T> entry: entries.entrySet () )
+			tasks.get ( getPartition ( entry.getKey (), nPartitions ) ).entries.put ( entry.getKey (), entry.getValue () );
+
+		runTasks ( tasks );
 		
-		// Try multiple times, it's so important that we complete it.
-		//
-		new MultipleAttemptsExecutor ( 5, 1000 * 60, 1000 * 60 * 5, PersistenceException.class )
-		.execute ( new Runnable() {
-			@Override
-			public void run ()
-			{				
-				EntityManager entityManager = null;
-				EntityTransaction tx = null;
-				try
-				{
-					// We noticed inter-process synch problems (during LSF running), so we prefer to get a new EM each time
-					entityManager = Resources.getInstance ().getEntityManagerFactory ().createEntityManager ();
+		long result = 0, evictedCt = 0;
+		PartitionTask<T> failedTask = null;
+		for ( PartitionTask<T> task: tasks )
+		{
+			if ( task.error != null ) {
+				failedTask = task;
+				continue;
+			}
+			
+			result += task.savedCount;
+			
+			if ( !evict ) continue;
+			
+			// Keep those that were replaced in the meanwhile
+			for ( Map.Entry<AnnotationStore.Key, T> entry: task.entries.entrySet () )
+				entities.removeIfSame ( entry.getKey (), entry.getValue () );
+			evictedCt += task.entries.size ();
+		}
+		log.info ( "done, {} total instance(s) of {} committed", result, type.getName () );
+		if ( evict ) log.info ( "{} instance(s) of {} evicted from memory", evictedCt, type.getName () );
+
+		if ( failedTask != null ) throw new PersistenceException ( 
+			"Error while saving instances of " + type.getName () + ", partition " + failedTask.partition + " failed after "
+			+ failedTask.attempts + " attempt(s): " + failedTask.error.getMessage (), 
+			failedTask.error 
+		);
 
-					lock ( entityManager );
+		return result;
+		
+	} // persistEntities
+	
+	
+	/**
+	 * Used by {@link #persistEntities(AnnotationStore.EntityMap, boolean)}, runs the tasks in parallel and waits 
+	 * for all of them, or runs the task directly, if there's only one.
+	 */
+	private <T> void runTasks ( List<PartitionTask<T>> tasks )
+	{
+		if ( tasks.size () == 1 ) {
+			tasks.get ( 0 ).run ();
+			return;
+		}
+		
+		ExecutorService executor = Executors.newFixedThreadPool ( tasks.size () );
+		try
+		{
+			List<Future<?>> futures = new ArrayList<> ();
+			for ( PartitionTask<T> task: tasks ) futures.add ( executor.submit ( task ) );
+			for ( Future<?> future: futures ) future.get ();
+		}
+		catch ( InterruptedException | ExecutionException ex ) 
+		{
+			throw new RuntimeException ( 
+				"Internal error while waiting for the annotation saving tasks: " + ex.getMessage (), ex 
+			);
+		}
+		finally {
+			executor.shutdownNow ();
+		}
+	}
 
-					tx = entityManager.getTransaction ();
+	/**
+	 * Saves one partition of the objects in an entity map (see {@link #persistEntities(AnnotationStore.EntityMap, boolean)}), 
+	 * using its own entity manager and transaction. The whole partition is tried multiple times, since both the 
+	 * JPA and the JDBC writer skip the objects that were already saved by a previous attempt. 
+	 */
+	private class PartitionTask<T> implements Runnable
+	{
+		final Class<?> type;
+		final int partition;
+		final Map<AnnotationStore.Key, T> entries = new HashMap<> ();
+		
+		int attempts = 0;
+		long savedCount = 0;
+		RuntimeException error = null;
 
-					tx.begin ();
-					int ct = 0;
+		PartitionTask ( Class<?> type, int partition )
+		{
+			this.type = type;
+			this.partition = partition;
+		}
 
-					for ( Object o: objects )
+		@Override
+		public void run ()
+		{
+			if ( entries.isEmpty () ) return;
+			
+			boolean isLocked = false;
+			try
+			{
+				// Other processes can save the other partitions in the meanwhile
+				isLocked = lockManager.lock ( partition );
+				
+				// Try multiple times, it's so important that we complete it.
+				//
+				new MultipleAttemptsExecutor ( 5, 1000 * 60, 1000 * 60 * 5, PersistenceException.class )
+				.execute ( new Runnable() {
+					@Override
+					public void run ()
 					{
-						Object eid = entityManager.getEntityManagerFactory ().getPersistenceUnitUtil ().getIdentifier ( o );
-						Object edb = entityManager.find ( o.getClass (), eid );
-						if ( edb != null ) {
-							if ( log.isTraceEnabled () ) log.trace ( "Object already in the DB: {}", edb.toString () );
-							continue;
-						}
-										
-						if ( log.isTraceEnabled () ) log.trace ( "Saving: {}", o.toString () );
-						entityManager.persist ( o );
+						attempts++;
 						
-						if ( ++ct % 100000 == 0 )
+						EntityManager entityManager = null;
+						EntityTransaction tx = null;
+						try
 						{
-							tx.commit ();
-							log.info ( "committed {} items", ct );
+							// We noticed inter-process synch problems (during LSF running), so we prefer to get a new EM each time
+							entityManager = Resources.getInstance ().getEntityManagerFactory ().createEntityManager ();
+							tx = entityManager.getTransaction ();
+		
 							tx.begin ();
+							Collection<T> objects = entries.values ();
+							int ct = jdbcWriter == null 
+								? persistBatches ( entityManager, tx, type, objects )
+								: writeBatches ( entityManager, tx, type, objects );
+							tx.commit ();
+							
+							if ( nPartitions > 1 ) log.info ( 
+								"{} instance(s) of {} committed for the partition {}", ct, type.getName (), partition 
+							);
+							savedCount = ct;
 						}
-					}
+						finally
+						{
+							if ( tx != null && tx.isActive () )
+								// Well, it shouldn't be, probably there's an error and hence let's rollback
+								tx.rollback ();
+							if ( entityManager != null && entityManager.isOpen () ) entityManager.close (); 
+						}
+					} // run ()
+				}); // MultipleAttemptsExecutor
+			}
+			catch ( RuntimeException ex )
+			{
+				log.error ( String.format ( 
+					"Error while saving the partition %d of %s, after %d attempt(s): %s", 
+					partition, type.getName (), attempts, ex.getMessage () 
+				), ex );
+				error = ex;
+			}
+			finally {
+				if ( isLocked ) lockManager.unlock ( partition );
+			}
+		}
+	}
+	
+	/**
+	 * The partition an entry goes to, based on the hash of its store key.
+	 */
+	private static int getPartition ( AnnotationStore.Key key, int nPartitions )
+	{
+		return ( key.hashCode () & Integer.MAX_VALUE ) % nPartitions;
+	}
 
-					tx.commit ();
-					log.info ( "done, {} total instance(s) of {} committed", ct, type.getName () );
-					
-					result [ 0 ] = ct;
+	/**
+	 * The JPA writer, used by {@link #persistEntities(AnnotationStore.EntityMap, boolean)}. Objects are processed in 
+	 * batches of {@link #BATCH_SIZE}: those already in the DB are found with 
+	 * {@link #findExistingIds(EntityManager, Class, Collection) one query per batch}, the others are persisted and the
+	 * session is flushed and cleared after each batch.
+	 */
+	private <T> int persistBatches ( 
+		EntityManager entityManager, EntityTransaction tx, Class<?> type, Collection<T> objects 
+	)
+	{
+		int ct = 0, lastCommitCt = 0;
+
+		for ( List<T> batch: Iterables.partition ( objects, BATCH_SIZE ) )
+		{
+			PersistenceUnitUtil puUtil = entityManager.getEntityManagerFactory ().getPersistenceUnitUtil ();
+			Map<Object, T> batchIds = new HashMap<> ();
+			for ( T o: batch )
+				batchIds.put ( puUtil.getIdentifier ( o ), o );
+
+			Set<Object> existingIds = findExistingIds ( entityManager, type, batchIds.keySet () );
+
+			for ( Map.Entry<Object, T> idObj: batchIds.entrySet () )
+			{
+				T o = idObj.getValue ();
+				if ( existingIds.contains ( idObj.getKey () ) ) {
+					if ( log.isTraceEnabled () ) log.trace ( "Object already in the DB: {}", o.toString () );
+					continue;
 				}
-				finally
-				{
-					if ( tx != null && tx.isActive () )
-						// Well, it shouldn't be, probably there's an error and hence let's rollback
-						tx.rollback ();
 
-					if ( entityManager != null ) unlock ( entityManager );
-					if ( entityManager != null && entityManager.isOpen () ) entityManager.close (); 
-				}		
-			
-			} // run ()
-			
-		}); // MultipleAttemptsExecutor
+				if ( log.isTraceEnabled () ) log.trace ( "Saving: {}", o.toString () );
+				entityManager.persist ( o );
+				ct++;
+			}
+
+			// Sends the batch inserts (hibernate.jdbc.batch_size) and doesn't let the persistence context grow
+			entityManager.flush ();
+			entityManager.clear ();
 
-		return result [ 0 ];
+			if ( ct - lastCommitCt >= commitSize )
+			{
+				tx.commit ();
+				log.info ( "committed {} items", ct );
+				lastCommitCt = ct;
+				tx.begin ();
+			}
+		}
 		
-	} // persistEntities
+		return ct;
+	}
 
-	/** 
-	 * <p>Invoked by {@link #persistEntities(Class)}. Implements a custom DB-level lock, to be used to isolate the persistence
-	 * of the {@link AnnotatorResources#getStore() annotator store}. This is necessary to coordinate multiple annotation
-	 * processes, running in separated JVMs (we use the LSF cluster). Transactions are not enough for this, because 
-	 * our transactions are too long and end up to cause timeout errors to waiting processes (mainly due to optimistic
-	 * locking).</p>
-	 * 
-	 * <p>Regarding the details on how the locking is implemented, we use the {@link Lock} entity. Usually the LSF invoking
-	 * scripts call {@link AnnotateCmd} with the --unlock option, which causes {@link #forceUnlock()} and hence {@link #unlock()}
-	 * to empty the Lock table and refill it with a single record, having status = 0 (unlocked). When {@link #lock()} is 
-	 * invoked, it checks if such record has status = 0, or its {@link Lock#getTimestamp() timestamp} is expired (see
-	 * {@link #LOCK_TIMEOUT_PROP}, if yes, it overwrites the record with 1 + current time. From now on, any other invocation
-	 * of {@link #lock()} will wait for such record to become 0 again, or to expire. Note that, when Lock is empty, we
-	 * assume that we are running in single-node mode (no LSF), so this locking is obtained immediately, a 0-status
-	 * lock record is created at the end, by unlock. Also note that it might occasionally happen that two processes
-	 * get a lock at the same time, if the current active lock is expired. We prefer to risk this with a timeout, rather 
-	 * than blocking everything because of some interrupted process. Set a reasonable timeout to minimise collisions 
-	 * (default is 30min)</p>
-	 * 
-	 * <p>Note that {@link #lock()} and {@link #unlock()} assumes {@link #entityManager} is already created.</p>
-	 * 
+	/**
+	 * The {@link JdbcBulkWriter JDBC writer}, used by {@link #persistEntities(AnnotationStore.EntityMap, boolean)} 
+	 * when {@link #WRITER_PROP} is 'jdbc'. Works on the connection of the entity manager's session, so that it's 
+	 * part of the same transaction, which is committed every {@link #COMMIT_SIZE_PROP} objects.
 	 */
-	private void lock ( EntityManager entityManager )
+	private <T> int writeBatches ( 
+		EntityManager entityManager, EntityTransaction tx, final Class<?> type, Collection<T> objects 
+	)
 	{
-		EntityTransaction tx = null;
-		
-		try
-		{
-			// Wait a random time, to minimise collisions and unnecessary attempts to write
-			// on an already-locked table (seems to happen without exceptions, due to optimistic locking
-			//
-			Thread.sleep ( RandomUtils.nextLong ( 0, 2001 ) );
-			long timeout = 1000 * Long.valueOf ( System.getProperty ( LOCK_TIMEOUT_PROP, "" + ( 60 * 60 ) ) );
-			
-			tx = entityManager.getTransaction ();
+		Session session = (Session) entityManager.getDelegate ();
+		int ct = 0;
 
-			Lock lockrec = null;
-			
-			while ( true )
+		for ( final List<T> chunk: Iterables.partition ( objects, commitSize ) )
+		{
+			try
 			{
-				tx.begin ();
-				
-				// One record is prepared by the LSF-launching script (-k option).
-				@SuppressWarnings ( "unchecked" )
-				List<Lock> lockrecs = entityManager.createNativeQuery ( 
-					"SELECT * FROM fann_save_lock ORDER BY lock_ts DESC FOR UPDATE", Lock.class 
-				).getResultList ();
-				
-				// No locking, might happen when LSF has never been run, we (hopefully) are running a single process 
-				// so locking isn't even needed.
-				if ( lockrecs.size () == 0 ) break;
-				
-				lockrec = lockrecs.get ( 0 ); 
-				
-				// The lock is free if the existing record has 0 status, or if it's expired
-				// This means two processes might write this record twice and have a lock both. This is the more unlikely
-				// the higher the timeout, but with high timeouts you risk to hang the whole system, so we've a default
-				// of 30 mins.
-				if ( lockrec.getStatus () == 0 || System.currentTimeMillis () > lockrec.getTimestamp ().getTime () + timeout )
-					break;
-				
-				tx.rollback ();
-				// Again, wait a random time, to avoid concurrent locking of expired locks
-				Thread.sleep ( RandomUtils.nextLong ( 3000, 6001 ) );
+				ct += session.doReturningWork ( new ReturningWork<Integer> () 
+				{
+					@Override
+					public Integer execute ( Connection conn ) throws SQLException {
+						return jdbcWriter.write ( conn, type, chunk );
+					}
+				});
 			}
-			
-			// In LSF mode (-k option), an empty record is prepared in the table. If it's not here,
-			// assume we're not working in multi-process mode, no lock is needed.
-			//
-			if ( lockrec != null ) 
+			catch ( RuntimeException ex ) 
 			{
-				lockrec.setStatus ( 1 );
-				lockrec.setTimestamp ( new Date () );
-				entityManager.merge ( lockrec );
+				// So that MultipleAttemptsExecutor retries it
+				throw new PersistenceException ( 
+					"Error while writing instances of " + type.getName () + " via JDBC: " + ex.getMessage (), ex 
+				);
 			}
+
 			tx.commit ();
+			log.info ( "committed {} items", ct );
+			tx.begin ();
 		}
-		catch ( InterruptedException ex )
-		{
-			throw new RuntimeException ( 
-				"Internal error while trying to get a process lock for saving annotations: " + ex.getMessage (), 
-			ex );
-		}
-		finally {
-			if ( tx != null && tx.isActive () ) tx.rollback ();
-		}
+		
+		return ct;
 	}
 	
 	/**
-	 * @see #lock().
+	 * Finds which of the identifiers of a batch of entities to be persisted are already in the DB, with a single query,
+	 * instead of one lookup per entity. ids must not be more than {@link #BATCH_SIZE}, since they go to an IN list.
 	 */
-	private void unlock ( EntityManager entityManager ) 
+	private Set<Object> findExistingIds ( EntityManager entityManager, Class<?> type, Collection<Object> ids )
 	{
-		EntityTransaction tx = null;
-		try
+		Set<Object> result = new HashSet<> ();
+		if ( ids.isEmpty () ) return result;
+
+		if ( ExpPropValAnnotation.class.equals ( type ) )
 		{
-			tx = entityManager.getTransaction ();
-			tx.begin ();
-			// Usually it's only one, but just in case
-			entityManager.createNativeQuery ( "DELETE FROM fann_save_lock" ).executeUpdate ();
-			Lock newLockRec = new Lock ();
-			newLockRec.setStatus ( 0 );
-			newLockRec.setTimestamp ( new Date () );
-			entityManager.persist ( newLockRec );
-			tx.commit ();
-		}
-		finally {
-			if ( tx != null && tx.isActive () ) tx.rollback ();
+			// Composite key, we get all the URIs for the source texts and check the pairs here
+			Set<String> texts = new HashSet<> ();
+			for ( Object id: ids ) texts.add ( ( (ExpPropValAnnotation.Key) id ).getSourceText () );
+
+			@SuppressWarnings ( "unchecked" )
+			List<Object[]> rows = entityManager.createQuery (
+				"SELECT ann.sourceText, ann.ontoTermUri FROM ExpPropValAnnotation ann WHERE ann.sourceText IN ( :texts )"
+			)
+			.setParameter ( "texts", texts )
+			.getResultList ();
+
+			for ( Object[] row: rows ) result.add ( new ExpPropValAnnotation.Key ( (String) row [ 0 ], (String) row [ 1 ] ) );
+			return result;
 		}
+
+		String idProp = ComputedOntoTerm.class.equals ( type ) ? "uri" : "sourceText";
+
+		@SuppressWarnings ( "unchecked" )
+		List<Object> existing = entityManager.createQuery (
+			"SELECT e." + idProp + " FROM " + type.getSimpleName () + " e WHERE e." + idProp + " IN ( :ids )"
+		)
+		.setParameter ( "ids", ids )
+		.getResultList ();
+
+		result.addAll ( existing );
+		return result;
 	}
-	
+
 	/**
-	 * <p>Used in tests and in a {@link AnnotateCmd command line} option. Removes {@link #lock() DB locks} left over 
-	 * (e.g. by system crashes). Obviously, you need to know what you're doing, when using this option.</p>
-	 * 
-	 * This creates an {@link #entityManager} for the {@link #unlock()} operation, and closes it at the end.
+	 * <p>Used in tests and in a {@link AnnotateCmd command line} option. Removes {@link SaveLockManager DB locks} left 
+	 * over (e.g. by system crashes). Obviously, you need to know what you're doing, when using this option.</p>
 	 * 
+	 * @see SaveLockManager#forceUnlock()
 	 */
 	public void forceUnlock ()
 	{
-		EntityManager em = null;
-		try {
-			this.unlock ( em = Resources.getInstance ().getEntityManagerFactory ().createEntityManager () );
-		}
-		finally {
-			if ( em != null && em.isOpen () ) em.close ();
-		}
+		new SaveLockManager ().forceUnlock ();
 	}
 
 }
@@ -0,0 +1,78 @@
+package uk.ac.ebi.fg.biosd.annotator.persistence;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.ac.ebi.fg.biosd.annotator.cli.AnnotateCmd;
+
+/**
+ * <p>The high-watermark used by the incremental mode of {@link AnnotateCmd} (--incremental): the last property value
+ * id that a previous, successful, run has annotated. Incremental runs annotate only the property values having higher
+ * ids, which are the ones loaded after that run, since property value ids are assigned by a sequence.</p>
+ *
+ * <p>The watermark is kept in a local text file, which contains the id only, so that scripts can easily read and
+ * write it too (see annotate_lsf.sh).</p>
+ */
+public class IdWatermark
+{
+	private final File file;
+
+	private Logger log = LoggerFactory.getLogger ( this.getClass () );
+
+	public IdWatermark ( File file )
+	{
+		this.file = file;
+	}
+
+	/**
+	 * @return the last id annotated by the previous run, null if there is no previous run, ie, the file doesn't exist.
+	 */
+	public Long load ()
+	{
+		if ( !file.exists () ) return null;
+		try
+		{
+			String idStr = StringUtils.trimToNull ( new String ( Files.readAllBytes ( file.toPath () ), StandardCharsets.UTF_8 ) );
+			Long result = idStr == null ? null : Long.valueOf ( idStr );
+			log.info ( "Property value id watermark loaded from '{}': {}", file, result );
+			return result;
+		}
+		catch ( IOException | NumberFormatException ex ) {
+			throw new RuntimeException (
+				"Error while loading the property value id watermark from '" + file + "': " + ex.getMessage (), ex
+			);
+		}
+	}
+
+	/**
+	 * Saves the new watermark. The file is replaced atomically, so that a crash can't leave it in a bad state.
+	 */
+	public void save ( long lastId )
+	{
+		try
+		{
+			File absFile = file.getAbsoluteFile ();
+			File tmpFile = File.createTempFile ( file.getName (), ".tmp", absFile.getParentFile () );
+			Files.write ( tmpFile.toPath (), ( lastId + "\n" ).getBytes ( StandardCharsets.UTF_8 ) );
+			Files.move ( tmpFile.toPath (), absFile.toPath (), StandardCopyOption.REPLACE_EXISTING );
+			log.info ( "Property value id watermark saved in '{}': {}", file, lastId );
+		}
+		catch ( IOException ex ) {
+			throw new RuntimeException (
+				"Error while saving the property value id watermark in '" + file + "': " + ex.getMessage (), ex
+			);
+		}
+	}
+
+	public File getFile ()
+	{
+		return file;
+	}
+}
@@ -0,0 +1,315 @@
+package uk.ac.ebi.fg.biosd.annotator.persistence;
+
+import static uk.ac.ebi.fg.biosd.annotator.resources.AnnotatorBioSDResources.TABLE_PREFIX;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Map;
+
+import javax.persistence.EntityManagerFactory;
+
+import org.apache.commons.lang3.StringUtils;
+
+import uk.ac.ebi.fg.biosd.annotator.model.AbstractOntoTermAnnotation;
+import uk.ac.ebi.fg.biosd.annotator.model.ComputedOntoTerm;
+import uk.ac.ebi.fg.biosd.annotator.model.DataItem;
+import uk.ac.ebi.fg.biosd.annotator.model.DateItem;
+import uk.ac.ebi.fg.biosd.annotator.model.DateRangeItem;
+import uk.ac.ebi.fg.biosd.annotator.model.ExpPropValAnnotation;
+import uk.ac.ebi.fg.biosd.annotator.model.FeatureAnnotation;
+import uk.ac.ebi.fg.biosd.annotator.model.NumberItem;
+import uk.ac.ebi.fg.biosd.annotator.model.NumberRangeItem;
+import uk.ac.ebi.fg.biosd.annotator.model.ResolvedOntoTermAnnotation;
+
+/**
+ * <p>Writes the annotator entities straight into the fann_* tables, via JDBC batches, bypassing the JPA persistence
+ * context. This is used by {@link AnnotatorPersister} when {@link AnnotatorPersister#WRITER_PROP} is 'jdbc'.</p>
+ *
+ * <p>Each row is written with an insert-if-absent statement, so that rows already in the DB are left untouched
+ * (as it happens with the JPA writer) and no existence check is needed. On Oracle this is a MERGE with only the
+ * NOT MATCHED clause, on H2 it's an INSERT ... SELECT ... WHERE NOT EXISTS (H2's own MERGE is an upsert, which
+ * would overwrite the existing rows).</p>
+ *
+ * <p>The column names here must be kept in sync with the JPA mappings in the model package.</p>
+ */
+public class JdbcBulkWriter
+{
+	/**
+	 * The DBs we can write to, determined from the Hibernate configuration, see {@link #getDialect(EntityManagerFactory)}.
+	 */
+	public static enum Dialect { ORACLE, H2 }
+
+	/**
+	 * How a table is written: its columns, the primary key columns, and how the column values are taken from an entity.
+	 */
+	private static abstract class TableWriter<T>
+	{
+		final String table;
+		final String[] columns, keyColumns;
+		final int[] sqlTypes;
+
+		TableWriter ( String table, String[] columns, int[] sqlTypes, String... keyColumns )
+		{
+			this.table = table;
+			this.columns = columns;
+			this.sqlTypes = sqlTypes;
+			this.keyColumns = keyColumns;
+		}
+
+		/**
+		 * The values for {@link #columns}, in the same order.
+		 */
+		abstract Object[] getValues ( T o );
+	}
+
+	private static final String[] FEATURE_ANN_COLUMNS = new String[] {
+		"source_text", "type", "provenance", "timestamp", "score", "notes", "internal_notes"
+	};
+
+	private static final int[] FEATURE_ANN_TYPES = new int[] {
+		Types.VARCHAR, Types.VARCHAR, Types.VARCHAR, Types.TIMESTAMP, Types.DOUBLE, Types.VARCHAR, Types.VARCHAR
+	};
+
+	private static class OntoTermAnnotationWriter<T extends AbstractOntoTermAnnotation> extends TableWriter<T>
+	{
+		OntoTermAnnotationWriter ( String table, String... keyColumns )
+		{
+			super (
+				table,
+				concat ( FEATURE_ANN_COLUMNS, "term_uri" ),
+				concat ( FEATURE_ANN_TYPES, Types.VARCHAR ),
+				keyColumns
+			);
+		}
+
+		@Override
+		Object[] getValues ( T ann ) {
+			return concat ( getFeatureAnnotationValues ( ann ), ann.getOntoTermUri () );
+		}
+	}
+
+	private static final TableWriter<ExpPropValAnnotation> PV_ANN_WRITER =
+		new OntoTermAnnotationWriter<> ( TABLE_PREFIX + "exp_pv_feature_ann", "source_text", "term_uri" );
+
+	private static final TableWriter<ResolvedOntoTermAnnotation> RESOLVED_ANN_WRITER =
+		new OntoTermAnnotationWriter<> ( TABLE_PREFIX + "resolved_oe_ann", "source_text" );
+
+	private static final TableWriter<ComputedOntoTerm> COMPUTED_TERM_WRITER = new TableWriter<ComputedOntoTerm> (
+		TABLE_PREFIX + "oe_computed",
+		new String[] { "uri", "label" },
+		new int[] { Types.VARCHAR, Types.VARCHAR },
+		"uri" )
+	{
+		@Override
+		Object[] getValues ( ComputedOntoTerm term ) {
+			return new Object[] { term.getUri (), term.getLabel () };
+		}
+	};
+
+	private static final TableWriter<DataItem> DATA_ITEM_WRITER = new TableWriter<DataItem> (
+		TABLE_PREFIX + "data_item",
+		concat ( FEATURE_ANN_COLUMNS,
+			"data_item_type", "number_val", "date_val", "number_low", "number_hi", "date_low", "date_hi" ),
+		concat ( FEATURE_ANN_TYPES,
+			Types.VARCHAR, Types.DOUBLE, Types.TIMESTAMP, Types.DOUBLE, Types.DOUBLE, Types.TIMESTAMP, Types.TIMESTAMP ),
+		"source_text" )
+	{
+		@Override
+		Object[] getValues ( DataItem di )
+		{
+			// Discriminator values are the ones in the model's @DiscriminatorValue
+			Object[] values;
+			if ( di instanceof NumberItem )
+				values = new Object[] { "number", ( (NumberItem) di ).getValue (), null, null, null, null, null };
+			else if ( di instanceof DateItem )
+				values = new Object[] { "date", null, ( (DateItem) di ).getValue (), null, null, null, null };
+			else if ( di instanceof NumberRangeItem ) {
+				NumberRangeItem range = (NumberRangeItem) di;
+				values = new Object[] { "number_range", null, null, range.getLow (), range.getHi (), null, null };
+			}
+			else if ( di instanceof DateRangeItem ) {
+				DateRangeItem range = (DateRangeItem) di;
+				values = new Object[] { "date_range", null, null, null, null, range.getLow (), range.getHi () };
+			}
+			else throw new IllegalArgumentException (
+				"Can't write data items of type " + di.getClass ().getName () + " via JDBC"
+			);
+
+			return concat ( getFeatureAnnotationValues ( di ), values );
+		}
+	};
+
+
+	private final Dialect dialect;
+
+	public JdbcBulkWriter ( Dialect dialect )
+	{
+		this.dialect = dialect;
+	}
+
+	/**
+	 * Uses the Hibernate configuration of the EMF to establish the dialect, by looking at hibernate.dialect or,
+	 * if this is missing, hibernate.connection.driver_class.
+	 *
+	 * @return null if the DB isn't supported by this writer.
+	 */
+	public static Dialect getDialect ( EntityManagerFactory emf )
+	{
+		Map<String, Object> props = emf.getProperties ();
+		String dbid = StringUtils.trimToNull ( (String) props.get ( "hibernate.dialect" ) );
+		if ( dbid == null ) dbid = StringUtils.trimToEmpty ( (String) props.get ( "hibernate.connection.driver_class" ) );
+		dbid = dbid.toLowerCase ();
+
+		if ( dbid.contains ( "oracle" ) ) return Dialect.ORACLE;
+		if ( dbid.contains ( "h2" ) ) return Dialect.H2;
+		return null;
+	}
+
+	/**
+	 * Writes the objects, which must be instances of type (one of the entity types in the
+	 * {@link uk.ac.ebi.fg.biosd.annotator.AnnotationStore#getPendingEntityMaps() annotator store}), sending
+	 * {@link AnnotatorPersister#BATCH_SIZE} rows per JDBC batch. This doesn't commit, it's up to the caller to
+	 * manage the transaction.
+	 *
+	 * @return the number of rows that were actually inserted. When the driver doesn't report counts for the
+	 * batch statements (some Oracle drivers), the rows sent are counted instead.
+	 */
+	@SuppressWarnings ( "unchecked" )
+	public <T> int write ( Connection conn, Class<?> type, Collection<T> objects ) throws SQLException
+	{
+		TableWriter<T> writer = (TableWriter<T>) getTableWriter ( type );
+
+		int result = 0, batchCt = 0;
+		try ( PreparedStatement stmt = conn.prepareStatement ( getInsertSql ( writer ) ) )
+		{
+			for ( T o: objects )
+			{
+				bind ( stmt, writer, o );
+				stmt.addBatch ();
+				if ( ++batchCt == AnnotatorPersister.BATCH_SIZE ) {
+					result += countUpdates ( stmt.executeBatch () );
+					batchCt = 0;
+				}
+			}
+			if ( batchCt > 0 ) result += countUpdates ( stmt.executeBatch () );
+		}
+		return result;
+	}
+
+	private static TableWriter<?> getTableWriter ( Class<?> type )
+	{
+		if ( ExpPropValAnnotation.class.equals ( type ) ) return PV_ANN_WRITER;
+		if ( ResolvedOntoTermAnnotation.class.equals ( type ) ) return RESOLVED_ANN_WRITER;
+		if ( ComputedOntoTerm.class.equals ( type ) ) return COMPUTED_TERM_WRITER;
+		if ( DataItem.class.equals ( type ) ) return DATA_ITEM_WRITER;
+		throw new IllegalArgumentException ( "Can't write instances of " + type.getName () + " via JDBC" );
+	}
+
+	/**
+	 * The insert-if-absent statement. Parameters are the values of {@link TableWriter#columns}, followed, in the
+	 * H2 case, by the values of {@link TableWriter#keyColumns}.
+	 */
+	private String getInsertSql ( TableWriter<?> writer )
+	{
+		String cols = StringUtils.join ( writer.columns, ", " );
+		String params = StringUtils.repeat ( "?", ", ", writer.columns.length );
+
+		if ( dialect == Dialect.ORACLE )
+		{
+			String[] srcCols = new String [ writer.columns.length ];
+			for ( int i = 0; i < srcCols.length; i++ ) srcCols [ i ] = "? AS " + writer.columns [ i ];
+
+			String[] keyConds = new String [ writer.keyColumns.length ];
+			for ( int i = 0; i < keyConds.length; i++ ) keyConds [ i ] = "t." + writer.keyColumns [ i ] + " = s." + writer.keyColumns [ i ];
+
+			return "MERGE INTO " + writer.table + " t"
+				+ " USING ( SELECT " + StringUtils.join ( srcCols, ", " ) + " FROM DUAL ) s"
+				+ " ON ( " + StringUtils.join ( keyConds, " AND " ) + " )"
+				+ " WHEN NOT MATCHED THEN INSERT ( " + cols + " ) VALUES ( s." + StringUtils.join ( writer.columns, ", s." ) + " )";
+		}
+
+		String[] keyConds = new String [ writer.keyColumns.length ];
+		for ( int i = 0; i < keyConds.length; i++ ) keyConds [ i ] = writer.keyColumns [ i ] + " = ?";
+
+		return "INSERT INTO " + writer.table + " ( " + cols + " )"
+			+ " SELECT " + params + " FROM DUAL"
+			+ " WHERE NOT EXISTS ( SELECT 1 FROM " + writer.table + " WHERE " + StringUtils.join ( keyConds, " AND " ) + " )";
+	}
+
+	private <T> void bind ( PreparedStatement stmt, TableWriter<T> writer, T o ) throws SQLException
+	{
+		Object[] values = writer.getValues ( o );
+		int ipar = 1;
+		for ( int i = 0; i < values.length; i++ )
+			setParameter ( stmt, ipar++, values [ i ], writer.sqlTypes [ i ] );
+
+		if ( dialect == Dialect.ORACLE ) return;
+
+		for ( String keyCol: writer.keyColumns )
+		{
+			int i = indexOf ( writer.columns, keyCol );
+			setParameter ( stmt, ipar++, values [ i ], writer.sqlTypes [ i ] );
+		}
+	}
+
+	private static void setParameter ( PreparedStatement stmt, int i, Object value, int sqlType ) throws SQLException
+	{
+		if ( value == null ) stmt.setNull ( i, sqlType );
+		else if ( value instanceof Date ) stmt.setTimestamp ( i, new Timestamp ( ( (Date) value ).getTime () ) );
+		else stmt.setObject ( i, value, sqlType );
+	}
+
+	private static int countUpdates ( int[] updateCounts )
+	{
+		int result = 0;
+		for ( int ct: updateCounts )
+			if ( ct > 0 ) result += ct;
+			else if ( ct == Statement.SUCCESS_NO_INFO ) result++;
+		return result;
+	}
+
+	private static Object[] getFeatureAnnotationValues ( FeatureAnnotation ann )
+	{
+		return new Object[] {
+			ann.getSourceText (), ann.getType (), ann.getProvenance (), ann.getTimestamp (), ann.getScore (),
+			ann.getNotes (), ann.getInternalNotes ()
+		};
+	}
+
+	private static int indexOf ( String[] a, String s )
+	{
+		for ( int i = 0; i < a.length; i++ )
+			if ( a [ i ].equals ( s ) ) return i;
+		return -1;
+	}
+
+	private static String[] concat ( String[] a, String... b )
+	{
+		String[] result = new String [ a.length + b.length ];
+		System.arraycopy ( a, 0, result, 0, a.length );
+		System.arraycopy ( b, 0, result, a.length, b.length );
+		return result;
+	}
+
+	private static int[] concat ( int[] a, int... b )
+	{
+		int[] result = new int [ a.length + b.length ];
+		System.arraycopy ( a, 0, result, 0, a.length );
+		System.arraycopy ( b, 0, result, a.length, b.length );
+		return result;
+	}
+
+	private static Object[] concat ( Object[] a, Object... b )
+	{
+		Object[] result = new Object [ a.length + b.length ];
+		System.arraycopy ( a, 0, result, 0, a.length );
+		System.arraycopy ( b, 0, result, a.length, b.length );
+		return result;
+	}
+}
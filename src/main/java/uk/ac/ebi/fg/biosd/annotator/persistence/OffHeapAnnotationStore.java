@@ -0,0 +1,252 @@
+package uk.ac.ebi.fg.biosd.annotator.persistence;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import uk.ac.ebi.fg.biosd.annotator.AnnotationStore;
+import uk.ac.ebi.fg.biosd.annotator.AnnotatorResources;
+import uk.ac.ebi.fg.biosd.annotator.model.DataItem;
+import uk.ac.ebi.fg.biosd.annotator.model.DateItem;
+import uk.ac.ebi.fg.biosd.annotator.model.DateRangeItem;
+import uk.ac.ebi.fg.biosd.annotator.model.ExpPropValAnnotation;
+import uk.ac.ebi.fg.biosd.annotator.model.FeatureAnnotation;
+import uk.ac.ebi.fg.biosd.annotator.model.NumberItem;
+import uk.ac.ebi.fg.biosd.annotator.model.NumberRangeItem;
+import uk.ac.ebi.onto_discovery.api.OntologyTermDiscoverer.DiscoveredTerm;
+
+import com.google.common.cache.RemovalListener;
+
+/**
+ * <p>An {@link AnnotationStore} that keeps the {@link ExpPropValAnnotation}s and {@link DataItem}s waiting to be
+ * persisted in {@link OffHeapEntityMap off-heap maps}. This is used when {@link AnnotatorResources#STORE_TYPE_PROP}
+ * is 'offheap'.</p>
+ *
+ * <p>Entities are encoded with a fixed binary layout: source text, type, provenance, timestamp, score and notes,
+ * followed by the ontology term URI, or the data item kind and values. URIs, types and provenance strings are
+ * replaced by integer IDs, since there are relatively few distinct values of them.</p>
+ */
+public class OffHeapAnnotationStore extends AnnotationStore
+{
+	/**
+	 * Where the memory-mapped files are created, default is java.io.tmpdir.
+	 */
+	public static final String DIR_PROP = AnnotatorResources.PROP_NAME_PREFIX + "offHeapStoreDir";
+
+	/**
+	 * The size of each memory-mapped file.
+	 */
+	public static final int SEGMENT_SIZE = 64 * 1024 * 1024;
+
+	/**
+	 * Maps a few recurring strings to integer IDs.
+	 */
+	private static class StringDictionary
+	{
+		private final ConcurrentMap<String, Integer> ids = new ConcurrentHashMap<> ();
+		private final List<String> strings = new ArrayList<> ();
+
+		int getId ( String s )
+		{
+			if ( s == null ) return -1;
+
+			Integer id = ids.get ( s );
+			if ( id != null ) return id;
+
+			synchronized ( this )
+			{
+				if ( ( id = ids.get ( s ) ) != null ) return id;
+				id = strings.size ();
+				strings.add ( s );
+				ids.put ( s, id );
+				return id;
+			}
+		}
+
+		synchronized String getString ( int id )
+		{
+			return id == -1 ? null : strings.get ( id );
+		}
+	}
+
+	/**
+	 * The part that is common to all the {@link FeatureAnnotation}s.
+	 */
+	private static abstract class FeatureAnnotationCodec<V extends FeatureAnnotation> implements OffHeapEntityMap.Codec<V>
+	{
+		private final StringDictionary dictionary = new StringDictionary ();
+
+		protected void encodeFeatureAnnotation ( FeatureAnnotation ann, DataOutput out ) throws IOException
+		{
+			writeString ( ann.getSourceText (), out );
+			out.writeInt ( dictionary.getId ( ann.getType () ) );
+			out.writeInt ( dictionary.getId ( ann.getProvenance () ) );
+			Date ts = ann.getTimestamp ();
+			out.writeLong ( ts == null ? Long.MIN_VALUE : ts.getTime () );
+			Double score = ann.getScore ();
+			out.writeDouble ( score == null ? Double.NaN : score );
+			writeString ( ann.getNotes (), out );
+			writeString ( ann.getInternalNotes (), out );
+		}
+
+		protected void decodeFeatureAnnotation ( FeatureAnnotation ann, DataInput in ) throws IOException
+		{
+			ann.setType ( dictionary.getString ( in.readInt () ) );
+			ann.setProvenance ( dictionary.getString ( in.readInt () ) );
+			long ts = in.readLong ();
+			if ( ts != Long.MIN_VALUE ) ann.setTimestamp ( new Date ( ts ) );
+			double score = in.readDouble ();
+			if ( !Double.isNaN ( score ) ) ann.setScore ( score );
+			ann.setNotes ( readString ( in ) );
+			ann.setInternalNotes ( readString ( in ) );
+		}
+
+		protected StringDictionary getDictionary ()
+		{
+			return dictionary;
+		}
+
+		protected static void writeString ( String s, DataOutput out ) throws IOException
+		{
+			out.writeBoolean ( s != null );
+			if ( s != null ) out.writeUTF ( s );
+		}
+
+		protected static String readString ( DataInput in ) throws IOException
+		{
+			return in.readBoolean () ? in.readUTF () : null;
+		}
+	}
+
+	private static class ExpPropValAnnotationCodec extends FeatureAnnotationCodec<ExpPropValAnnotation>
+	{
+		@Override
+		public void encode ( ExpPropValAnnotation pvann, DataOutput out ) throws IOException
+		{
+			encodeFeatureAnnotation ( pvann, out );
+			out.writeInt ( getDictionary ().getId ( pvann.getOntoTermUri () ) );
+		}
+
+		@Override
+		public ExpPropValAnnotation decode ( DataInput in ) throws IOException
+		{
+			ExpPropValAnnotation pvann = new ExpPropValAnnotation ( readString ( in ) );
+			decodeFeatureAnnotation ( pvann, in );
+			pvann.setOntoTermUri ( getDictionary ().getString ( in.readInt () ) );
+			return pvann;
+		}
+	}
+
+	private static class DataItemCodec extends FeatureAnnotationCodec<DataItem>
+	{
+		private static final byte NUMBER = 1, NUMBER_RANGE = 2, DATE = 3, DATE_RANGE = 4;
+
+		@Override
+		public void encode ( DataItem dataItem, DataOutput out ) throws IOException
+		{
+			if ( dataItem instanceof NumberItem ) {
+				out.writeByte ( NUMBER );
+				writeNumber ( ( (NumberItem) dataItem ).getValue (), out );
+			}
+			else if ( dataItem instanceof NumberRangeItem ) {
+				NumberRangeItem range = (NumberRangeItem) dataItem;
+				out.writeByte ( NUMBER_RANGE );
+				writeNumber ( range.getLow (), out );
+				writeNumber ( range.getHi (), out );
+			}
+			else if ( dataItem instanceof DateItem ) {
+				out.writeByte ( DATE );
+				writeDate ( ( (DateItem) dataItem ).getValue (), out );
+			}
+			else if ( dataItem instanceof DateRangeItem ) {
+				DateRangeItem range = (DateRangeItem) dataItem;
+				out.writeByte ( DATE_RANGE );
+				writeDate ( range.getLow (), out );
+				writeDate ( range.getHi (), out );
+			}
+			else throw new IllegalArgumentException (
+				"Can't store data items of type " + dataItem.getClass ().getName () + " in the off-heap store"
+			);
+
+			encodeFeatureAnnotation ( dataItem, out );
+		}
+
+		@Override
+		public DataItem decode ( DataInput in ) throws IOException
+		{
+			DataItem result;
+
+			byte kind = in.readByte ();
+			switch ( kind )
+			{
+				case NUMBER:
+					result = new NumberItem ( readNumber ( in ) );
+					break;
+				case NUMBER_RANGE:
+					result = new NumberRangeItem ( readNumber ( in ), readNumber ( in ) );
+					break;
+				case DATE:
+					result = new DateItem ( readDate ( in ) );
+					break;
+				case DATE_RANGE:
+					result = new DateRangeItem ( readDate ( in ), readDate ( in ) );
+					break;
+				default:
+					throw new IOException ( "Unknown data item kind: " + kind );
+			}
+
+			result.setSourceText ( readString ( in ) );
+			decodeFeatureAnnotation ( result, in );
+			return result;
+		}
+
+		private static void writeNumber ( Double n, DataOutput out ) throws IOException {
+			out.writeDouble ( n == null ? Double.NaN : n );
+		}
+
+		private static Double readNumber ( DataInput in ) throws IOException
+		{
+			double n = in.readDouble ();
+			return Double.isNaN ( n ) ? null : n;
+		}
+
+		private static void writeDate ( Date d, DataOutput out ) throws IOException {
+			out.writeLong ( d == null ? Long.MIN_VALUE : d.getTime () );
+		}
+
+		private static Date readDate ( DataInput in ) throws IOException
+		{
+			long d = in.readLong ();
+			return d == Long.MIN_VALUE ? null : new Date ( d );
+		}
+	}
+
+
+	/**
+	 * Uses {@link #DIR_PROP} for the memory-mapped files.
+	 */
+	public OffHeapAnnotationStore ( long readCacheSize, RemovalListener<Key, List<DiscoveredTerm>> discoveredTermsListener )
+	{
+		this (
+			readCacheSize, discoveredTermsListener,
+			new File ( System.getProperty ( DIR_PROP, System.getProperty ( "java.io.tmpdir" ) ) )
+		);
+	}
+
+	public OffHeapAnnotationStore (
+		long readCacheSize, RemovalListener<Key, List<DiscoveredTerm>> discoveredTermsListener, File dir
+	)
+	{
+		super (
+			readCacheSize, discoveredTermsListener,
+			new OffHeapEntityMap<> ( DataItem.class, new DataItemCodec (), dir, SEGMENT_SIZE ),
+			new OffHeapEntityMap<> ( ExpPropValAnnotation.class, new ExpPropValAnnotationCodec (), dir, SEGMENT_SIZE )
+		);
+	}
+}
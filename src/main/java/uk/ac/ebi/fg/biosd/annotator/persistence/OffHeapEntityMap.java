@@ -0,0 +1,517 @@
+package uk.ac.ebi.fg.biosd.annotator.persistence;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import uk.ac.ebi.fg.biosd.annotator.AnnotationStore;
+import uk.ac.ebi.fg.biosd.annotator.AnnotationStore.Key;
+
+/**
+ * <p>An {@link AnnotationStore.EntityMap} that keeps its values outside of the Java heap, in memory-mapped temporary
+ * files, so that millions of pending annotations don't slow down the garbage collector.</p>
+ *
+ * <p>Values are encoded by a {@link Codec} into records that are appended to fixed-size segments, each record being:
+ * record length, key length, key bytes, encoded value. The keys are found via an open-addressing hash index made of
+ * two primitive arrays (record address and key hash per slot). Values are decoded every time they're fetched, so
+ * this should be used for the entities that are written during annotation and read back only by
+ * {@link AnnotatorPersister}.</p>
+ *
+ * <p>The live bytes of every segment are tracked, and a segment having only replaced or removed records is reused for
+ * new records. After the persister has {@link AnnotatorPersister#flush() flushed} the store, this is the case for
+ * all the segments written before the flush, so the number of segments depends on the pending records, not on how
+ * many records were written during the whole run.</p>
+ */
+public class OffHeapEntityMap<V> extends AnnotationStore.EntityMap<V>
+{
+	/**
+	 * Converts values from/to their binary representation.
+	 */
+	public interface Codec<V>
+	{
+		public void encode ( V value, DataOutput out ) throws IOException;
+		public V decode ( DataInput in ) throws IOException;
+	}
+
+	/**
+	 * Slots contain the record address + 1, so that 0 means empty.
+	 */
+	private static final long EMPTY_SLOT = 0, REMOVED_SLOT = -1;
+
+	private static final int INITIAL_CAPACITY = 1 << 16;
+
+	private final Codec<V> codec;
+	private final File dir;
+	private final int segmentSize;
+
+	private final List<MappedByteBuffer> segments = new CopyOnWriteArrayList<> ();
+	private int writeSegment = -1, writePos = 0;
+	
+	/**
+	 * Per segment, the size of the records still referred by the index, and how many times it was reused.
+	 */
+	private int[] liveBytes = new int [ 0 ], generations = new int [ 0 ];
+	
+	/**
+	 * Segments with no live record. Those released while a {@link #snapshot()} is decoding records go to 
+	 * releasedSegments first, and they become free when no snapshot is running.
+	 */
+	private final Deque<Integer> freeSegments = new ArrayDeque<> ();
+	private final List<Integer> releasedSegments = new ArrayList<> ();
+	private int runningSnapshots = 0;
+
+	private long[] slots = new long [ INITIAL_CAPACITY ];
+	private int[] hashes = new int [ INITIAL_CAPACITY ];
+	private int size = 0, usedSlots = 0;
+
+	private final ReadWriteLock lock = new ReentrantReadWriteLock ();
+
+	/**
+	 * Where the values returned by the last {@link #snapshot()} come from, used by {@link #removeIfSame(Key, Object)}.
+	 */
+	private volatile Map<Key, SnapshotEntry<V>> snapshotEntries = new ConcurrentHashMap<> ();
+
+	private static class SnapshotEntry<V>
+	{
+		final V value;
+		final long address;
+		final int generation;
+
+		SnapshotEntry ( V value, long address, int generation )
+		{
+			this.value = value;
+			this.address = address;
+			this.generation = generation;
+		}
+	}
+
+
+	/**
+	 * @param type see {@link #getType()}.
+	 * @param dir where the segment files are created. They're deleted when the JVM exits.
+	 * @param segmentSize the size of each segment file, which is also the max size of a record.
+	 */
+	public OffHeapEntityMap ( Class<?> type, Codec<V> codec, File dir, int segmentSize )
+	{
+		super ( type, null );
+		this.codec = codec;
+		this.dir = dir;
+		this.segmentSize = segmentSize;
+	}
+
+
+	@Override
+	public V get ( Key key )
+	{
+		if ( key == null ) return null;
+
+		lock.readLock ().lock ();
+		try
+		{
+			int slot = findSlot ( key );
+			return slot == -1 ? null : decode ( readRecord ( slots [ slot ] - 1 ) );
+		}
+		finally {
+			lock.readLock ().unlock ();
+		}
+	}
+
+	@Override
+	public boolean contains ( Key key )
+	{
+		if ( key == null ) return false;
+
+		lock.readLock ().lock ();
+		try {
+			return findSlot ( key ) != -1;
+		}
+		finally {
+			lock.readLock ().unlock ();
+		}
+	}
+
+	@Override
+	public void put ( Key key, V value )
+	{
+		if ( key == null ) return;
+		byte[] record = encode ( key, value );
+
+		lock.writeLock ().lock ();
+		try
+		{
+			long address = append ( record );
+
+			int slot = findSlot ( key );
+			if ( slot != -1 ) 
+			{
+				// Replacement, the old record is dead now
+				discard ( slots [ slot ] - 1 );
+				slots [ slot ] = address + 1;
+				return;
+			}
+
+			if ( ( usedSlots + 1 ) * 2 > slots.length ) rehash ( size * 2 + 2 > slots.length ? slots.length * 2 : slots.length );
+			insert ( key.hashCode (), address );
+			size++;
+		}
+		finally {
+			lock.writeLock ().unlock ();
+		}
+	}
+
+	/**
+	 * Values are decoded every time, so sameness is established by checking that the key still points to the record
+	 * that the value was decoded from by the last {@link #snapshot()}. Values not coming from that are never removed.
+	 */
+	@Override
+	public boolean removeIfSame ( Key key, V value )
+	{
+		if ( key == null ) return false;
+		SnapshotEntry<V> snapshotEntry = snapshotEntries.get ( key );
+		if ( snapshotEntry == null || snapshotEntry.value != value ) return false;
+
+		lock.writeLock ().lock ();
+		try
+		{
+			// The generation check is because the segment might have been reused and the same address might now hold
+			// a newer record for the same key
+			long address = snapshotEntry.address;
+			int slot = findSlot ( key );
+			if ( slot == -1 || slots [ slot ] - 1 != address || generations [ getSegmentIdx ( address ) ] != snapshotEntry.generation ) 
+				return false;
+
+			snapshotEntries.remove ( key );
+			discard ( address );
+			slots [ slot ] = REMOVED_SLOT;
+			if ( --size == 0 ) reset ();
+			return true;
+		}
+		finally {
+			lock.writeLock ().unlock ();
+		}
+	}
+
+	/**
+	 * Decodes all the values, this is where the entities are rebuilt on the heap.
+	 */
+	@Override
+	public Map<Key, V> snapshot ()
+	{
+		// The records are decoded outside of the lock, which is fine, since the segments released in the meanwhile 
+		// aren't reused until we're done.
+		long[] addresses;
+		int[] addressGenerations;
+		lock.writeLock ().lock ();
+		try 
+		{
+			addresses = slots.clone ();
+			addressGenerations = generations.clone ();
+			runningSnapshots++;
+		}
+		finally {
+			lock.writeLock ().unlock ();
+		}
+
+		try
+		{
+			Map<Key, V> result = new HashMap<> ();
+			Map<Key, SnapshotEntry<V>> newSnapshotEntries = new ConcurrentHashMap<> ();
+			for ( long slot: addresses )
+			{
+				if ( slot == EMPTY_SLOT || slot == REMOVED_SLOT ) continue;
+	
+				long address = slot - 1;
+				byte[] record = readRecord ( address );
+				int keyLen = ByteBuffer.wrap ( record ).getInt ();
+				Key key = Key.of ( Arrays.copyOfRange ( record, 4, 4 + keyLen ) );
+				V value = decode ( record );
+	
+				result.put ( key, value );
+				newSnapshotEntries.put ( 
+					key, new SnapshotEntry<> ( value, address, addressGenerations [ getSegmentIdx ( address ) ] ) 
+				);
+			}
+			this.snapshotEntries = newSnapshotEntries;
+	
+			return result;
+		}
+		finally 
+		{
+			lock.writeLock ().lock ();
+			try 
+			{
+				if ( --runningSnapshots == 0 ) {
+					freeSegments.addAll ( releasedSegments );
+					releasedSegments.clear ();
+				}
+			}
+			finally {
+				lock.writeLock ().unlock ();
+			}
+		}
+	}
+
+	@Override
+	public int size ()
+	{
+		lock.readLock ().lock ();
+		try {
+			return size;
+		}
+		finally {
+			lock.readLock ().unlock ();
+		}
+	}
+
+	@Override
+	public void clear ()
+	{
+		lock.writeLock ().lock ();
+		try {
+			reset ();
+		}
+		finally {
+			lock.writeLock ().unlock ();
+		}
+	}
+
+
+	/**
+	 * @return the slot of the key, or -1 if it's not there.
+	 */
+	private int findSlot ( Key key )
+	{
+		int hash = key.hashCode (), mask = slots.length - 1;
+		for ( int i = spread ( hash ) & mask; ; i = ( i + 1 ) & mask )
+		{
+			long slot = slots [ i ];
+			if ( slot == EMPTY_SLOT ) return -1;
+			if ( slot != REMOVED_SLOT && hashes [ i ] == hash && keyEquals ( slot - 1, key.getBytes () ) ) return i;
+		}
+	}
+
+	/**
+	 * Puts the address in the first free slot, doesn't check the key is already there.
+	 */
+	private void insert ( int hash, long address )
+	{
+		int mask = slots.length - 1;
+		int i = spread ( hash ) & mask;
+		while ( slots [ i ] != EMPTY_SLOT && slots [ i ] != REMOVED_SLOT ) i = ( i + 1 ) & mask;
+
+		if ( slots [ i ] == EMPTY_SLOT ) usedSlots++;
+		slots [ i ] = address + 1;
+		hashes [ i ] = hash;
+	}
+
+	private void rehash ( int newCapacity )
+	{
+		long[] oldSlots = slots;
+		int[] oldHashes = hashes;
+
+		slots = new long [ newCapacity ];
+		hashes = new int [ newCapacity ];
+		usedSlots = 0;
+
+		for ( int i = 0; i < oldSlots.length; i++ )
+			if ( oldSlots [ i ] != EMPTY_SLOT && oldSlots [ i ] != REMOVED_SLOT ) insert ( oldHashes [ i ], oldSlots [ i ] - 1 );
+	}
+
+	/**
+	 * Empties the map and makes the segments available for new records.
+	 */
+	private void reset ()
+	{
+		slots = new long [ INITIAL_CAPACITY ];
+		hashes = new int [ INITIAL_CAPACITY ];
+		size = usedSlots = 0;
+		snapshotEntries = new ConcurrentHashMap<> ();
+
+		Arrays.fill ( liveBytes, 0 );
+		freeSegments.clear ();
+		releasedSegments.clear ();
+		writeSegment = -1;
+		for ( int i = 0; i < segments.size (); i++ ) releaseSegment ( i );
+	}
+
+	/**
+	 * The number of segment files created so far.
+	 */
+	int getSegmentsCount ()
+	{
+		lock.readLock ().lock ();
+		try {
+			return segments.size ();
+		}
+		finally {
+			lock.readLock ().unlock ();
+		}
+	}
+
+	private static int spread ( int hash )
+	{
+		return hash ^ ( hash >>> 16 );
+	}
+
+
+	private byte[] encode ( Key key, V value )
+	{
+		try
+		{
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream ( 256 );
+			DataOutputStream out = new DataOutputStream ( bytes );
+			byte[] keyBytes = key.getBytes ();
+			out.writeInt ( keyBytes.length );
+			out.write ( keyBytes );
+			codec.encode ( value, out );
+			out.flush ();
+			return bytes.toByteArray ();
+		}
+		catch ( IOException ex ) {
+			throw new RuntimeException ( "Error while encoding '" + key + "' for the off-heap store: " + ex.getMessage (), ex );
+		}
+	}
+
+	private V decode ( byte[] record )
+	{
+		try
+		{
+			DataInputStream in = new DataInputStream ( new ByteArrayInputStream ( record ) );
+			in.skipBytes ( in.readInt () );
+			return codec.decode ( in );
+		}
+		catch ( IOException ex ) {
+			throw new RuntimeException ( "Error while decoding a record from the off-heap store: " + ex.getMessage (), ex );
+		}
+	}
+
+	/**
+	 * @return the address of the new record.
+	 */
+	private long append ( byte[] record )
+	{
+		int recordSize = 4 + record.length;
+		if ( recordSize > segmentSize ) throw new IllegalArgumentException (
+			"Can't save an annotation of " + recordSize + " bytes in the off-heap store, the max size is " + segmentSize
+		);
+
+		if ( writeSegment == -1 || writePos + recordSize > segmentSize ) nextWriteSegment ();
+
+		ByteBuffer segment = segments.get ( writeSegment ).duplicate ();
+		segment.position ( writePos );
+		segment.putInt ( record.length );
+		segment.put ( record );
+
+		long address = ( (long) writeSegment << 32 ) | writePos;
+		writePos += recordSize;
+		liveBytes [ writeSegment ] += recordSize;
+		return address;
+	}
+	
+	/**
+	 * Moves the writing to a free segment, or to a new one, if there isn't any free.
+	 */
+	private void nextWriteSegment ()
+	{
+		int oldSegment = writeSegment;
+		
+		Integer freeSegment = freeSegments.poll ();
+		if ( freeSegment != null ) {
+			writeSegment = freeSegment;
+			generations [ writeSegment ]++;
+		}
+		else
+		{
+			segments.add ( newSegment () );
+			writeSegment = segments.size () - 1;
+			liveBytes = Arrays.copyOf ( liveBytes, segments.size () );
+			generations = Arrays.copyOf ( generations, segments.size () );
+		}
+		writePos = 0;
+
+		// It wasn't released while we were writing it
+		if ( oldSegment != -1 && liveBytes [ oldSegment ] == 0 ) releaseSegment ( oldSegment );
+	}
+	
+	/**
+	 * Accounts for a record that isn't referred by the index anymore.
+	 */
+	private void discard ( long address )
+	{
+		int segmentIdx = getSegmentIdx ( address );
+		int recordSize = 4 + segments.get ( segmentIdx ).getInt ( (int) address );
+		if ( ( liveBytes [ segmentIdx ] -= recordSize ) == 0 && segmentIdx != writeSegment ) releaseSegment ( segmentIdx );
+	}
+
+	private void releaseSegment ( int segmentIdx )
+	{
+		if ( runningSnapshots > 0 ) 
+			releasedSegments.add ( segmentIdx );
+		else
+			freeSegments.add ( segmentIdx );
+	}
+	
+	private static int getSegmentIdx ( long address )
+	{
+		return (int) ( address >>> 32 );
+	}
+
+	private byte[] readRecord ( long address )
+	{
+		ByteBuffer segment = segments.get ( getSegmentIdx ( address ) ).duplicate ();
+		segment.position ( (int) address );
+		byte[] result = new byte [ segment.getInt () ];
+		segment.get ( result );
+		return result;
+	}
+
+	private boolean keyEquals ( long address, byte[] keyBytes )
+	{
+		ByteBuffer segment = segments.get ( getSegmentIdx ( address ) );
+		int pos = (int) address + 4;
+		if ( segment.getInt ( pos ) != keyBytes.length ) return false;
+		pos += 4;
+		for ( int i = 0; i < keyBytes.length; i++ )
+			if ( segment.get ( pos + i ) != keyBytes [ i ] ) return false;
+		return true;
+	}
+
+	private MappedByteBuffer newSegment ()
+	{
+		File file = null;
+		try
+		{
+			file = File.createTempFile ( "biosd_annotator_" + getType ().getSimpleName () + "_", ".bin", dir );
+			file.deleteOnExit ();
+			try ( RandomAccessFile raf = new RandomAccessFile ( file, "rw" ) ) {
+				// The mapping stays valid after the channel is closed
+				return raf.getChannel ().map ( FileChannel.MapMode.READ_WRITE, 0, segmentSize );
+			}
+		}
+		catch ( IOException ex ) {
+			throw new RuntimeException (
+				"Error while creating the off-heap store segment '" + file + "': " + ex.getMessage (), ex
+			);
+		}
+	}
+}
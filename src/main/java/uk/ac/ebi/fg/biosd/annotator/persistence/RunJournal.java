@@ -0,0 +1,304 @@
+package uk.ac.ebi.fg.biosd.annotator.persistence;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.ac.ebi.fg.biosd.annotator.AnnotatorResources;
+import uk.ac.ebi.fg.biosd.annotator.cli.AnnotateCmd;
+
+/**
+ * <p>A local file that records which property value id ranges a job has completed, so that a job that dies (e.g.,
+ * killed by LSF) can be restarted with the {@link AnnotateCmd} --resume option and redo only the work done after
+ * its last checkpoint.</p>
+ *
+ * <p>Property values are scanned in pages of ids (see the keyset mode of the annotation service) and each page is
+ * tracked by a {@link Range}, which counts the annotation tasks about it that are still running. A range
+ * is considered done only when all of its tasks have finished without errors <b>and</b> the annotations they
+ * produced have been saved, ie, when a {@link #beginCheckpoint() checkpoint} that started after the range was
+ * annotated is {@link #commitCheckpoint(List, long) committed}. The latter happens after each successful
+ * {@link AnnotatorPersister#flush() flush} or {@link AnnotatorPersister#persist() persist} of the
+ * {@link AnnotatorResources#getStore() annotator store}.</p>
+ *
+ * <p>The file is a plain-text, append-only log, with lines like 'done &lt;from&gt; &lt;to&gt;' and
+ * 'checkpoint &lt;time&gt; &lt;saved entities&gt;'. Appending means that a crash can lose at most the last
+ * checkpoint, never the previous ones. Each job must use its own file.</p>
+ */
+public class RunJournal
+{
+	/**
+	 * An id range (bounds included) that is being annotated.
+	 */
+	public class Range
+	{
+		private final long from, to;
+
+		// 1 for the submitter, which releases it via close() once all the tasks are submitted
+		private final AtomicInteger pendingTasks = new AtomicInteger ( 1 );
+		private volatile boolean isFailed = false;
+
+		private Range ( long from, long to )
+		{
+			this.from = from;
+			this.to = to;
+		}
+
+		/**
+		 * To be called for each annotation task submitted about this range.
+		 */
+		public void taskStarted ()
+		{
+			pendingTasks.incrementAndGet ();
+		}
+
+		/**
+		 * To be called when a task about this range finishes, ok = false means the task failed, so the range must not
+		 * be marked as done.
+		 */
+		public void taskFinished ( boolean ok )
+		{
+			if ( !ok ) isFailed = true;
+			if ( pendingTasks.decrementAndGet () == 0 ) annotated ( this );
+		}
+
+		/**
+		 * To be called when all the tasks about this range have been submitted.
+		 */
+		public void close ()
+		{
+			taskFinished ( true );
+		}
+
+		public long getFrom () {
+			return from;
+		}
+
+		public long getTo () {
+			return to;
+		}
+
+		@Override
+		public String toString () {
+			return String.format ( "%d - %d", from, to );
+		}
+	}
+
+	private final File file;
+
+	/** from -&gt; to, merged intervals */
+	private final TreeMap<Long, Long> doneRanges = new TreeMap<> ();
+	private final List<Range> annotatedRanges = new ArrayList<> ();
+	private Date lastCheckpoint = null;
+
+	private Logger log = LoggerFactory.getLogger ( this.getClass () );
+
+	/**
+	 * @param resume if true, loads the ranges already done from the file, else, the file is emptied, which
+	 * means a new run.
+	 */
+	public RunJournal ( File file, boolean resume )
+	{
+		this.file = file;
+		try
+		{
+			if ( resume && file.exists () ) load ();
+			else write ( "", false );
+		}
+		catch ( IOException ex ) {
+			throw new RuntimeException (
+				"Error while opening the run journal '" + file + "': " + ex.getMessage (), ex
+			);
+		}
+	}
+
+	/**
+	 * Creates a new range to track, ranges must not overlap.
+	 */
+	public Range newRange ( long from, long to )
+	{
+		return new Range ( from, to );
+	}
+
+	/**
+	 * @return the end of the done range that contains lastId + 1, or lastId, if lastId + 1 isn't done yet. That is,
+	 * a scanner that has processed lastId can jump to the returned value.
+	 */
+	public synchronized long skipDone ( long lastId )
+	{
+		Map.Entry<Long, Long> range = doneRanges.floorEntry ( lastId + 1 );
+		if ( range == null || range.getValue () <= lastId ) return lastId;
+		return range.getValue ();
+	}
+
+	/**
+	 * @return the id before the next done range after lastId, or toId, if there isn't any done range before it.
+	 * This is the end of the id range that a scanner that has processed lastId should fetch next.
+	 */
+	public synchronized long getPendingEnd ( long lastId, long toId )
+	{
+		Long nextFrom = doneRanges.higherKey ( lastId );
+		return nextFrom == null || nextFrom > toId ? toId : nextFrom - 1;
+	}
+
+	/**
+	 * @return true if the id is in a range that is done.
+	 */
+	public synchronized boolean isDone ( long id )
+	{
+		return skipDone ( id - 1 ) >= id;
+	}
+
+	/**
+	 * Takes the ranges that are annotated so far and not saved yet. This must be called <b>before</b> saving the
+	 * annotator store, then either {@link #commitCheckpoint(List, long)} or {@link #abortCheckpoint(List)} must be
+	 * called with the result, depending on the saving outcome.
+	 */
+	public synchronized List<Range> beginCheckpoint ()
+	{
+		List<Range> result = new ArrayList<> ( annotatedRanges );
+		annotatedRanges.clear ();
+		return result;
+	}
+
+	/**
+	 * Records the ranges taken by {@link #beginCheckpoint()} as done, after their annotations were saved.
+	 */
+	public synchronized void commitCheckpoint ( List<Range> ranges, long savedCount )
+	{
+		Date now = new Date ();
+		StringBuilder sb = new StringBuilder ();
+		for ( Range range: ranges )
+			sb.append ( "done " ).append ( range.from ).append ( ' ' ).append ( range.to ).append ( '\n' );
+		sb.append ( "checkpoint " ).append ( now.getTime () ).append ( ' ' ).append ( savedCount ).append ( '\n' );
+
+		try {
+			write ( sb.toString (), true );
+		}
+		catch ( IOException ex ) {
+			// Let's try again at the next checkpoint, the worst that can happen is redoing these ranges
+			annotatedRanges.addAll ( ranges );
+			throw new RuntimeException (
+				"Error while writing the run journal '" + file + "': " + ex.getMessage (), ex
+			);
+		}
+
+		for ( Range range: ranges ) addDone ( range.from, range.to );
+		lastCheckpoint = now;
+		log.info ( "Run journal checkpoint, {} id range(s) done, {} entities saved", ranges.size (), savedCount );
+	}
+
+	/**
+	 * Puts back the ranges taken by {@link #beginCheckpoint()}, after a failure in saving their annotations,
+	 * so that they're considered at the next checkpoint.
+	 */
+	public synchronized void abortCheckpoint ( List<Range> ranges )
+	{
+		annotatedRanges.addAll ( ranges );
+	}
+
+	/**
+	 * The time of the last checkpoint, either committed or loaded from the file, null if there isn't any.
+	 */
+	public synchronized Date getLastCheckpoint ()
+	{
+		return lastCheckpoint;
+	}
+
+	/**
+	 * The number of separated id ranges that are done.
+	 */
+	public synchronized int getDoneRangesCount ()
+	{
+		return doneRanges.size ();
+	}
+
+	public File getFile ()
+	{
+		return file;
+	}
+
+	private synchronized void annotated ( Range range )
+	{
+		if ( range.isFailed ) {
+			log.warn ( "Some annotations about the id range {} failed, it won't be marked as done", range );
+			return;
+		}
+		annotatedRanges.add ( range );
+	}
+
+	/**
+	 * Merges [from, to] into {@link #doneRanges}.
+	 */
+	private void addDone ( long from, long to )
+	{
+		Map.Entry<Long, Long> prev = doneRanges.floorEntry ( from );
+		if ( prev != null && prev.getValue () >= from - 1 ) {
+			from = prev.getKey ();
+			to = Math.max ( to, prev.getValue () );
+		}
+
+		// Absorbs the following ranges that overlap or are adjacent
+		for ( Map.Entry<Long, Long> next = doneRanges.ceilingEntry ( from ); next != null && next.getKey () <= to + 1;
+					next = doneRanges.ceilingEntry ( from ) )
+		{
+			to = Math.max ( to, next.getValue () );
+			doneRanges.remove ( next.getKey () );
+		}
+		doneRanges.put ( from, to );
+	}
+
+	private void load () throws IOException
+	{
+		try ( BufferedReader in = new BufferedReader (
+			new InputStreamReader ( new FileInputStream ( file ), StandardCharsets.UTF_8 ) ) )
+		{
+			for ( String line; ( line = in.readLine () ) != null; )
+			{
+				String[] chunks = StringUtils.split ( line );
+				// Skips the last line, if it was truncated by a crash
+				if ( chunks.length != 3 ) continue;
+				try
+				{
+					if ( "done".equals ( chunks [ 0 ] ) )
+						addDone ( Long.parseLong ( chunks [ 1 ] ), Long.parseLong ( chunks [ 2 ] ) );
+					else if ( "checkpoint".equals ( chunks [ 0 ] ) )
+						lastCheckpoint = new Date ( Long.parseLong ( chunks [ 1 ] ) );
+				}
+				catch ( NumberFormatException ex ) {
+					log.warn ( "Ignoring the bad line '{}' in the run journal '{}'", line, file );
+				}
+			}
+		}
+		log.info (
+			"Run journal '{}' loaded, {} id range(s) done, last checkpoint: {}", file, doneRanges.size (), lastCheckpoint
+		);
+	}
+
+	private void write ( String s, boolean append ) throws IOException
+	{
+		try ( FileOutputStream fout = new FileOutputStream ( file, append );
+					Writer out = new OutputStreamWriter ( fout, StandardCharsets.UTF_8 ) )
+		{
+			out.write ( s );
+			out.flush ();
+			// We want it on disk, before the job is killed
+			fout.getFD ().sync ();
+		}
+	}
+}
@@ -0,0 +1,279 @@
+package uk.ac.ebi.fg.biosd.annotator.persistence;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityTransaction;
+
+import org.apache.commons.lang3.RandomUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.ac.ebi.fg.biosd.annotator.AnnotatorResources;
+import uk.ac.ebi.fg.biosd.annotator.cli.AnnotateCmd;
+import uk.ac.ebi.fg.biosd.annotator.model.Lock;
+import uk.ac.ebi.fg.core_model.resources.Resources;
+
+/**
+ * <p>Implements custom DB-level locks, used by {@link AnnotatorPersister} to isolate the persistence of the
+ * {@link AnnotatorResources#getStore() annotator store}. This is necessary to coordinate multiple annotation
+ * processes, running in separated JVMs (we use the LSF cluster). Transactions are not enough for this, because
+ * our transactions are too long and end up to cause timeout errors to waiting processes (mainly due to optimistic
+ * locking).</p>
+ *
+ * <p>There is one lock per {@link AnnotatorPersister#PARTITIONS_PROP persistence partition}, so that processes that
+ * finish together can save different partitions at the same time (all the processes must use the same number of
+ * partitions). Each lock is a record in the {@link Lock} table, with status = 1 and the owner process when the
+ * partition is taken. Locks are leases: the owner renews the {@link Lock#getTimestamp() timestamp} of the locks it
+ * holds every {@link #LOCK_TIMEOUT_PROP lease time}/3, and a lock that is not renewed for the lease time is considered
+ * free, since its owner has likely crashed.</p>
+ *
+ * <p>Usually the LSF invoking scripts call {@link AnnotateCmd} with the --unlock option, which causes
+ * {@link #forceUnlock()} to empty the Lock table and refill it with a single free record. Records for the other
+ * partitions are added when they're needed. When the Lock table is empty, we assume that we are running in
+ * single-node mode (no LSF), so no locking is done at all.</p>
+ */
+public class SaveLockManager
+{
+	/**
+	 * The lease time of the locks, in seconds, default is 120.
+	 */
+	public static final String LOCK_TIMEOUT_PROP = AnnotatorPersister.LOCK_TIMEOUT_PROP;
+
+	private final long leaseTime;
+	private final String owner = ManagementFactory.getRuntimeMXBean ().getName () + ":" + UUID.randomUUID ();
+	private final Set<Integer> heldPartitions = Collections.newSetFromMap ( new ConcurrentHashMap<Integer, Boolean> () );
+	private ScheduledExecutorService heartbeat = null;
+
+	private Logger log = LoggerFactory.getLogger ( this.getClass () );
+
+	/**
+	 * Uses {@link #LOCK_TIMEOUT_PROP}.
+	 */
+	public SaveLockManager ()
+	{
+		this ( 1000 * Long.valueOf ( System.getProperty ( LOCK_TIMEOUT_PROP, "120" ) ) );
+	}
+
+	/**
+	 * @param leaseTime in ms.
+	 */
+	public SaveLockManager ( long leaseTime )
+	{
+		this.leaseTime = leaseTime;
+	}
+
+	/**
+	 * Waits until the lock for the partition is free (or expired) and takes it.
+	 *
+	 * @return false if no locking is in place (empty Lock table), true if the lock was taken.
+	 */
+	public boolean lock ( int partition )
+	{
+		EntityManager em = null;
+		EntityTransaction tx = null;
+		try
+		{
+			em = Resources.getInstance ().getEntityManagerFactory ().createEntityManager ();
+			tx = em.getTransaction ();
+
+			while ( true )
+			{
+				tx.begin ();
+
+				// Locks all the records for a short time, which also prevents others from creating a partition record in
+				// the meanwhile
+				@SuppressWarnings ( "unchecked" )
+				List<Lock> lockrecs = em.createNativeQuery (
+					"SELECT * FROM fann_save_lock FOR UPDATE", Lock.class
+				).getResultList ();
+
+				// No locking, might happen when LSF has never been run, we (hopefully) are running a single process
+				// so locking isn't even needed.
+				if ( lockrecs.isEmpty () ) {
+					tx.rollback ();
+					return false;
+				}
+
+				Lock lockrec = null;
+				for ( Lock rec: lockrecs )
+					if ( rec.getPartition () == partition ) { lockrec = rec; break; }
+
+				long now = System.currentTimeMillis ();
+				if ( lockrec == null )
+				{
+					lockrec = new Lock ();
+					lockrec.setPartition ( partition );
+				}
+				else if ( !( lockrec.getStatus () == 0 || now > lockrec.getTimestamp ().getTime () + leaseTime ) )
+				{
+					tx.rollback ();
+					// Wait a random time, to avoid that everyone retries together
+					Thread.sleep ( RandomUtils.nextLong ( 1000, 3001 ) );
+					continue;
+				}
+
+				if ( lockrec.getStatus () != 0 ) log.warn (
+					"The save lock for the partition {} held by {} is expired, taking it over", partition, lockrec.getOwner ()
+				);
+
+				lockrec.setStatus ( 1 );
+				lockrec.setOwner ( owner );
+				lockrec.setTimestamp ( new Date ( now ) );
+				em.merge ( lockrec );
+				tx.commit ();
+
+				heldPartitions.add ( partition );
+				startHeartbeat ();
+				return true;
+			}
+		}
+		catch ( InterruptedException ex )
+		{
+			throw new RuntimeException (
+				"Internal error while trying to get a process lock for saving annotations: " + ex.getMessage (),
+			ex );
+		}
+		finally
+		{
+			if ( tx != null && tx.isActive () ) tx.rollback ();
+			if ( em != null && em.isOpen () ) em.close ();
+		}
+	}
+
+	/**
+	 * Frees the lock of the partition, if this process still holds it.
+	 */
+	public void unlock ( int partition )
+	{
+		heldPartitions.remove ( partition );
+
+		int ct = updateLock ( partition, 0, false );
+		if ( ct == 0 ) log.warn (
+			"The save lock for the partition {} was taken by another process before we released it", partition
+		);
+	}
+
+	/**
+	 * Stops renewing the held locks. To be called when this manager isn't used anymore.
+	 */
+	public synchronized void close ()
+	{
+		if ( heartbeat == null ) return;
+		heartbeat.shutdownNow ();
+		heartbeat = null;
+	}
+
+	/**
+	 * <p>Used in tests and in a {@link AnnotateCmd command line} option. Removes the locks left over
+	 * (e.g. by system crashes) and leaves a single free lock record, which enables the locking. Obviously, you need to
+	 * know what you're doing, when using this option.</p>
+	 */
+	public void forceUnlock ()
+	{
+		EntityManager em = null;
+		EntityTransaction tx = null;
+		try
+		{
+			em = Resources.getInstance ().getEntityManagerFactory ().createEntityManager ();
+			tx = em.getTransaction ();
+			tx.begin ();
+			em.createNativeQuery ( "DELETE FROM fann_save_lock" ).executeUpdate ();
+			Lock newLockRec = new Lock ();
+			newLockRec.setStatus ( 0 );
+			newLockRec.setTimestamp ( new Date () );
+			em.persist ( newLockRec );
+			tx.commit ();
+		}
+		finally
+		{
+			if ( tx != null && tx.isActive () ) tx.rollback ();
+			if ( em != null && em.isOpen () ) em.close ();
+		}
+	}
+
+	/**
+	 * Renews the timestamp of the locks held by this process, every lease time/3.
+	 */
+	private synchronized void startHeartbeat ()
+	{
+		if ( heartbeat != null ) return;
+
+		heartbeat = Executors.newSingleThreadScheduledExecutor ( new ThreadFactory ()
+		{
+			@Override
+			public Thread newThread ( Runnable r )
+			{
+				Thread t = new Thread ( r, "ann-save-lock-heartbeat" );
+				t.setDaemon ( true );
+				return t;
+			}
+		});
+
+		long period = Math.max ( 1, leaseTime / 3 );
+		heartbeat.scheduleWithFixedDelay ( new Runnable()
+		{
+			@Override
+			public void run ()
+			{
+				for ( int partition: heldPartitions )
+				{
+					try
+					{
+						if ( heldPartitions.contains ( partition ) && updateLock ( partition, 1, true ) == 0 ) log.error (
+							"The save lock for the partition {} expired and was taken by another process", partition
+						);
+					}
+					catch ( RuntimeException ex ) {
+						// Let's retry at the next beat, the lease might still be valid
+						log.error ( "Error while renewing the save lock for the partition " + partition + ": " + ex.getMessage (), ex );
+					}
+				}
+			}
+		}, period, period, TimeUnit.MILLISECONDS );
+	}
+
+	/**
+	 * Sets the status and a new timestamp for the lock of the partition, if this process is its owner and, when 
+	 * onlyIfLocked is true, if the lock is still taken (so that a late heartbeat doesn't re-lock a released lock).
+	 *
+	 * @return the number of updated records, ie, 0 if we don't own the lock.
+	 */
+	private int updateLock ( int partition, int status, boolean onlyIfLocked )
+	{
+		EntityManager em = null;
+		EntityTransaction tx = null;
+		try
+		{
+			em = Resources.getInstance ().getEntityManagerFactory ().createEntityManager ();
+			tx = em.getTransaction ();
+			tx.begin ();
+			int result = em.createQuery (
+				"UPDATE Lock l SET l.status = :status, l.timestamp = :ts WHERE l.partition = :partition AND l.owner = :owner"
+				+ ( onlyIfLocked ? " AND l.status = 1" : "" )
+			)
+			.setParameter ( "status", status )
+			.setParameter ( "ts", new Date () )
+			.setParameter ( "partition", partition )
+			.setParameter ( "owner", owner )
+			.executeUpdate ();
+			tx.commit ();
+			return result;
+		}
+		finally
+		{
+			if ( tx != null && tx.isActive () ) tx.rollback ();
+			if ( em != null && em.isOpen () ) em.close ();
+		}
+	}
+}
@@ -0,0 +1,80 @@
+package uk.ac.ebi.fg.biosd.annotator.persistence;
+
+import uk.ac.ebi.fg.biosd.annotator.AnnotatorResources;
+import uk.ac.ebi.fg.biosd.annotator.threading.PropertyValAnnotationService;
+import uk.ac.ebi.onto_discovery.api.OntologyTermDiscoverer.DiscoveredTerm;
+
+/**
+ * <p>Tells when the {@link AnnotatorResources#getStore() annotator store} takes too much memory and needs to be 
+ * {@link AnnotatorPersister#flush() flushed}. This is checked periodically by {@link PropertyValAnnotationService}, 
+ * so that the memory used by an annotation job doesn't depend on how many property values it annotates and
+ * a crash loses only the annotations computed after the last flush.</p>
+ * 
+ * <p>The budget is exceeded when the entities waiting to be persisted are more than {@link #MAX_SIZE_PROP}, or 
+ * when the used heap is above {@link #MAX_HEAP_RATIO_PROP}. {@link DiscoveredTerm} lists are not considered, since 
+ * they're a read cache, which has its own size limit (see {@link AnnotatorResources#READ_CACHE_SIZE_PROP}).</p>
+ */
+public class StoreMemoryBudget
+{
+	/**
+	 * The max number of entities in the store that are waiting to be persisted, default is 1M.
+	 */
+	public static final String MAX_SIZE_PROP = AnnotatorResources.PROP_NAME_PREFIX + "storeMaxSize";
+
+	/**
+	 * The used heap fraction (0-1) above which the store is flushed, default is 0.8.
+	 */
+	public static final String MAX_HEAP_RATIO_PROP = AnnotatorResources.PROP_NAME_PREFIX + "storeMaxHeapRatio";
+
+	/**
+	 * The heap limit isn't considered below this number of entities, since there is little to gain by flushing them, 
+	 * and the used heap might be high just because the garbage collector hasn't run yet. 
+	 */
+	private static final long MIN_FLUSH_SIZE = 10000;
+	
+	private final long maxSize;
+	private final double maxHeapRatio;
+	
+	public StoreMemoryBudget ()
+	{
+		this ( 
+			Long.parseLong ( System.getProperty ( MAX_SIZE_PROP, "1000000" ) ), 
+			Double.parseDouble ( System.getProperty ( MAX_HEAP_RATIO_PROP, "0.8" ) ) 
+		);
+	}
+
+	public StoreMemoryBudget ( long maxSize, double maxHeapRatio )
+	{
+		this.maxSize = maxSize;
+		this.maxHeapRatio = maxHeapRatio;
+	}
+
+	public boolean isExceeded ()
+	{
+		long size = getPendingSize ();
+		if ( size >= maxSize ) return true;
+		if ( size < MIN_FLUSH_SIZE ) return false;
+		
+		Runtime rt = Runtime.getRuntime ();
+		double usedHeap = rt.totalMemory () - rt.freeMemory ();
+		return usedHeap / rt.maxMemory () >= maxHeapRatio;
+	}
+	
+	/**
+	 * The number of entities in the store that are waiting to be persisted.
+	 */
+	public long getPendingSize ()
+	{
+		return AnnotatorResources.getInstance ().getStore ().getPendingSize ();
+	}
+
+	public long getMaxSize ()
+	{
+		return maxSize;
+	}
+
+	public double getMaxHeapRatio ()
+	{
+		return maxHeapRatio;
+	}
+}
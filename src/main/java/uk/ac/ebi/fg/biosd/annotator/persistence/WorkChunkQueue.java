@@ -0,0 +1,328 @@
+package uk.ac.ebi.fg.biosd.annotator.persistence;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityTransaction;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.ac.ebi.fg.biosd.annotator.AnnotatorResources;
+import uk.ac.ebi.fg.biosd.annotator.cli.AnnotateCmd;
+import uk.ac.ebi.fg.biosd.annotator.model.WorkChunk;
+import uk.ac.ebi.fg.biosd.annotator.threading.PropertyValAnnotationService;
+import uk.ac.ebi.fg.core_model.resources.Resources;
+
+/**
+ * <p>A queue of property value id ranges, kept in the {@link WorkChunk} table, which is used to balance the annotation
+ * work between multiple processes (e.g., LSF jobs) dynamically: a coordinator {@link #fill(long, long, long) fills}
+ * the queue and each worker {@link #claim() claims} the next free chunk, annotates it, marks it as
+ * {@link #done(WorkChunk) done} and goes on with the next one, until the queue is empty (see
+ * {@link PropertyValAnnotationService#submitFromQueue(WorkChunkQueue, boolean)} and the --fill-queue and
+ * --queue-worker options in {@link AnnotateCmd}). This way, a process that gets slow values doesn't hold the others,
+ * which just take more chunks in the meanwhile.</p>
+ *
+ * <p>Chunks are claimed with an optimistic update (the update is conditional on the chunk being still free), which
+ * works with both Oracle and H2 and never blocks a worker on the locks of another. As in {@link SaveLockManager},
+ * claims are leases: the owner renews the timestamp of the chunks it holds every {@link #LEASE_PROP lease time}/3
+ * and a chunk that isn't renewed for the lease time can be claimed by another worker, since its owner has likely
+ * crashed. A chunk is claimed at most {@link #MAX_ATTEMPTS} times, so that a chunk that keeps failing doesn't go
+ * around forever.</p>
+ */
+public class WorkChunkQueue
+{
+	/**
+	 * The lease time of the claimed chunks, in seconds, default is 600.
+	 */
+	public static final String LEASE_PROP = AnnotatorResources.PROP_NAME_PREFIX + "queueLease";
+
+	/**
+	 * How many times a chunk can be claimed, before being left alone.
+	 */
+	public static final int MAX_ATTEMPTS = 3;
+
+	/**
+	 * How many free chunks a claim considers, they're tried in random order, to reduce the contention between workers.
+	 */
+	private static final int CLAIM_CANDIDATES = 20;
+
+	private final long leaseTime;
+	private final String owner = ManagementFactory.getRuntimeMXBean ().getName () + ":" + UUID.randomUUID ();
+	private final Set<Long> heldChunkIds = Collections.newSetFromMap ( new ConcurrentHashMap<Long, Boolean> () );
+	private ScheduledExecutorService heartbeat = null;
+
+	private Logger log = LoggerFactory.getLogger ( this.getClass () );
+
+	/**
+	 * Uses {@link #LEASE_PROP}.
+	 */
+	public WorkChunkQueue ()
+	{
+		this ( 1000 * Long.valueOf ( System.getProperty ( LEASE_PROP, "600" ) ) );
+	}
+
+	/**
+	 * @param leaseTime in ms.
+	 */
+	public WorkChunkQueue ( long leaseTime )
+	{
+		this.leaseTime = leaseTime;
+	}
+
+	/**
+	 * Empties the queue and fills it with chunks of chunkSize ids, covering fromId-toId (both included).
+	 *
+	 * @return the number of chunks created.
+	 */
+	public int fill ( long fromId, long toId, long chunkSize )
+	{
+		if ( chunkSize < 1 ) throw new IllegalArgumentException ( "The work chunk size must be positive" );
+
+		EntityManager em = null;
+		EntityTransaction tx = null;
+		try
+		{
+			em = Resources.getInstance ().getEntityManagerFactory ().createEntityManager ();
+			tx = em.getTransaction ();
+			tx.begin ();
+			em.createQuery ( "DELETE FROM WorkChunk" ).executeUpdate ();
+
+			int ct = 0;
+			for ( long chunkStart = fromId; chunkStart <= toId; chunkStart += chunkSize )
+			{
+				em.persist ( new WorkChunk ( chunkStart, Math.min ( chunkStart + chunkSize - 1, toId ) ) );
+				if ( ++ct % 1000 == 0 ) {
+					em.flush ();
+					em.clear ();
+				}
+			}
+			tx.commit ();
+
+			log.info ( "Work queue filled with {} chunk(s), covering the property value ids {} - {}", ct, fromId, toId );
+			return ct;
+		}
+		finally
+		{
+			if ( tx != null && tx.isActive () ) tx.rollback ();
+			if ( em != null && em.isOpen () ) em.close ();
+		}
+	}
+
+	/**
+	 * Claims the next chunk that is free, or whose lease is expired.
+	 *
+	 * @return null if there are no more chunks to work on.
+	 */
+	public WorkChunk claim ()
+	{
+		EntityManager em = null;
+		EntityTransaction tx = null;
+		try
+		{
+			em = Resources.getInstance ().getEntityManagerFactory ().createEntityManager ();
+			tx = em.getTransaction ();
+
+			while ( true )
+			{
+				Date now = new Date (), expiry = new Date ( now.getTime () - leaseTime );
+
+				List<Long> candidateIds = em.createQuery (
+					"SELECT c.id FROM WorkChunk c WHERE c.attempts < :maxAttempts"
+					+ " AND ( c.status = :free OR c.status = :claimed AND c.timestamp < :expiry ) ORDER BY c.fromId",
+					Long.class
+				)
+				.setParameter ( "maxAttempts", MAX_ATTEMPTS )
+				.setParameter ( "free", WorkChunk.STATUS_FREE )
+				.setParameter ( "claimed", WorkChunk.STATUS_CLAIMED )
+				.setParameter ( "expiry", expiry )
+				.setMaxResults ( CLAIM_CANDIDATES )
+				.getResultList ();
+
+				if ( candidateIds.isEmpty () ) return null;
+				Collections.shuffle ( candidateIds );
+
+				for ( Long chunkId: candidateIds )
+				{
+					tx.begin ();
+					// Succeeds only if nobody else has claimed it in the meanwhile
+					int ct = em.createQuery (
+						"UPDATE WorkChunk c SET c.status = :claimed, c.owner = :owner, c.timestamp = :now,"
+						+ " c.attempts = c.attempts + 1"
+						+ " WHERE c.id = :id AND c.attempts < :maxAttempts"
+						+ " AND ( c.status = :free OR c.status = :claimed AND c.timestamp < :expiry )"
+					)
+					.setParameter ( "claimed", WorkChunk.STATUS_CLAIMED )
+					.setParameter ( "owner", owner )
+					.setParameter ( "now", now )
+					.setParameter ( "id", chunkId )
+					.setParameter ( "maxAttempts", MAX_ATTEMPTS )
+					.setParameter ( "free", WorkChunk.STATUS_FREE )
+					.setParameter ( "expiry", expiry )
+					.executeUpdate ();
+					tx.commit ();
+
+					if ( ct == 0 ) continue;
+
+					em.clear ();
+					WorkChunk chunk = em.find ( WorkChunk.class, chunkId );
+					heldChunkIds.add ( chunkId );
+					startHeartbeat ();
+					return chunk;
+				}
+				// All taken by others, let's look for more
+			}
+		}
+		finally
+		{
+			if ( tx != null && tx.isActive () ) tx.rollback ();
+			if ( em != null && em.isOpen () ) em.close ();
+		}
+	}
+
+	/**
+	 * Marks a claimed chunk as done.
+	 */
+	public void done ( WorkChunk chunk )
+	{
+		heldChunkIds.remove ( chunk.getId () );
+		if ( updateChunk ( chunk.getId (), WorkChunk.STATUS_DONE ) == 0 ) log.warn (
+			"The lease on the work chunk {} expired and it was claimed by another process", chunk
+		);
+	}
+
+	/**
+	 * Gives a claimed chunk back to the queue, e.g., after an error, so that it can be claimed again, unless it has
+	 * reached {@link #MAX_ATTEMPTS}.
+	 */
+	public void release ( WorkChunk chunk )
+	{
+		heldChunkIds.remove ( chunk.getId () );
+		updateChunk ( chunk.getId (), WorkChunk.STATUS_FREE );
+	}
+
+	/**
+	 * Stops renewing the held chunks. To be called when this queue isn't used anymore.
+	 */
+	public synchronized void close ()
+	{
+		if ( heartbeat == null ) return;
+		heartbeat.shutdownNow ();
+		heartbeat = null;
+	}
+
+	/**
+	 * A summary of the queue status, used for logging.
+	 */
+	public String getStats ()
+	{
+		EntityManager em = Resources.getInstance ().getEntityManagerFactory ().createEntityManager ();
+		try
+		{
+			long[] counts = new long [ 3 ];
+			for ( Object[] row: em.createQuery (
+				"SELECT c.status, COUNT ( c ) FROM WorkChunk c GROUP BY c.status", Object[].class ).getResultList ()
+			)
+				counts [ ( (Number) row [ 0 ] ).intValue () ] = ( (Number) row [ 1 ] ).longValue ();
+
+			long failed = em.createQuery (
+				"SELECT COUNT ( c ) FROM WorkChunk c WHERE c.status <> :done AND c.attempts >= :maxAttempts", Long.class )
+				.setParameter ( "done", WorkChunk.STATUS_DONE )
+				.setParameter ( "maxAttempts", MAX_ATTEMPTS )
+				.getSingleResult ();
+
+			return String.format (
+				"work queue: %d free chunk(s), %d claimed, %d done, %d failed after %d attempts",
+				counts [ WorkChunk.STATUS_FREE ], counts [ WorkChunk.STATUS_CLAIMED ], counts [ WorkChunk.STATUS_DONE ],
+				failed, MAX_ATTEMPTS
+			);
+		}
+		finally {
+			if ( em.isOpen () ) em.close ();
+		}
+	}
+
+	/**
+	 * Renews the timestamp of the chunks held by this process, every lease time/3.
+	 */
+	private synchronized void startHeartbeat ()
+	{
+		if ( heartbeat != null ) return;
+
+		heartbeat = Executors.newSingleThreadScheduledExecutor ( new ThreadFactory ()
+		{
+			@Override
+			public Thread newThread ( Runnable r )
+			{
+				Thread t = new Thread ( r, "ann-work-queue-heartbeat" );
+				t.setDaemon ( true );
+				return t;
+			}
+		});
+
+		long period = Math.max ( 1, leaseTime / 3 );
+		heartbeat.scheduleWithFixedDelay ( new Runnable()
+		{
+			@Override
+			public void run ()
+			{
+				for ( long chunkId: heldChunkIds )
+				{
+					try
+					{
+						if ( heldChunkIds.contains ( chunkId ) && updateChunk ( chunkId, WorkChunk.STATUS_CLAIMED ) == 0 )
+							log.error ( "The lease on the work chunk #{} expired and it was claimed by another process", chunkId );
+					}
+					catch ( RuntimeException ex ) {
+						// Let's retry at the next beat, the lease might still be valid
+						log.error ( "Error while renewing the work chunk #" + chunkId + ": " + ex.getMessage (), ex );
+					}
+				}
+			}
+		}, period, period, TimeUnit.MILLISECONDS );
+	}
+
+	/**
+	 * Sets the status and a new timestamp for the chunk, if this process is its owner and the chunk is still claimed.
+	 *
+	 * @return the number of updated records, ie, 0 if we don't own the chunk anymore.
+	 */
+	private int updateChunk ( long chunkId, int status )
+	{
+		EntityManager em = null;
+		EntityTransaction tx = null;
+		try
+		{
+			em = Resources.getInstance ().getEntityManagerFactory ().createEntityManager ();
+			tx = em.getTransaction ();
+			tx.begin ();
+			int result = em.createQuery (
+				"UPDATE WorkChunk c SET c.status = :status, c.timestamp = :ts"
+				+ " WHERE c.id = :id AND c.owner = :owner AND c.status = :claimed"
+			)
+			.setParameter ( "status", status )
+			.setParameter ( "ts", new Date () )
+			.setParameter ( "id", chunkId )
+			.setParameter ( "owner", owner )
+			.setParameter ( "claimed", WorkChunk.STATUS_CLAIMED )
+			.executeUpdate ();
+			tx.commit ();
+			return result;
+		}
+		finally
+		{
+			if ( tx != null && tx.isActive () ) tx.rollback ();
+			if ( em != null && em.isOpen () ) em.close ();
+		}
+	}
+}
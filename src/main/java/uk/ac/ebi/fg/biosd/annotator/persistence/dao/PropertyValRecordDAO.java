@@ -0,0 +1,133 @@
+package uk.ac.ebi.fg.biosd.annotator.persistence.dao;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.persistence.EntityManager;
+import javax.persistence.Query;
+
+import org.hibernate.jpa.QueryHints;
+
+import uk.ac.ebi.fg.biosd.annotator.PropertyValRecord;
+import uk.ac.ebi.fg.core_model.expgraph.properties.ExperimentalPropertyValue;
+
+/**
+ * Fetches {@link PropertyValRecord}s from the BioSD database, using projection queries over
+ * {@link ExperimentalPropertyValue}. Each page of records costs two queries, one for the property value/type/unit
+ * labels and one for the unit ontology terms, instead of the several lazy-loading round trips needed per
+ * property value when the whole entity is fetched.
+ *
+ * This is not a regular DAO, since records aren't entities.
+ */
+public class PropertyValRecordDAO
+{
+	private static final String SELECT_HQL =
+		"SELECT pv.id, t.termText, pv.termText, u.id, u.termText\n"
+		+ "FROM ExperimentalPropertyValue pv LEFT JOIN pv.type t LEFT JOIN pv.unit u\n";
+
+	private final EntityManager entityManager;
+
+	public PropertyValRecordDAO ( EntityManager entityManager )
+	{
+		this.entityManager = entityManager;
+	}
+
+	/**
+	 * Keyset pagination: returns records having lastId &lt; id &lt;= toId, sorted by id and at most maxResults.
+	 */
+	public List<PropertyValRecord> findByIdRange ( long lastId, long toId, int maxResults )
+	{
+		Query q = entityManager.createQuery ( SELECT_HQL
+			+ "WHERE pv.id > :lastId AND pv.id <= :toId\n"
+			+ "ORDER BY pv.id"
+		);
+		q.setParameter ( "lastId", lastId );
+		q.setParameter ( "toId", toId );
+		q.setMaxResults ( maxResults );
+
+		return toRecords ( q );
+	}
+
+	/**
+	 * Returns a window of records, based on row positions, sorted by id.
+	 */
+	public List<PropertyValRecord> find ( int offset, int limit )
+	{
+		Query q = entityManager.createQuery ( SELECT_HQL + "ORDER BY pv.id" );
+		q.setFirstResult ( offset );
+		q.setMaxResults ( limit );
+
+		return toRecords ( q );
+	}
+
+
+	/**
+	 * Runs the projection query and fills in the unit ontology terms.
+	 */
+	private List<PropertyValRecord> toRecords ( Query q )
+	{
+		q.setHint ( QueryHints.HINT_READONLY, true );
+
+		@SuppressWarnings ( "unchecked" )
+		List<Object[]> rows = q.getResultList ();
+
+		Set<Long> unitIds = new HashSet<> ();
+		for ( Object[] row: rows )
+			if ( row [ 3 ] != null ) unitIds.add ( ( (Number) row [ 3 ] ).longValue () );
+
+		Map<Long, String> unitOeAccs = findSingleUnitOeAccs ( unitIds );
+
+		List<PropertyValRecord> result = new ArrayList<> ( rows.size () );
+		for ( Object[] row: rows )
+		{
+			Long unitId = row [ 3 ] == null ? null : ( (Number) row [ 3 ] ).longValue ();
+			result.add ( new PropertyValRecord (
+				( (Number) row [ 0 ] ).longValue (),
+				(String) row [ 1 ],
+				(String) row [ 2 ],
+				unitId != null,
+				(String) row [ 4 ],
+				unitId == null ? null : unitOeAccs.get ( unitId )
+			));
+		}
+		return result;
+	}
+
+	/**
+	 * Maps unit ids to the accession of their ontology term. Only units having exactly one term are considered,
+	 * consistently with the way units are annotated.
+	 */
+	private Map<Long, String> findSingleUnitOeAccs ( Set<Long> unitIds )
+	{
+		Map<Long, String> result = new HashMap<> ();
+		if ( unitIds.isEmpty () ) return result;
+
+		// Oracle doesn't like IN lists longer than this
+		List<Long> ids = new ArrayList<> ( unitIds );
+		Set<Long> multiOeIds = new HashSet<> ();
+		for ( int i = 0; i < ids.size (); i += 1000 )
+		{
+			@SuppressWarnings ( "unchecked" )
+			List<Object[]> rows = entityManager.createQuery (
+				"SELECT u.id, oe.acc FROM Unit u JOIN u.ontologyTerms oe WHERE u.id IN ( :ids )"
+			)
+			.setParameter ( "ids", ids.subList ( i, Math.min ( i + 1000, ids.size () ) ) )
+			.setHint ( QueryHints.HINT_READONLY, true )
+			.getResultList ();
+
+			for ( Object[] row: rows )
+			{
+				Long unitId = ( (Number) row [ 0 ] ).longValue ();
+				if ( result.containsKey ( unitId ) ) multiOeIds.add ( unitId );
+				result.put ( unitId, (String) row [ 1 ] );
+			}
+		}
+
+		for ( Long unitId: multiOeIds ) result.remove ( unitId );
+		return result;
+	}
+}
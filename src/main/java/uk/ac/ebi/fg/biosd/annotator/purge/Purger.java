@@ -20,6 +20,7 @@ import org.slf4j.LoggerFactory;
 import uk.ac.ebi.fg.biosd.annotator.model.ComputedOntoTerm;
 import uk.ac.ebi.fg.biosd.annotator.model.ExpPropValAnnotation;
 import uk.ac.ebi.fg.biosd.annotator.model.ResolvedOntoTermAnnotation;
+import uk.ac.ebi.fg.biosd.annotator.ontodiscover.OntoTermDiscoveryStoreCache;
 import uk.ac.ebi.fg.core_model.expgraph.properties.ExperimentalPropertyType;
 import uk.ac.ebi.fg.core_model.expgraph.properties.ExperimentalPropertyValue;
 import uk.ac.ebi.fg.core_model.resources.Resources;
@@ -112,6 +113,41 @@ public class Purger
 		}
 	}
 
+	/**
+	 * Removes the {@link ExpPropValAnnotation}s that record ontology lookups without results (ie, having 
+	 * {@link ExpPropValAnnotation#NULL_TERM_URI}) and are expired, as defined by 
+	 * {@link OntoTermDiscoveryStoreCache#NULL_TTL_PROP}. This way, the annotator looks them up again and saves
+	 * the new results (existing annotations aren't updated). {@link #getDeletionRate()} isn't considered here.
+	 */
+	public int purgeExpiredNullResults ()
+	{
+		long nullTtl = OntoTermDiscoveryStoreCache.getNullResultTtl ();
+		if ( nullTtl <= 0 ) return 0;
+
+		EntityManager em = Resources.getInstance ().getEntityManagerFactory ().createEntityManager ();
+		EntityTransaction tx = null;
+		try
+		{
+			tx = em.getTransaction ();
+			tx.begin ();
+			int result = em.createQuery ( 
+				"DELETE FROM ExpPropValAnnotation WHERE ontoTermUri = :nullUri AND timestamp < :expiryTime" 
+			)
+			.setParameter ( "nullUri", ExpPropValAnnotation.NULL_TERM_URI )
+			.setParameter ( "expiryTime", new Date ( System.currentTimeMillis () - nullTtl ) )
+			.executeUpdate ();
+			tx.commit ();
+			
+			log.info ( "{} expired null result(s) deleted", result );
+			return result;
+		}
+		finally 
+		{
+			if ( tx != null && tx.isActive () ) tx.rollback ();
+			if ( em.isOpen () ) em.close ();
+		}
+	}
+
 	private int purgePVAnn(String sourceText){
 		try
 		{
@@ -0,0 +1,225 @@
+package uk.ac.ebi.fg.biosd.annotator.threading;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>A stage of the annotation pipeline managed by {@link PropertyValAnnotationService}. This is a fixed-size thread
+ * pool, plus some metrics and the possibility to wait for all the submitted jobs to finish, without shutting down
+ * the pool.</p>
+ *
+ * <p>Stages are used to keep different kinds of job separated, so that each has its own sizing, e.g., a small
+ * pool for CPU-bound jobs and a large one for jobs that wait for remote services. A stage can also be
+ * {@link #newAsyncStage(String, int) unbounded}, ie, it starts one virtual thread per job.</p>
+ */
+public class AnnotatorStage
+{
+	private final String name;
+	private final ExecutorService executor;
+	private final int poolSize;
+
+	private final AtomicLong completedJobs = new AtomicLong ( 0 ), failedJobs = new AtomicLong ( 0 );
+	private final AtomicLong busyTime = new AtomicLong ( 0 );
+	private long pendingJobs = 0;
+
+	private Logger log = LoggerFactory.getLogger ( this.getClass () );
+
+	/**
+	 * A stage based on a fixed pool of nthreads.
+	 */
+	public AnnotatorStage ( String name, int nthreads )
+	{
+		ThreadPoolExecutor pool = new ThreadPoolExecutor (
+			nthreads, nthreads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable> (), newThreadFactory ( name )
+		);
+		// So that we don't leave idle threads around when the stage isn't used anymore
+		pool.allowCoreThreadTimeOut ( true );
+
+		this.name = name;
+		this.executor = pool;
+		this.poolSize = nthreads;
+	}
+
+	/**
+	 * A stage based on an arbitrary executor, which is considered unbounded.
+	 */
+	public AnnotatorStage ( String name, ExecutorService executor )
+	{
+		this.name = name;
+		this.executor = executor;
+		this.poolSize = -1;
+	}
+
+	/**
+	 * <p>An unbounded stage, which runs every job in a new thread. This is meant for jobs that spend most of their time
+	 * waiting for remote calls, such as ZOOMA lookups. Their concurrency should be limited by other means, e.g.,
+	 * a semaphore around the remote calls.</p>
+	 *
+	 * <p>When the JVM supports them (Java &gt;= 21), virtual threads are used, so that thousands of concurrent jobs don't
+	 * require thousands of OS threads. Else, we fall back to a fixed pool of fallbackThreads platform threads, which 
+	 * should be about the number of jobs that can actually run at the same time, given the limits mentioned above. 
+	 * We don't link virtual threads statically, since we still build for older Java versions.</p>
+	 */
+	public static AnnotatorStage newAsyncStage ( String name, int fallbackThreads )
+	{
+		ExecutorService executor = null;
+		try
+		{
+			Method factory = Executors.class.getMethod ( "newVirtualThreadPerTaskExecutor" );
+			executor = (ExecutorService) factory.invoke ( null );
+		}
+		catch ( NoSuchMethodException ex ) {
+			// Not available, fall back
+		}
+		catch ( ReflectiveOperationException | RuntimeException ex ) 
+		{
+			LoggerFactory.getLogger ( AnnotatorStage.class ).warn ( 
+				"Can't create virtual threads for the stage '{}', falling back to platform threads: {}", name, ex.getMessage () 
+			);
+		}
+
+		if ( executor != null ) return new AnnotatorStage ( name, executor );
+		
+		LoggerFactory.getLogger ( AnnotatorStage.class ).info ( 
+			"No virtual threads available for the stage '{}', using {} platform threads", name, fallbackThreads 
+		);
+		return new AnnotatorStage ( name, fallbackThreads );
+	}
+
+	private static ThreadFactory newThreadFactory ( final String name )
+	{
+		return new ThreadFactory ()
+		{
+			private final AtomicInteger threadCt = new AtomicInteger ( 0 );
+
+			@Override
+			public Thread newThread ( Runnable r )
+			{
+				Thread t = new Thread ( r, "ann-" + name + "-" + threadCt.incrementAndGet () );
+				t.setDaemon ( true );
+				return t;
+			}
+		};
+	}
+
+	/**
+	 * Submits a job to this stage. Exceptions coming from the job are logged and counted in
+	 * {@link #getFailedJobs()}, they're not propagated any further.
+	 */
+	public void submit ( final Runnable job )
+	{
+		synchronized ( this ) {
+			pendingJobs++;
+		}
+
+		try
+		{
+			executor.execute ( new Runnable()
+			{
+				@Override
+				public void run ()
+				{
+					long start = System.nanoTime ();
+					try {
+						job.run ();
+						completedJobs.incrementAndGet ();
+					}
+					catch ( Throwable ex )
+					{
+						log.error ( String.format ( "Error in the annotation stage '%s': %s", name, ex.getMessage () ), ex );
+						failedJobs.incrementAndGet ();
+					}
+					finally
+					{
+						busyTime.addAndGet ( System.nanoTime () - start );
+						jobFinished ();
+					}
+				}
+			});
+		}
+		catch ( RuntimeException ex ) {
+			jobFinished ();
+			throw ex;
+		}
+	}
+
+	private synchronized void jobFinished ()
+	{
+		if ( --pendingJobs == 0 ) this.notifyAll ();
+	}
+
+	/**
+	 * Waits until there are no more jobs queued or running in this stage. The stage can still be used after this.
+	 */
+	public synchronized void waitAllFinished ()
+	{
+		try {
+			while ( pendingJobs > 0 ) this.wait ();
+		}
+		catch ( InterruptedException ex ) {
+			throw new RuntimeException ( "Interrupted while waiting for the annotation stage '" + name + "'", ex );
+		}
+	}
+
+	/**
+	 * The jobs submitted and not finished yet.
+	 */
+	public synchronized long getPendingJobs ()
+	{
+		return pendingJobs;
+	}
+
+	public long getCompletedJobs ()
+	{
+		return completedJobs.get ();
+	}
+
+	public long getFailedJobs ()
+	{
+		return failedJobs.get ();
+	}
+
+	/**
+	 * The average time (in ms) that jobs took to run, not considering the time they waited in the queue.
+	 */
+	public double getAvgJobTime ()
+	{
+		long njobs = completedJobs.get () + failedJobs.get ();
+		return njobs == 0 ? 0 : busyTime.get () / 1E6 / njobs;
+	}
+
+	/**
+	 * -1 for unbounded stages.
+	 */
+	public int getPoolSize ()
+	{
+		return poolSize;
+	}
+
+	public String getName ()
+	{
+		return name;
+	}
+
+	/**
+	 * A summary of the metrics above, used for logging.
+	 */
+	public String getStats ()
+	{
+		return String.format (
+			"stage '%s': %s thread(s), %d pending job(s), %d completed, %d failed, avg job time %.1f ms",
+			name, poolSize == -1 ? "unbounded" : String.valueOf ( poolSize ), 
+			getPendingJobs (), getCompletedJobs (), getFailedJobs (), getAvgJobTime ()
+		);
+	}
+}
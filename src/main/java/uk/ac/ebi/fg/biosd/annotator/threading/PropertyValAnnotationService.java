@@ -1,17 +1,38 @@
 package uk.ac.ebi.fg.biosd.annotator.threading;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.persistence.EntityManager;
 
+import org.apache.commons.lang3.RandomUtils;
 import org.apache.commons.lang3.StringUtils;
-import org.hibernate.Hibernate;
+import org.hibernate.CacheMode;
+import org.hibernate.Query;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
 
 import uk.ac.ebi.arrayexpress2.magetab.exception.ParseException;
 import uk.ac.ebi.fg.biosd.annotator.AnnotatorResources;
-
+import uk.ac.ebi.fg.biosd.annotator.PropertyValAnnotationManager;
+import uk.ac.ebi.fg.biosd.annotator.PropertyValRecord;
+import uk.ac.ebi.fg.biosd.annotator.model.ExpPropValAnnotation;
+import uk.ac.ebi.fg.biosd.annotator.model.WorkChunk;
+import uk.ac.ebi.fg.biosd.annotator.ontodiscover.AdaptiveZOOMASearchFilter;
+import uk.ac.ebi.fg.biosd.annotator.ontodiscover.BioSDOntoDiscoveringCache;
+import uk.ac.ebi.fg.biosd.annotator.ontodiscover.ExpPropValAnnotationIndex;
+import uk.ac.ebi.fg.biosd.annotator.persistence.AnnotationKeyFilter;
 import uk.ac.ebi.fg.biosd.annotator.persistence.AnnotatorPersister;
+import uk.ac.ebi.fg.biosd.annotator.persistence.IdWatermark;
+import uk.ac.ebi.fg.biosd.annotator.persistence.RunJournal;
+import uk.ac.ebi.fg.biosd.annotator.persistence.StoreMemoryBudget;
+import uk.ac.ebi.fg.biosd.annotator.persistence.WorkChunkQueue;
 import uk.ac.ebi.fg.biosd.annotator.purge.Purger;
 import uk.ac.ebi.fg.biosd.model.expgraph.BioSample;
 import uk.ac.ebi.fg.biosd.model.organizational.BioSampleGroup;
@@ -19,7 +40,6 @@ import uk.ac.ebi.fg.biosd.model.organizational.MSI;
 import uk.ac.ebi.fg.biosd.sampletab.loader.Loader;
 import uk.ac.ebi.fg.core_model.expgraph.properties.ExperimentalPropertyType;
 import uk.ac.ebi.fg.core_model.expgraph.properties.ExperimentalPropertyValue;
-import uk.ac.ebi.fg.core_model.expgraph.properties.Unit;
 import uk.ac.ebi.fg.core_model.persistence.dao.hibernate.toplevel.AccessibleDAO;
 import uk.ac.ebi.fg.core_model.resources.Resources;
 import uk.ac.ebi.fg.core_model.toplevel.Identifiable;
@@ -30,6 +50,12 @@ import uk.org.lidalia.slf4jext.Level;
  * This is the {@link BatchService multi-thread service} to which {@link PropertyValAnnotationTask}s are submitted. It
  * manages a near-fixed size thread pool, which of size is periodically evaluated for performance and dynamically
  * adjusted.
+ * 
+ * <p>The work is split into stages, each with its own thread pool and sizing: the pool above, which is bound to the
+ * DB connections budget, runs the DB scans that fetch property values (e.g., {@link PvChunkSubmissionTask}); 
+ * the {@link #getDataStage() data stage} runs the CPU-bound part of annotation tasks (number/date extraction); 
+ * the {@link #getLookupStage() lookup stage} runs ontology term discovery, which mostly waits for remote services 
+ * (ZOOMA), so it can have many more threads than the DB connections available.</p>
  *
  * <dl><dt>date</dt><dd>3 Sep 2014</dd></dl>
  * @author Marco Brandizi
@@ -43,8 +69,74 @@ public class PropertyValAnnotationService extends BatchService<AnnotatorTask>
 	 * leads us to running out of Oracle connections.
 	 */
 	public static final String MAX_THREAD_PROP = AnnotatorResources.PROP_NAME_PREFIX + "maxThreads";
+
+	/**
+	 * The max number of annotation tasks that can be submitted and not completed yet. When this is reached, the 
+	 * submitters (e.g., {@link PvChunkSubmissionTask}) block until some task finishes, so that the memory used 
+	 * for pending tasks doesn't depend on how many property values we have to annotate.
+	 */
+	public static final String QUEUE_CAPACITY_PROP = AnnotatorResources.PROP_NAME_PREFIX + "queueCapacity";
+
+	/**
+	 * Lookups that fail because ZOOMA is unavailable (see {@link AdaptiveZOOMASearchFilter}) are deferred and retried
+	 * after the other tasks, up to this number of times (default is 3). If they still fail at the last retry, they're
+	 * reported as failed tasks. 0 means no retry, ie, such lookups fail immediately.
+	 * 
+	 * The deferred lookups keep their slot in the {@link #QUEUE_CAPACITY_PROP queue}. When they take half of it, 
+	 * the submitters retry them before submitting anything else, so that they don't pile up while ZOOMA is down.
+	 */
+	public static final String LOOKUP_RETRY_PASSES_PROP = AnnotatorResources.PROP_NAME_PREFIX + "lookupRetryPasses";
+
+	/**
+	 * How long (in s) we wait before each {@link #LOOKUP_RETRY_PASSES_PROP retry pass}, to give ZOOMA a chance to
+	 * recover. Default is 60.
+	 */
+	public static final String LOOKUP_RETRY_DELAY_PROP = AnnotatorResources.PROP_NAME_PREFIX + "lookupRetryDelay";
+	
+	/**
+	 * If a submitter waits this long for a free slot in the annotation queue, it runs the task by itself. This is
+	 * to avoid that the submitters take all the threads in the pool and wait forever for tasks that can't run.
+	 */
+	private static final long QUEUE_WAIT_SECS = 60;
+
+	/**
+	 * The number of threads used by the {@link #getDataStage() data stage}, default is the number of CPUs.
+	 */
+	public static final String DATA_THREADS_PROP = AnnotatorResources.PROP_NAME_PREFIX + "dataThreads";
+
+	/**
+	 * The number of threads used by the {@link #getLookupStage() lookup stage}, default is 100.
+	 */
+	public static final String LOOKUP_THREADS_PROP = AnnotatorResources.PROP_NAME_PREFIX + "lookupThreads";
+
+	/**
+	 * How the {@link #getLookupStage() lookup stage} runs: 'pool' (default) uses a fixed pool of 
+	 * {@link #LOOKUP_THREADS_PROP} threads, 'async' uses {@link AnnotatorStage#newAsyncStage(String, int) one thread per 
+	 * lookup}, virtual threads when possible. In the latter case, concurrency is bound by the max number of remote calls 
+	 * (see {@link AdaptiveZOOMASearchFilter#MAX_REMOTE_CALLS_PROP}), the queue capacity and the DB queries limit 
+	 * (see {@link BioSDOntoDiscoveringCache#MAX_QUERIES_PROP}). Without virtual threads, the stage falls back to a 
+	 * pool as big as the sum of these two limits.
+	 */
+	public static final String LOOKUP_MODE_PROP = AnnotatorResources.PROP_NAME_PREFIX + "lookupMode";
 	
 	double randomSelectionQuota = 1.0;
+	
+	private final int queueCapacity;
+	private final Semaphore queueSlots;
+	private final AtomicLong submittedTasks = new AtomicLong ( 0 );
+	
+	private final AnnotatorStage dataStage, lookupStage;
+
+	private final Queue<PropertyValAnnotationTask> deferredLookups = new LinkedBlockingQueue<> ();
+	private final int maxDeferredLookups;
+	private final int lookupRetryPasses;
+	private final long lookupRetryDelay;
+	
+	private final StoreMemoryBudget storeBudget = new StoreMemoryBudget ();
+	private final StoreFlusher storeFlusher = new StoreFlusher ();
+	private RunJournal journal = null;
+	private PropertyValAnnotationManager pvAnnMgr = AnnotatorResources.getInstance ().getPvAnnMgr ();
+	private int shardIndex = 0, shardCount = 1;
 		
 	public PropertyValAnnotationService ()
 	{
@@ -65,6 +157,30 @@ public class PropertyValAnnotationService extends BatchService<AnnotatorTask>
 		}
 		
 		this.setSubmissionMsgLogLevel ( Level.DEBUG );
+		
+		this.queueCapacity = Integer.parseInt ( System.getProperty ( QUEUE_CAPACITY_PROP, "50000" ) );
+		this.queueSlots = new Semaphore ( this.queueCapacity );
+		this.maxDeferredLookups = Math.max ( 1, this.queueCapacity / 2 );
+		
+		this.dataStage = new AnnotatorStage ( "data", Integer.parseInt ( System.getProperty ( 
+			DATA_THREADS_PROP, String.valueOf ( Runtime.getRuntime ().availableProcessors () ) 
+		)));
+		String lookupMode = System.getProperty ( LOOKUP_MODE_PROP, "pool" );
+		if ( "async".equalsIgnoreCase ( lookupMode ) )
+			this.lookupStage = AnnotatorStage.newAsyncStage ( "lookup", 
+				Integer.parseInt ( System.getProperty ( AdaptiveZOOMASearchFilter.MAX_REMOTE_CALLS_PROP, "100" ) )
+				+ Integer.parseInt ( System.getProperty ( BioSDOntoDiscoveringCache.MAX_QUERIES_PROP, "20" ) )
+			);
+		else if ( "pool".equalsIgnoreCase ( lookupMode ) )
+			this.lookupStage = new AnnotatorStage ( "lookup", Integer.parseInt ( System.getProperty ( 
+				LOOKUP_THREADS_PROP, "100" 
+			)));
+		else throw new IllegalArgumentException ( 
+			"Invalid value '" + lookupMode + "' for the property " + LOOKUP_MODE_PROP + ", must be 'pool' or 'async'" 
+		);
+		
+		this.lookupRetryPasses = Integer.parseInt ( System.getProperty ( LOOKUP_RETRY_PASSES_PROP, "3" ) );
+		this.lookupRetryDelay = Long.parseLong ( System.getProperty ( LOOKUP_RETRY_DELAY_PROP, "60" ) ) * 1000;
 	}
 
 	/**
@@ -72,36 +188,145 @@ public class PropertyValAnnotationService extends BatchService<AnnotatorTask>
 	 * with this {@link Identifiable#getId() id}. If {@link #getRandomSelectionQuota()} is &lt; 1, only the 
 	 * corresponding random percentage of calls to this method will actually produce a submission.
 	 * 
+	 * The pv is immediately turned into a {@link PropertyValRecord}, so this must be called while its entity manager
+	 * is still open.
+	 * 
 	 */
 	public void submit ( ExperimentalPropertyValue<ExperimentalPropertyType> pv )
 	{
+		PropertyValRecord pvrec;
 		try
 		{
-			// We need to force eager mode, we're about to close the session
-			Hibernate.initialize ( pv.getType () );
-			Hibernate.initialize ( pv.getTermText () );
-			Hibernate.initialize ( pv.getOntologyTerms () );
+			// We need to fetch what we need now, we're about to close the session
+			pvrec = PropertyValRecord.of ( pv );
+		}
+		catch ( Throwable ex ) 
+		{			
+			log.error ( String.format ( 
+				"Error while submitting property %s: %s, ignoring this property", pv, ex.getMessage () ), 
+				ex 
+			);
+			
+			// TODO: proper exit code
+			lastExitCode = 1;
+			return;
+		}
+		
+		submit ( pvrec );
+	}
+
+	/**
+	 * Submits an {@link PropertyValAnnotationTask annotation task} about the property value represented by this record.
+	 * This blocks if {@link #getQueueDepth()} has reached {@link #QUEUE_CAPACITY_PROP the queue capacity}. 
+	 */
+	public void submit ( PropertyValRecord pvrec )
+	{
+		submit ( pvrec, null );
+	}
 	
-			Unit u;
-			Hibernate.initialize ( u = pv.getUnit () );
-			if ( u != null ) 
+	/**
+	 * Like {@link #submit(PropertyValRecord)}, and reports the task about the record to the journalRange, 
+	 * if not null (see {@link #setJournal(RunJournal)}).
+	 */
+	void submit ( PropertyValRecord pvrec, RunJournal.Range journalRange )
+	{
+		if ( shardCount > 1 && !isInShard ( ExpPropValAnnotation.getPvalText ( pvrec ) ) ) return;
+		
+		// Started here, so that it doesn't run for services that never submit anything, and it's restarted if the
+		// service is reused after waitAllFinished()
+		storeFlusher.start ();
+		
+		boolean isTaskStarted = false;
+		if ( journalRange != null ) journalRange.taskStarted ();
+		try
+		{
+			// So that every multiple is seen by one submitter only
+			long nsubmitted = submittedTasks.incrementAndGet ();
+			if ( nsubmitted % 100000 == 0 ) 
 			{
-				Hibernate.initialize ( u.getOntologyTerms () );
-				Hibernate.initialize ( u.getTermText () );
-				Hibernate.initialize ( u.getDimension () );
+				log.info ( 
+					"{} annotation tasks submitted, {} waiting or running, queue capacity is {}", 
+					nsubmitted, getQueueDepth (), queueCapacity 
+				);
+				log.info ( dataStage.getStats () );
+				log.info ( lookupStage.getStats () );
 			}
 			
-			super.submit ( new PropertyValAnnotationTask ( pv ) );
+			if ( nsubmitted % 10000 == 0 ) checkStoreBudget ();
+			
+			if ( !acquireQueueSlot () )
+			{
+				// The annotators are too slow (or there is none available), so do the job here and slow down the 
+				// submission this way
+				log.debug ( "Annotation queue full for {}s, running the task in the submitter thread", QUEUE_WAIT_SECS );
+				PropertyValAnnotationTask task = new PropertyValAnnotationTask ( pvrec, null, journalRange, pvAnnMgr );
+				isTaskStarted = true;
+				task.run ();
+				if ( task.getExitCode () != 0 ) lastExitCode = task.getExitCode ();
+				return;
+			}
+			
+			// The slot is released by the task, once done
+			isTaskStarted = true;
+			new PropertyValAnnotationTask ( pvrec, queueSlots, journalRange, pvAnnMgr ).submitToStages ( 
+				dataStage, lookupStage, lookupRetryPasses > 0 ? deferredLookups : null 
+			);
 		}
 		catch ( Throwable ex ) 
 		{			
 			log.error ( String.format ( 
-				"Error while submitting property %s: %s, ignoring this property", pv, ex.getMessage () ), 
+				"Error while submitting property %s: %s, ignoring this property", pvrec, ex.getMessage () ), 
 				ex 
 			);
 			
 			// TODO: proper exit code
 			lastExitCode = 1;
+			// Else, the task reports its own outcome
+			if ( journalRange != null && !isTaskStarted ) journalRange.taskFinished ( false );
+		}
+	}
+
+	/**
+	 * Waits for a free slot in the annotation queue, up to {@link #QUEUE_WAIT_SECS}. In the meanwhile, if the 
+	 * {@link #LOOKUP_RETRY_PASSES_PROP deferred lookups} take too many slots, retries them, since they don't release 
+	 * their slots otherwise.
+	 * 
+	 * @return false if no slot was available.
+	 */
+	private boolean acquireQueueSlot () throws InterruptedException
+	{
+		for ( long waitedMs = 0; waitedMs < QUEUE_WAIT_SECS * 1000; waitedMs += 100 )
+		{
+			if ( deferredLookups.size () >= maxDeferredLookups ) retryDeferredLookups ();
+			if ( queueSlots.tryAcquire ( 100, TimeUnit.MILLISECONDS ) ) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * If the {@link StoreMemoryBudget memory budget} of the annotation store is exceeded, 
+	 * {@link AnnotatorPersister#flush() flushes} the store. This is run by the submitter that detects the need, which
+	 * slows down the submission in the meanwhile. Other submitters don't wait for the flush to finish, nor this waits
+	 * for a flush that is already running (e.g., by the {@link StoreFlusher periodic flusher}).
+	 */
+	private void checkStoreBudget ()
+	{
+		if ( !storeBudget.isExceeded () ) return;
+		
+		try 
+		{
+			log.info ( 
+				"The annotation store has {} pending entities, flushing it to the DB (max size is {}, max heap ratio is {})", 
+				storeBudget.getPendingSize (), storeBudget.getMaxSize (), storeBudget.getMaxHeapRatio () 
+			);
+			storeFlusher.flush ();
+		}
+		catch ( RuntimeException ex ) 
+		{
+			// We have another chance at the end (or the next flush)
+			log.error ( "Error while flushing the annotation store: " + ex.getMessage (), ex );
+			// TODO: proper exit code
+			lastExitCode = 1;
 		}
 	}
 
@@ -115,6 +340,8 @@ public class PropertyValAnnotationService extends BatchService<AnnotatorTask>
 		if ( offset == null ) offset = 0;
 		if ( limit == null ) limit = this.getPropValCount ();
 		
+		warmUpCache ();
+		
 		// Half of the CPUs used to scroll the chunks, all the rest used to process single properties
 		int chunkSize = (int) Math.ceil ( limit / ( this.poolSizeTuner.getMinThreads () / 2d ) );
 		if ( chunkSize == 0 ) chunkSize = limit;
@@ -123,6 +350,206 @@ public class PropertyValAnnotationService extends BatchService<AnnotatorTask>
 			super.submit ( new PvChunkSubmissionTask ( this, ichunk + offset, chunkSize, purgeFirst ) );
 	}
 
+	/**
+	 * Like {@link #submit(Integer, Integer, boolean)}, but works in keyset mode, ie, submits the property values 
+	 * having fromId &lt;= id &lt;= toId. This is much faster than offset/limit on large tables, since chunks are 
+	 * fetched via id-based range queries and don't require to scan the table up to the offset. 
+	 * 
+	 * A null boundary is replaced with the corresponding value from {@link #getPropValIdRange()}. The id range is split 
+	 * in (nearly) equal sub-ranges, so chunks might have different numbers of properties, if there are gaps 
+	 * in the id space.
+	 *  
+	 */
+	public void submitIdRange ( Long fromId, Long toId, boolean purgeFirst )
+	{
+		if ( fromId == null || toId == null )
+		{
+			long[] range = this.getPropValIdRange ();
+			if ( range == null ) return; // empty table
+			if ( fromId == null ) fromId = range [ 0 ];
+			if ( toId == null ) toId = range [ 1 ];
+		}
+		if ( toId < fromId ) return;
+		
+		warmUpCache ();
+		
+		// Like above, half of the CPUs used to scroll the chunks
+		long nchunks = Math.max ( 1, this.poolSizeTuner.getMinThreads () / 2 );
+		long chunkSize = (long) Math.ceil ( ( toId - fromId + 1 ) / (double) nchunks );
+
+		for ( long chunkStart = fromId; chunkStart <= toId; chunkStart += chunkSize )
+			super.submit ( new PvChunkSubmissionTask ( 
+				this, chunkStart, Math.min ( chunkStart + chunkSize - 1, toId ), purgeFirst 
+			));
+	}
+	
+	/**
+	 * <p>Queue worker mode: {@link WorkChunkQueue#claim() claims} chunks of property value ids from the queue and 
+	 * annotates them, one at a time, until the queue is empty. This is used to balance the work between multiple 
+	 * processes dynamically, see {@link WorkChunkQueue}.</p>
+	 * 
+	 * <p>The chunk is scanned in the calling thread, while the property values are annotated by the stages as usually. 
+	 * After the scan, this waits for the stages to finish the chunk and flushes the store, so that a chunk is marked 
+	 * as {@link WorkChunkQueue#done(WorkChunk) done} only when its annotations are saved. A chunk with errors is 
+	 * {@link WorkChunkQueue#release(WorkChunk) released}, so that it can be retried.</p>
+	 * 
+	 * @return the number of chunks completed by this process.
+	 */
+	public long submitFromQueue ( WorkChunkQueue queue, boolean purgeFirst )
+	{
+		warmUpCache ();
+		
+		long nchunks = 0;
+		try
+		{
+			for ( WorkChunk chunk; ( chunk = queue.claim () ) != null; )
+			{
+				log.info ( "Annotating the property value ids {} - {} from the work queue", chunk.getFromId (), chunk.getToId () );
+				long failedJobs = dataStage.getFailedJobs () + lookupStage.getFailedJobs ();
+				
+				PvChunkSubmissionTask task = new PvChunkSubmissionTask ( this, chunk.getFromId (), chunk.getToId (), purgeFirst );
+				try
+				{
+					task.run ();
+					waitStage ( dataStage );
+					waitLookupStage ();
+					flushAll ();
+				}
+				catch ( RuntimeException ex ) {
+					queue.release ( chunk );
+					throw ex;
+				}
+				
+				if ( task.getExitCode () != 0 || dataStage.getFailedJobs () + lookupStage.getFailedJobs () > failedJobs ) 
+				{
+					log.warn ( "Errors while annotating the work chunk {}, releasing it for another attempt", chunk );
+					// TODO: proper exit code
+					lastExitCode = 1;
+					queue.release ( chunk );
+					continue;
+				}
+				
+				queue.done ( chunk );
+				nchunks++;
+			}
+			log.info ( "No more work chunks, {} completed by this process, {}", nchunks, queue.getStats () );
+			return nchunks;
+		}
+		finally {
+			queue.close ();
+		}
+	}
+	
+	/**
+	 * Saves everything in the annotation store, waiting for the {@link StoreFlusher background flush}, if it's running. 
+	 * This assumes that nothing else is added to the store in the meanwhile. 
+	 */
+	private void flushAll ()
+	{
+		try
+		{
+			while ( AnnotatorResources.getInstance ().getStore ().getPendingSize () > 0 )
+				if ( storeFlusher.flush () == -1 ) Thread.sleep ( 1000 );
+		}
+		catch ( InterruptedException ex ) {
+			throw new RuntimeException ( "Interrupted while flushing the annotation store: " + ex.getMessage (), ex );
+		}
+	}
+	
+	/**
+	 * <p>Distinct-text mode: rather than one task per property value record, submits one task per distinct 
+	 * (type, value, unit) text combination found in the BioSD database. Annotations are keyed by such texts 
+	 * (see {@link ExpPropValAnnotation#getPvalText(String, String)}), so this annotates the same things that 
+	 * {@link #submitAll()} does, but it avoids that very common values (e.g., "Organism|Homo sapiens") go through the 
+	 * cache chain millions of times.</p>
+	 * 
+	 * <p>Distinct combinations are streamed from the DB via a GROUP BY query, and each becomes a 
+	 * {@link PropertyValRecord} carrying the texts only, so no entity graph is loaded for it. Because of that, 
+	 * original ontology terms attached to the property values and units are not available in this mode, which means
+	 * units are always looked up by their label and, when purgeFirst is true, only the property value annotations 
+	 * are purged (resolved ontology terms are not).</p>
+	 * 
+	 * <p>{@link #getRandomSelectionQuota()} is applied to distinct combinations.</p>
+	 * 
+	 * @return the number of submitted distinct combinations.
+	 */
+	public long submitDistinct ( boolean purgeFirst )
+	{
+		warmUpCache ();
+		
+		EntityManager em = Resources.getInstance ().getEntityManagerFactory ().createEntityManager ();
+		ScrollableResults rs = null;
+		try
+		{
+			String hql = "SELECT t.termText, pv.termText, u.termText, COUNT ( pv.id )\n"
+				+ "FROM ExperimentalPropertyValue pv LEFT JOIN pv.type t LEFT JOIN pv.unit u\n"
+				+ "GROUP BY t.termText, pv.termText, u.termText";
+			
+			Session session = (Session) em.getDelegate ();
+			Query q = session.createQuery ( hql )
+				.setReadOnly ( true )
+				.setFetchSize ( 10000 )
+				.setCacheMode ( CacheMode.IGNORE );
+
+			Purger purger = purgeFirst ? new Purger () : null;
+			long nkeys = 0, npvs = 0;
+			
+			for ( rs = q.scroll ( ScrollMode.FORWARD_ONLY ); rs.next (); )
+			{
+				String typeLabel = (String) rs.get ( 0 );
+				String valueLabel = (String) rs.get ( 1 );
+				String unitLabel = (String) rs.get ( 2 );
+				
+				if ( this.randomSelectionQuota < 1d && RandomUtils.nextDouble ( 0d, 1d ) > this.randomSelectionQuota )
+					continue;
+				
+				// Before purging, another shard takes care of it
+				if ( shardCount > 1 && !isInShard ( ExpPropValAnnotation.getPvalText ( typeLabel, valueLabel ) ) )
+					continue;
+				
+				if ( purger != null && typeLabel != null ) 
+					purger.purgePVAnnotations ( new ExperimentalPropertyValue<> ( 
+						valueLabel, new ExperimentalPropertyType ( typeLabel ) 
+					));
+
+				this.submit ( new PropertyValRecord ( typeLabel, valueLabel, unitLabel ) );
+
+				npvs += ( (Number) rs.get ( 3 ) ).longValue ();
+				if ( ++nkeys % 100000 == 0 ) 
+					log.info ( "{} distinct property values submitted, covering {} property records", nkeys, npvs );
+			}
+			
+			log.info ( "Distinct-text submission done, {} distinct property values, covering {} property records", nkeys, npvs );
+			return nkeys;
+		}
+		finally 
+		{
+			if ( rs != null ) rs.close ();
+			if ( em.isOpen () ) em.close ();
+		}
+	}
+	
+	/**
+	 * Prepares the in-memory structures that spare DB lookups, before any annotation task starts. This is the 
+	 * {@link AnnotatorResources#getKeyFilter() annotation key filter}, if {@link AnnotationKeyFilter#KEY_FILTER_PROP} 
+	 * is set, and, if {@link ExpPropValAnnotationIndex#WARM_UP_PROP} is 'full', the existing ontology annotations 
+	 * {@link AnnotatorResources#getPvAnnIndex() snapshot}. In the default 'chunk' mode, the latter is done by 
+	 * {@link PvChunkSubmissionTask}, for each page of property values.
+	 */
+	public void warmUpCache ()
+	{
+		EntityManager em = Resources.getInstance ().getEntityManagerFactory ().createEntityManager ();
+		try 
+		{
+			AnnotatorResources.getInstance ().getKeyFilter ().init ( em );
+			if ( "full".equals ( ExpPropValAnnotationIndex.getWarmUpMode () ) )
+				AnnotatorResources.getInstance ().getPvAnnIndex ().loadAll ( em );
+		}
+		finally {
+			if ( em.isOpen () ) em.close ();
+		}
+	}
+	
 	public void submitAll ()
 	{
 		submit ( null, null , false);
@@ -244,6 +671,81 @@ public class PropertyValAnnotationService extends BatchService<AnnotatorTask>
 		}
 	}
 
+	
+	/**
+	 * Gets the minimum and maximum {@link ExperimentalPropertyValue} ids in the BioSD database, as a 2-element array. 
+	 * Returns null if there isn't any property value. To be used prior to {@link #submitIdRange(Long, Long, boolean)}.
+	 */
+	public long[] getPropValIdRange ()
+	{
+		return getPropValIdRange ( null );
+	}
+	
+	/**
+	 * Like {@link #getPropValIdRange()}, but considers the property values having id &gt; afterId only (all of them
+	 * if it's null). This is used by the incremental mode (see {@link IdWatermark}).
+	 */
+	public long[] getPropValIdRange ( Long afterId )
+	{
+		EntityManager em = Resources.getInstance ().getEntityManagerFactory ().createEntityManager ();
+		
+		try
+		{
+			javax.persistence.Query q = em.createNativeQuery (
+				"SELECT MIN ( pv.id ), MAX ( pv.id ) FROM exp_prop_val pv" + ( afterId == null ? "" : " WHERE pv.id > :afterId" )
+			);
+			if ( afterId != null ) q.setParameter ( "afterId", afterId );
+			Object[] range = (Object[]) q.getSingleResult ();
+			
+			if ( range [ 0 ] == null ) return null;
+			return new long[] { ( (Number) range [ 0 ] ).longValue (), ( (Number) range [ 1 ] ).longValue () };
+		}
+		finally {
+			if ( em.isOpen () ) em.close ();
+		}
+	}
+	
+
+	/**
+	 * The number of annotation tasks that were submitted and aren't finished yet.
+	 */
+	public int getQueueDepth ()
+	{
+		return queueCapacity - queueSlots.availablePermits ();
+	}
+
+	/**
+	 * The number of lookups that are {@link #LOOKUP_RETRY_PASSES_PROP deferred} and waiting to be retried. These are
+	 * part of {@link #getQueueDepth()}.
+	 */
+	public int getDeferredLookupsCount ()
+	{
+		return deferredLookups.size ();
+	}
+
+	/**
+	 * The stage where CPU-bound annotation jobs are run, see {@link #DATA_THREADS_PROP}.
+	 */
+	public AnnotatorStage getDataStage ()
+	{
+		return dataStage;
+	}
+
+	/**
+	 * The stage where ontology lookups are run, see {@link #LOOKUP_THREADS_PROP}.
+	 */
+	public AnnotatorStage getLookupStage ()
+	{
+		return lookupStage;
+	}
+
+	/**
+	 * @see #QUEUE_CAPACITY_PROP.
+	 */
+	public int getQueueCapacity ()
+	{
+		return queueCapacity;
+	}
 
 	/**
 	 * Allows you to do a bit of testing by anntoating only a random quota of the target set of 
@@ -277,19 +779,177 @@ public class PropertyValAnnotationService extends BatchService<AnnotatorTask>
 	 */
 	public void waitAllFinished (boolean persist)
 	{
+		// Scanners first, so that nothing else is submitted to the stages, then the stages, in pipeline order
 		super.waitAllFinished ();
+		waitStage ( dataStage );
+		waitLookupStage ();
+		
+		// No more annotations, so no more need to flush in background, until the next submission
+		storeFlusher.stop ();
+		// TODO: proper exit code
+		if ( storeFlusher.getFailedFlushes () > 0 ) lastExitCode = 1;
+		
 		if (persist) {
 			this.persist();
 		}
 	}
 	
 	
+	/**
+	 * Waits for the lookup stage and then runs the retry passes for the {@link #LOOKUP_RETRY_PASSES_PROP deferred 
+	 * lookups}, if any.
+	 */
+	private void waitLookupStage ()
+	{
+		waitStage ( lookupStage );
+		while ( retryDeferredLookups () ) waitStage ( lookupStage );
+	}
+	
+	/**
+	 * Waits for {@link #LOOKUP_RETRY_DELAY_PROP} and then re-submits the {@link #LOOKUP_RETRY_PASSES_PROP deferred 
+	 * lookups} to the lookup stage. Those that were already retried the max number of times aren't deferred again, 
+	 * ie, they fail if ZOOMA is still down. Doesn't wait for the retries to finish.
+	 * 
+	 * @return false if there were no deferred lookups.
+	 */
+	private boolean retryDeferredLookups ()
+	{
+		List<PropertyValAnnotationTask> tasks = new ArrayList<> ();
+		for ( PropertyValAnnotationTask task; ( task = deferredLookups.poll () ) != null; ) tasks.add ( task );
+		if ( tasks.isEmpty () ) return false;
+		
+		log.info ( 
+			"{} ontology lookups deferred because ZOOMA was unavailable, retrying them in {}s", 
+			tasks.size (), lookupRetryDelay / 1000 
+		);
+		try {
+			Thread.sleep ( lookupRetryDelay );
+		}
+		catch ( InterruptedException ex ) 
+		{
+			// Else, they would never release their slots
+			deferredLookups.addAll ( tasks );
+			throw new RuntimeException ( "Interrupted while waiting to retry the deferred lookups: " + ex.getMessage (), ex );
+		}
+		
+		for ( PropertyValAnnotationTask task: tasks )
+			task.submitLookup ( lookupStage, task.getDeferrals () < lookupRetryPasses ? deferredLookups : null );
+		return true;
+	}
+	
+	private void waitStage ( AnnotatorStage stage )
+	{
+		stage.waitAllFinished ();
+		log.info ( "Annotation {}", stage.getStats () );
+		
+		// TODO: proper exit code
+		if ( stage.getFailedJobs () > 0 ) lastExitCode = 1;
+	}
+	
+	/**
+	 * The {@link RunJournal run journal} where the id ranges that {@link #submitIdRange(Long, Long, boolean)}
+	 * completes are recorded, and from which the ranges already done are skipped. null (the default) means no journal.
+	 * The journal checkpoints are made by the store flushes and by the final {@link #persist()}.
+	 */
+	public RunJournal getJournal ()
+	{
+		return journal;
+	}
+
+	public void setJournal ( RunJournal journal )
+	{
+		this.journal = journal;
+		this.storeFlusher.setJournal ( journal );
+	}
+
+	/**
+	 * The annotator that the tasks use, default is the one in {@link AnnotatorResources}. Changing it is mainly 
+	 * useful for tests.
+	 */
+	PropertyValAnnotationManager getPvAnnMgr ()
+	{
+		return pvAnnMgr;
+	}
+
+	void setPvAnnMgr ( PropertyValAnnotationManager pvAnnMgr )
+	{
+		this.pvAnnMgr = pvAnnMgr;
+	}
+
+	/**
+	 * <p>Makes this service work as the shard shardIndex of shardCount: only the property values having an
+	 * {@link ExpPropValAnnotation#getPvalText(PropertyValRecord) annotation key} for which 
+	 * {@link #getShard(String, int)} returns shardIndex are annotated, the others are skipped at submission.</p>
+	 * 
+	 * <p>This is used to distribute the annotation between multiple processes (e.g., LSF jobs, each scanning the 
+	 * same property values), so that each distinct key is annotated by exactly one process, which means ontology 
+	 * lookups and cache probes about common values (e.g., 'sex|female') aren't repeated by all the processes.</p>
+	 * 
+	 * <p>The default is 0/1, ie, no sharding.</p>
+	 */
+	public void setShard ( int shardIndex, int shardCount )
+	{
+		if ( shardCount < 1 || shardIndex < 0 || shardIndex >= shardCount ) throw new IllegalArgumentException ( 
+			"Invalid shard " + shardIndex + "/" + shardCount + ", must be i/N, with N > 0 and 0 <= i < N" 
+		);
+		this.shardIndex = shardIndex;
+		this.shardCount = shardCount;
+	}
+
+	public int getShardIndex ()
+	{
+		return shardIndex;
+	}
+
+	public int getShardCount ()
+	{
+		return shardCount;
+	}
+
+	/**
+	 * True if this annotation key belongs to the {@link #setShard(int, int) shard} of this service. Values without
+	 * a key (ie, pvalText is null) are assigned to the shard 0.
+	 */
+	public boolean isInShard ( String pvalText )
+	{
+		if ( shardCount == 1 ) return true;
+		return ( pvalText == null ? 0 : getShard ( pvalText, shardCount ) ) == shardIndex;
+	}
+
+	/**
+	 * The shard of a key, based on its 64-bit FNV-1a hash, computed over its UTF-8 bytes. This doesn't depend on the
+	 * JVM or the platform, so all the processes that share some work agree on it. 
+	 */
+	public static int getShard ( String key, int shardCount )
+	{
+		long hash = 0xcbf29ce484222325L;
+		for ( byte b: key.getBytes ( StandardCharsets.UTF_8 ) )
+		{
+			hash ^= b & 0xff;
+			hash *= 0x100000001b3L;
+		}
+		return (int) ( ( hash & Long.MAX_VALUE ) % shardCount );
+	}
+
 	/**
 	 * Saves {@link AnnotatorResources#getStore() gathered annotations}, used by {@link #waitAllFinished()}.
 	 */
 	private void persist ()
 	{
-		new AnnotatorPersister ().persist ();
+		List<RunJournal.Range> journalRanges = journal == null ? null : journal.beginCheckpoint ();
+		long savedCount = new AnnotatorPersister ().persist ();
+		if ( journal != null ) 
+		{
+			try {
+				journal.commitCheckpoint ( journalRanges, savedCount );
+			}
+			catch ( RuntimeException ex ) {
+				// Annotations are saved anyway, at worst, a resumed job will redo them
+				log.error ( ex.getMessage (), ex );
+				// TODO: proper exit code
+				lastExitCode = 1;
+			}
+		}
 		
 		// Just in case it's needed by JUnit tests
 		AnnotatorResources.getInstance ().reset ();
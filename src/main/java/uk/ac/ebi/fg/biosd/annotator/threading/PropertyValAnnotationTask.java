@@ -1,14 +1,24 @@
 package uk.ac.ebi.fg.biosd.annotator.threading;
 
+import java.util.Queue;
+import java.util.concurrent.Semaphore;
+
 import uk.ac.ebi.fg.biosd.annotator.AnnotatorResources;
 import uk.ac.ebi.fg.biosd.annotator.PropertyValAnnotationManager;
-import uk.ac.ebi.fg.core_model.expgraph.properties.ExperimentalPropertyType;
+import uk.ac.ebi.fg.biosd.annotator.PropertyValRecord;
+import uk.ac.ebi.fg.biosd.annotator.model.ExpPropValAnnotation;
+import uk.ac.ebi.fg.biosd.annotator.ontodiscover.ZOOMAUnavailableException;
+import uk.ac.ebi.fg.biosd.annotator.persistence.RunJournal;
 import uk.ac.ebi.fg.core_model.expgraph.properties.ExperimentalPropertyValue;
 
 /**
  * This wraps the invocation of {@link PropertyValAnnotationManager} into a proper {@link PropertyValAnnotationTask task}
  * for the {@link PropertyValAnnotationService annotator service}. Essentially, a task annotates a single
- * {@link ExperimentalPropertyValue} into a single thread. 
+ * {@link ExperimentalPropertyValue} into a single thread. The property value is represented by its 
+ * {@link PropertyValRecord lightweight record}, so that queued tasks don't keep entity graphs in memory.
+ * 
+ * Usually, the task isn't run as a whole, it's {@link #submitToStages(AnnotatorStage, AnnotatorStage, Queue) split} between
+ * the CPU-bound part and the one that performs lookups.
  *
  * <dl><dt>date</dt><dd>3 Sep 2014</dd></dl>
  * @author Marco Brandizi
@@ -16,15 +26,47 @@ import uk.ac.ebi.fg.core_model.expgraph.properties.ExperimentalPropertyValue;
  */
 class PropertyValAnnotationTask extends AnnotatorTask
 {
-	private final ExperimentalPropertyValue<ExperimentalPropertyType> propertyValue; 
+	private final PropertyValRecord propertyValue; 
+	private final Semaphore queueSlots;
+	private final RunJournal.Range journalRange;
+	private final PropertyValAnnotationManager pvAnnMgr;
+	private boolean isSlotReleased = false;
+	private volatile int deferrals = 0;
+	private volatile boolean isNumberOrDate = false;
 		
 	/**
 	 * We share a single instance of the annotator, which keeps links to caches and the like.
+	 * 
+	 * @param queueSlots if not null, a permit is released here when the task is finished, this is how 
+	 * {@link PropertyValAnnotationService} bounds the number of pending tasks. 
+	 */
+	public PropertyValAnnotationTask ( PropertyValRecord pvrec, Semaphore queueSlots )
+	{
+		this ( pvrec, queueSlots, null );
+	}
+
+	/**
+	 * @param journalRange if not null, the task is reported to this {@link RunJournal run journal} range when it's
+	 * finished. The caller must have already invoked {@link RunJournal.Range#taskStarted()}.
+	 */
+	public PropertyValAnnotationTask ( PropertyValRecord pvrec, Semaphore queueSlots, RunJournal.Range journalRange )
+	{
+		this ( pvrec, queueSlots, journalRange, AnnotatorResources.getInstance ().getPvAnnMgr () );
+	}
+
+	/**
+	 * @param pvAnnMgr the annotator to be used, normally the one in {@link AnnotatorResources}. 
 	 */
-	public PropertyValAnnotationTask ( ExperimentalPropertyValue<ExperimentalPropertyType> pv )
+	PropertyValAnnotationTask ( 
+		PropertyValRecord pvrec, Semaphore queueSlots, RunJournal.Range journalRange, PropertyValAnnotationManager pvAnnMgr 
+	)
 	{
-		super ( "ANN:" + pv.getId () );
-		this.propertyValue = pv;
+		// Records in distinct-text mode haven't any ID
+		super ( "ANN:" + ( pvrec.getId () == null ? ExpPropValAnnotation.getPvalText ( pvrec ) : pvrec.getId () ) );
+		this.propertyValue = pvrec;
+		this.queueSlots = queueSlots;
+		this.journalRange = journalRange;
+		this.pvAnnMgr = pvAnnMgr;
 	}
 
 	/**
@@ -33,9 +75,7 @@ class PropertyValAnnotationTask extends AnnotatorTask
 	@Override
 	public void run ()
 	{
-		try 
-		{
-			PropertyValAnnotationManager pvAnnMgr = AnnotatorResources.getInstance ().getPvAnnMgr ();
+		try {
 			pvAnnMgr.annotate ( this.propertyValue );
 		}
 		catch ( Throwable ex ) 
@@ -44,6 +84,110 @@ class PropertyValAnnotationTask extends AnnotatorTask
 			log.error ( "Error while annotating property value #" + this.propertyValue + ": " + ex.getMessage (), ex );
 			this.exitCode = 1;
 		}
+		finally {
+			finished ( this.exitCode == 0 );
+		}
+	}
+
+	/**
+	 * Runs {@link PropertyValAnnotationManager#annotateData(PropertyValRecord)} in the dataStage and then 
+	 * {@link PropertyValAnnotationManager#annotateOntoTerms(PropertyValRecord, boolean)} in the lookupStage. 
+	 * Errors are logged and counted by the stages.
+	 * 
+	 * @param deferredTasks see {@link #submitLookup(AnnotatorStage, Queue)}.
+	 */
+	void submitToStages ( 
+		AnnotatorStage dataStage, final AnnotatorStage lookupStage, final Queue<PropertyValAnnotationTask> deferredTasks 
+	)
+	{
+		dataStage.submit ( new Runnable() 
+		{
+			@Override
+			public void run ()
+			{
+				try {
+					isNumberOrDate = pvAnnMgr.annotateData ( propertyValue );
+				}
+				catch ( RuntimeException ex ) {
+					finished ( false );
+					throw wrapError ( ex );
+				}
+
+				submitLookup ( lookupStage, deferredTasks );
+			}
+		});
+	}
+
+	/**
+	 * Runs {@link PropertyValAnnotationManager#annotateOntoTerms(PropertyValRecord, boolean)} in the lookupStage, 
+	 * after the data part was done. 
+	 * 
+	 * @param deferredTasks if not null and the lookup fails because ZOOMA is unavailable (see 
+	 * {@link ZOOMAUnavailableException}), the task is added here, so that it can be retried later, instead of being 
+	 * counted as failed. In this case, both the queue slot and the journal range report are kept until the retry is 
+	 * done, so that the deferred tasks count in the queue capacity.
+	 */
+	void submitLookup ( AnnotatorStage lookupStage, final Queue<PropertyValAnnotationTask> deferredTasks )
+	{
+		lookupStage.submit ( new Runnable() 
+		{
+			@Override
+			public void run ()
+			{
+				boolean isOk = false, isDeferred = false;
+				try {
+					pvAnnMgr.annotateOntoTerms ( propertyValue, isNumberOrDate );
+					isOk = true;
+				}
+				catch ( RuntimeException ex ) 
+				{
+					if ( deferredTasks == null || !ZOOMAUnavailableException.isCauseOf ( ex ) ) throw wrapError ( ex );
+					
+					if ( log.isDebugEnabled () ) 
+						log.debug ( "Lookup for property value #{} deferred: {}", propertyValue, ex.getMessage () );
+					deferrals++;
+					deferredTasks.add ( PropertyValAnnotationTask.this );
+					isDeferred = true;
+				}
+				finally {
+					if ( !isDeferred ) finished ( isOk );
+				}
+			}
+		});
+	}
+	
+	/**
+	 * How many times the lookup was {@link #submitLookup(AnnotatorStage, Queue) deferred} so far.
+	 */
+	int getDeferrals ()
+	{
+		return deferrals;
+	}
+
+	/**
+	 * Releases the queue slot and reports to the journal range, if any.
+	 */
+	private void finished ( boolean isOk )
+	{
+		releaseSlot ();
+		if ( journalRange != null ) journalRange.taskFinished ( isOk );
+	}
+
+	/**
+	 * The slot is released once only.
+	 */
+	private synchronized void releaseSlot ()
+	{
+		if ( queueSlots == null || isSlotReleased ) return;
+		queueSlots.release ();
+		isSlotReleased = true;
+	}
+	
+	private RuntimeException wrapError ( RuntimeException ex )
+	{
+		return new RuntimeException ( 
+			"Error while annotating property value #" + this.propertyValue + ": " + ex.getMessage (), ex 
+		);
 	}
 
 }
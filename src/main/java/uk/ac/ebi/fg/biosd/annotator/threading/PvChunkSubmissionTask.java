@@ -1,5 +1,6 @@
 package uk.ac.ebi.fg.biosd.annotator.threading;
 
+import java.util.ArrayList;
 import java.util.List;
 
 import javax.persistence.EntityManager;
@@ -8,6 +9,12 @@ import javax.persistence.Query;
 import org.apache.commons.lang3.RandomUtils;
 import org.hibernate.jpa.QueryHints;
 
+import uk.ac.ebi.fg.biosd.annotator.AnnotatorResources;
+import uk.ac.ebi.fg.biosd.annotator.PropertyValRecord;
+import uk.ac.ebi.fg.biosd.annotator.model.ExpPropValAnnotation;
+import uk.ac.ebi.fg.biosd.annotator.ontodiscover.ExpPropValAnnotationIndex;
+import uk.ac.ebi.fg.biosd.annotator.persistence.RunJournal;
+import uk.ac.ebi.fg.biosd.annotator.persistence.dao.PropertyValRecordDAO;
 import uk.ac.ebi.fg.biosd.annotator.purge.Purger;
 import uk.ac.ebi.fg.core_model.expgraph.properties.ExperimentalPropertyType;
 import uk.ac.ebi.fg.core_model.expgraph.properties.ExperimentalPropertyValue;
@@ -16,6 +23,16 @@ import uk.ac.ebi.fg.core_model.resources.Resources;
 /**
  * Take a chunk of {@link ExperimentalPropertyValue} and creates {@link PropertyValAnnotationTask} for each
  * record in it. 
+ * 
+ * <p>The chunk can be defined in two ways: either via offset/limit, ie, row positions in the property value table, 
+ * or via an id range (keyset mode). The latter is much more efficient on large tables, since the DB doesn't need 
+ * to scan all the rows before the offset (which is what happens with Oracle's ROWNUM windows) and pages are 
+ * stable between different queries (no overlaps or skipped rows, since we sort by id).</p>
+ * 
+ * <p>Unless the purge of existing annotations is requested (which needs the property value entities), 
+ * property values are fetched as {@link PropertyValRecord}s, via {@link PropertyValRecordDAO}. In this case, when 
+ * {@link ExpPropValAnnotationIndex#WARM_UP_PROP} is 'chunk', the existing annotations about each page are 
+ * {@link ExpPropValAnnotationIndex#prefetch(EntityManager, java.util.Collection) prefetched} in bulk.</p>
  *
  * @author brandizi
  * <dl><dt>Date:</dt><dd>1 Sep 2015</dd>
@@ -23,19 +40,41 @@ import uk.ac.ebi.fg.core_model.resources.Resources;
  */
 class PvChunkSubmissionTask extends AnnotatorTask
 {
+	/**
+	 * In keyset mode, property values in the id range are fetched in pages of this size, each page is 
+	 * fetched by the id that follows the last one in the previous page.
+	 */
+	public static final int KEYSET_PAGE_SIZE = 5000;
+	
 	private final int offset, limit;
+	private final Long fromId, toId;
 	private final PropertyValAnnotationService service;
 	private boolean purgeFirst;
+	private final boolean prefetchAnnotations = "chunk".equals ( ExpPropValAnnotationIndex.getWarmUpMode () );
 	
 	public PvChunkSubmissionTask ( PropertyValAnnotationService service, int offset, int limit , boolean purgeFirst)
 	{
 		super ( "PVCHUNK:" + offset + "-" + ( offset + limit - 1 ) );
 		this.offset = offset;
 		this.limit = limit;
+		this.fromId = this.toId = null;
 		this.service = service;
 		this.purgeFirst = purgeFirst;
 	}
 
+	/**
+	 * Keyset mode, submits the property values having fromId &lt;= id &lt;= toId. 
+	 */
+	public PvChunkSubmissionTask ( PropertyValAnnotationService service, long fromId, long toId, boolean purgeFirst )
+	{
+		super ( "PVCHUNK:id:" + fromId + "-" + toId );
+		this.offset = this.limit = -1;
+		this.fromId = fromId;
+		this.toId = toId;
+		this.service = service;
+		this.purgeFirst = purgeFirst;
+	}
+	
 	@Override
 	public void run ()
 	{
@@ -43,6 +82,16 @@ class PvChunkSubmissionTask extends AnnotatorTask
 
 		try 
 		{
+			if ( this.fromId != null ) {
+				runIdRange ( em );
+				return;
+			}
+			
+			if ( !purgeFirst ) {
+				submitRecords ( em, new PropertyValRecordDAO ( em ).find ( offset, limit ) );
+				return;
+			}
+			
 			String hql = "FROM ExperimentalPropertyValue";
 			
 			Query q = em.createQuery ( hql, ExperimentalPropertyValue.class );
@@ -56,23 +105,13 @@ class PvChunkSubmissionTask extends AnnotatorTask
 			List<ExperimentalPropertyValue<ExperimentalPropertyType>> pvs = 
 				(List<ExperimentalPropertyValue<ExperimentalPropertyType>>) q.getResultList ();
 			
-			int npvs = pvs.size ();
-			Purger purger = new Purger();
-			for ( int i = 0;  i < npvs; i++ ) {
-				if(purgeFirst){
-					purger.purgePVAnnotations(pvs.get(i));
-					purger.purgeResolvedOntTerms(pvs.get(i));
-				}
-				if (this.service.randomSelectionQuota == 1d
-						|| RandomUtils.nextDouble(0d, 1d) <= this.service.randomSelectionQuota)
-					this.service.submit(pvs.get(i));
-			}
+			submitPvs ( pvs );
 		}
 		catch ( Throwable ex ) 
 		{
 			// TODO: proper exit code
 			log.error ( String.format ( 
-				"Error while submitting pv-chunk %d - %d: %s: ", this.offset, this.offset + this.limit, ex.getMessage () ), 
+				"Error while submitting pv-chunk %s: %s: ", this.getChunkLabel (), ex.getMessage () ), 
 				ex 
 			);
 			this.exitCode = 1;
@@ -82,4 +121,175 @@ class PvChunkSubmissionTask extends AnnotatorTask
 		}
 	}
 
+	
+	/**
+	 * Keyset pagination: fetches pages of {@link #KEYSET_PAGE_SIZE} property values, sorted by id, each page starting
+	 * after the last id seen in the previous one.
+	 * 
+	 * If the service has a {@link PropertyValAnnotationService#getJournal() run journal}, the id ranges already done
+	 * are skipped and each page is tracked as a {@link RunJournal.Range journal range}, which spans from the id after 
+	 * the previous page to the last id in the page (or to the end of the sub-range being fetched, for the last page).  
+	 */
+	private void runIdRange ( EntityManager em )
+	{
+		String hql = "FROM ExperimentalPropertyValue pv WHERE pv.id > :lastId AND pv.id <= :toId ORDER BY pv.id";
+		RunJournal journal = this.service.getJournal ();
+		PropertyValRecordDAO dao = purgeFirst ? null : new PropertyValRecordDAO ( em );
+		
+		long lastId = this.fromId - 1;
+		
+		while ( lastId < this.toId )
+		{
+			// Don't fetch what's done already
+			long pageToId = this.toId;
+			if ( journal != null ) 
+			{
+				lastId = journal.skipDone ( lastId );
+				if ( lastId >= this.toId ) break;
+				pageToId = journal.getPendingEnd ( lastId, this.toId );
+			}
+			
+			List<PropertyValRecord> pvrecs = null;
+			List<ExperimentalPropertyValue<ExperimentalPropertyType>> pvs = null;
+			int npvs; long pageLastId;
+			
+			if ( !purgeFirst ) 
+			{
+				pvrecs = dao.findByIdRange ( lastId, pageToId, KEYSET_PAGE_SIZE );
+				npvs = pvrecs.size ();
+				pageLastId = npvs == 0 ? pageToId : pvrecs.get ( npvs - 1 ).getId ();
+			}
+			else
+			{
+				Query q = em.createQuery ( hql, ExperimentalPropertyValue.class );
+				q.setParameter ( "lastId", lastId );
+				q.setParameter ( "toId", pageToId );
+				q.setMaxResults ( KEYSET_PAGE_SIZE );
+				q.setHint ( QueryHints.HINT_READONLY, true );
+	
+				@SuppressWarnings ( "unchecked" )
+				List<ExperimentalPropertyValue<ExperimentalPropertyType>> pvsPage = 
+					(List<ExperimentalPropertyValue<ExperimentalPropertyType>>) q.getResultList ();
+				pvs = pvsPage;
+				npvs = pvs.size ();
+				pageLastId = npvs == 0 ? pageToId : pvs.get ( npvs - 1 ).getId ();
+			}
+			
+			// A short page means there is nothing else up to pageToId
+			if ( npvs < KEYSET_PAGE_SIZE ) pageLastId = pageToId;
+			
+			RunJournal.Range journalRange = journal == null ? null : journal.newRange ( lastId + 1, pageLastId );
+			boolean isSubmitted = false;
+			try
+			{
+				if ( purgeFirst ) submitPvs ( pvs, journalRange );
+				else submitRecords ( em, pvrecs, journalRange );
+				isSubmitted = true;
+			}
+			finally 
+			{
+				// If the page wasn't fully submitted, some of its values weren't annotated, so it must not be marked as done
+				if ( journalRange != null ) 
+				{
+					if ( isSubmitted ) journalRange.close ();
+					else journalRange.taskFinished ( false );
+				}
+			}
+			
+			lastId = pageLastId;
+
+			// Submitted objects are initialised by the service, we don't need them in the session anymore  
+			if ( purgeFirst ) em.clear ();
+		}
+	}
+	
+	private void submitPvs ( List<ExperimentalPropertyValue<ExperimentalPropertyType>> pvs )
+	{
+		submitPvs ( pvs, null );
+	}
+	
+	private void submitPvs ( 
+		List<ExperimentalPropertyValue<ExperimentalPropertyType>> pvs, RunJournal.Range journalRange 
+	)
+	{
+		int npvs = pvs.size ();
+		Purger purger = new Purger();
+		for ( int i = 0;  i < npvs; i++ ) {
+			// Another shard takes care of it, including the purge
+			if ( this.service.getShardCount () > 1 
+					 && !this.service.isInShard ( ExpPropValAnnotation.getPvalText ( pvs.get ( i ) ) ) )
+				continue;
+			if(purgeFirst){
+				purger.purgePVAnnotations(pvs.get(i));
+				purger.purgeResolvedOntTerms(pvs.get(i));
+			}
+			if (this.service.randomSelectionQuota == 1d
+					|| RandomUtils.nextDouble(0d, 1d) <= this.service.randomSelectionQuota)
+				submitPv ( pvs.get ( i ), journalRange );
+		}
+	}
+	
+	/**
+	 * Like {@link PropertyValAnnotationService#submit(ExperimentalPropertyValue)}, but reports to the journal range.
+	 */
+	private void submitPv ( ExperimentalPropertyValue<ExperimentalPropertyType> pv, RunJournal.Range journalRange )
+	{
+		if ( journalRange == null ) {
+			this.service.submit ( pv );
+			return;
+		}
+		
+		PropertyValRecord pvrec;
+		try {
+			pvrec = PropertyValRecord.of ( pv );
+		}
+		catch ( RuntimeException ex ) 
+		{
+			// TODO: proper exit code
+			log.error ( String.format ( 
+				"Error while submitting property %s: %s, ignoring this property", pv, ex.getMessage () ), 
+				ex 
+			);
+			this.exitCode = 1;
+			// So that the range isn't marked as done
+			journalRange.taskStarted ();
+			journalRange.taskFinished ( false );
+			return;
+		}
+		this.service.submit ( pvrec, journalRange );
+	}
+	
+	private void submitRecords ( EntityManager em, List<PropertyValRecord> pvrecs )
+	{
+		submitRecords ( em, pvrecs, null );
+	}
+
+	private void submitRecords ( EntityManager em, List<PropertyValRecord> pvrecs, RunJournal.Range journalRange )
+	{
+		// Don't prefetch what another shard deals with
+		if ( this.service.getShardCount () > 1 )
+		{
+			List<PropertyValRecord> shardRecs = new ArrayList<> ( pvrecs.size () / this.service.getShardCount () + 1 );
+			for ( PropertyValRecord pvrec: pvrecs )
+				if ( this.service.isInShard ( ExpPropValAnnotation.getPvalText ( pvrec ) ) ) shardRecs.add ( pvrec );
+			pvrecs = shardRecs;
+		}
+		
+		if ( prefetchAnnotations && !pvrecs.isEmpty () ) 
+			AnnotatorResources.getInstance ().getPvAnnIndex ().prefetch ( 
+				em, ExpPropValAnnotationIndex.getLookupKeys ( pvrecs ) 
+			);
+		
+		for ( PropertyValRecord pvrec: pvrecs )
+			if ( this.service.randomSelectionQuota == 1d
+					|| RandomUtils.nextDouble ( 0d, 1d ) <= this.service.randomSelectionQuota )
+				this.service.submit ( pvrec, journalRange );
+	}
+	
+	private String getChunkLabel ()
+	{
+		return this.fromId == null 
+			? String.format ( "%d - %d", this.offset, this.offset + this.limit )
+			: String.format ( "id:%d - %d", this.fromId, this.toId );
+	}
 }
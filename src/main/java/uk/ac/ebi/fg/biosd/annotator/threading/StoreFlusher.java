@@ -0,0 +1,196 @@
+package uk.ac.ebi.fg.biosd.annotator.threading;
+
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.ac.ebi.fg.biosd.annotator.AnnotatorResources;
+import uk.ac.ebi.fg.biosd.annotator.persistence.AnnotatorPersister;
+import uk.ac.ebi.fg.biosd.annotator.persistence.RunJournal;
+
+/**
+ * <p>{@link AnnotatorPersister#flush() Flushes} the {@link AnnotatorResources#getStore() annotator store} to the DB.
+ * This is used by {@link PropertyValAnnotationService}, both when the store exceeds its memory budget and, if
+ * {@link #INTERVAL_PROP} is set, periodically, from a background thread, while the annotation goes on.</p>
+ *
+ * <p>The latter means the annotations are saved in small portions during the whole run, so that a job that is
+ * killed loses only what was computed after the last flush, the DB load is spread over the run and the final
+ * {@link AnnotatorPersister#persist() persist} has only the remainder to save. Each flush saves only the new
+ * entities, since the store keeps the entities that are waiting to be saved only, and the persister removes
+ * those it saved, unless they were replaced in the meanwhile (i.e., they're dirty again).</p>
+ *
+ * <p>Only one flush at a time is run, a flush requested while another is running is just skipped.</p>
+ *
+ * <p>If a {@link #setJournal(RunJournal) run journal} is set, every successful flush is also a journal checkpoint,
+ * ie, the id ranges that were annotated before the flush are recorded as done.</p>
+ */
+public class StoreFlusher
+{
+	/**
+	 * How often (in seconds) the store is flushed in background, default is 0, which means no periodic flush.
+	 */
+	public static final String INTERVAL_PROP = AnnotatorResources.PROP_NAME_PREFIX + "storeFlushInterval";
+
+	private final long intervalSecs;
+	private volatile ScheduledExecutorService scheduler = null;
+
+	private final AtomicBoolean isFlushing = new AtomicBoolean ( false );
+	private final AtomicLong flushes = new AtomicLong ( 0 ), failedFlushes = new AtomicLong ( 0 );
+	private final AtomicLong savedEntities = new AtomicLong ( 0 );
+	private volatile RunJournal journal = null;
+
+	private Logger log = LoggerFactory.getLogger ( this.getClass () );
+
+	/**
+	 * Uses {@link #INTERVAL_PROP}.
+	 */
+	public StoreFlusher ()
+	{
+		this ( Long.parseLong ( System.getProperty ( INTERVAL_PROP, "0" ) ) );
+	}
+
+	/**
+	 * @param intervalSecs if &lt;= 0, {@link #start()} doesn't do anything.
+	 */
+	public StoreFlusher ( long intervalSecs )
+	{
+		this.intervalSecs = intervalSecs;
+	}
+
+	/**
+	 * Starts the periodic flushing, if an interval was set. Does nothing if it's already started, so it can be called
+	 * for every submission. A flusher can be started again after {@link #stop()}.
+	 */
+	public void start ()
+	{
+		if ( intervalSecs <= 0 || scheduler != null ) return;
+		
+		synchronized ( this ) 
+		{
+			if ( scheduler == null ) startScheduler ();
+		}
+	}
+	
+	private void startScheduler ()
+	{
+		scheduler = Executors.newSingleThreadScheduledExecutor ( new ThreadFactory ()
+		{
+			@Override
+			public Thread newThread ( Runnable r )
+			{
+				Thread t = new Thread ( r, "ann-store-flusher" );
+				t.setDaemon ( true );
+				return t;
+			}
+		});
+
+		scheduler.scheduleWithFixedDelay ( new Runnable()
+		{
+			@Override
+			public void run ()
+			{
+				try {
+					flush ();
+				}
+				catch ( RuntimeException ex ) {
+					// Let's keep flushing, we have other chances, including the final save
+					log.error ( "Error while flushing the annotation store in background: " + ex.getMessage (), ex );
+				}
+			}
+		}, intervalSecs, intervalSecs, TimeUnit.SECONDS );
+
+		log.info ( "Flushing the annotation store every {}s", intervalSecs );
+	}
+
+	/**
+	 * Stops the periodic flushing and waits for the current flush (if any) to finish. After this, the store can be
+	 * persisted without interferences from this flusher.
+	 */
+	public synchronized void stop ()
+	{
+		if ( scheduler == null ) return;
+
+		scheduler.shutdown ();
+		try
+		{
+			while ( !scheduler.awaitTermination ( 1, TimeUnit.MINUTES ) )
+				log.info ( "Waiting for the background flush of the annotation store to finish" );
+		}
+		catch ( InterruptedException ex ) {
+			throw new RuntimeException (
+				"Internal error while waiting for the annotation store flusher: " + ex.getMessage (), ex
+			);
+		}
+		finally {
+			scheduler = null;
+		}
+
+		log.info (
+			"Annotation store flusher stopped, {} flushes, {} failed, {} entities saved",
+			flushes.get (), failedFlushes.get (), savedEntities.get ()
+		);
+	}
+
+	/**
+	 * Flushes the store, if it has pending entities and another flush isn't running already.
+	 *
+	 * @return the number of entities saved, -1 if the flush was skipped.
+	 */
+	public long flush ()
+	{
+		RunJournal journal = this.journal;
+		if ( journal == null && AnnotatorResources.getInstance ().getStore ().getPendingSize () == 0 ) return -1;
+		if ( !isFlushing.compareAndSet ( false, true ) ) return -1;
+
+		// Must be taken before saving, ranges annotated later might have annotations that the flush doesn't see 
+		List<RunJournal.Range> journalRanges = journal == null ? null : journal.beginCheckpoint ();
+		boolean isSaved = false;
+		try
+		{
+			// With the journal, we still need to checkpoint the ranges that didn't yield new annotations 
+			long result = AnnotatorResources.getInstance ().getStore ().getPendingSize () == 0 
+				? -1 : new AnnotatorPersister ().flush ();
+			isSaved = true;
+			if ( result != -1 ) {
+				flushes.incrementAndGet ();
+				savedEntities.addAndGet ( result );
+			}
+			if ( journal != null && ( result != -1 || !journalRanges.isEmpty () ) )
+				journal.commitCheckpoint ( journalRanges, Math.max ( result, 0 ) );
+			return result;
+		}
+		catch ( RuntimeException ex ) {
+			if ( !isSaved ) failedFlushes.incrementAndGet ();
+			throw ex;
+		}
+		finally 
+		{
+			// commitCheckpoint() deals with its own failures 
+			if ( journal != null && !isSaved ) journal.abortCheckpoint ( journalRanges );
+			isFlushing.set ( false );
+		}
+	}
+
+	/**
+	 * @see #flush()
+	 */
+	public void setJournal ( RunJournal journal )
+	{
+		this.journal = journal;
+	}
+
+	/**
+	 * The number of flushes that ended with an error.
+	 */
+	public long getFailedFlushes ()
+	{
+		return failedFlushes.get ();
+	}
+}
@@ -0,0 +1,112 @@
+package uk.ac.ebi.fg.biosd.annotator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+import uk.ac.ebi.fg.biosd.annotator.AnnotationStore.EntityMap;
+import uk.ac.ebi.fg.biosd.annotator.AnnotationStore.Key;
+
+/**
+ * Tests for {@link AnnotationStore}.
+ */
+public class AnnotationStoreTest
+{
+	@Test
+	public void testRemoveIfSame ()
+	{
+		EntityMap<List<String>> map = new EntityMap<> ( String.class, new ConcurrentHashMap<Key, List<String>> () );
+		Key key = Key.of ( "test key" );
+		List<String> value = newValue (), value1 = newValue ();
+
+		map.put ( key, value );
+		assertFalse ( "Equal value removed!", map.removeIfSame ( key, value1 ) );
+		assertSame ( "Wrong value after failed removal!", value, map.get ( key ) );
+		assertTrue ( "Same value not removed!", map.removeIfSame ( key, value ) );
+		assertFalse ( "Value not removed!", map.contains ( key ) );
+	}
+
+
+	/**
+	 * A value put while the old one is being removed (e.g., by the persister) must never be lost. Here, the map 
+	 * pauses the remover between the identity check and the removal, and the new value is put in the meanwhile.
+	 */
+	@Test
+	public void testConcurrentRemoveIfSame () throws Exception
+	{
+		final CountDownLatch isChecking = new CountDownLatch ( 1 );
+		final EntityMap<List<String>> map = new EntityMap<> ( String.class, new ConcurrentHashMap<Key, List<String>> ()
+		{
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			public List<String> get ( Object key )
+			{
+				List<String> result = super.get ( key );
+				if ( !"test-remover".equals ( Thread.currentThread ().getName () ) ) return result;
+				
+				isChecking.countDown ();
+				try {
+					Thread.sleep ( 200 );
+				}
+				catch ( InterruptedException ex ) {
+					throw new RuntimeException ( "Interrupted test", ex );
+				}
+				return result;
+			}
+		});
+
+		final Key key = Key.of ( "test key" );
+		final List<String> oldValue = newValue (), newValue = newValue ();
+		map.put ( key, oldValue );
+
+		Thread remover = new Thread ( "test-remover" )
+		{
+			@Override
+			public void run () {
+				map.removeIfSame ( key, oldValue );
+			}
+		};
+		remover.start ();
+
+		isChecking.await ();
+		map.put ( key, newValue );
+		remover.join ();
+
+		assertSame ( "New value lost by removeIfSame()!", newValue, map.get ( key ) );
+	}
+
+	/**
+	 * The texts with no data item are only a negative lookup cache, they're not pending entities.
+	 */
+	@Test
+	public void testDataItemMisses ()
+	{
+		AnnotationStore store = new AnnotationStore ( 100, null );
+		for ( int i = 0; i < 10; i++ )
+			store.getDataItemMisses ().put ( "test value " + i, Boolean.TRUE );
+
+		assertTrue ( "Miss not cached!", store.getDataItemMisses ().contains ( "test value 0" ) );
+		assertEquals ( "Misses counted as pending!", 0, store.getPendingSize () );
+		
+		store.clear ();
+		assertFalse ( "Misses not cleared!", store.getDataItemMisses ().contains ( "test value 0" ) );
+	}
+
+	/**
+	 * A new list every time, equal to the others.
+	 */
+	private static List<String> newValue ()
+	{
+		return new ArrayList<> ( Arrays.asList ( "test value" ) );
+	}
+}
@@ -0,0 +1,37 @@
+package uk.ac.ebi.fg.biosd.annotator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Date;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link AnnotationValuePool}.
+ */
+public class AnnotationValuePoolTest
+{
+	@Test
+	public void testPool () throws Exception
+	{
+		AnnotationValuePool pool = new AnnotationValuePool ();
+
+		String uri = pool.getUri ( new String ( "http://www.ebi.ac.uk/efo/EFO_0000270" ) );
+		String uri1 = new String ( "http://www.ebi.ac.uk/efo/EFO_0000270" );
+		assertNotSame ( "Test strings are the same!", uri, uri1 );
+		assertSame ( "URI not shared!", uri, pool.getUri ( uri1 ) );
+		assertNull ( "Null URI not handled!", pool.getUri ( null ) );
+
+		Date ts = pool.getTimestamp ();
+		assertSame ( "Timestamp not shared!", ts, pool.getTimestamp () );
+
+		Thread.sleep ( AnnotationValuePool.TIMESTAMP_RESOLUTION + 100 );
+		Date ts1 = pool.getTimestamp ();
+		assertTrue ( "Timestamp not renewed!", ts1.after ( ts ) );
+		assertEquals ( "Timestamp too old!", System.currentTimeMillis (), ts1.getTime (), AnnotationValuePool.TIMESTAMP_RESOLUTION );
+	}
+}
@@ -18,9 +18,12 @@ import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import uk.ac.ebi.fg.biosd.annotator.AnnotationStore;
 import uk.ac.ebi.fg.biosd.annotator.AnnotatorResources;
 import uk.ac.ebi.fg.biosd.annotator.PropertyValAnnotationManager;
+import uk.ac.ebi.fg.biosd.annotator.PropertyValRecord;
 import uk.ac.ebi.fg.biosd.annotator.model.DataItem;
+import uk.ac.ebi.fg.biosd.annotator.model.DateItem;
 import uk.ac.ebi.fg.biosd.annotator.model.ExpPropValAnnotation;
 import uk.ac.ebi.fg.biosd.annotator.model.NumberItem;
 import uk.ac.ebi.fg.biosd.annotator.persistence.AnnotatorPersister;
@@ -34,8 +37,6 @@ import uk.ac.ebi.fg.core_model.resources.Resources;
 import uk.ac.ebi.fgpt.zooma.model.AnnotationPrediction.Confidence;
 import uk.ac.ebi.onto_discovery.api.OntologyTermDiscoverer.DiscoveredTerm;
 
-import com.google.common.collect.Table;
-
 /**
  * Test for {@link NumericalDataAnnotatorTest}.
  *
@@ -74,7 +75,6 @@ public class NumericalDataAnnotatorTest
 	
 	
 	@Test
-	@SuppressWarnings ( { "rawtypes", "unchecked" } )
 	public void testNumberExtraction ()
 	{
 		// Create the property
@@ -89,13 +89,13 @@ public class NumericalDataAnnotatorTest
 		
 		// Verify
 		//
-		Table<Class, String, Object> store = AnnotatorResources.getInstance ().getStore ();
-		DataItem dataItem = (DataItem) store.get ( DataItem.class, pval.getTermText () );
+		AnnotationStore store = AnnotatorResources.getInstance ().getStore ();
+		DataItem dataItem = store.getDataItems ().get ( pval.getTermText () );
 		assertNotNull ( "No data-item found in memory store!", dataItem );
 		
 		// Unit annotation
-		List<DiscoveredTerm> uterms = (List<DiscoveredTerm>) store.get ( 
-			DiscoveredTerm.class, ExpPropValAnnotation.getPvalText ( "Unit", unit.getTermText () ) 
+		List<DiscoveredTerm> uterms = store.getDiscoveredTerms ().get ( 
+			ExpPropValAnnotation.getPvalText ( "Unit", unit.getTermText () ) 
 		);
 		
 		assertNotNull ( "Unit not annotated!", uterms );
@@ -161,4 +161,25 @@ public class NumericalDataAnnotatorTest
 		didao.setEntityManager ( em = emf.createEntityManager () );
 		assertEquals ( "Data item not deleted!", 0, didao.find ( di, false, true ).size () );
 	}
+
+	/**
+	 * Tests the {@link PropertyValRecord}-based annotation.
+	 */
+	@Test
+	public void testRecordAnnotation ()
+	{
+		// A date is recognised only when there is no unit
+		PropertyValRecord pvrec = new PropertyValRecord ( "Collection Date", "25/12/2014", null );
+		assertTrue ( "Date not recognised!", numAnn.annotate ( pvrec ) );
+
+		AnnotationStore store = AnnotatorResources.getInstance ().getStore ();
+		assertTrue ( "Wrong data item type!", store.getDataItems ().get ( "25/12/2014" ) instanceof DateItem );
+		
+		// A unit having an ontology term isn't sent to the discoverer
+		pvrec = new PropertyValRecord ( 1L, "Weight", "35", true, "mg", "UO_0000022" );
+		assertTrue ( "Number not recognised!", numAnn.annotate ( pvrec ) );
+		assertNull ( "Unit with ontology term was annotated!", 
+			store.getDiscoveredTerms ().get ( ExpPropValAnnotation.getPvalText ( "Unit", "mg" ) ) 
+		);
+	}
 }
@@ -0,0 +1,221 @@
+package uk.ac.ebi.fg.biosd.annotator.ontodiscover;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import uk.ac.ebi.fg.biosd.annotator.ontodiscover.AdaptiveZOOMASearchFilter.CircuitState;
+import uk.ac.ebi.fg.biosd.annotator.threading.AnnotatorStage;
+import uk.ac.ebi.fgpt.zooma.model.AnnotationPrediction;
+import uk.ac.ebi.fgpt.zooma.model.Property;
+import uk.ac.ebi.fgpt.zooma.search.AbstractZOOMASearch;
+
+/**
+ * Tests for {@link AdaptiveZOOMASearchFilter}.
+ */
+public class AdaptiveZOOMASearchFilterTest
+{
+	/**
+	 * A fake ZOOMA, which can be made to fail, either because it's down or with another error.
+	 */
+	private static class FlakyZOOMASearch extends AbstractZOOMASearch
+	{
+		volatile boolean isDown = false;
+		volatile RuntimeException otherError = null;
+		volatile int calls = 0;
+		
+		@Override
+		public List<AnnotationPrediction> annotate ( Property property )
+		{
+			calls++;
+			if ( isDown ) throw new RuntimeException ( "ZOOMA is down", new ConnectException ( "Connection refused" ) );
+			if ( otherError != null ) throw otherError;
+			return Collections.emptyList ();
+		}
+	}
+	
+	@Test
+	public void testLimitAndCircuit () throws InterruptedException
+	{
+		FlakyZOOMASearch zooma = new FlakyZOOMASearch ();
+		AdaptiveZOOMASearchFilter filter = new AdaptiveZOOMASearchFilter ( zooma, 16, 0, 0.5, 1000 );
+		
+		// Failures halve the limit
+		zooma.isDown = true;
+		for ( int i = 0; i < 3; i++ )
+		{
+			Thread.sleep ( 5 ); // let the decrease period pass
+			try {
+				filter.annotate ( null );
+				fail ( "ZOOMA failure not reported!" );
+			}
+			catch ( ZOOMAUnavailableException ex ) {
+				assertTrue ( "Wrong cause for the ZOOMA failure!", ZOOMAUnavailableException.isCauseOf ( ex ) );
+			}
+		}
+		assertEquals ( "Limit not decreased!", 2, filter.getLimit () );
+
+		// Many failures open the circuit and the next calls don't reach ZOOMA
+		for ( int i = 0; i < 20 && filter.getCircuitState () == CircuitState.CLOSED; i++ )
+			try { filter.annotate ( null ); } catch ( ZOOMAUnavailableException ex ) {}
+		assertEquals ( "Circuit not open!", CircuitState.OPEN, filter.getCircuitState () );
+		
+		int ncalls = zooma.calls;
+		try {
+			filter.annotate ( null );
+			fail ( "Call not rejected with open circuit!" );
+		}
+		catch ( ZOOMAUnavailableException ex ) {}
+		assertEquals ( "Call reached ZOOMA with open circuit!", ncalls, zooma.calls );
+		assertEquals ( "Rejected call not counted!", 1, filter.getRejectedCalls () );
+
+		// After the open time, a successful probe closes it
+		zooma.isDown = false;
+		Thread.sleep ( 1100 );
+		filter.annotate ( null );
+		assertEquals ( "Circuit not closed!", CircuitState.CLOSED, filter.getCircuitState () );
+		
+		// And successes make the limit grow again
+		int limit = filter.getLimit ();
+		for ( int i = 0; i < 100; i++ ) filter.annotate ( null );
+		assertTrue ( "Limit not increased!", filter.getLimit () > limit );
+		assertTrue ( "Limit above the max!", filter.getLimit () <= 16 );
+	}
+	
+	
+	/**
+	 * Runs the calls from the async lookup stage, as the annotation service does with 'async' lookup mode. The
+	 * callers waiting for a call slot must be woken up and ZOOMA must never see more calls than the limit.
+	 */
+	@Test
+	public void testAsyncStage ()
+	{
+		final AtomicInteger nrunning = new AtomicInteger ( 0 ), maxRunning = new AtomicInteger ( 0 );
+		AbstractZOOMASearch zooma = new AbstractZOOMASearch () 
+		{
+			@Override
+			public List<AnnotationPrediction> annotate ( Property property )
+			{
+				int n = nrunning.incrementAndGet ();
+				for ( int max; n > ( max = maxRunning.get () ) && !maxRunning.compareAndSet ( max, n ); );
+				try {
+					Thread.sleep ( 5 );
+				}
+				catch ( InterruptedException ex ) {
+					throw new RuntimeException ( "Interrupted test call", ex );
+				}
+				finally {
+					nrunning.decrementAndGet ();
+				}
+				return Collections.emptyList ();
+			}
+		};
+		
+		int maxCalls = 4, njobs = 200;
+		final AdaptiveZOOMASearchFilter filter = new AdaptiveZOOMASearchFilter ( zooma, maxCalls, 60000, 0.5, 1000 );
+		final AtomicInteger nresults = new AtomicInteger ( 0 );
+		
+		AnnotatorStage stage = AnnotatorStage.newAsyncStage ( "test", 4 * maxCalls );
+		for ( int i = 0; i < njobs; i++ )
+			stage.submit ( new Runnable() 
+			{
+				@Override
+				public void run () 
+				{
+					if ( filter.annotate ( null ) != null ) nresults.incrementAndGet ();
+				}
+			});
+		stage.waitAllFinished ();
+		
+		assertEquals ( "Wrong no. of failed calls!", 0, stage.getFailedJobs () );
+		assertEquals ( "Wrong no. of results!", njobs, nresults.get () );
+		assertTrue ( "Concurrency limit not honoured!", maxRunning.get () <= maxCalls );
+		assertEquals ( "Call slots not released!", 0, filter.getActiveCalls () );
+		assertEquals ( "Limit changed!", maxCalls, filter.getLimit () );
+	}
+	
+
+	@Test
+	public void testErrorMapping ()
+	{
+		assertTrue ( "I/O error not mapped!", AdaptiveZOOMASearchFilter.isZOOMAFailure ( 
+			new RuntimeException ( "Test error", new IOException ( "Connection reset" ) ) 
+		));
+		assertTrue ( "Timeout not mapped!", AdaptiveZOOMASearchFilter.isZOOMAFailure ( 
+			new RuntimeException ( new SocketTimeoutException ( "Read timed out" ) ) 
+		));
+		assertTrue ( "HTTP 5xx not mapped!", AdaptiveZOOMASearchFilter.isZOOMAFailure ( 
+			new RuntimeException ( "Test error", new IOException ( "Server returned HTTP response code: 503 for URL: http://test" ) )
+		));
+		assertFalse ( "HTTP 4xx mapped!", AdaptiveZOOMASearchFilter.isZOOMAFailure ( 
+			new RuntimeException ( "Test error", new IOException ( "Server returned HTTP response code: 400 for URL: http://test" ) )
+		));
+		assertFalse ( "HTTP 404 mapped!", AdaptiveZOOMASearchFilter.isZOOMAFailure ( 
+			new RuntimeException ( "Test error", new FileNotFoundException ( "http://test" ) ) 
+		));
+		assertFalse ( "Generic error mapped!", AdaptiveZOOMASearchFilter.isZOOMAFailure ( 
+			new IllegalArgumentException ( "Test error" ) 
+		));
+	}
+	
+	
+	/**
+	 * Errors that aren't about ZOOMA being down fail the call as they are and don't affect the limit nor the circuit.
+	 */
+	@Test
+	public void testOtherErrors () throws InterruptedException
+	{
+		FlakyZOOMASearch zooma = new FlakyZOOMASearch ();
+		AdaptiveZOOMASearchFilter filter = new AdaptiveZOOMASearchFilter ( zooma, 16, 0, 0.5, 1000 );
+		
+		IllegalStateException otherError = new IllegalStateException ( "Test error" );
+		zooma.otherError = otherError;
+		for ( int i = 0; i < 50; i++ )
+		{
+			Thread.sleep ( 1 ); // let the decrease period pass
+			try {
+				filter.annotate ( null );
+				fail ( "Error not reported!" );
+			}
+			catch ( IllegalStateException ex ) {
+				assertSame ( "Wrong error reported!", otherError, ex );
+			}
+		}
+		assertEquals ( "Circuit changed by other errors!", CircuitState.CLOSED, filter.getCircuitState () );
+		assertEquals ( "Limit changed by other errors!", 16, filter.getLimit () );
+		assertEquals ( "Call slots not released!", 0, filter.getActiveCalls () );
+		
+		// A probe failing with another error doesn't close the circuit, the next call probes again
+		zooma.otherError = null;
+		zooma.isDown = true;
+		for ( int i = 0; i < 20 && filter.getCircuitState () == CircuitState.CLOSED; i++ )
+			try { filter.annotate ( null ); } catch ( ZOOMAUnavailableException ex ) {}
+		assertEquals ( "Circuit not open!", CircuitState.OPEN, filter.getCircuitState () );
+		
+		zooma.isDown = false;
+		zooma.otherError = otherError;
+		Thread.sleep ( 1100 );
+		try {
+			filter.annotate ( null );
+			fail ( "Error not reported by the probe!" );
+		}
+		catch ( IllegalStateException ex ) {}
+		assertEquals ( "Circuit changed by another error in the probe!", CircuitState.HALF_OPEN, filter.getCircuitState () );
+
+		zooma.otherError = null;
+		filter.annotate ( null );
+		assertEquals ( "Circuit not closed by the next probe!", CircuitState.CLOSED, filter.getCircuitState () );
+	}
+}
@@ -2,10 +2,13 @@ package uk.ac.ebi.fg.biosd.annotator.ontodiscover;
 
 import static java.lang.String.format;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static uk.ac.ebi.fg.biosd.annotator.PropertyValAnnotationManager.ONTO_DISCOVERER_PROP_NAME;
 
+import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
 
@@ -212,4 +215,61 @@ public class BioSDOntoDiscoveringCacheTest
 		);
 	}
 	
+	/**
+	 * Tests {@link ExpPropValAnnotationIndex}, both in full and prefetch mode.
+	 */
+	@Test
+	public void testIndex ()
+	{
+		String pvkey = ExpPropValAnnotation.getPvalText ( "specie", "homo sapiens" );
+		String uri = "http://purl.obolibrary.org/obo/NCBITaxon_9606";
+
+		ExpPropValAnnotation pvann = new ExpPropValAnnotation ( pvkey );
+		pvann.setOntoTermUri ( uri );
+		pvann.setScore ( 90d );
+		pvann.setType ( new OntoTermDiscoveryStoreCache ( "" ).getTypeMarker () );
+		pvann.setProvenance ( PropertyValAnnotationManager.PROVENANCE_MARKER );
+		pvann.setTimestamp ( new Date () );
+		
+		AnnotatorResources.getInstance ().getStore ().getExpPropValAnnotations ().put ( pvkey, uri, pvann );
+		new AnnotatorPersister ().persist ();
+		AnnotatorResources.getInstance ().reset ();
+		
+		String missingKey = ExpPropValAnnotation.getPvalText ( "foo type", "foo value 2dcfe07e" );
+
+		EntityManager em = Resources.getInstance ().getEntityManagerFactory ().createEntityManager ();
+		try
+		{
+			// Prefetch
+			ExpPropValAnnotationIndex index = new ExpPropValAnnotationIndex ();
+			assertEquals ( "Wrong no. of prefetched keys!", 2, index.prefetch ( em, Arrays.asList ( pvkey, missingKey ) ) );
+			
+			assertTrue ( "Prefetched key not indexed!", index.contains ( pvkey ) );
+			List<DiscoveredTerm> dterms = index.getOntologyTerms ( pvkey );
+			assertNotNull ( "No terms from the prefetched index!", dterms );
+			assertEquals ( "Wrong no. of terms from the prefetched index!", 1, dterms.size () );
+			assertEquals ( "Wrong URI from the prefetched index!", uri, dterms.get ( 0 ).getIri () );
+			
+			assertTrue ( "Missing key not remembered!", index.contains ( missingKey ) );
+			assertNull ( "Missing key has terms!", index.getOntologyTerms ( missingKey ) );
+			
+			// Full load
+			index = new ExpPropValAnnotationIndex ();
+			assertTrue ( "Full index is empty!", index.loadAll ( em ) > 0 );
+			assertTrue ( "Full index not flagged!", index.isFullyLoaded () );
+			assertTrue ( "Key not in the full index!", index.contains ( pvkey ) );
+			assertEquals ( "Wrong URI from the full index!", uri, index.getOntologyTerms ( pvkey ).get ( 0 ).getIri () );
+			assertFalse ( "Missing key in the full index!", index.contains ( missingKey ) );
+			
+			// The cache uses the shared index
+			AnnotatorResources.getInstance ().getPvAnnIndex ().prefetch ( em, Arrays.asList ( pvkey ) );
+			assertEquals ( "Cache doesn't work with the index!", uri, 
+				biosdCache.getOntologyTerms ( "homo sapiens", "specie" ).get ( 0 ).getIri () 
+			);
+		}
+		finally {
+			em.close ();
+		}
+	}
+	
 }
@@ -0,0 +1,91 @@
+package uk.ac.ebi.fg.biosd.annotator.ontodiscover;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import uk.ac.ebi.onto_discovery.api.OntologyDiscoveryException;
+import uk.ac.ebi.onto_discovery.api.OntologyTermDiscoverer;
+
+/**
+ * Tests for {@link CoalescingOntoTermDiscoverer}.
+ */
+public class CoalescingOntoTermDiscovererTest
+{
+	/**
+	 * A slow discoverer, which counts how many times it's called.
+	 */
+	private static class CountingDiscoverer extends OntologyTermDiscoverer
+	{
+		final AtomicInteger calls = new AtomicInteger ( 0 );
+
+		@Override
+		public List<DiscoveredTerm> getOntologyTerms ( String valueLabel, String typeLabel )
+			throws OntologyDiscoveryException
+		{
+			calls.incrementAndGet ();
+			try {
+				Thread.sleep ( 500 );
+			}
+			catch ( InterruptedException ex ) {
+				throw new OntologyDiscoveryException ( "Interrupted", ex );
+			}
+			return Arrays.asList ( new DiscoveredTerm ( "http://www.example.com/" + valueLabel, 100d ) );
+		}
+	}
+
+	@Test
+	public void testCoalescing () throws Exception
+	{
+		final CountingDiscoverer base = new CountingDiscoverer ();
+		final CoalescingOntoTermDiscoverer discoverer = new CoalescingOntoTermDiscoverer ( base );
+
+		final int nthreads = 20;
+		final CountDownLatch startLatch = new CountDownLatch ( 1 );
+		final AtomicInteger results = new AtomicInteger ( 0 );
+
+		ExecutorService executor = Executors.newFixedThreadPool ( nthreads );
+		for ( int i = 0; i < nthreads; i++ )
+		{
+			final String value = i % 2 == 0 ? "homo sapiens" : "female";
+			executor.submit ( new Runnable()
+			{
+				@Override
+				public void run ()
+				{
+					try
+					{
+						startLatch.await ();
+						List<OntologyTermDiscoverer.DiscoveredTerm> dterms = discoverer.getOntologyTerms ( value, null );
+						assertNotNull ( "No result!", dterms );
+						assertEquals ( "Wrong result!", 1, dterms.size () );
+						results.incrementAndGet ();
+					}
+					catch ( InterruptedException ex ) {
+						throw new RuntimeException ( ex );
+					}
+				}
+			});
+		}
+		startLatch.countDown ();
+		executor.shutdown ();
+		executor.awaitTermination ( 1, TimeUnit.MINUTES );
+
+		assertEquals ( "Some lookups failed!", nthreads, results.get () );
+		assertEquals ( "Lookups not coalesced!", 2, base.calls.get () );
+		assertEquals ( "Wrong coalesced count!", nthreads - 2, discoverer.getCoalescedCalls () );
+
+		// Keys aren't kept after the lookup
+		discoverer.getOntologyTerms ( "female", null );
+		assertEquals ( "Coalescer is caching!", 3, base.calls.get () );
+	}
+}
@@ -0,0 +1,137 @@
+package uk.ac.ebi.fg.biosd.annotator.ontodiscover;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import uk.ac.ebi.onto_discovery.api.CachedOntoTermDiscoverer;
+import uk.ac.ebi.onto_discovery.api.OntologyTermDiscoverer.DiscoveredTerm;
+
+/**
+ * Tests for {@link LocalFileOntoTermDiscoveryCache}.
+ */
+public class LocalFileOntoTermDiscoveryCacheTest
+{
+	@Rule
+	public TemporaryFolder tmpFolder = new TemporaryFolder ();
+
+	@Test
+	public void testSharedCache ()
+	{
+		File file = new File ( tmpFolder.getRoot (), "zooma_cache" );
+		long ttl = 3600 * 1000;
+
+		// Two instances on the same file, like two processes on the same host
+		LocalFileOntoTermDiscoveryCache cache1 = new LocalFileOntoTermDiscoveryCache ( "zooma", file, ttl, ttl ),
+			cache2 = new LocalFileOntoTermDiscoveryCache ( "zooma", file, ttl, ttl ),
+			unitCache = new LocalFileOntoTermDiscoveryCache ( "zooma-unit", file, ttl, ttl );
+		try
+		{
+			assertNull ( "Cache not empty!", cache1.getOntologyTerms ( "homo sapiens", "organism" ) );
+
+			cache1.save ( "homo sapiens", "organism", Arrays.asList (
+				new DiscoveredTerm ( "http://purl.obolibrary.org/obo/NCBITaxon_9606", 90d ),
+				new DiscoveredTerm ( "http://www.ebi.ac.uk/efo/EFO_0000001", null )
+			));
+			cache1.save ( "foo", "bar", Collections.<DiscoveredTerm>emptyList () );
+
+			List<DiscoveredTerm> dterms = cache2.getOntologyTerms ( "homo sapiens", "organism" );
+			assertNotNull ( "Cached terms not found!", dterms );
+			assertEquals ( "Wrong no. of cached terms!", 2, dterms.size () );
+			assertEquals ( "Wrong cached IRI!", "http://purl.obolibrary.org/obo/NCBITaxon_9606", dterms.get ( 0 ).getIri () );
+			assertEquals ( "Wrong cached score!", (Double) 90d, dterms.get ( 0 ).getScore () );
+			assertNull ( "Wrong null score!", dterms.get ( 1 ).getScore () );
+
+			assertTrue ( "Null result not cached!",
+				cache2.getOntologyTerms ( "foo", "bar" ) == CachedOntoTermDiscoverer.NULL_RESULT );
+
+			assertNull ( "Namespaces not separated!", unitCache.getOntologyTerms ( "homo sapiens", "organism" ) );
+		}
+		finally {
+			cache1.close ();
+			cache2.close ();
+			unitCache.close ();
+		}
+	}
+
+	@Test
+	public void testExpiry () throws InterruptedException
+	{
+		LocalFileOntoTermDiscoveryCache cache = new LocalFileOntoTermDiscoveryCache (
+			"zooma", new File ( tmpFolder.getRoot (), "zooma_cache" ), 3600 * 1000, 1
+		);
+		try
+		{
+			cache.save ( "homo sapiens", "organism", Arrays.asList (
+				new DiscoveredTerm ( "http://purl.obolibrary.org/obo/NCBITaxon_9606", 90d )
+			));
+			cache.save ( "foo", "bar", Collections.<DiscoveredTerm>emptyList () );
+			Thread.sleep ( 100 );
+
+			assertNotNull ( "Cached terms expired too early!", cache.getOntologyTerms ( "homo sapiens", "organism" ) );
+			assertNull ( "Null result not expired!", cache.getOntologyTerms ( "foo", "bar" ) );
+		}
+		finally {
+			cache.close ();
+		}
+	}
+
+	/**
+	 * Concurrent lookups use multiple connections of the same instance.
+	 */
+	@Test
+	public void testConcurrentAccess () throws Exception
+	{
+		final LocalFileOntoTermDiscoveryCache cache = new LocalFileOntoTermDiscoveryCache (
+			"zooma", new File ( tmpFolder.getRoot (), "zooma_cache" ), 3600 * 1000, 3600 * 1000
+		);
+		final AtomicInteger nerrors = new AtomicInteger ( 0 );
+		try
+		{
+			int nthreads = 2 * LocalFileOntoTermDiscoveryCache.POOL_SIZE;
+			List<Thread> threads = new ArrayList<> ();
+			for ( int i = 0; i < nthreads; i++ )
+			{
+				final int threadIdx = i;
+				Thread thread = new Thread ( "test-cache-" + i )
+				{
+					@Override
+					public void run ()
+					{
+						for ( int j = 0; j < 100; j++ )
+						{
+							String value = "value " + threadIdx + "/" + j, iri = "http://www.example.com/term_" + j;
+							cache.save ( value, "test property", Arrays.asList ( new DiscoveredTerm ( iri, (double) j ) ) );
+							List<DiscoveredTerm> dterms = cache.getOntologyTerms ( value, "test property" );
+							if ( dterms == null || dterms.size () != 1 || !iri.equals ( dterms.get ( 0 ).getIri () ) ) 
+								nerrors.incrementAndGet ();
+						}
+					}
+				};
+				threads.add ( thread );
+				thread.start ();
+			}
+			for ( Thread thread: threads ) thread.join ();
+			assertEquals ( "Wrong results from concurrent lookups!", 0, nerrors.get () );
+
+			// Still working after close()
+			cache.close ();
+			assertNotNull ( "Cache not reopened!", cache.getOntologyTerms ( "value 0/0", "test property" ) );
+		}
+		finally {
+			cache.close ();
+		}
+	}
+}
@@ -9,6 +9,7 @@ import org.apache.commons.lang3.StringUtils;
 import org.junit.Before;
 import org.junit.Test;
 
+import uk.ac.ebi.fg.biosd.annotator.AnnotationStore;
 import uk.ac.ebi.fg.biosd.annotator.AnnotatorResources;
 import uk.ac.ebi.fg.biosd.annotator.PropertyValAnnotationManager;
 import uk.ac.ebi.fg.biosd.annotator.model.ComputedOntoTerm;
@@ -20,8 +21,6 @@ import uk.ac.ebi.fg.core_model.resources.Resources;
 import uk.ac.ebi.fg.core_model.terms.OntologyEntry;
 import uk.ac.ebi.fg.core_model.xref.ReferenceSource;
 
-import com.google.common.collect.Table;
-
 /**
  * Tests for {@link OntoResolverAndAnnotator}.
  *
@@ -50,15 +49,13 @@ public class OntoResolverTest
 				
 		// Check
 		//
-		Table<Class, String, Object> store = AnnotatorResources.getInstance ().getStore ();
+		AnnotationStore store = AnnotatorResources.getInstance ().getStore ();
 
-		ComputedOntoTerm oeComp = (ComputedOntoTerm) store.get ( 
-			ComputedOntoTerm.class, "http://www.ebi.ac.uk/efo/EFO_0000270"
-		);
+		ComputedOntoTerm oeComp = store.getComputedOntoTerms ().get ( "http://www.ebi.ac.uk/efo/EFO_0000270" );
 		assertNotNull ( "Expected OntoTerm not created!", oeComp );
 		
-		ResolvedOntoTermAnnotation oeAnn = (ResolvedOntoTermAnnotation) store.get (
-			ResolvedOntoTermAnnotation.class, ResolvedOntoTermAnnotation.getOntoEntryText ( oe ) 
+		ResolvedOntoTermAnnotation oeAnn = store.getResolvedOntoTermAnnotations ().get (
+			ResolvedOntoTermAnnotation.getOntoEntryText ( oe ) 
 		);
 
 		assertNotNull ( "Annotation not created!", oeAnn );
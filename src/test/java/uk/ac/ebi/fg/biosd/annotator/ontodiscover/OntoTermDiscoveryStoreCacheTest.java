@@ -1,9 +1,15 @@
 package uk.ac.ebi.fg.biosd.annotator.ontodiscover;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
+import java.util.Collections;
+import java.util.Date;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -17,8 +23,6 @@ import uk.ac.ebi.fg.core_model.expgraph.properties.ExperimentalPropertyValue;
 import uk.ac.ebi.onto_discovery.api.OntologyTermDiscoverer.DiscoveredTerm;
 import uk.ac.ebi.utils.time.XStopWatch;
 
-import com.google.common.collect.Table;
-
 /**
  * Tests for {@link OntoTermDiscoveryStoreCache}.
  *
@@ -37,7 +41,6 @@ public class OntoTermDiscoveryStoreCacheTest
 	
 
 	@Test
-	@SuppressWarnings ( { "rawtypes", "unchecked" } )
 	public void testBasics ()
 	{
 		OntoDiscoveryAndAnnotator ontoDiscoverer = new OntoDiscoveryAndAnnotator (
@@ -64,8 +67,7 @@ public class OntoTermDiscoveryStoreCacheTest
 		// Verify
 		String pvkey = ExpPropValAnnotation.getPvalText ( pval );
 		
-		Table<Class, String, Object> store = AnnotatorResources.getInstance ().getStore ();
-		List<DiscoveredTerm> dterms = (List<DiscoveredTerm>) store.get ( DiscoveredTerm.class, pvkey );
+		List<DiscoveredTerm> dterms = AnnotatorResources.getInstance ().getStore ().getDiscoveredTerms ().get ( pvkey );
 		assertNotNull ( "ZOOMA terms not found in store", dterms );
 		assertTrue ( "dterms is empty!", dterms.size () > 0 );
 
@@ -84,4 +86,45 @@ public class OntoTermDiscoveryStoreCacheTest
 		
 		assertTrue ( "WTH?! Time after first call is longer!", nextCallsTime < firstCallTime / 100.0 );
 	}
+
+	@Test
+	public void testNullResults ()
+	{
+		OntoTermDiscoveryStoreCache cache = new OntoTermDiscoveryStoreCache ( "ZOOMA" );
+		String pvkey = ExpPropValAnnotation.getPvalText ( "foo type", "foo value" );
+		
+		String oldTtl = System.getProperty ( OntoTermDiscoveryStoreCache.NULL_TTL_PROP );
+		try
+		{
+			// Old behaviour, ZOOMA misses are not cached
+			System.setProperty ( OntoTermDiscoveryStoreCache.NULL_TTL_PROP, "0" );
+			cache.save ( "foo value", "foo type", Collections.<DiscoveredTerm>emptyList () );
+			assertNull ( "Null result cached with TTL = 0!", cache.getOntologyTerms ( "foo value", "foo type" ) );
+			assertNull ( 
+				"Null annotation stored with TTL = 0!", 
+				AnnotatorResources.getInstance ().getStore ().getExpPropValAnnotations ().get ( pvkey ) 
+			);
+			
+			System.setProperty ( OntoTermDiscoveryStoreCache.NULL_TTL_PROP, "30" );
+			cache.save ( "foo value", "foo type", Collections.<DiscoveredTerm>emptyList () );
+			List<DiscoveredTerm> dterms = cache.getOntologyTerms ( "foo value", "foo type" );
+			assertNotNull ( "Null result not cached!", dterms );
+			assertTrue ( "Null result not empty!", dterms.isEmpty () );
+			
+			ExpPropValAnnotation pvann = AnnotatorResources.getInstance ().getStore ().getExpPropValAnnotations ().get ( pvkey );
+			assertNotNull ( "Null annotation not stored!", pvann );
+			assertEquals ( "Wrong URI for the null annotation!", ExpPropValAnnotation.NULL_TERM_URI, pvann.getOntoTermUri () );
+			assertFalse ( "Null annotation expired too early!", OntoTermDiscoveryStoreCache.isNullResultExpired ( pvann.getTimestamp () ) );
+			assertTrue ( 
+				"Old null annotation not expired!", 
+				OntoTermDiscoveryStoreCache.isNullResultExpired ( new Date ( System.currentTimeMillis () - TimeUnit.DAYS.toMillis ( 31 ) ) ) 
+			);
+		}
+		finally {
+			if ( oldTtl == null ) 
+				System.clearProperty ( OntoTermDiscoveryStoreCache.NULL_TTL_PROP );
+			else
+				System.setProperty ( OntoTermDiscoveryStoreCache.NULL_TTL_PROP, oldTtl );
+		}
+	}
 }
@@ -0,0 +1,152 @@
+package uk.ac.ebi.fg.biosd.annotator.persistence;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static uk.ac.ebi.fg.biosd.annotator.test.TestPvAnnotations.addPvAnn;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import javax.persistence.EntityManager;
+
+import org.joda.time.DateTime;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.rules.TestRule;
+
+import uk.ac.ebi.fg.biosd.annotator.AnnotatorResources;
+import uk.ac.ebi.fg.biosd.annotator.model.ExpPropValAnnotation;
+import uk.ac.ebi.fg.biosd.annotator.purge.Purger;
+import uk.ac.ebi.fg.biosd.annotator.test.AnnotatorResourcesResetRule;
+import uk.ac.ebi.fg.core_model.resources.Resources;
+
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnel;
+import com.google.common.hash.Funnels;
+
+/**
+ * Tests for {@link AnnotationKeyFilter}.
+ */
+public class AnnotationKeyFilterTest
+{
+	@Rule
+	public TestRule resResetRule = new AnnotatorResourcesResetRule ();
+
+	@Rule
+	public TemporaryFolder tmpFolder = new TemporaryFolder ();
+
+	@After
+	public void cleanUp ()
+	{
+		new Purger ().purge ( new DateTime ().minusMinutes ( 1 ).toDate (), new Date () );
+	}
+
+	@Test
+	public void testBuildSaveLoad () throws Exception
+	{
+		String pvkey = ExpPropValAnnotation.getPvalText ( "organism", "Mus musculus" );
+		addPvAnn ( AnnotatorResources.getInstance ().getStore (), pvkey, "http://purl.obolibrary.org/obo/NCBITaxon_10090" );
+		new AnnotatorPersister ().persist ();
+
+		String missingKey = ExpPropValAnnotation.getPvalText ( "organism", "Not a real organism 6f1c8a" );
+
+		AnnotationKeyFilter filter = new AnnotationKeyFilter ();
+		assertTrue ( "Empty filter should let everything through!", filter.mightContainPvAnnKey ( missingKey ) );
+
+		EntityManager em = Resources.getInstance ().getEntityManagerFactory ().createEntityManager ();
+		try {
+			filter.build ( em );
+		}
+		finally {
+			em.close ();
+		}
+
+		assertTrue ( "Filter not loaded!", filter.isLoaded () );
+		assertTrue ( "Existing key not in the filter!", filter.mightContainPvAnnKey ( pvkey ) );
+		assertFalse ( "Missing key in the filter!", filter.mightContainPvAnnKey ( missingKey ) );
+
+		filter.addPvAnnKey ( missingKey );
+		assertTrue ( "Added key not in the filter!", filter.mightContainPvAnnKey ( missingKey ) );
+
+		File filterFile = new File ( tmpFolder.getRoot (), "key_filter.bin" );
+		filter.save ( filterFile );
+
+		AnnotationKeyFilter filter1 = new AnnotationKeyFilter ();
+		filter1.load ( filterFile );
+		assertTrue ( "Existing key not in the loaded filter!", filter1.mightContainPvAnnKey ( pvkey ) );
+		assertTrue ( "Added key not in the loaded filter!", filter1.mightContainPvAnnKey ( missingKey ) );
+	}
+
+
+	/**
+	 * Loads a file in the old, single-stripe, format, adds keys from multiple threads and checks they're all there,
+	 * also after saving the filter in the current format.
+	 */
+	@Test
+	public void testConcurrentAdd () throws Exception
+	{
+		Funnel<CharSequence> funnel = Funnels.stringFunnel ( StandardCharsets.UTF_8 );
+		BloomFilter<CharSequence> oldPvAnnKeys = BloomFilter.create ( funnel, 10000, AnnotationKeyFilter.FALSE_POSITIVE_RATE );
+		oldPvAnnKeys.put ( "old key" );
+
+		File oldFile = new File ( tmpFolder.getRoot (), "key_filter_v1.bin" );
+		try ( DataOutputStream out = new DataOutputStream ( new FileOutputStream ( oldFile ) ) )
+		{
+			out.writeInt ( 0xB10F1173 );
+			out.writeInt ( 1 );
+			oldPvAnnKeys.writeTo ( out );
+			BloomFilter.create ( funnel, 10000, AnnotationKeyFilter.FALSE_POSITIVE_RATE ).writeTo ( out );
+		}
+
+		final AnnotationKeyFilter filter = new AnnotationKeyFilter ();
+		filter.load ( oldFile );
+		assertTrue ( "Key from the old format not found!", filter.mightContainPvAnnKey ( "old key" ) );
+
+		final int nthreads = 8, nkeys = 1000;
+		List<Thread> threads = new ArrayList<> ();
+		for ( int t = 0; t < nthreads; t++ )
+		{
+			final int threadIdx = t;
+			Thread thread = new Thread ( "test-adder-" + t ) 
+			{
+				@Override
+				public void run () 
+				{
+					for ( int i = 0; i < nkeys; i++ ) 
+					{
+						// Half of the keys are added by all the threads
+						filter.addPvAnnKey ( i % 2 == 0 ? "key " + i : "key " + threadIdx + "-" + i );
+						filter.addDataItemKey ( "data key " + i );
+					}
+				}
+			};
+			threads.add ( thread );
+			thread.start ();
+		}
+		for ( Thread thread: threads ) thread.join ();
+
+		File newFile = new File ( tmpFolder.getRoot (), "key_filter.bin" );
+		filter.save ( newFile );
+		AnnotationKeyFilter filter1 = new AnnotationKeyFilter ();
+		filter1.load ( newFile );
+
+		for ( AnnotationKeyFilter f: new AnnotationKeyFilter[] { filter, filter1 } )
+		{
+			assertTrue ( "Old key lost!", f.mightContainPvAnnKey ( "old key" ) );
+			for ( int t = 0; t < nthreads; t++ )
+				for ( int i = 0; i < nkeys; i++ ) 
+				{
+					String key = i % 2 == 0 ? "key " + i : "key " + t + "-" + i;
+					assertTrue ( "Added key '" + key + "' not found!", f.mightContainPvAnnKey ( key ) );
+					assertTrue ( "Added data key not found!", f.mightContainDataItemKey ( "data key " + i ) );
+				}
+		}
+	}
+}
@@ -0,0 +1,86 @@
+package uk.ac.ebi.fg.biosd.annotator.persistence;
+
+import static org.junit.Assert.assertEquals;
+import static uk.ac.ebi.fg.biosd.annotator.test.TestPvAnnotations.addPvAnn;
+
+import java.util.Date;
+
+import org.joda.time.DateTime;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+
+import uk.ac.ebi.fg.biosd.annotator.AnnotationStore;
+import uk.ac.ebi.fg.biosd.annotator.AnnotatorResources;
+import uk.ac.ebi.fg.biosd.annotator.model.ExpPropValAnnotation;
+import uk.ac.ebi.fg.biosd.annotator.model.NumberItem;
+import uk.ac.ebi.fg.biosd.annotator.purge.Purger;
+import uk.ac.ebi.fg.biosd.annotator.test.AnnotatorResourcesResetRule;
+
+/**
+ * Tests for {@link AnnotatorPersister}.
+ */
+public class AnnotatorPersisterTest
+{
+	@Rule
+	public TestRule resResetRule = new AnnotatorResourcesResetRule ();
+
+	@After
+	public void cleanUp ()
+	{
+		System.clearProperty ( AnnotatorPersister.PARTITIONS_PROP );
+		System.clearProperty ( AnnotatorPersister.COMMIT_SIZE_PROP );
+		new Purger ().purge ( new DateTime ().minusMinutes ( 1 ).toDate (), new Date () );
+	}
+
+	@Test
+	public void testPartitionedPersistence ()
+	{
+		System.setProperty ( AnnotatorPersister.PARTITIONS_PROP, "4" );
+		System.setProperty ( AnnotatorPersister.COMMIT_SIZE_PROP, "10" );
+
+		AnnotationStore store = AnnotatorResources.getInstance ().getStore ();
+		int n = 100;
+		for ( int i = 0; i < n; i++ )
+		{
+			String pvkey = ExpPropValAnnotation.getPvalText ( "test partition property", "Value " + i );
+			addPvAnn ( store, pvkey, "http://www.example.com/partition_test_" + ( i % 7 ) );
+
+			NumberItem ni = new NumberItem ( (double) i, "partition test " + i );
+			ni.setTimestamp ( new Date () );
+			store.getDataItems ().put ( ni.getSourceText (), ni );
+		}
+
+		assertEquals ( "Wrong no. of persisted entities!", 2 * n, new AnnotatorPersister ().flush () );
+		assertEquals ( "Store not flushed!", 0, store.getPendingSize () );
+
+		// Saving again doesn't duplicate anything
+		addPvAnn ( 
+			store, ExpPropValAnnotation.getPvalText ( "test partition property", "Value 0" ), "http://www.example.com/partition_test_0" 
+		);
+		assertEquals ( "Existing entities saved again!", 0, new AnnotatorPersister ().flush () );
+	}
+
+	/**
+	 * Entities already in the DB are skipped by the batched existence check.
+	 */
+	@Test
+	public void testFlushSkipsExisting ()
+	{
+		AnnotationStore store = AnnotatorResources.getInstance ().getStore ();
+
+		for ( int i = 0; i < 3; i++ ) addPvAnn ( store, getPvKey ( "Value " + i ), "http://www.example.com/persister_test_" + i );
+		assertEquals ( "Wrong no. of persisted entities!", 3, new AnnotatorPersister ().flush () );
+
+		// Same source text, different URI, so only the pair decides it's new
+		for ( int i = 0; i < 3; i++ ) addPvAnn ( store, getPvKey ( "Value " + i ), "http://www.example.com/persister_test_" + i );
+		addPvAnn ( store, getPvKey ( "Value 0" ), "http://www.example.com/persister_test_new" );
+		assertEquals ( "Existing entities saved again!", 1, new AnnotatorPersister ().flush () );
+	}
+
+	private static String getPvKey ( String value )
+	{
+		return ExpPropValAnnotation.getPvalText ( "test persister property", value );
+	}
+}
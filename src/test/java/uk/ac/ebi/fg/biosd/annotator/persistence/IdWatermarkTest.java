@@ -0,0 +1,32 @@
+package uk.ac.ebi.fg.biosd.annotator.persistence;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests for {@link IdWatermark}.
+ */
+public class IdWatermarkTest
+{
+	@Rule
+	public TemporaryFolder tmpFolder = new TemporaryFolder ();
+
+	@Test
+	public void testSaveLoad ()
+	{
+		IdWatermark watermark = new IdWatermark ( new File ( tmpFolder.getRoot (), "id_watermark.txt" ) );
+		assertNull ( "Watermark found without a previous run!", watermark.load () );
+
+		watermark.save ( 123456789012L );
+		assertEquals ( "Wrong watermark loaded!", (Long) 123456789012L, watermark.load () );
+
+		watermark.save ( 123456789999L );
+		assertEquals ( "Watermark not updated!", (Long) 123456789999L, watermark.load () );
+	}
+}
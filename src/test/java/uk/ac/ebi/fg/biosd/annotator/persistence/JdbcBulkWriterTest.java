@@ -0,0 +1,190 @@
+package uk.ac.ebi.fg.biosd.annotator.persistence;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static uk.ac.ebi.fg.biosd.annotator.test.TestPvAnnotations.newPvAnn;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import javax.persistence.EntityManager;
+
+import org.joda.time.DateTime;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+
+import uk.ac.ebi.fg.biosd.annotator.AnnotationStore;
+import uk.ac.ebi.fg.biosd.annotator.AnnotatorResources;
+import uk.ac.ebi.fg.biosd.annotator.PropertyValAnnotationManager;
+import uk.ac.ebi.fg.biosd.annotator.model.ComputedOntoTerm;
+import uk.ac.ebi.fg.biosd.annotator.model.DataItem;
+import uk.ac.ebi.fg.biosd.annotator.model.DateRangeItem;
+import uk.ac.ebi.fg.biosd.annotator.model.ExpPropValAnnotation;
+import uk.ac.ebi.fg.biosd.annotator.model.NumberItem;
+import uk.ac.ebi.fg.biosd.annotator.model.ResolvedOntoTermAnnotation;
+import uk.ac.ebi.fg.biosd.annotator.purge.Purger;
+import uk.ac.ebi.fg.biosd.annotator.test.AnnotatorResourcesResetRule;
+import uk.ac.ebi.fg.core_model.resources.Resources;
+
+/**
+ * Tests for {@link JdbcBulkWriter}, via {@link AnnotatorPersister}.
+ */
+public class JdbcBulkWriterTest
+{
+	@Rule
+	public TestRule resResetRule = new AnnotatorResourcesResetRule ();
+
+	@Test
+	public void testWrite ()
+	{
+		System.setProperty ( AnnotatorPersister.WRITER_PROP, "jdbc" );
+		try {
+			doTestWrite ();
+		}
+		finally 
+		{
+			System.clearProperty ( AnnotatorPersister.WRITER_PROP );
+			new Purger ().purge ( new DateTime ().minusMinutes ( 1 ).toDate (), new Date () );
+		}
+	}
+	
+	/**
+	 * Tests the H2 statements straight on a JDBC connection, without the JPA layer. The tables here reflect the 
+	 * JPA mappings, which are checked by {@link #testWrite()}.
+	 */
+	@Test
+	public void testH2Statements () throws SQLException
+	{
+		String featureAnnCols = "source_text VARCHAR(601) NOT NULL, type VARCHAR(255), provenance VARCHAR(255), "
+			+ "timestamp TIMESTAMP, score DOUBLE, notes VARCHAR(4000), internal_notes VARCHAR(4000)";
+		
+		try ( Connection conn = DriverManager.getConnection ( "jdbc:h2:mem:jdbc_bulk_writer_test", "sa", "" ) )
+		{
+			try ( Statement stmt = conn.createStatement () ) 
+			{
+				stmt.execute ( "CREATE TABLE fann_exp_pv_feature_ann ( " + featureAnnCols 
+					+ ", term_uri VARCHAR(2000) NOT NULL, PRIMARY KEY ( source_text, term_uri ) )" );
+				stmt.execute ( "CREATE TABLE fann_data_item ( data_item_type VARCHAR(31) NOT NULL, " + featureAnnCols 
+					+ ", number_val DOUBLE, date_val TIMESTAMP, number_low DOUBLE, number_hi DOUBLE, date_low TIMESTAMP, "
+					+ "date_hi TIMESTAMP, PRIMARY KEY ( source_text ) )" );
+			}
+			
+			JdbcBulkWriter writer = new JdbcBulkWriter ( JdbcBulkWriter.Dialect.H2 );
+			Date now = new Date ();
+
+			// More than a batch
+			int n = AnnotatorPersister.BATCH_SIZE * 2 + 10;
+			List<ExpPropValAnnotation> pvanns = new ArrayList<> ();
+			for ( int i = 0; i < n; i++ )
+			{
+				String pvkey = ExpPropValAnnotation.getPvalText ( "test jdbc property", "test value " + i );
+				ExpPropValAnnotation pvann = newPvAnn ( pvkey, "http://www.example.com/jdbc_test_term_" + ( i % 3 ), now );
+				pvann.setScore ( (double) i );
+				pvanns.add ( pvann );
+			}
+			assertEquals ( "Wrong no. of written annotations!", n, writer.write ( conn, ExpPropValAnnotation.class, pvanns ) );
+
+			NumberItem ni = new NumberItem ( 2.5, "jdbc test 2.5" );
+			ni.setTimestamp ( now );
+			DateRangeItem dri = new DateRangeItem ( new DateTime ().minusDays ( 1 ).toDate (), now, "jdbc test date range" );
+			dri.setTimestamp ( now );
+			assertEquals ( "Wrong no. of written data items!", 
+				2, writer.write ( conn, DataItem.class, Arrays.<DataItem>asList ( ni, dri ) ) 
+			);
+			
+			// Existing rows are left alone
+			pvanns.get ( 0 ).setScore ( -1d );
+			assertEquals ( "Existing annotations written again!", 0, writer.write ( conn, ExpPropValAnnotation.class, pvanns ) );
+			assertEquals ( "Existing data item written again!", 
+				0, writer.write ( conn, DataItem.class, Arrays.<DataItem>asList ( ni ) ) 
+			);
+			
+			try ( Statement stmt = conn.createStatement () )
+			{
+				ResultSet rs = stmt.executeQuery ( 
+					"SELECT score FROM fann_exp_pv_feature_ann WHERE source_text = '" + pvanns.get ( 0 ).getSourceText () + "'" 
+				);
+				assertTrue ( "Annotation not saved!", rs.next () );
+				assertEquals ( "Existing annotation changed!", 0d, rs.getDouble ( 1 ), 0d );
+				
+				rs = stmt.executeQuery ( 
+					"SELECT data_item_type, date_hi FROM fann_data_item WHERE source_text = '" + dri.getSourceText () + "'" 
+				);
+				assertTrue ( "Date range not saved!", rs.next () );
+				assertEquals ( "Wrong data item type!", "date_range", rs.getString ( 1 ) );
+				assertEquals ( "Wrong date saved!", now.getTime (), rs.getTimestamp ( 2 ).getTime () );
+			}
+		}
+	}
+
+	private void doTestWrite ()
+	{
+		AnnotationStore store = AnnotatorResources.getInstance ().getStore ();
+		Date now = new Date ();
+
+		String pvkey = ExpPropValAnnotation.getPvalText ( "test jdbc property", "test value" );
+		ExpPropValAnnotation pvann = newPvAnn ( pvkey, "http://www.example.com/jdbc_test_term", now );
+		pvann.setScore ( 90d );
+		store.getExpPropValAnnotations ().put ( pvkey, pvann.getOntoTermUri (), pvann );
+
+		ResolvedOntoTermAnnotation oeann = new ResolvedOntoTermAnnotation ( "TEST|jdbc_test_term" );
+		oeann.setOntoTermUri ( "http://www.example.com/jdbc_test_term" );
+		oeann.setTimestamp ( now );
+		store.getResolvedOntoTermAnnotations ().put ( oeann.getSourceText (), oeann );
+
+		ComputedOntoTerm oterm = new ComputedOntoTerm ( "http://www.example.com/jdbc_test_term", "JDBC Test Term" );
+		store.getComputedOntoTerms ().put ( oterm.getUri (), oterm );
+
+		NumberItem ni = new NumberItem ( 2.5, "jdbc test 2.5" );
+		ni.setTimestamp ( now );
+		store.getDataItems ().put ( ni.getSourceText (), ni );
+
+		DateRangeItem dri = new DateRangeItem ( new DateTime ().minusDays ( 1 ).toDate (), now, "jdbc test date range" );
+		dri.setTimestamp ( now );
+		store.getDataItems ().put ( dri.getSourceText (), dri );
+
+		assertEquals ( "Wrong no. of written entities!", 5, new AnnotatorPersister ().flush () );
+
+		EntityManager em = Resources.getInstance ().getEntityManagerFactory ().createEntityManager ();
+		try
+		{
+			ExpPropValAnnotation pvannDB = em.find (
+				ExpPropValAnnotation.class, new ExpPropValAnnotation.Key ( pvkey, pvann.getOntoTermUri () )
+			);
+			assertNotNull ( "Property value annotation not saved!", pvannDB );
+			assertEquals ( "Wrong score saved!", 90d, pvannDB.getScore (), 0d );
+			assertEquals ( "Wrong provenance saved!", PropertyValAnnotationManager.PROVENANCE_MARKER, pvannDB.getProvenance () );
+
+			assertNotNull ( "Resolved annotation not saved!", em.find ( ResolvedOntoTermAnnotation.class, oeann.getSourceText () ) );
+			assertEquals ( "Computed term not saved!",
+				"JDBC Test Term", em.find ( ComputedOntoTerm.class, oterm.getUri () ).getLabel ()
+			);
+
+			DataItem niDB = em.find ( DataItem.class, ni.getSourceText () );
+			assertTrue ( "Number item not saved!", niDB instanceof NumberItem );
+			assertEquals ( "Wrong number saved!", 2.5, ( (NumberItem) niDB ).getValue (), 0d );
+
+			DataItem driDB = em.find ( DataItem.class, dri.getSourceText () );
+			assertTrue ( "Date range not saved!", driDB instanceof DateRangeItem );
+			assertEquals ( "Wrong date saved!", now.getTime (), ( (DateRangeItem) driDB ).getHi ().getTime () );
+		}
+		finally {
+			if ( em.isOpen () ) em.close ();
+		}
+
+		// Existing rows are left alone
+		pvann.setScore ( 10d );
+		store.getExpPropValAnnotations ().put ( pvkey, pvann.getOntoTermUri (), pvann );
+		store.getDataItems ().put ( ni.getSourceText (), ni );
+		assertEquals ( "Existing entities written again!", 0, new AnnotatorPersister ().flush () );
+	}
+}
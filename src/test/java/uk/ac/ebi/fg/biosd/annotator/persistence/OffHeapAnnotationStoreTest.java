@@ -0,0 +1,114 @@
+package uk.ac.ebi.fg.biosd.annotator.persistence;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static uk.ac.ebi.fg.biosd.annotator.test.TestPvAnnotations.newPvAnn;
+
+import java.util.Date;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import uk.ac.ebi.fg.biosd.annotator.AnnotationStore;
+import uk.ac.ebi.fg.biosd.annotator.AnnotationStore.Key;
+import uk.ac.ebi.fg.biosd.annotator.PropertyValAnnotationManager;
+import uk.ac.ebi.fg.biosd.annotator.model.DataItem;
+import uk.ac.ebi.fg.biosd.annotator.model.DateItem;
+import uk.ac.ebi.fg.biosd.annotator.model.ExpPropValAnnotation;
+import uk.ac.ebi.fg.biosd.annotator.model.NumberItem;
+import uk.ac.ebi.fg.biosd.annotator.model.NumberRangeItem;
+
+/**
+ * Tests for {@link OffHeapAnnotationStore}.
+ */
+public class OffHeapAnnotationStoreTest
+{
+	@Rule
+	public TemporaryFolder tmpFolder = new TemporaryFolder ();
+
+	@Test
+	public void testExpPropValAnnotations ()
+	{
+		AnnotationStore store = new OffHeapAnnotationStore ( 100, null, tmpFolder.getRoot () );
+		AnnotationStore.EntityMap<ExpPropValAnnotation> pvanns = store.getExpPropValAnnotations ();
+
+		// Enough to cause the index to grow
+		int n = 100000;
+		Date ts = new Date ();
+		for ( int i = 0; i < n; i++ )
+		{
+			String pvkey = ExpPropValAnnotation.getPvalText ( "test type", "test value " + i );
+			String uri = "http://www.example.com/term_" + ( i % 10 );
+
+			ExpPropValAnnotation pvann = newPvAnn ( pvkey, uri, ts );
+			if ( i % 2 == 0 ) pvann.setScore ( (double) i );
+
+			pvanns.put ( pvkey, uri, pvann );
+		}
+		assertEquals ( "Wrong size!", n, pvanns.size () );
+		assertEquals ( "Wrong pending size!", n, store.getPendingSize () );
+
+		String pvkey = ExpPropValAnnotation.getPvalText ( "test type", "test value 42" );
+		ExpPropValAnnotation pvann = pvanns.get ( pvkey, "http://www.example.com/term_2" );
+		assertEquals ( "Wrong source text!", pvkey, pvann.getSourceText () );
+		assertEquals ( "Wrong URI!", "http://www.example.com/term_2", pvann.getOntoTermUri () );
+		assertEquals ( "Wrong score!", 42d, pvann.getScore (), 0d );
+		assertEquals ( "Wrong timestamp!", ts, pvann.getTimestamp () );
+		assertEquals ( "Wrong provenance!", PropertyValAnnotationManager.PROVENANCE_MARKER, pvann.getProvenance () );
+		assertNull ( "Wrong score for the null case!", pvanns.get (
+			ExpPropValAnnotation.getPvalText ( "test type", "test value 43" ), "http://www.example.com/term_3" ).getScore ()
+		);
+		assertNull ( "Wrong result for missing key!", pvanns.get ( pvkey, "http://www.example.com/term_3" ) );
+
+		// Replace one entry
+		pvann.setScore ( 1d );
+		pvanns.put ( pvkey, pvann.getOntoTermUri (), pvann );
+		assertEquals ( "Size changed after replacement!", n, pvanns.size () );
+		assertEquals ( "Replacement didn't work!", 1d, pvanns.get ( pvkey, pvann.getOntoTermUri () ).getScore (), 0d );
+
+		// Flush-like scenario, an entry changed after the snapshot stays there
+		Map<Key, ExpPropValAnnotation> snapshot = pvanns.snapshot ();
+		assertEquals ( "Wrong snapshot size!", n, snapshot.size () );
+		pvanns.put ( pvkey, pvann.getOntoTermUri (), pvann );
+		for ( Map.Entry<Key, ExpPropValAnnotation> entry: snapshot.entrySet () )
+			pvanns.removeIfSame ( entry.getKey (), entry.getValue () );
+
+		assertEquals ( "Wrong size after removal!", 1, pvanns.size () );
+		assertTrue ( "Changed entry was removed!", pvanns.contains ( Key.of ( pvkey, pvann.getOntoTermUri () ) ) );
+
+		store.clear ();
+		assertEquals ( "Store not cleared!", 0, pvanns.size () );
+		assertFalse ( "Store not cleared!", pvanns.contains ( Key.of ( pvkey, pvann.getOntoTermUri () ) ) );
+	}
+
+	@Test
+	public void testDataItems ()
+	{
+		AnnotationStore store = new OffHeapAnnotationStore ( 100, null, tmpFolder.getRoot () );
+		AnnotationStore.EntityMap<DataItem> dataItems = store.getDataItems ();
+
+		NumberItem ni = new NumberItem ( 2.5, "2.5" );
+		dataItems.put ( "2.5", ni );
+
+		NumberRangeItem nri = new NumberRangeItem ( 1d, 10d, "1-10" );
+		dataItems.put ( "1-10", nri );
+
+		Date date = new Date ();
+		DateItem di = new DateItem ( date, "today" );
+		di.setType ( "test" );
+		dataItems.put ( "today", di );
+
+		assertEquals ( "Wrong number!", 2.5, ( (NumberItem) dataItems.get ( "2.5" ) ).getValue (), 0d );
+		NumberRangeItem nri1 = (NumberRangeItem) dataItems.get ( "1-10" );
+		assertEquals ( "Wrong range!", 1d, nri1.getLow (), 0d );
+		assertEquals ( "Wrong range!", 10d, nri1.getHi (), 0d );
+		DateItem di1 = (DateItem) dataItems.get ( "today" );
+		assertEquals ( "Wrong date!", date, di1.getValue () );
+		assertEquals ( "Wrong source text!", "today", di1.getSourceText () );
+		assertEquals ( "Wrong type!", "test", di1.getType () );
+	}
+}
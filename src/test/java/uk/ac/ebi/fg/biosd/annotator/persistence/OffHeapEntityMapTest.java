@@ -0,0 +1,117 @@
+package uk.ac.ebi.fg.biosd.annotator.persistence;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import uk.ac.ebi.fg.biosd.annotator.AnnotationStore.Key;
+
+/**
+ * Tests for {@link OffHeapEntityMap}.
+ */
+public class OffHeapEntityMapTest
+{
+	@Rule
+	public TemporaryFolder tmpFolder = new TemporaryFolder ();
+
+	/**
+	 * Decodes the empty string as the same instance, like the codecs that have constants for special values.
+	 */
+	private static final String EMPTY = "";
+
+	private static final OffHeapEntityMap.Codec<String> CODEC = new OffHeapEntityMap.Codec<String> ()
+	{
+		@Override
+		public void encode ( String value, DataOutput out ) throws IOException {
+			out.writeUTF ( value );
+		}
+
+		@Override
+		public String decode ( DataInput in ) throws IOException
+		{
+			String result = in.readUTF ();
+			return result.isEmpty () ? EMPTY : result;
+		}
+	};
+
+	/**
+	 * Flush-like cycles, with some entries changed after the snapshot. The segments of the flushed entries must be
+	 * reused, even if the map never becomes empty.
+	 */
+	@Test
+	public void testSegmentsReuse ()
+	{
+		OffHeapEntityMap<String> map = new OffHeapEntityMap<> ( String.class, CODEC, tmpFolder.getRoot (), 4096 );
+
+		int n = 1000;
+		int maxSegments = 0;
+		for ( int cycle = 0; cycle < 50; cycle++ )
+		{
+			for ( int i = 0; i < n; i++ )
+				map.put ( "test key " + i, "test value " + cycle + "/" + i );
+
+			Map<Key, String> snapshot = map.snapshot ();
+			map.put ( "test key 0", "changed value " + cycle );
+			for ( Map.Entry<Key, String> entry: snapshot.entrySet () )
+				map.removeIfSame ( entry.getKey (), entry.getValue () );
+
+			assertEquals ( "Wrong size after removal!", 1, map.size () );
+			assertEquals ( "Wrong changed value!", "changed value " + cycle, map.get ( "test key 0" ) );
+
+			if ( cycle == 0 ) maxSegments = map.getSegmentsCount () + 1;
+		}
+		assertTrue (
+			"Segments not reused, " + map.getSegmentsCount () + " created!", map.getSegmentsCount () <= maxSegments
+		);
+	}
+
+	/**
+	 * The same decoded instance for different keys must not prevent the removal of either of them.
+	 */
+	@Test
+	public void testSharedValues ()
+	{
+		OffHeapEntityMap<String> map = new OffHeapEntityMap<> ( String.class, CODEC, tmpFolder.getRoot (), 4096 );
+		map.put ( "test key 1", EMPTY );
+		map.put ( "test key 2", EMPTY );
+		map.put ( "test key 3", "test value" );
+
+		Map<Key, String> snapshot = map.snapshot ();
+		for ( Map.Entry<Key, String> entry: snapshot.entrySet () )
+			assertTrue ( "Entry not removed!", map.removeIfSame ( entry.getKey (), entry.getValue () ) );
+		assertEquals ( "Wrong size after removal!", 0, map.size () );
+	}
+
+	/**
+	 * An entry replaced after the snapshot must survive, even when the new record is written at the same address
+	 * of the snapshot one, since its segment was reused.
+	 */
+	@Test
+	public void testReusedAddress ()
+	{
+		// One record per segment
+		int recordSize = 4 + 4 + "test key".length () + 2 + "test value 0".length ();
+		OffHeapEntityMap<String> map = new OffHeapEntityMap<> ( String.class, CODEC, tmpFolder.getRoot (), recordSize );
+
+		map.put ( "test key", "test value 0" );
+		Map<Key, String> snapshot = map.snapshot ();
+
+		// The second segment, then back to the first one
+		map.put ( "test key", "test value 1" );
+		map.put ( "test key", "test value 2" );
+		assertEquals ( "Segments not reused!", 2, map.getSegmentsCount () );
+
+		Key key = Key.of ( "test key" );
+		assertFalse ( "Changed entry removed!", map.removeIfSame ( key, snapshot.get ( key ) ) );
+		assertEquals ( "Wrong value after the failed removal!", "test value 2", map.get ( key ) );
+	}
+}
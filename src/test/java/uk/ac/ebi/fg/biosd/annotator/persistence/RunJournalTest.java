@@ -0,0 +1,116 @@
+package uk.ac.ebi.fg.biosd.annotator.persistence;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests for {@link RunJournal}.
+ */
+public class RunJournalTest
+{
+	@Rule
+	public TemporaryFolder tmpFolder = new TemporaryFolder ();
+
+	@Test
+	public void testCheckpointAndResume () throws IOException
+	{
+		File file = tmpFolder.newFile ( "test.jnl" );
+		RunJournal journal = new RunJournal ( file, false );
+
+		// Annotated and then saved
+		RunJournal.Range r1 = journal.newRange ( 1, 100 );
+		r1.taskStarted ();
+		r1.close ();
+		r1.taskFinished ( true );
+
+		// Still running at the checkpoint
+		RunJournal.Range r2 = journal.newRange ( 101, 200 );
+		r2.taskStarted ();
+		r2.close ();
+
+		// Failed
+		RunJournal.Range r3 = journal.newRange ( 201, 300 );
+		r3.taskStarted ();
+		r3.taskFinished ( false );
+		r3.close ();
+
+		List<RunJournal.Range> ranges = journal.beginCheckpoint ();
+		assertEquals ( "Wrong no. of annotated ranges!", 1, ranges.size () );
+		r2.taskFinished ( true );
+		journal.commitCheckpoint ( ranges, 10 );
+
+		assertTrue ( "Saved range not done!", journal.isDone ( 50 ) );
+		assertFalse ( "Range completed after the checkpoint is done!", journal.isDone ( 150 ) );
+
+		// A failed save doesn't mark anything, the ranges go to the next checkpoint
+		ranges = journal.beginCheckpoint ();
+		journal.abortCheckpoint ( ranges );
+		assertFalse ( "Range done after failed save!", journal.isDone ( 150 ) );
+		journal.commitCheckpoint ( journal.beginCheckpoint (), 5 );
+		assertTrue ( "Range not done after the next checkpoint!", journal.isDone ( 150 ) );
+
+		// Adjacent ranges are merged
+		assertEquals ( "Done ranges not merged!", 1, journal.getDoneRangesCount () );
+
+		RunJournal resumed = new RunJournal ( file, true );
+		assertNotNull ( "Last checkpoint not loaded!", resumed.getLastCheckpoint () );
+		assertEquals ( "Wrong skip!", 200, resumed.skipDone ( 0 ) );
+		assertEquals ( "Wrong skip for a pending id!", 250, resumed.skipDone ( 250 ) );
+		assertFalse ( "Failed range done!", resumed.isDone ( 250 ) );
+
+		// A new run empties the journal
+		assertFalse ( "Journal not reset!", new RunJournal ( file, false ).isDone ( 50 ) );
+	}
+
+	/**
+	 * A page whose submission fails halfway is reported as failed by the submitter (instead of being closed), so 
+	 * it's not marked as done, even if the tasks submitted before the error succeed.
+	 */
+	@Test
+	public void testFailedPage () throws IOException
+	{
+		RunJournal journal = new RunJournal ( tmpFolder.newFile ( "test.jnl" ), false );
+
+		RunJournal.Range range = journal.newRange ( 1, 100 );
+		range.taskStarted ();
+		range.taskStarted ();
+		// The submitter fails after two tasks, which succeed after that
+		range.taskFinished ( false );
+		range.taskFinished ( true );
+		range.taskFinished ( true );
+
+		assertTrue ( "Failed page annotated!", journal.beginCheckpoint ().isEmpty () );
+		journal.commitCheckpoint ( journal.beginCheckpoint (), 2 );
+		assertFalse ( "Failed page done!", journal.isDone ( 50 ) );
+		assertEquals ( "Wrong skip after a failed page!", 0, journal.skipDone ( 0 ) );
+	}
+
+	@Test
+	public void testPendingEnd () throws IOException
+	{
+		File file = tmpFolder.newFile ( "test.jnl" );
+		try ( FileWriter out = new FileWriter ( file ) ) {
+			out.write ( "done 100 199\ndone 300 399\ncheckpoint 0 10\ndone 500" );
+		}
+		// The truncated line is ignored
+		RunJournal journal = new RunJournal ( file, true );
+
+		assertEquals ( "Wrong pending end!", 99, journal.getPendingEnd ( 0, 1000 ) );
+		assertEquals ( "Wrong pending end!", 299, journal.getPendingEnd ( 199, 1000 ) );
+		assertEquals ( "Wrong pending end for the last range!", 1000, journal.getPendingEnd ( 399, 1000 ) );
+		assertEquals ( "Wrong pending end with toId!", 250, journal.getPendingEnd ( 199, 250 ) );
+		assertEquals ( "Wrong skip!", 399, journal.skipDone ( 299 ) );
+		assertFalse ( "Truncated line loaded!", journal.isDone ( 500 ) );
+	}
+}
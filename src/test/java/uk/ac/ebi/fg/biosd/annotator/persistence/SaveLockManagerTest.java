@@ -0,0 +1,86 @@
+package uk.ac.ebi.fg.biosd.annotator.persistence;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityTransaction;
+
+import org.junit.After;
+import org.junit.Test;
+
+import uk.ac.ebi.fg.core_model.resources.Resources;
+
+/**
+ * Tests for {@link SaveLockManager}.
+ */
+public class SaveLockManagerTest
+{
+	/**
+	 * Back to the single-node mode, which is what the other tests expect.
+	 */
+	@After
+	public void cleanUp ()
+	{
+		EntityManager em = Resources.getInstance ().getEntityManagerFactory ().createEntityManager ();
+		EntityTransaction tx = em.getTransaction ();
+		tx.begin ();
+		em.createNativeQuery ( "DELETE FROM fann_save_lock" ).executeUpdate ();
+		tx.commit ();
+		em.close ();
+	}
+
+	@Test
+	public void testNoLocking ()
+	{
+		cleanUp ();
+		SaveLockManager lockMgr = new SaveLockManager ( 1000 );
+		assertFalse ( "Locked in single-node mode!", lockMgr.lock ( 0 ) );
+		lockMgr.close ();
+	}
+
+	@Test
+	public void testLeases () throws InterruptedException
+	{
+		new SaveLockManager ().forceUnlock ();
+
+		SaveLockManager lockMgr1 = new SaveLockManager ( 1000 ), lockMgr2 = new SaveLockManager ( 1000 );
+		try
+		{
+			assertTrue ( "Lock not taken!", lockMgr1.lock ( 0 ) );
+
+			// Another partition is available to others at the same time
+			assertTrue ( "Partition lock not taken!", lockMgr2.lock ( 1 ) );
+			lockMgr2.unlock ( 1 );
+
+			// The same partition isn't, as long as the heartbeat renews the lease
+			final SaveLockManager lockMgr2f = lockMgr2;
+			final AtomicBoolean isLocked2 = new AtomicBoolean ( false );
+			Thread locker = new Thread ( new Runnable()
+			{
+				@Override
+				public void run () {
+					isLocked2.set ( lockMgr2f.lock ( 0 ) );
+				}
+			});
+			locker.start ();
+			locker.join ( 3000 );
+			assertFalse ( "Lease lock taken while still renewed!", isLocked2.get () );
+
+			lockMgr1.unlock ( 0 );
+			locker.join ( 10000 );
+			assertTrue ( "Lock not taken after release!", isLocked2.get () );
+
+			// Without heartbeat (ie, the owner crashed), the lease expires
+			lockMgr2.close ();
+			assertTrue ( "Expired lock not taken!", lockMgr1.lock ( 0 ) );
+			lockMgr1.unlock ( 0 );
+		}
+		finally {
+			lockMgr1.close ();
+			lockMgr2.close ();
+		}
+	}
+}
@@ -0,0 +1,61 @@
+package uk.ac.ebi.fg.biosd.annotator.persistence;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static uk.ac.ebi.fg.biosd.annotator.test.TestPvAnnotations.addPvAnn;
+
+import java.util.Collections;
+import java.util.Date;
+
+import org.joda.time.DateTime;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+
+import uk.ac.ebi.fg.biosd.annotator.AnnotationStore;
+import uk.ac.ebi.fg.biosd.annotator.AnnotatorResources;
+import uk.ac.ebi.fg.biosd.annotator.model.ExpPropValAnnotation;
+import uk.ac.ebi.fg.biosd.annotator.purge.Purger;
+import uk.ac.ebi.fg.biosd.annotator.test.AnnotatorResourcesResetRule;
+import uk.ac.ebi.onto_discovery.api.OntologyTermDiscoverer.DiscoveredTerm;
+
+/**
+ * Tests for {@link StoreMemoryBudget}.
+ */
+public class StoreMemoryBudgetTest
+{
+	@Rule
+	public TestRule resResetRule = new AnnotatorResourcesResetRule ();
+
+	@After
+	public void cleanUp ()
+	{
+		new Purger ().purge ( new DateTime ().minusMinutes ( 1 ).toDate (), new Date () );
+	}
+
+	@Test
+	public void testBudgetAndFlush ()
+	{
+		AnnotationStore store = AnnotatorResources.getInstance ().getStore ();
+
+		for ( int i = 0; i < 3; i++ )
+			addPvAnn ( 
+				store, ExpPropValAnnotation.getPvalText ( "test budget property", "Value " + i ), "http://www.example.com/budget_test_" + i 
+			);
+		// Read-only cache entries don't count
+		store.getDiscoveredTerms ().put ( "foo", Collections.<DiscoveredTerm>emptyList () );
+
+		StoreMemoryBudget budget = new StoreMemoryBudget ( 3, 1d );
+		assertEquals ( "Wrong pending size!", 3, budget.getPendingSize () );
+		assertTrue ( "Budget not exceeded!", budget.isExceeded () );
+
+		long ct = new AnnotatorPersister ().flush ();
+		assertEquals ( "Wrong no. of persisted entities!", 3, ct );
+
+		assertEquals ( "Store not flushed!", 0, budget.getPendingSize () );
+		assertFalse ( "Budget still exceeded!", budget.isExceeded () );
+		assertTrue ( "Read cache was flushed!", store.getDiscoveredTerms ().contains ( "foo" ) );
+	}
+}
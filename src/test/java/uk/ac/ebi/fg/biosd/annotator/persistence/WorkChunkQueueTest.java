@@ -0,0 +1,96 @@
+package uk.ac.ebi.fg.biosd.annotator.persistence;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityTransaction;
+
+import org.junit.After;
+import org.junit.Test;
+
+import uk.ac.ebi.fg.biosd.annotator.model.WorkChunk;
+import uk.ac.ebi.fg.core_model.resources.Resources;
+
+/**
+ * Tests for {@link WorkChunkQueue}.
+ */
+public class WorkChunkQueueTest
+{
+	@After
+	public void cleanUp ()
+	{
+		EntityManager em = Resources.getInstance ().getEntityManagerFactory ().createEntityManager ();
+		EntityTransaction tx = em.getTransaction ();
+		tx.begin ();
+		em.createQuery ( "DELETE FROM WorkChunk" ).executeUpdate ();
+		tx.commit ();
+		em.close ();
+	}
+
+	@Test
+	public void testClaims ()
+	{
+		WorkChunkQueue queue1 = new WorkChunkQueue ( 60000 ), queue2 = new WorkChunkQueue ( 60000 );
+		try
+		{
+			assertEquals ( "Wrong no. of chunks!", 10, queue1.fill ( 1, 95, 10 ) );
+
+			// Two workers get all the chunks, each once
+			Set<Long> fromIds = new HashSet<> ();
+			long nids = 0;
+			for ( WorkChunk chunk; ( chunk = ( fromIds.size () % 2 == 0 ? queue1 : queue2 ).claim () ) != null; )
+			{
+				assertTrue ( "Chunk claimed twice!", fromIds.add ( chunk.getFromId () ) );
+				nids += chunk.getToId () - chunk.getFromId () + 1;
+				( fromIds.size () % 2 == 1 ? queue1 : queue2 ).done ( chunk );
+			}
+			assertEquals ( "Wrong no. of claimed chunks!", 10, fromIds.size () );
+			assertEquals ( "Chunks don't cover the range!", 95, nids );
+
+			// Released chunks go back to the queue, up to the max attempts
+			queue1.fill ( 1, 10, 10 );
+			for ( int i = 0; i < WorkChunkQueue.MAX_ATTEMPTS; i++ )
+			{
+				WorkChunk chunk = queue1.claim ();
+				assertNotNull ( "Released chunk not available!", chunk );
+				queue1.release ( chunk );
+			}
+			assertNull ( "Chunk available after the max attempts!", queue1.claim () );
+		}
+		finally {
+			queue1.close ();
+			queue2.close ();
+		}
+	}
+
+	@Test
+	public void testLeases () throws InterruptedException
+	{
+		WorkChunkQueue queue1 = new WorkChunkQueue ( 1000 ), queue2 = new WorkChunkQueue ( 1000 );
+		try
+		{
+			queue1.fill ( 1, 10, 10 );
+			WorkChunk chunk = queue1.claim ();
+			assertNotNull ( "Chunk not claimed!", chunk );
+
+			// Not available while renewed
+			Thread.sleep ( 2000 );
+			assertNull ( "Chunk claimed while the lease is renewed!", queue2.claim () );
+
+			// Without renewals (ie, the owner crashed), the lease expires
+			queue1.close ();
+			Thread.sleep ( 2000 );
+			assertNotNull ( "Expired chunk not claimed!", queue2.claim () );
+		}
+		finally {
+			queue1.close ();
+			queue2.close ();
+		}
+	}
+}
@@ -0,0 +1,43 @@
+package uk.ac.ebi.fg.biosd.annotator.test;
+
+import java.util.Date;
+
+import uk.ac.ebi.fg.biosd.annotator.AnnotationStore;
+import uk.ac.ebi.fg.biosd.annotator.PropertyValAnnotationManager;
+import uk.ac.ebi.fg.biosd.annotator.model.ExpPropValAnnotation;
+
+/**
+ * Builds the {@link ExpPropValAnnotation}s used as test data, having the 'test' type and the annotator provenance.
+ */
+public class TestPvAnnotations
+{
+	private TestPvAnnotations () {}
+
+	public static ExpPropValAnnotation newPvAnn ( String pvkey, String uri, Date timestamp )
+	{
+		ExpPropValAnnotation pvann = new ExpPropValAnnotation ( pvkey );
+		pvann.setOntoTermUri ( uri );
+		pvann.setType ( "test" );
+		pvann.setProvenance ( PropertyValAnnotationManager.PROVENANCE_MARKER );
+		pvann.setTimestamp ( timestamp );
+		return pvann;
+	}
+
+	/**
+	 * Uses the current time as timestamp.
+	 */
+	public static ExpPropValAnnotation newPvAnn ( String pvkey, String uri )
+	{
+		return newPvAnn ( pvkey, uri, new Date () );
+	}
+
+	/**
+	 * Builds a new annotation and puts it in the store.
+	 */
+	public static ExpPropValAnnotation addPvAnn ( AnnotationStore store, String pvkey, String uri )
+	{
+		ExpPropValAnnotation pvann = newPvAnn ( pvkey, uri );
+		store.getExpPropValAnnotations ().put ( pvkey, uri, pvann );
+		return pvann;
+	}
+}
@@ -0,0 +1,197 @@
+package uk.ac.ebi.fg.biosd.annotator.threading;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import uk.ac.ebi.fg.biosd.annotator.AnnotatorResources;
+import uk.ac.ebi.fg.biosd.annotator.PropertyValAnnotationManager;
+import uk.ac.ebi.fg.biosd.annotator.PropertyValRecord;
+
+/**
+ * Tests for {@link AnnotatorStage} and how {@link PropertyValAnnotationTask} uses the stages.
+ */
+public class AnnotatorStageTest
+{
+	@Test
+	public void testCounters () throws InterruptedException
+	{
+		AnnotatorStage stage = new AnnotatorStage ( "test", 2 );
+		final CountDownLatch gate = new CountDownLatch ( 1 );
+
+		int njobs = 10, nfailures = 3;
+		for ( int i = 0; i < njobs; i++ )
+		{
+			final boolean isFailing = i < nfailures;
+			stage.submit ( new Runnable()
+			{
+				@Override
+				public void run ()
+				{
+					try {
+						gate.await ();
+					}
+					catch ( InterruptedException ex ) {
+						throw new RuntimeException ( "Interrupted test job", ex );
+					}
+					if ( isFailing ) throw new RuntimeException ( "Test failure" );
+				}
+			});
+		}
+
+		assertEquals ( "Wrong no. of pending jobs!", njobs, stage.getPendingJobs () );
+		assertEquals ( "Wrong no. of completed jobs!", 0, stage.getCompletedJobs () );
+
+		gate.countDown ();
+		stage.waitAllFinished ();
+
+		assertEquals ( "Wrong no. of pending jobs after the wait!", 0, stage.getPendingJobs () );
+		assertEquals ( "Wrong no. of completed jobs after the wait!", njobs - nfailures, stage.getCompletedJobs () );
+		assertEquals ( "Wrong no. of failed jobs!", nfailures, stage.getFailedJobs () );
+		assertEquals ( "Wrong pool size!", 2, stage.getPoolSize () );
+
+		// The stage is still usable
+		stage.submit ( new Runnable() {
+			@Override
+			public void run () {}
+		});
+		stage.waitAllFinished ();
+		assertEquals ( "Stage not reusable!", njobs - nfailures + 1, stage.getCompletedJobs () );
+	}
+
+
+	@Test
+	public void testWaitAllFinished ()
+	{
+		AnnotatorStage stage = new AnnotatorStage ( "test", 3 );
+
+		// Nothing to wait for
+		stage.waitAllFinished ();
+
+		final AtomicInteger nrun = new AtomicInteger ( 0 );
+		int njobs = 20;
+		for ( int i = 0; i < njobs; i++ )
+			stage.submit ( new Runnable()
+			{
+				@Override
+				public void run ()
+				{
+					try {
+						Thread.sleep ( 10 );
+					}
+					catch ( InterruptedException ex ) {
+						throw new RuntimeException ( "Interrupted test job", ex );
+					}
+					nrun.incrementAndGet ();
+				}
+			});
+		stage.waitAllFinished ();
+
+		assertEquals ( "waitAllFinished() returned before the jobs!", njobs, nrun.get () );
+		assertTrue ( "Wrong average job time!", stage.getAvgJobTime () >= 10 );
+	}
+
+
+	/**
+	 * Without virtual threads, the async stage must be bound to the fallback size.
+	 */
+	@Test
+	public void testAsyncStage ()
+	{
+		int nfallbackThreads = 3;
+		AnnotatorStage stage = AnnotatorStage.newAsyncStage ( "test", nfallbackThreads );
+		boolean isVirtual = stage.getPoolSize () == -1;
+		if ( !isVirtual ) assertEquals ( "Wrong fallback pool size!", nfallbackThreads, stage.getPoolSize () );
+
+		final AtomicInteger nrunning = new AtomicInteger ( 0 ), maxRunning = new AtomicInteger ( 0 );
+		int njobs = 30;
+		for ( int i = 0; i < njobs; i++ )
+			stage.submit ( new Runnable()
+			{
+				@Override
+				public void run ()
+				{
+					int n = nrunning.incrementAndGet ();
+					for ( int max; n > ( max = maxRunning.get () ) && !maxRunning.compareAndSet ( max, n ); );
+					try {
+						Thread.sleep ( 20 );
+					}
+					catch ( InterruptedException ex ) {
+						throw new RuntimeException ( "Interrupted test job", ex );
+					}
+					finally {
+						nrunning.decrementAndGet ();
+					}
+				}
+			});
+		stage.waitAllFinished ();
+
+		assertEquals ( "Wrong no. of completed jobs!", njobs, stage.getCompletedJobs () );
+		if ( isVirtual )
+			assertTrue ( "Async jobs not run concurrently!", maxRunning.get () > nfallbackThreads );
+		else
+			assertTrue ( "Fallback pool not bound!", maxRunning.get () <= nfallbackThreads );
+	}
+
+
+	/**
+	 * Failures of the data part of a task are counted by the data stage and the lookup part isn't run, failures of
+	 * the lookup part are counted by the lookup stage, and all the tasks release their queue slots.
+	 */
+	@Test
+	public void testTaskFailures ()
+	{
+		final Set<String> lookedUpValues = Collections.synchronizedSet ( new HashSet<String> () );
+		PropertyValAnnotationManager pvAnnMgr = new PropertyValAnnotationManager ( AnnotatorResources.getInstance () )
+		{
+			@Override
+			public boolean annotateData ( PropertyValRecord pvrec )
+			{
+				if ( pvrec.getValueLabel ().startsWith ( "data-fail" ) ) throw new RuntimeException ( "Test data failure" );
+				return false;
+			}
+
+			@Override
+			public void annotateOntoTerms ( PropertyValRecord pvrec, boolean isNumberOrDate )
+			{
+				lookedUpValues.add ( pvrec.getValueLabel () );
+				if ( pvrec.getValueLabel ().startsWith ( "lookup-fail" ) ) throw new RuntimeException ( "Test lookup failure" );
+			}
+		};
+
+		AnnotatorStage dataStage = new AnnotatorStage ( "data", 2 ), lookupStage = new AnnotatorStage ( "lookup", 4 );
+
+		int nvalues = 5, ntasks = 3 * nvalues;
+		Semaphore queueSlots = new Semaphore ( ntasks );
+		for ( int i = 0; i < nvalues; i++ )
+			for ( String prefix: new String[] { "ok", "data-fail", "lookup-fail" } )
+			{
+				queueSlots.acquireUninterruptibly ();
+				PropertyValRecord pvrec = new PropertyValRecord ( "test stage property", prefix + " " + i, null );
+				new PropertyValAnnotationTask ( pvrec, queueSlots, null, pvAnnMgr ).submitToStages ( dataStage, lookupStage, null );
+			}
+
+		dataStage.waitAllFinished ();
+		lookupStage.waitAllFinished ();
+
+		assertEquals ( "Wrong no. of completed data jobs!", 2 * nvalues, dataStage.getCompletedJobs () );
+		assertEquals ( "Wrong no. of failed data jobs!", nvalues, dataStage.getFailedJobs () );
+		assertEquals ( "Wrong no. of completed lookup jobs!", nvalues, lookupStage.getCompletedJobs () );
+		assertEquals ( "Wrong no. of failed lookup jobs!", nvalues, lookupStage.getFailedJobs () );
+
+		assertEquals ( "Wrong no. of lookups!", 2 * nvalues, lookedUpValues.size () );
+		for ( String value: lookedUpValues )
+			assertFalse ( "Lookup run after a data failure!", value.startsWith ( "data-fail" ) );
+
+		assertEquals ( "Queue slots not released!", ntasks, queueSlots.availablePermits () );
+	}
+}
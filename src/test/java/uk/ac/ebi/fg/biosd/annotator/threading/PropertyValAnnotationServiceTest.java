@@ -1,12 +1,18 @@
 package uk.ac.ebi.fg.biosd.annotator.threading;
 
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
 import static junit.framework.Assert.assertTrue;
 
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
@@ -21,10 +27,16 @@ import org.junit.rules.TestRule;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import uk.ac.ebi.fg.biosd.annotator.AnnotatorResources;
+import uk.ac.ebi.fg.biosd.annotator.PropertyValAnnotationManager;
+import uk.ac.ebi.fg.biosd.annotator.PropertyValRecord;
 import uk.ac.ebi.fg.biosd.annotator.model.ExpPropValAnnotation;
 import uk.ac.ebi.fg.biosd.annotator.model.FeatureAnnotation;
 import uk.ac.ebi.fg.biosd.annotator.model.NumberItem;
 import uk.ac.ebi.fg.biosd.annotator.model.ResolvedOntoTermAnnotation;
+import uk.ac.ebi.fg.biosd.annotator.ontodiscover.AdaptiveZOOMASearchFilter;
+import uk.ac.ebi.fg.biosd.annotator.ontodiscover.BioSDOntoDiscoveringCache;
+import uk.ac.ebi.fg.biosd.annotator.ontodiscover.ZOOMAUnavailableException;
 import uk.ac.ebi.fg.biosd.annotator.persistence.dao.ExpPropValAnnotationDAO;
 import uk.ac.ebi.fg.biosd.annotator.purge.Purger;
 import uk.ac.ebi.fg.biosd.annotator.test.AnnotatorResourcesResetRule;
@@ -131,6 +143,370 @@ public class PropertyValAnnotationServiceTest
 		em.close ();
 	}
 	
+	/**
+	 * Tests {@link PropertyValAnnotationService#submitIdRange(Long, Long, boolean)}.
+	 */
+	@Test
+	@SuppressWarnings ( { "unchecked" } )
+	public void testIdRange ()
+	{
+		List<ExperimentalPropertyValue<ExperimentalPropertyType>> pvs = new ArrayList<> ();
+		pvs.add ( new ExperimentalPropertyValue<> ( 
+			"homo sapiens", new ExperimentalPropertyType ( "organism" ) 
+		));
+		pvs.add ( new ExperimentalPropertyValue<> ( 
+			"456", new ExperimentalPropertyType ( "bla bla bla" ) 
+		));	
+		
+		EntityManagerFactory emf = Resources.getInstance ().getEntityManagerFactory ();
+		EntityManager em = emf.createEntityManager ();
+		
+		EntityTransaction tx = em.getTransaction ();
+		tx.begin ();
+		for ( ExperimentalPropertyValue<ExperimentalPropertyType> pv: pvs ) em.persist ( pv );
+		tx.commit ();
+		em.close ();
+		
+		long fromId = Math.min ( pvs.get ( 0 ).getId (), pvs.get ( 1 ).getId () );
+		long toId = Math.max ( pvs.get ( 0 ).getId (), pvs.get ( 1 ).getId () );
+
+		long[] idRange = new PropertyValAnnotationService ().getPropValIdRange ();
+		assertTrue ( "Wrong min property id!", idRange [ 0 ] <= fromId );
+		assertTrue ( "Wrong max property id!", idRange [ 1 ] >= toId );
+		
+		PropertyValAnnotationService service = new PropertyValAnnotationService ();
+		service.setSubmissionMsgLogLevel ( Level.INFO );
+		service.submitIdRange ( fromId, toId, false );
+		service.waitAllFinished ();
+
+		em = emf.createEntityManager ();
+		ExpPropValAnnotationDAO pvannDao = new ExpPropValAnnotationDAO ( em );
+		assertTrue ( "No annotations saved via id range!", pvannDao.findByExpPropVal ( pvs.get ( 0 ) ).size () > 0 );
+		
+		Query q = em.createQuery ( "FROM NumberItem WHERE value = 456" );
+		List<NumberItem> nums = q.getResultList ();
+		assertTrue ( "Number annotation not saved via id range!", nums.size () > 0 );
+
+		em.close ();
+	}
+	
+	/**
+	 * Tests {@link PropertyValAnnotationService#submitDistinct(boolean)}.
+	 */
+	@Test
+	@SuppressWarnings ( { "unchecked" } )
+	public void testDistinct ()
+	{
+		ExperimentalPropertyType ptype = new ExperimentalPropertyType ( "organism" );
+		List<ExperimentalPropertyValue<ExperimentalPropertyType>> pvs = new ArrayList<> ();
+		pvs.add ( new ExperimentalPropertyValue<> ( "mus musculus", ptype ) );
+		pvs.add ( new ExperimentalPropertyValue<> ( "mus musculus", ptype ) );
+		pvs.add ( new ExperimentalPropertyValue<> ( "789", new ExperimentalPropertyType ( "bla bla bla" ) ) );	
+		
+		EntityManagerFactory emf = Resources.getInstance ().getEntityManagerFactory ();
+		EntityManager em = emf.createEntityManager ();
+		
+		EntityTransaction tx = em.getTransaction ();
+		tx.begin ();
+		for ( ExperimentalPropertyValue<ExperimentalPropertyType> pv: pvs ) em.persist ( pv );
+		tx.commit ();
+		em.close ();
+		
+		PropertyValAnnotationService service = new PropertyValAnnotationService ();
+		service.setSubmissionMsgLogLevel ( Level.INFO );
+		long nkeys = service.submitDistinct ( false );
+		service.waitAllFinished ();
+		
+		assertTrue ( "Wrong no. of distinct submissions!", nkeys >= 2 );
+
+		em = emf.createEntityManager ();
+		ExpPropValAnnotationDAO pvannDao = new ExpPropValAnnotationDAO ( em );
+		assertTrue ( "No annotations saved in distinct mode!", pvannDao.findByExpPropVal ( pvs.get ( 0 ) ).size () > 0 );
+		
+		Query q = em.createQuery ( "FROM NumberItem WHERE value = 789" );
+		List<NumberItem> nums = q.getResultList ();
+		assertTrue ( "Number annotation not saved in distinct mode!", nums.size () > 0 );
+
+		em.close ();
+	}
+	
+	/**
+	 * Tests {@link PropertyValAnnotationService#getShard(String, int)}.
+	 */
+	@Test
+	public void testShards ()
+	{
+		// The FNV-1a hash is fixed, so every JVM must get the same result
+		assertEquals ( "Wrong shard!", 1, PropertyValAnnotationService.getShard ( "sex|female", 7 ) );
+		
+		int nshards = 4, nkeys = 10000;
+		int[] counts = new int [ nshards ];
+		for ( int i = 0; i < nkeys; i++ )
+		{
+			String key = ExpPropValAnnotation.getPvalText ( "test shard property", "Value " + i );
+			int shard = PropertyValAnnotationService.getShard ( key, nshards );
+			assertEquals ( "Unstable shard!", shard, PropertyValAnnotationService.getShard ( key, nshards ) );
+			counts [ shard ]++;
+		}
+		for ( int ct: counts )
+			assertTrue ( "Shards too unbalanced!", Math.abs ( ct - nkeys / nshards ) < nkeys / nshards / 10 );
+	}
+	
+	/**
+	 * Tests that {@link PropertyValAnnotationService#QUEUE_CAPACITY_PROP} bounds the pending tasks and that the queue 
+	 * slots are released by failed and retried tasks too. If they weren't, the submitter would block and, after a 
+	 * while, run the tasks by itself.
+	 */
+	@Test
+	public void testQueueCapacity () throws InterruptedException
+	{
+		final int capacity = 4;
+		System.setProperty ( PropertyValAnnotationService.QUEUE_CAPACITY_PROP, String.valueOf ( capacity ) );
+		System.setProperty ( PropertyValAnnotationService.LOOKUP_RETRY_DELAY_PROP, "0" );
+		try
+		{
+			final PropertyValAnnotationService service = new PropertyValAnnotationService ();
+			final AtomicInteger maxDepth = new AtomicInteger ( 0 ), minDepth = new AtomicInteger ( 0 );
+			final AtomicInteger nsubmitterRuns = new AtomicInteger ( 0 ), nannotated = new AtomicInteger ( 0 );
+			final Set<String> deferredValues = Collections.synchronizedSet ( new HashSet<String> () );
+			
+			// Slow tasks, some fail, some find ZOOMA down at the first attempt 
+			service.setPvAnnMgr ( new PropertyValAnnotationManager ( AnnotatorResources.getInstance () ) 
+			{
+				@Override
+				public boolean annotateData ( PropertyValRecord pvrec ) 
+				{
+					checkDepth ();
+					sleep ( 5 );
+					return false;
+				}
+
+				@Override
+				public void annotateOntoTerms ( PropertyValRecord pvrec, boolean isNumberOrDate )
+				{
+					checkDepth ();
+					sleep ( 20 );
+					String value = pvrec.getValueLabel ();
+					if ( value.startsWith ( "fail" ) ) throw new RuntimeException ( "Test failure for " + value );
+					if ( value.startsWith ( "down" ) && deferredValues.add ( value ) ) 
+						throw new ZOOMAUnavailableException ( "Test ZOOMA failure for " + value );
+					nannotated.incrementAndGet ();
+				}
+
+				@Override
+				public void annotate ( PropertyValRecord pvrec ) {
+					nsubmitterRuns.incrementAndGet ();
+				}
+				
+				private void checkDepth () 
+				{
+					int depth = service.getQueueDepth ();
+					for ( int max; depth > ( max = maxDepth.get () ) && !maxDepth.compareAndSet ( max, depth ); );
+					for ( int min; depth < ( min = minDepth.get () ) && !minDepth.compareAndSet ( min, depth ); );
+				}
+				
+				private void sleep ( long time ) 
+				{
+					try {
+						Thread.sleep ( time );
+					}
+					catch ( InterruptedException ex ) {
+						throw new RuntimeException ( "Interrupted test task", ex );
+					}
+				}
+			});
+			
+			final int nvalues = 10;
+			Thread submitter = new Thread ( "test-submitter" ) 
+			{
+				@Override
+				public void run ()
+				{
+					for ( int i = 0; i < nvalues; i++ )
+						for ( String prefix: new String[] { "ok", "fail", "down" } )
+							service.submit ( new PropertyValRecord ( "test queue property", prefix + " " + i, null ) );
+					service.waitAllFinished ( false );
+				}
+			};
+			submitter.setDaemon ( true );
+			submitter.start ();
+			submitter.join ( 30000 );
+			
+			assertFalse ( "The submitter is blocked, queue slots were leaked!", submitter.isAlive () );
+			assertTrue ( "Queue capacity exceeded!", maxDepth.get () <= capacity );
+			assertTrue ( "Negative queue depth!", minDepth.get () >= 0 );
+			assertEquals ( "Queue slots not released!", 0, service.getQueueDepth () );
+			assertEquals ( "Tasks run by the submitter, queue slots were leaked!", 0, nsubmitterRuns.get () );
+			assertEquals ( "Deferred lookups not done!", nvalues, deferredValues.size () );
+			assertEquals ( "Wrong no. of annotated values!", 2 * nvalues, nannotated.get () );
+			assertEquals ( "Wrong no. of failed lookups!", nvalues, service.getLookupStage ().getFailedJobs () );
+		}
+		finally {
+			System.clearProperty ( PropertyValAnnotationService.QUEUE_CAPACITY_PROP );
+			System.clearProperty ( PropertyValAnnotationService.LOOKUP_RETRY_DELAY_PROP );
+		}
+	}
+	
+	/**
+	 * Tests that the deferred lookups stay within the queue capacity when ZOOMA is down for much more values than 
+	 * that, and that they fail after the {@link PropertyValAnnotationService#LOOKUP_RETRY_PASSES_PROP retries}.
+	 */
+	@Test
+	public void testZOOMADown () throws InterruptedException
+	{
+		final int capacity = 4, retries = 2;
+		System.setProperty ( PropertyValAnnotationService.QUEUE_CAPACITY_PROP, String.valueOf ( capacity ) );
+		System.setProperty ( PropertyValAnnotationService.LOOKUP_RETRY_PASSES_PROP, String.valueOf ( retries ) );
+		System.setProperty ( PropertyValAnnotationService.LOOKUP_RETRY_DELAY_PROP, "0" );
+		try
+		{
+			final PropertyValAnnotationService service = new PropertyValAnnotationService ();
+			final AtomicInteger maxPending = new AtomicInteger ( 0 ), nlookups = new AtomicInteger ( 0 );
+			final AtomicInteger nsubmitterRuns = new AtomicInteger ( 0 );
+			
+			service.setPvAnnMgr ( new PropertyValAnnotationManager ( AnnotatorResources.getInstance () ) 
+			{
+				@Override
+				public boolean annotateData ( PropertyValRecord pvrec ) {
+					return false;
+				}
+
+				@Override
+				public void annotateOntoTerms ( PropertyValRecord pvrec, boolean isNumberOrDate )
+				{
+					// Running tasks, queued tasks and deferred tasks
+					int pending = Math.max ( service.getQueueDepth (), service.getDeferredLookupsCount () );
+					for ( int max; pending > ( max = maxPending.get () ) && !maxPending.compareAndSet ( max, pending ); );
+					
+					nlookups.incrementAndGet ();
+					throw new ZOOMAUnavailableException ( "Test ZOOMA failure for " + pvrec.getValueLabel () );
+				}
+
+				@Override
+				public void annotate ( PropertyValRecord pvrec ) {
+					nsubmitterRuns.incrementAndGet ();
+				}
+			});
+			
+			final int nvalues = capacity * 25;
+			Thread submitter = new Thread ( "test-submitter" ) 
+			{
+				@Override
+				public void run ()
+				{
+					for ( int i = 0; i < nvalues; i++ )
+						service.submit ( new PropertyValRecord ( "test zooma property", "down " + i, null ) );
+					service.waitAllFinished ( false );
+				}
+			};
+			submitter.setDaemon ( true );
+			submitter.start ();
+			submitter.join ( 30000 );
+			
+			assertFalse ( "The submitter is blocked!", submitter.isAlive () );
+			assertTrue ( "Deferred lookups exceeded the queue capacity!", maxPending.get () <= capacity );
+			assertEquals ( "Queue slots not released!", 0, service.getQueueDepth () );
+			assertEquals ( "Deferred lookups left!", 0, service.getDeferredLookupsCount () );
+			assertEquals ( "Tasks run by the submitter!", 0, nsubmitterRuns.get () );
+			assertEquals ( "Wrong no. of lookup attempts!", nvalues * ( retries + 1 ), nlookups.get () );
+			assertEquals ( "Wrong no. of failed lookups!", nvalues, service.getLookupStage ().getFailedJobs () );
+		}
+		finally {
+			System.clearProperty ( PropertyValAnnotationService.QUEUE_CAPACITY_PROP );
+			System.clearProperty ( PropertyValAnnotationService.LOOKUP_RETRY_PASSES_PROP );
+			System.clearProperty ( PropertyValAnnotationService.LOOKUP_RETRY_DELAY_PROP );
+		}
+	}
+
+	/**
+	 * Tests the 'async' {@link PropertyValAnnotationService#LOOKUP_MODE_PROP lookup mode}.
+	 */
+	@Test
+	public void testAsyncLookupMode ()
+	{
+		System.setProperty ( PropertyValAnnotationService.LOOKUP_MODE_PROP, "async" );
+		System.setProperty ( AdaptiveZOOMASearchFilter.MAX_REMOTE_CALLS_PROP, "2" );
+		System.setProperty ( BioSDOntoDiscoveringCache.MAX_QUERIES_PROP, "1" );
+		try
+		{
+			PropertyValAnnotationService service = new PropertyValAnnotationService ();
+			int poolSize = service.getLookupStage ().getPoolSize ();
+			assertTrue ( "Wrong async stage size!", poolSize == -1 || poolSize == 3 );
+			
+			final Set<String> lookedUpValues = Collections.synchronizedSet ( new HashSet<String> () );
+			service.setPvAnnMgr ( new PropertyValAnnotationManager ( AnnotatorResources.getInstance () ) 
+			{
+				@Override
+				public boolean annotateData ( PropertyValRecord pvrec ) {
+					return false;
+				}
+
+				@Override
+				public void annotateOntoTerms ( PropertyValRecord pvrec, boolean isNumberOrDate ) {
+					lookedUpValues.add ( pvrec.getValueLabel () );
+				}
+			});
+			
+			int nvalues = 100;
+			for ( int i = 0; i < nvalues; i++ )
+				service.submit ( new PropertyValRecord ( "test async property", "Value " + i, null ) );
+			service.waitAllFinished ( false );
+			
+			assertEquals ( "Wrong no. of lookups in async mode!", nvalues, lookedUpValues.size () );
+			assertEquals ( "Wrong no. of async lookup jobs!", nvalues, service.getLookupStage ().getCompletedJobs () );
+		}
+		finally {
+			System.clearProperty ( PropertyValAnnotationService.LOOKUP_MODE_PROP );
+			System.clearProperty ( AdaptiveZOOMASearchFilter.MAX_REMOTE_CALLS_PROP );
+			System.clearProperty ( BioSDOntoDiscoveringCache.MAX_QUERIES_PROP );
+		}
+	}
+	
+	/**
+	 * The background {@link StoreFlusher} starts with the first submission, stops with 
+	 * {@link PropertyValAnnotationService#waitAllFinished(boolean)} and starts again if the service is reused. 
+	 */
+	@Test
+	public void testStoreFlusherLifecycle () throws InterruptedException
+	{
+		System.setProperty ( StoreFlusher.INTERVAL_PROP, "60" );
+		try
+		{
+			PropertyValAnnotationService service = new PropertyValAnnotationService ();
+			service.setPvAnnMgr ( new PropertyValAnnotationManager ( AnnotatorResources.getInstance () ) 
+			{
+				@Override
+				public boolean annotateData ( PropertyValRecord pvrec ) {
+					return false;
+				}
+
+				@Override
+				public void annotateOntoTerms ( PropertyValRecord pvrec, boolean isNumberOrDate ) {}
+			});
+			assertFalse ( "Store flusher started before any submission!", isStoreFlusherRunning () );
+			
+			for ( int run = 0; run < 2; run++ )
+			{
+				service.submit ( new PropertyValRecord ( "test flusher property", "Value " + run, null ) );
+				assertTrue ( "Store flusher not started by the submission!", isStoreFlusherRunning () );
+				
+				service.waitAllFinished ( false );
+				for ( int i = 0; i < 50 && isStoreFlusherRunning (); i++ ) Thread.sleep ( 100 );
+				assertFalse ( "Store flusher not stopped!", isStoreFlusherRunning () );
+			}
+		}
+		finally {
+			System.clearProperty ( StoreFlusher.INTERVAL_PROP );
+		}
+	}
+	
+	private static boolean isStoreFlusherRunning ()
+	{
+		for ( Thread thread: Thread.getAllStackTraces ().keySet () )
+			if ( "ann-store-flusher".equals ( thread.getName () ) ) return true;
+		return false;
+	}
+	
 	/**
 	 * Tests against a real-world submission.
 	 */
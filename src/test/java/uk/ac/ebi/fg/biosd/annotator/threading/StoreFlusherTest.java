@@ -0,0 +1,77 @@
+package uk.ac.ebi.fg.biosd.annotator.threading;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Date;
+
+import org.joda.time.DateTime;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+
+import uk.ac.ebi.fg.biosd.annotator.AnnotationStore;
+import uk.ac.ebi.fg.biosd.annotator.AnnotatorResources;
+import uk.ac.ebi.fg.biosd.annotator.model.ExpPropValAnnotation;
+import uk.ac.ebi.fg.biosd.annotator.purge.Purger;
+import uk.ac.ebi.fg.biosd.annotator.test.AnnotatorResourcesResetRule;
+import uk.ac.ebi.fg.biosd.annotator.test.TestPvAnnotations;
+
+/**
+ * Tests for {@link StoreFlusher}.
+ */
+public class StoreFlusherTest
+{
+	@Rule
+	public TestRule resResetRule = new AnnotatorResourcesResetRule ();
+
+	@After
+	public void cleanUp ()
+	{
+		new Purger ().purge ( new DateTime ().minusMinutes ( 1 ).toDate (), new Date () );
+	}
+
+	@Test
+	public void testPeriodicFlush () throws InterruptedException
+	{
+		AnnotationStore store = AnnotatorResources.getInstance ().getStore ();
+		StoreFlusher flusher = new StoreFlusher ( 1 );
+		flusher.start ();
+		try
+		{
+			for ( int i = 0; i < 3; i++ )
+			{
+				addPvAnn ( store, "Value " + i );
+				// Waits for a flush to happen
+				for ( int j = 0; j < 30 && store.getPendingSize () > 0; j++ ) Thread.sleep ( 200 );
+				assertEquals ( "Store not flushed in background!", 0, store.getPendingSize () );
+			}
+		}
+		finally {
+			flusher.stop ();
+		}
+		assertEquals ( "Flushes failed!", 0, flusher.getFailedFlushes () );
+
+		// Nothing more after stop()
+		addPvAnn ( store, "Value 3" );
+		Thread.sleep ( 2000 );
+		assertEquals ( "Store flushed after stop()!", 1, store.getPendingSize () );
+
+		// And it can be restarted
+		flusher.start ();
+		try {
+			for ( int j = 0; j < 30 && store.getPendingSize () > 0; j++ ) Thread.sleep ( 200 );
+		}
+		finally {
+			flusher.stop ();
+		}
+		assertEquals ( "Store not flushed after a restart!", 0, store.getPendingSize () );
+	}
+
+	private static void addPvAnn ( AnnotationStore store, String value )
+	{
+		TestPvAnnotations.addPvAnn ( 
+			store, ExpPropValAnnotation.getPvalText ( "test flusher property", value ), "http://www.example.com/flusher_test" 
+		);
+	}
+}